@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mide lo que cuesta convertir una etiqueta a comandos EPL: con el
+ * StringBuilder de siempre (Etiqueta.getComandosEPL) y con CodificadorEPL,
+ * con y sin formularios. Con '-prof gc' se ven los bytes creados por
+ * etiqueta (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CodificacionBenchmark {
+
+    private Etiqueta etiqueta;
+    private CodificadorEPL codificador;
+    private EstadoImpresora estado;
+
+    @Setup
+    public void preparar() {
+        etiqueta = DatosBenchmark.etiquetaTipica();
+        codificador = new CodificadorEPL();
+        estado = new EstadoImpresora();
+    }
+
+    @Benchmark
+    public byte[] stringBuilder() {
+        return etiqueta.getComandosEPL().getBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer plantilla() {
+        return codificador.codificar(etiqueta);
+    }
+
+    @Benchmark
+    public ByteBuffer formulario() {
+        return codificador.codificar(etiqueta, estado);
+    }
+}
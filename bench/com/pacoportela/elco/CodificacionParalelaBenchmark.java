@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mide las etiquetas por segundo que codifica CodificadorParalelo según el
+ * número de hilos. Los bloques codificados se descartan, así que sólo se
+ * mide la codificación y la entrega en orden. La aceleración con N hilos es
+ * el resultado con N hilos dividido por el resultado con 1 hilo; no puede
+ * pasar del número de procesadores de la máquina.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class CodificacionParalelaBenchmark {
+
+    private static final int ETIQUETAS = 20 * CodificadorParalelo.TAMANO_BLOQUE;
+
+    @Param({"1", "2", "4", "8"})
+    public int hilos;
+
+    private Etiqueta etiqueta;
+    private CodificadorParalelo codificador;
+    private long bytes;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        etiqueta = DatosBenchmark.etiquetaTipica();
+        codificador = new CodificadorParalelo(hilos,
+                PaginaCodigos.porDefecto(), null,
+                bloque -> bytes += bloque.getLongitud());
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() {
+        codificador.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ETIQUETAS)
+    public long codificar() throws IOException {
+        for (int i = 0; i < ETIQUETAS; i++) {
+            codificador.getEtiquetaLibre().copiar(etiqueta);
+            codificador.anadir();
+        }
+        codificador.terminar();
+        return bytes;
+    }
+}
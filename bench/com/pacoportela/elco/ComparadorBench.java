@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compara el resultado JSON de una ejecución de los benchmarks con un
+ * resultado de referencia y termina con error si algún benchmark es más
+ * lento, ó crea más bytes por operación, que la referencia más la
+ * tolerancia. Los dos resultados deben tener la memoria por operación (JMH
+ * con '-prof gc'); si falta en algún benchmark también termina con error,
+ * para que no se deje de comprobar sin avisar. Se usa desde el target
+ * 'bench-comparar' de build.xml.
+ *
+ * Uso: ComparadorBench referencia.json resultado.json [tolerancia %]
+ */
+public final class ComparadorBench {
+
+    private static final Pattern BENCHMARK
+            = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern MODO
+            = Pattern.compile("\"mode\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern PARAMETROS
+            = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+    private static final Pattern PRINCIPAL = Pattern.compile(
+            "\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE]+)");
+    // antes de JMH 1.36 el nombre empieza por '·' (punto medio), que en el
+    // JSON también puede venir escrito como \\u00b7.
+    private static final Pattern MEMORIA = Pattern.compile(
+            "\"(?:\u00b7|\\\\u00b7)?gc\\.alloc\\.rate\\.norm\"\\s*:\\s*\\{\\s*"
+            + "\"score\"\\s*:\\s*([-0-9.eE]+)");
+    // diferencia de memoria por operación que se ignora, en bytes.
+    private static final double MARGEN_MEMORIA = 8;
+
+    private ComparadorBench() {
+    }
+
+    /**
+     * Resultado de un benchmark con unos parámetros concretos.
+     */
+    private static final class Resultado {
+
+        String modo;
+        double valor;
+        double memoria = Double.NaN;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Uso: ComparadorBench referencia.json "
+                    + "resultado.json [tolerancia %]");
+            System.exit(2);
+        }
+        double tolerancia = args.length > 2
+                ? Double.parseDouble(args[2]) / 100 : 0.10;
+        Map<String, Resultado> referencia = leer(args[0]);
+        Map<String, Resultado> actual = leer(args[1]);
+        int sinMemoria = 0;
+        for (Map.Entry<String, Resultado> e : referencia.entrySet()) {
+            if (Double.isNaN(e.getValue().memoria)) {
+                System.out.println("SIN MEMORIA (referencia) " + e.getKey());
+                sinMemoria++;
+            }
+        }
+        int empeorados = 0;
+        for (Map.Entry<String, Resultado> e : actual.entrySet()) {
+            Resultado ref = referencia.get(e.getKey());
+            if (ref == null) {
+                System.out.println("NUEVO     " + e.getKey());
+                continue;
+            }
+            Resultado res = e.getValue();
+            if (Double.isNaN(res.memoria)) {
+                System.out.println("SIN MEMORIA " + e.getKey());
+                sinMemoria++;
+            }
+            // en 'thrpt' más es mejor, en el resto de modos menos es mejor.
+            double cambio = (res.valor - ref.valor) / ref.valor;
+            boolean peor = res.modo.equals("thrpt")
+                    ? cambio < -tolerancia : cambio > tolerancia;
+            boolean masMemoria = res.memoria > ref.memoria * (1 + tolerancia)
+                    + MARGEN_MEMORIA;
+            String estado = peor || masMemoria ? "PEOR" : "OK";
+            System.out.printf("%-9s %s: %.3f -> %.3f (%+.1f%%)", estado,
+                    e.getKey(), ref.valor, res.valor, cambio * 100);
+            if (!Double.isNaN(res.memoria)) {
+                System.out.printf(", %.1f -> %.1f bytes/op", ref.memoria,
+                        res.memoria);
+            }
+            System.out.println();
+            if (peor || masMemoria) {
+                empeorados++;
+            }
+        }
+        if (sinMemoria > 0) {
+            System.out.println(sinMemoria + " resultados no tienen la memoria "
+                    + "por operación: hay que ejecutar JMH con '-prof gc' y "
+                    + "volver a guardar la referencia (ant bench-referencia)");
+            System.exit(1);
+        }
+        if (empeorados > 0) {
+            System.out.println(empeorados + " benchmarks han empeorado más "
+                    + "de un " + Math.round(tolerancia * 100) + "%");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Este método lee el fichero JSON que escribe JMH con '-rf json'. Sólo
+     * busca los campos que hacen falta, sin un analizador JSON completo.
+     */
+    private static Map<String, Resultado> leer(String fichero)
+            throws IOException {
+        String texto = new String(Files.readAllBytes(Paths.get(fichero)),
+                StandardCharsets.UTF_8);
+        Map<String, Resultado> resultados = new LinkedHashMap<>();
+        // cada resultado empieza con el campo jmhVersion.
+        String[] bloques = texto.split("\"jmhVersion\"");
+        for (int i = 1; i < bloques.length; i++) {
+            String bloque = bloques[i];
+            Matcher nombre = BENCHMARK.matcher(bloque);
+            Matcher principal = PRINCIPAL.matcher(bloque);
+            if (!nombre.find() || !principal.find()) {
+                continue;
+            }
+            String clave = nombre.group(1);
+            Matcher parametros = PARAMETROS.matcher(bloque);
+            if (parametros.find()) {
+                clave += " {" + parametros.group(1).replaceAll("\\s+", "")
+                        + "}";
+            }
+            Resultado resultado = new Resultado();
+            Matcher modo = MODO.matcher(bloque);
+            resultado.modo = modo.find() ? modo.group(1) : "thrpt";
+            resultado.valor = Double.parseDouble(principal.group(1));
+            Matcher memoria = MEMORIA.matcher(bloque);
+            if (memoria.find()) {
+                resultado.memoria = Double.parseDouble(memoria.group(1));
+            }
+            resultados.put(clave, resultado);
+        }
+        return resultados;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+/**
+ * Datos fijos para que todos los benchmarks midan siempre lo mismo.
+ */
+final class DatosBenchmark {
+
+    private DatosBenchmark() {
+    }
+
+    /**
+     * @return una etiqueta de envío típica con cuatro lineas de texto.
+     */
+    static Etiqueta etiquetaTipica() {
+        Etiqueta etiqueta = new Etiqueta();
+        etiqueta.setLinea(0, "Pedido 000123456");
+        etiqueta.setLinea(1, "Cliente: Almacenes Portela S.L.");
+        etiqueta.setLinea(2, "C/ Mayor 15, 28013 Madrid");
+        etiqueta.setLinea(3, "Bulto 1 de 3");
+        return etiqueta;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mide el diario de trabajos con muchas entradas: lo que tarda en abrirse,
+ * en mostrar los trabajos más recientes (lo que hace el historial al
+ * abrirse), en buscar una palabra frecuente y una que sólo está en los
+ * trabajos más antiguos, y en buscar un intervalo de fechas. Cada entrada
+ * lleva 120 bytes de EPL, así que un millón de entradas son unos 20
+ * segmentos.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DiarioBenchmark {
+
+    private static final int MAX_RESULTADOS = 500;
+
+    @Param({"100000", "1000000"})
+    public int entradas;
+
+    private Path directorio;
+    private DiarioTrabajos diario;
+    private long medio;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        directorio = Files.createTempDirectory("diario-bench");
+        DiarioTrabajos nuevo = new DiarioTrabajos(directorio);
+        byte[] datos = new byte[120];
+        for (int i = 0; i < entradas; i++) {
+            // "antiguo" sólo en el primer 1 % del diario.
+            TrabajoImpresion trabajo = new TrabajoImpresion("Pedido " + i
+                    + " cliente" + (i % 1000) + " ref" + (i % 97)
+                    + (i < entradas / 100 ? " antiguo" : ""), datos);
+            nuevo.trabajoActualizado(trabajo);
+            trabajo.setEstado(TrabajoImpresion.Estado.IMPRESO);
+            nuevo.trabajoActualizado(trabajo);
+        }
+        nuevo.close();
+        diario = new DiarioTrabajos(directorio);
+        List<EntradaDiario> todas = diario.buscar(Long.MIN_VALUE,
+                Long.MAX_VALUE, "pedido " + entradas / 2, 1);
+        medio = todas.get(0).getInstante();
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() throws IOException {
+        diario.close();
+        try (DirectoryStream<Path> ficheros
+                = Files.newDirectoryStream(directorio)) {
+            for (Path fichero : ficheros) {
+                Files.delete(fichero);
+            }
+        }
+        Files.delete(directorio);
+    }
+
+    @Benchmark
+    public int abrir() throws IOException {
+        DiarioTrabajos abierto = new DiarioTrabajos(directorio);
+        int total = abierto.getNumeroEntradas();
+        abierto.close();
+        return total;
+    }
+
+    @Benchmark
+    public List<EntradaDiario> recientes() {
+        return diario.buscar(Long.MIN_VALUE, Long.MAX_VALUE, "",
+                MAX_RESULTADOS);
+    }
+
+    @Benchmark
+    public List<EntradaDiario> palabraFrecuente() {
+        return diario.buscar(Long.MIN_VALUE, Long.MAX_VALUE, "cliente7 ref3",
+                MAX_RESULTADOS);
+    }
+
+    @Benchmark
+    public List<EntradaDiario> palabraAntigua() {
+        return diario.buscar(Long.MIN_VALUE, Long.MAX_VALUE, "antiguo",
+                MAX_RESULTADOS);
+    }
+
+    @Benchmark
+    public List<EntradaDiario> intervalo() {
+        return diario.buscar(medio, medio + 1000, "", MAX_RESULTADOS);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.print.PrintService;
+import javax.print.PrintServiceLookup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mide lo que cuesta encontrar la impresora: buscándola en todos los
+ * PrintService del equipo en cada etiqueta, como se hacía antes, y con la
+ * caché de RegistroImpresoras. La búsqueda completa depende de las colas
+ * de impresión instaladas en la máquina donde se ejecuta; para la caché,
+ * si la impresora no está instalada se añade una falsa con su nombre, de
+ * forma que siempre se mide la impresora guardada y no la búsqueda.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RegistroImpresorasBenchmark {
+
+    @Param("ZDesigner LP 2844")
+    public String nombreImpresora;
+
+    private RegistroImpresoras registro;
+
+    /**
+     * Comprueba antes de medir que una impresora guardada sin caducidad no
+     * se vuelve a buscar: si el tiempo de vida se desbordara, cada llamada
+     * lanzaría una búsqueda en segundo plano y se mediría eso.
+     */
+    @Setup
+    public void comprobarCaducidad() throws InterruptedException {
+        AtomicInteger busquedas = new AtomicInteger();
+        PrintService[] servicios = {impresoraFalsa(nombreImpresora)};
+        RegistroImpresoras prueba = new RegistroImpresoras(nombreImpresora,
+                RegistroImpresoras.SIN_CADUCIDAD, () -> {
+                    busquedas.incrementAndGet();
+                    return servicios;
+                });
+        prueba.getImpresora();
+        for (int i = 0; i < 1000; i++) {
+            prueba.getImpresora();
+        }
+        // la búsqueda en segundo plano, si la hubiera, ya habría empezado.
+        Thread.sleep(100);
+        if (busquedas.get() != 1) {
+            throw new IllegalStateException("La impresora guardada sin "
+                    + "caducidad se ha buscado " + busquedas.get() + " veces");
+        }
+    }
+
+    /**
+     * Este método crea un PrintService que sólo tiene nombre.
+     */
+    static PrintService impresoraFalsa(String nombre) {
+        return (PrintService) Proxy.newProxyInstance(
+                PrintService.class.getClassLoader(),
+                new Class<?>[]{PrintService.class}, (proxy, metodo, args) -> {
+                    switch (metodo.getName()) {
+                        case "getName":
+                        case "toString":
+                            return nombre;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            throw new UnsupportedOperationException(
+                                    metodo.getName());
+                    }
+                });
+    }
+
+    @Setup
+    public void preparar() {
+        PrintService[] instaladas
+                = PrintServiceLookup.lookupPrintServices(null, null);
+        PrintService[] servicios = Arrays.copyOf(instaladas,
+                instaladas.length + 1);
+        servicios[instaladas.length] = impresoraFalsa(nombreImpresora);
+        registro = new RegistroImpresoras(nombreImpresora,
+                RegistroImpresoras.SIN_CADUCIDAD, () -> servicios);
+        registro.getImpresora();
+    }
+
+    /**
+     * Comprueba que lo medido en registro() ha salido siempre de la caché.
+     */
+    @TearDown
+    public void comprobarCache() {
+        if (registro.getBusquedas() != 1) {
+            throw new IllegalStateException("registro() ha buscado la "
+                    + "impresora " + registro.getBusquedas() + " veces");
+        }
+    }
+
+    @Benchmark
+    public PrintService busquedaCompleta() {
+        PrintService[] services
+                = PrintServiceLookup.lookupPrintServices(null, null);
+        for (PrintService impresora : services) {
+            if (impresora.getName().equalsIgnoreCase(nombreImpresora)) {
+                return impresora;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public PrintService registro() {
+        return registro.getImpresora();
+    }
+}
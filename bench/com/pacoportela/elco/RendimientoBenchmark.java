@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mide las etiquetas por segundo de principio a fin: codificar la etiqueta
+ * y enviarla a una salida. La salida 'nula' descarta los datos y la salida
+ * 'tcp' los envía a una ImpresoraFalsa local. Cada operación es un trabajo
+ * de ETIQUETAS_TRABAJO etiquetas, así que el resultado sale en etiquetas por
+ * segundo.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class RendimientoBenchmark {
+
+    private static final int ETIQUETAS_TRABAJO = 100;
+
+    @Param({"nula", "tcp"})
+    public String tipoSalida;
+
+    @Param({"false", "true"})
+    public boolean formularios;
+
+    private Etiqueta etiqueta;
+    private CodificadorEPL codificador;
+    private EstadoImpresora estado;
+    private ImpresoraFalsa impresoraFalsa;
+    private SalidaImpresion salida;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        etiqueta = DatosBenchmark.etiquetaTipica();
+        codificador = new CodificadorEPL();
+        estado = new EstadoImpresora();
+        if (tipoSalida.equals("tcp")) {
+            impresoraFalsa = new ImpresoraFalsa(0);
+            salida = new SalidaSocket("127.0.0.1",
+                    impresoraFalsa.getPuerto());
+        } else {
+            salida = new SalidaFlujo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }, "nula");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() throws IOException {
+        salida.close();
+        if (impresoraFalsa != null) {
+            impresoraFalsa.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ETIQUETAS_TRABAJO)
+    public void trabajo() throws IOException {
+        for (int i = 0; i < ETIQUETAS_TRABAJO; i++) {
+            salida.enviar(formularios
+                    ? codificador.codificar(etiqueta, estado)
+                    : codificador.codificar(etiqueta));
+        }
+        salida.terminarTrabajo();
+    }
+}
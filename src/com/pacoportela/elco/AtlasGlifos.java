@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Esta clase guarda los dibujos (glifos) de los caracteres de una fuente EPL
+ * con una expansión horizontal y vertical, en puntos de la impresora. Cada
+ * glifo se dibuja una sola vez con la fuente Monospaced de Java, se reduce a
+ * blanco y negro con el tamaño de la fuente de la impresora a 203 ppp y se
+ * amplía repitiendo puntos, como hace la impresora. Los atlas se guardan
+ * para reutilizarlos.
+ */
+final class AtlasGlifos {
+
+    // ancho y alto en puntos de los caracteres de las fuentes 1 a 5.
+    private static final int[] ANCHOS = {8, 10, 12, 14, 32};
+    private static final int[] ALTOS = {12, 16, 20, 24, 48};
+    // separación entre caracteres, en puntos sin ampliar.
+    private static final int SEPARACION = 2;
+    private static final String HORIZONTALES = "1234568";
+    private static final String VERTICALES = "123456789";
+
+    private static final AtlasGlifos[] ATLAS = new AtlasGlifos[5
+            * HORIZONTALES.length() * VERTICALES.length()];
+    // glifos sin ampliar de cada fuente.
+    private static final AtlasGlifos[] BASE = new AtlasGlifos[5];
+
+    private final int fuente;
+    private final int expansionHorizontal;
+    private final int expansionVertical;
+    private final int anchoGlifo;
+    private final int altoGlifo;
+    // glifos de los caracteres Latin 1 y del resto, 1 es un punto negro.
+    private final byte[][] latin1 = new byte[256][];
+    private final Map<Character, byte[]> otros = new HashMap<>();
+
+    private AtlasGlifos(int fuente, int horizontal, int vertical) {
+        this.fuente = fuente;
+        this.expansionHorizontal = horizontal;
+        this.expansionVertical = vertical;
+        this.anchoGlifo = ANCHOS[fuente] * horizontal;
+        this.altoGlifo = ALTOS[fuente] * vertical;
+    }
+
+    /**
+     * Este método devuelve el atlas de una fuente y una expansión.
+     *
+     * @param fuente la fuente EPL, de '1' a '5'.
+     * @param horizontal la expansión horizontal.
+     * @param vertical la expansión vertical.
+     * @return el atlas.
+     */
+    static synchronized AtlasGlifos obtener(char fuente, char horizontal,
+            char vertical) {
+        int f = fuente - '1';
+        int h = HORIZONTALES.indexOf(horizontal);
+        int v = VERTICALES.indexOf(vertical);
+        if (f < 0 || f >= ANCHOS.length || h < 0 || v < 0) {
+            throw new IllegalArgumentException("Fuente no válida: " + fuente
+                    + "," + horizontal + "," + vertical);
+        }
+        int indice = (f * HORIZONTALES.length() + h) * VERTICALES.length() + v;
+        AtlasGlifos atlas = ATLAS[indice];
+        if (atlas == null) {
+            atlas = new AtlasGlifos(f, horizontal - '0', vertical - '0');
+            ATLAS[indice] = atlas;
+        }
+        return atlas;
+    }
+
+    /**
+     * @return el ancho de un carácter con su separación, en puntos.
+     */
+    int getAnchoCelda() {
+        return (ANCHOS[fuente] + SEPARACION) * expansionHorizontal;
+    }
+
+    int getAnchoGlifo() {
+        return anchoGlifo;
+    }
+
+    int getAltoGlifo() {
+        return altoGlifo;
+    }
+
+    /**
+     * Este método devuelve el glifo de un carácter: anchoGlifo * altoGlifo
+     * bytes por filas, 1 para los puntos negros. La matriz no se debe
+     * modificar.
+     *
+     * @param c el carácter.
+     * @return el glifo.
+     */
+    synchronized byte[] getGlifo(char c) {
+        byte[] glifo = c < 256 ? latin1[c] : otros.get(c);
+        if (glifo == null) {
+            glifo = crearGlifo(c);
+            if (c < 256) {
+                latin1[c] = glifo;
+            } else {
+                otros.put(c, glifo);
+            }
+        }
+        return glifo;
+    }
+
+    private byte[] crearGlifo(char c) {
+        if (expansionHorizontal == 1 && expansionVertical == 1) {
+            return dibujar(c);
+        }
+        AtlasGlifos base;
+        synchronized (AtlasGlifos.class) {
+            base = BASE[fuente];
+            if (base == null) {
+                base = new AtlasGlifos(fuente, 1, 1);
+                BASE[fuente] = base;
+            }
+        }
+        byte[] original = base.getGlifo(c);
+        int ancho = ANCHOS[fuente];
+        byte[] glifo = new byte[anchoGlifo * altoGlifo];
+        for (int y = 0; y < altoGlifo; y++) {
+            int fila = y / expansionVertical * ancho;
+            for (int x = 0; x < anchoGlifo; x++) {
+                glifo[y * anchoGlifo + x]
+                        = original[fila + x / expansionHorizontal];
+            }
+        }
+        return glifo;
+    }
+
+    /**
+     * Este método dibuja un carácter sin ampliar con la fuente Monospaced.
+     * La fuente 5 de la impresora sólo tiene mayúsculas.
+     */
+    private byte[] dibujar(char c) {
+        int ancho = ANCHOS[fuente];
+        int alto = ALTOS[fuente];
+        if (fuente == 4) {
+            c = Character.toUpperCase(c);
+        }
+        BufferedImage imagen = new BufferedImage(ancho, alto,
+                BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = imagen.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+            g.fillRect(0, 0, ancho, alto);
+            g.setColor(Color.BLACK);
+            Font letra = new Font(Font.MONOSPACED, Font.BOLD, alto);
+            FontMetrics medidas = g.getFontMetrics(letra);
+            // ajustamos la letra a la celda de la fuente de la impresora.
+            double escalaX = (double) ancho / Math.max(1, medidas.charWidth('M'));
+            double escalaY = (double) alto / Math.max(1,
+                    medidas.getAscent() + medidas.getDescent());
+            g.scale(escalaX, escalaY);
+            g.setFont(letra);
+            g.drawString(String.valueOf(c), 0, medidas.getAscent());
+        } finally {
+            g.dispose();
+        }
+        byte[] grises = ((DataBufferByte) imagen.getRaster().getDataBuffer())
+                .getData();
+        byte[] glifo = new byte[ancho * alto];
+        for (int i = 0; i < glifo.length; i++) {
+            glifo[i] = (grises[i] & 0xFF) < 128 ? (byte) 1 : 0;
+        }
+        return glifo;
+    }
+}
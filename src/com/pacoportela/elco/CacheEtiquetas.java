@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Esta clase guarda los comandos EPL de las últimas etiquetas codificadas,
+ * para no volver a codificar las que se imprimen una y otra vez (etiquetas
+ * de estantería, avisos). La clave es un resumen de 64 bits del texto de
+ * las cinco lineas, la fuente, la rotación, la expansión y el formato
+ * (Etiqueta.getResumenContenido()), que se calcula sin crear objetos; al
+ * encontrar una entrada se comprueba que el contenido es el mismo. El número
+ * de copias no forma parte de la clave: si cambia sólo se cambia el comando
+ * 'P' del final. Cuando se llena se descarta la etiqueta usada hace más
+ * tiempo. Las entradas sirven también de lista de etiquetas recientes para
+ * reimprimirlas. Hay una sola caché para toda la aplicación.
+ */
+public final class CacheEtiquetas {
+
+    /** Número de etiquetas que se guardan por defecto. */
+    public static final int CAPACIDAD = 256;
+
+    private static final CacheEtiquetas INSTANCIA = new CacheEtiquetas();
+
+    /**
+     * Una etiqueta codificada.
+     */
+    private static final class Entrada {
+
+        final Etiqueta etiqueta = new Etiqueta();
+        final PaginaCodigos pagina;
+        final GraficoEPL logo;
+        byte[] datos;
+        // posición del comando 'P' del final.
+        final int posicionCopias;
+
+        Entrada(Etiqueta etiqueta, PaginaCodigos pagina, GraficoEPL logo,
+                byte[] datos) {
+            this.etiqueta.copiar(etiqueta);
+            this.pagina = pagina;
+            this.logo = logo;
+            this.datos = datos;
+            // los comandos terminan en "P<copias>\n".
+            this.posicionCopias = datos.length - 2
+                    - Integer.toString(etiqueta.getCopias()).length();
+        }
+    }
+
+    private int capacidad = CAPACIDAD;
+    // de la usada hace más tiempo a la última usada.
+    private final LinkedHashMap<Long, Entrada> entradas
+            = new LinkedHashMap<Long, Entrada>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entrada> mayor) {
+            return size() > capacidad;
+        }
+    };
+    private long aciertos;
+    private long fallos;
+
+    private CacheEtiquetas() {
+    }
+
+    /**
+     * @return la caché de la aplicación.
+     */
+    public static CacheEtiquetas getInstancia() {
+        return INSTANCIA;
+    }
+
+    /**
+     * @param capacidad el número máximo de etiquetas guardadas; 0 para no
+     * guardar ninguna.
+     */
+    public synchronized void setCapacidad(int capacidad) {
+        if (capacidad < 0) {
+            throw new IllegalArgumentException(
+                    "Capacidad no válida: " + capacidad);
+        }
+        this.capacidad = capacidad;
+        while (entradas.size() > capacidad) {
+            entradas.remove(entradas.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Este método busca los comandos EPL de una etiqueta ya codificada con
+     * la misma página de códigos y el mismo logotipo.
+     *
+     * @param etiqueta la etiqueta.
+     * @param pagina la página de códigos.
+     * @param logo el logotipo, ó null.
+     * @return los comandos EPL con el número de copias de la etiqueta, ó
+     * null si no está. La matriz no se debe modificar.
+     */
+    public synchronized byte[] buscar(Etiqueta etiqueta, PaginaCodigos pagina,
+            GraficoEPL logo) {
+        if (capacidad == 0) {
+            return null;
+        }
+        Entrada entrada = entradas.get(etiqueta.getResumenContenido());
+        if (entrada == null || entrada.pagina != pagina
+                || entrada.logo != logo
+                || !entrada.etiqueta.mismoContenido(etiqueta)) {
+            fallos++;
+            return null;
+        }
+        aciertos++;
+        if (entrada.etiqueta.getCopias() != etiqueta.getCopias()) {
+            // sólo cambia el comando 'P' del final.
+            byte[] copias = ("P" + etiqueta.getCopias() + "\n")
+                    .getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+            byte[] datos = Arrays.copyOf(entrada.datos,
+                    entrada.posicionCopias + copias.length);
+            System.arraycopy(copias, 0, datos, entrada.posicionCopias,
+                    copias.length);
+            entrada.datos = datos;
+            entrada.etiqueta.setCopias(etiqueta.getCopias());
+        }
+        return entrada.datos;
+    }
+
+    /**
+     * Este método guarda los comandos EPL de una etiqueta.
+     *
+     * @param etiqueta la etiqueta; se guarda una copia.
+     * @param pagina la página de códigos con la que se ha codificado.
+     * @param logo el logotipo con el que se ha codificado, ó null.
+     * @param datos los comandos EPL; la matriz no se debe modificar después.
+     */
+    public synchronized void guardar(Etiqueta etiqueta, PaginaCodigos pagina,
+            GraficoEPL logo, byte[] datos) {
+        if (capacidad > 0) {
+            entradas.put(etiqueta.getResumenContenido(),
+                    new Entrada(etiqueta, pagina, logo, datos));
+        }
+    }
+
+    /**
+     * @param maximo el número máximo de etiquetas.
+     * @return copias de las últimas etiquetas usadas, de la más reciente a
+     * la más antigua, con el número de copias con que se imprimieron.
+     */
+    public synchronized List<Etiqueta> getRecientes(int maximo) {
+        List<Etiqueta> recientes = new ArrayList<>();
+        for (Entrada entrada : entradas.values()) {
+            Etiqueta copia = new Etiqueta();
+            copia.copiar(entrada.etiqueta);
+            recientes.add(0, copia);
+        }
+        return recientes.size() > maximo
+                ? new ArrayList<>(recientes.subList(0, maximo)) : recientes;
+    }
+
+    /**
+     * @return el número de etiquetas encontradas en la caché.
+     */
+    public synchronized long getAciertos() {
+        return aciertos;
+    }
+
+    /**
+     * @return el número de etiquetas que no estaban en la caché.
+     */
+    public synchronized long getFallos() {
+        return fallos;
+    }
+
+    /**
+     * @return el número de etiquetas guardadas.
+     */
+    public synchronized int getTamano() {
+        return entradas.size();
+    }
+
+    /**
+     * Este método pone a cero los aciertos y los fallos.
+     */
+    public synchronized void reiniciarEstadisticas() {
+        aciertos = 0;
+        fallos = 0;
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase es la carpeta de entrada: imprime los ficheros de etiquetas
+ * (CSV/TSV con el formato de LectorEtiquetas) que otros programas dejan en
+ * un directorio. Un WatchService avisa en cuanto aparece un fichero, sin
+ * tener que mirar el directorio cada cierto tiempo. El fichero se lee por
+ * partes según se imprime, sin cargarlo entero, y cada etiqueta se envía
+ * como un trabajo a la misma cola de impresión que usa la ventana.
+ *
+ * Antes de leer un fichero se mueve a la subcarpeta 'en-curso' y cuando se
+ * han impreso todas sus etiquetas se mueve a 'hechos', ó a 'fallidos' si
+ * alguna fila es errónea ó alguna etiqueta no se ha podido imprimir (con un
+ * fichero .errores al lado que explica por qué). Los movimientos son
+ * atómicos, así que un fichero está siempre en una sola carpeta. Un
+ * fichero '.enviadas' en 'en-curso' guarda un byte por etiqueta: se marca
+ * como enviada cuando la cola la acepta y como impresa ó fallida cuando
+ * termina. Si el programa se cierra a mitad de un fichero, al arrancar se
+ * saltan las etiquetas terminadas y se vuelven a enviar las que no se
+ * sabe si se imprimieron, así que ninguna se pierde aunque alguna se puede
+ * imprimir dos veces. Si se usa el diario de trabajos (setReenviados) las
+ * etiquetas enviadas las vuelve a enviar el diario, y el fichero no se da
+ * por terminado hasta que acaban todos los trabajos que ha reenviado.
+ *
+ * Los ficheros que empiezan por '.' ó terminan en '.tmp' ó '.part' no se
+ * leen: quien deja los ficheros debe escribirlos con uno de esos nombres y
+ * renombrarlos al terminar, para que no se lean a medio escribir.
+ */
+public class CarpetaEtiquetas implements ColaImpresion.OyenteCola, Closeable {
+
+    /** Subcarpeta de los ficheros que se están imprimiendo. */
+    public static final String EN_CURSO = "en-curso";
+    /** Subcarpeta de los ficheros impresos. */
+    public static final String HECHOS = "hechos";
+    /** Subcarpeta de los ficheros con errores. */
+    public static final String FALLIDOS = "fallidos";
+
+    private static final Logger LOG
+            = Logger.getLogger(CarpetaEtiquetas.class.getName());
+    private static final String ENVIADAS = ".enviadas";
+    private static final String ERRORES = ".errores";
+    // marcas de cada etiqueta en el fichero '.enviadas'; 0 es sin enviar.
+    private static final byte ENVIADA = 'e';
+    private static final byte IMPRESA = 'i';
+    private static final byte FALLIDA = 'f';
+    // cada cuánto se reintentan los ficheros que no se han podido mover.
+    private static final long REINTENTO_MILIS = 1000;
+
+    /**
+     * Un fichero que se está imprimiendo.
+     */
+    private static class Fichero {
+
+        final Path ruta;
+        final List<String> errores = new ArrayList<>();
+        FileChannel progreso;
+        int pendientes;
+        boolean leido;
+        // tiene etiquetas que ha vuelto a enviar el diario de trabajos.
+        boolean esperaDiario;
+
+        Fichero(Path ruta) {
+            this.ruta = ruta;
+        }
+    }
+
+    /**
+     * Un trabajo enviado con el número de su etiqueta en el fichero.
+     */
+    private static class Enviada {
+
+        final Fichero fichero;
+        final long indice;
+
+        Enviada(Fichero fichero, long indice) {
+            this.fichero = fichero;
+            this.indice = indice;
+        }
+    }
+
+    private final Path carpeta;
+    private final Path enCurso;
+    private final Path hechos;
+    private final Path fallidos;
+    private final ServicioImpresion cola;
+    private final Charset codificacion;
+    private final WatchService vigilante;
+    // trabajos enviados que todavía no han terminado, por id.
+    private final Map<Long, Enviada> trabajos = new ConcurrentHashMap<>();
+    // trabajos que ha reenviado el diario al arrancar, ó null si no se usa
+    // el diario; los ids de los que no han terminado y sus errores.
+    private List<TrabajoImpresion> reenviados;
+    private final Set<Long> delDiario = new HashSet<>();
+    private final List<String> erroresDiario = new ArrayList<>();
+    private final List<Fichero> esperandoDiario
+            = new CopyOnWriteArrayList<>();
+    // ficheros que no se han podido mover porque alguien los tiene abiertos.
+    private final Set<Path> reintentar = new LinkedHashSet<>();
+    private Consumer<TrabajoImpresion> alEnviar = trabajo -> {
+    };
+    private Thread hilo;
+
+    /**
+     * Constructor. Crea las subcarpetas si no existen.
+     *
+     * @param carpeta el directorio donde se dejan los ficheros.
+     * @param cola la cola de impresión donde se envían las etiquetas.
+     * @param codificacion la codificación de los ficheros.
+     * @throws IOException si no se pueden crear las subcarpetas.
+     */
+    public CarpetaEtiquetas(Path carpeta, ServicioImpresion cola,
+            Charset codificacion) throws IOException {
+        this.carpeta = carpeta;
+        this.enCurso = carpeta.resolve(EN_CURSO);
+        this.hechos = carpeta.resolve(HECHOS);
+        this.fallidos = carpeta.resolve(FALLIDOS);
+        this.cola = cola;
+        this.codificacion = codificacion;
+        Files.createDirectories(enCurso);
+        Files.createDirectories(hechos);
+        Files.createDirectories(fallidos);
+        vigilante = carpeta.getFileSystem().newWatchService();
+        carpeta.register(vigilante, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * @param alEnviar lo que se hace con cada trabajo después de enviarlo a
+     * la cola (por ejemplo mostrarlo en la ventana). Se llama desde el hilo
+     * de la carpeta.
+     */
+    public void setAlEnviar(Consumer<TrabajoImpresion> alEnviar) {
+        this.alEnviar = alEnviar;
+    }
+
+    /**
+     * Este método indica que se usa el diario de trabajos. Se debe llamar
+     * antes de arrancar().
+     *
+     * @param reenviados los trabajos que el diario ha vuelto a enviar al
+     * arrancar (DiarioTrabajos.reenviarPendientes). Las etiquetas de los
+     * ficheros a medias que ya se habían enviado no se vuelven a enviar, y
+     * esos ficheros esperan a que terminen estos trabajos.
+     */
+    public void setReenviados(List<TrabajoImpresion> reenviados) {
+        this.reenviados = new ArrayList<>(reenviados);
+    }
+
+    /**
+     * Este método empieza a vigilar la carpeta en un hilo propio. Primero
+     * termina los ficheros que se quedaron a medias y después imprime los
+     * que ya están en la carpeta.
+     */
+    public void arrancar() {
+        cola.addOyente(this);
+        if (reenviados != null) {
+            synchronized (delDiario) {
+                for (TrabajoImpresion trabajo : reenviados) {
+                    delDiario.add(trabajo.getId());
+                }
+            }
+            // alguno puede haber terminado antes de añadir el oyente.
+            for (TrabajoImpresion trabajo : reenviados) {
+                trabajoActualizado(trabajo);
+            }
+        }
+        hilo = new Thread(this::vigilar, "CarpetaEtiquetas");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    private void vigilar() {
+        try {
+            try (DirectoryStream<Path> ficheros
+                    = Files.newDirectoryStream(enCurso)) {
+                for (Path fichero : ficheros) {
+                    if (!fichero.getFileName().toString().endsWith(ENVIADAS)) {
+                        imprimir(fichero);
+                    }
+                }
+            }
+            try (DirectoryStream<Path> ficheros
+                    = Files.newDirectoryStream(carpeta)) {
+                for (Path fichero : ficheros) {
+                    recoger(fichero);
+                }
+            }
+            while (true) {
+                WatchKey clave = vigilante.poll(REINTENTO_MILIS,
+                        TimeUnit.MILLISECONDS);
+                if (clave != null) {
+                    for (WatchEvent<?> evento : clave.pollEvents()) {
+                        if (evento.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // se han perdido avisos: se mira todo.
+                            try (DirectoryStream<Path> ficheros
+                                    = Files.newDirectoryStream(carpeta)) {
+                                for (Path fichero : ficheros) {
+                                    recoger(fichero);
+                                }
+                            }
+                        } else {
+                            recoger(carpeta.resolve(
+                                    (Path) evento.context()));
+                        }
+                    }
+                    clave.reset();
+                }
+                List<Path> pendientes = new ArrayList<>(reintentar);
+                reintentar.clear();
+                for (Path fichero : pendientes) {
+                    recoger(fichero);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // se ha cerrado la carpeta.
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "No se puede leer la carpeta " + carpeta,
+                    ex);
+        }
+    }
+
+    /**
+     * Este método mueve un fichero nuevo a 'en-curso' y lo imprime.
+     */
+    private void recoger(Path fichero) throws InterruptedException {
+        String nombre = fichero.getFileName().toString();
+        if (nombre.startsWith(".") || nombre.endsWith(".tmp")
+                || nombre.endsWith(".part")
+                || !Files.isRegularFile(fichero)) {
+            return;
+        }
+        Path destino;
+        try {
+            destino = mover(fichero, enCurso);
+        } catch (FileSystemException ex) {
+            // en Windows no se puede mover mientras se está escribiendo.
+            reintentar.add(fichero);
+            return;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "No se puede recoger " + fichero, ex);
+            return;
+        }
+        imprimir(destino);
+    }
+
+    /**
+     * Este método lee un fichero de 'en-curso' y envía sus etiquetas a la
+     * cola, saltando las que terminaron antes de cerrar el programa.
+     */
+    private void imprimir(Path ruta) throws InterruptedException {
+        Fichero fichero = new Fichero(ruta);
+        Path enviadas = ruta.resolveSibling(ruta.getFileName() + ENVIADAS);
+        String nombre = ruta.getFileName().toString();
+        try {
+            fichero.progreso = FileChannel.open(enviadas,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try (LectorEtiquetas lector = new LectorEtiquetas(
+                    new InputStreamReader(Files.newInputStream(ruta),
+                            codificacion), (char) 0)) {
+                enviar(fichero, lector, nombre);
+            }
+        } catch (IOException ex) {
+            synchronized (fichero) {
+                fichero.errores.add("No se puede leer el fichero: "
+                        + ex.getMessage());
+            }
+        }
+        synchronized (fichero) {
+            fichero.leido = true;
+        }
+        terminarSiHaAcabado(fichero);
+    }
+
+    /**
+     * Este método envía a la cola las etiquetas de un fichero según las
+     * marcas que dejó el arranque anterior en su fichero '.enviadas'.
+     */
+    private void enviar(Fichero fichero, LectorEtiquetas lector,
+            String nombre) throws IOException, InterruptedException {
+        long anteriores = fichero.progreso.size();
+        ByteBuffer marcas = ByteBuffer.allocate(8192);
+        marcas.flip();
+        long indice = 0;
+        Etiqueta etiqueta = new Etiqueta();
+        while (true) {
+            try {
+                if (!lector.leer(etiqueta)) {
+                    break;
+                }
+            } catch (IllegalArgumentException ex) {
+                synchronized (fichero) {
+                    fichero.errores.add(ex.getMessage());
+                }
+                continue;
+            }
+            if (etiqueta.isVacia()) {
+                continue;
+            }
+            long posicion = indice++;
+            byte marca = 0;
+            if (posicion < anteriores) {
+                if (!marcas.hasRemaining()) {
+                    marcas.clear();
+                    fichero.progreso.read(marcas, posicion);
+                    marcas.flip();
+                }
+                if (marcas.hasRemaining()) {
+                    marca = marcas.get();
+                }
+            }
+            String descripcion = nombre + " fila " + lector.getNumeroFila();
+            if (marca == IMPRESA) {
+                continue;
+            }
+            if (marca == FALLIDA) {
+                synchronized (fichero) {
+                    fichero.errores.add(descripcion
+                            + ": no se imprimió antes de cerrar el programa");
+                }
+                continue;
+            }
+            if (marca == ENVIADA && reenviados != null) {
+                // si no se imprimió la vuelve a enviar el diario.
+                synchronized (fichero) {
+                    if (!fichero.esperaDiario) {
+                        fichero.esperaDiario = true;
+                        esperandoDiario.add(fichero);
+                    }
+                }
+                continue;
+            }
+            TrabajoImpresion trabajo = new TrabajoImpresion(descripcion,
+                    etiqueta);
+            synchronized (fichero) {
+                fichero.pendientes++;
+            }
+            trabajos.put(trabajo.getId(), new Enviada(fichero, posicion));
+            cola.enviarEsperando(trabajo);
+            // se anota cuando la cola la ha aceptado: si el programa se
+            // cierra entre las dos cosas se vuelve a enviar al arrancar,
+            // así que se puede imprimir dos veces pero no se pierde. Si ya
+            // ha terminado tiene su marca final.
+            synchronized (fichero) {
+                if (trabajos.containsKey(trabajo.getId())) {
+                    marcar(fichero, posicion, ENVIADA);
+                }
+            }
+            alEnviar.accept(trabajo);
+            etiqueta = new Etiqueta();
+        }
+    }
+
+    /**
+     * Este método guarda la marca de una etiqueta en el fichero
+     * '.enviadas'. Se llama con el fichero bloqueado.
+     */
+    private static void marcar(Fichero fichero, long indice, byte marca) {
+        try {
+            fichero.progreso.write(ByteBuffer.wrap(new byte[]{marca}),
+                    indice);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "No se puede anotar la etiqueta "
+                    + (indice + 1) + " de " + fichero.ruta, ex);
+        }
+    }
+
+    /**
+     * Este método anota cuándo termina un trabajo de un fichero de la
+     * carpeta.
+     */
+    @Override
+    public void trabajoActualizado(TrabajoImpresion trabajo) {
+        TrabajoImpresion.Estado estado = trabajo.getEstado();
+        if (estado != TrabajoImpresion.Estado.IMPRESO
+                && estado != TrabajoImpresion.Estado.ERROR
+                && estado != TrabajoImpresion.Estado.CANCELADO) {
+            return;
+        }
+        if (reenviados != null && terminadoDelDiario(trabajo, estado)) {
+            return;
+        }
+        Enviada enviada = trabajos.remove(trabajo.getId());
+        if (enviada == null) {
+            return;
+        }
+        Fichero fichero = enviada.fichero;
+        synchronized (fichero) {
+            fichero.pendientes--;
+            if (estado != TrabajoImpresion.Estado.IMPRESO) {
+                fichero.errores.add(trabajo.toString());
+            }
+            marcar(fichero, enviada.indice,
+                    estado == TrabajoImpresion.Estado.IMPRESO
+                    ? IMPRESA : FALLIDA);
+        }
+        terminarSiHaAcabado(fichero);
+    }
+
+    /**
+     * Este método anota que ha terminado un trabajo reenviado por el
+     * diario. No se sabe de qué fichero es, así que sus errores se apuntan
+     * en todos los que esperan al diario.
+     *
+     * @return false si el trabajo no lo ha reenviado el diario.
+     */
+    private boolean terminadoDelDiario(TrabajoImpresion trabajo,
+            TrabajoImpresion.Estado estado) {
+        boolean terminados;
+        synchronized (delDiario) {
+            if (!delDiario.remove(trabajo.getId())) {
+                return false;
+            }
+            if (estado != TrabajoImpresion.Estado.IMPRESO) {
+                erroresDiario.add(trabajo.toString());
+            }
+            terminados = delDiario.isEmpty();
+        }
+        if (terminados) {
+            for (Fichero fichero : esperandoDiario) {
+                terminarSiHaAcabado(fichero);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Este método mueve el fichero a 'hechos' ó a 'fallidos' cuando se ha
+     * leído entero y han terminado todos sus trabajos.
+     */
+    private void terminarSiHaAcabado(Fichero fichero) {
+        List<String> errores;
+        synchronized (fichero) {
+            if (!fichero.leido || fichero.pendientes > 0) {
+                return;
+            }
+            if (fichero.esperaDiario) {
+                synchronized (delDiario) {
+                    if (!delDiario.isEmpty()) {
+                        return;
+                    }
+                    fichero.errores.addAll(erroresDiario);
+                }
+            }
+            // para que no se mueva dos veces.
+            fichero.leido = false;
+            errores = new ArrayList<>(fichero.errores);
+        }
+        Path enviadas = fichero.ruta.resolveSibling(
+                fichero.ruta.getFileName() + ENVIADAS);
+        esperandoDiario.remove(fichero);
+        try {
+            if (fichero.progreso != null) {
+                fichero.progreso.close();
+            }
+            if (errores.isEmpty()) {
+                mover(fichero.ruta, hechos);
+            } else {
+                Path destino = mover(fichero.ruta, fallidos);
+                Files.write(destino.resolveSibling(destino.getFileName()
+                        + ERRORES), errores, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE);
+                LOG.warning(fichero.ruta.getFileName() + ": "
+                        + errores.size() + " errores");
+            }
+            Files.deleteIfExists(enviadas);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "No se puede mover " + fichero.ruta, ex);
+        }
+    }
+
+    /**
+     * Este método mueve un fichero a otra subcarpeta de forma atómica. Si
+     * ya hay un fichero con el mismo nombre se añade un número al nombre.
+     *
+     * @return la nueva ruta del fichero.
+     */
+    private static Path mover(Path fichero, Path subcarpeta)
+            throws IOException {
+        String nombre = fichero.getFileName().toString();
+        Path destino = subcarpeta.resolve(nombre);
+        for (int i = 1; Files.exists(destino) || Files.exists(
+                destino.resolveSibling(destino.getFileName() + ENVIADAS));
+                i++) {
+            destino = subcarpeta.resolve(i + "-" + nombre);
+        }
+        return Files.move(fichero, destino,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Este método deja de vigilar la carpeta. Los ficheros a medias se
+     * terminan la próxima vez que se arranque.
+     */
+    @Override
+    public void close() throws IOException {
+        cola.removeOyente(this);
+        vigilante.close();
+        if (hilo != null) {
+            hilo.interrupt();
+        }
+    }
+}
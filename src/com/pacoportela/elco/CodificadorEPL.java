@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Esta clase convierte etiquetas a comandos EPL sin crear objetos por cada
+ * etiqueta. Usa las plantillas compiladas de PlantillaEPL para la parte fija
+ * de cada linea y sólo escribe el texto y el número de copias en un
+ * ByteBuffer que se reutiliza. El texto se convierte a la página de códigos
+ * de la impresora y las comillas y barras invertidas se escapan en la misma
+ * pasada. Para texto ASCII y sin logotipo el resultado es el mismo que el
+ * de Etiqueta.getComandosEPL(). El comando 'I' de la página de códigos y la
+ * definición del logotipo no se incluyen en cada etiqueta: hay que
+ * enviarlos antes, cuando la impresora no los tiene (ver PerfilImpresora y
+ * EstadoImpresora). Las etiquetas con contadores
+ * (ver SerieEPL) siempre se imprimen con un formulario.
+ * Un codificador no se debe usar desde varios hilos a la vez.
+ */
+public class CodificadorEPL {
+
+    private static final byte[] CIERRE_LINEA = {'"', '\n'};
+
+    private ByteBuffer buffer;
+    private PaginaCodigos pagina;
+    // gráfico que se imprime en todas las etiquetas, ó null.
+    private GraficoEPL logo;
+    // cifras del número de copias, se rellena de atrás hacia delante.
+    private final byte[] cifras = new byte[10];
+
+    /**
+     * Constructor. Usa la página de códigos por defecto.
+     */
+    public CodificadorEPL() {
+        this(PaginaCodigos.porDefecto());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param pagina la página de códigos de la impresora.
+     */
+    public CodificadorEPL(PaginaCodigos pagina) {
+        this.pagina = pagina;
+        buffer = ByteBuffer.allocate(1024);
+    }
+
+    public PaginaCodigos getPagina() {
+        return pagina;
+    }
+
+    public void setPagina(PaginaCodigos pagina) {
+        this.pagina = pagina;
+    }
+
+    public GraficoEPL getLogo() {
+        return logo;
+    }
+
+    /**
+     * @param logo el gráfico que se imprime en cada etiqueta con GG, ó null
+     * para no imprimir ninguno. Tiene que estar guardado en la impresora.
+     */
+    public void setLogo(GraficoEPL logo) {
+        this.logo = logo;
+    }
+
+    /**
+     * Este método escribe los comandos EPL de la etiqueta en el buffer del
+     * codificador. El buffer devuelto se reutiliza en la siguiente llamada.
+     *
+     * @param etiqueta la etiqueta a codificar.
+     * @return el buffer listo para leer, con los comandos EPL.
+     */
+    public ByteBuffer codificar(Etiqueta etiqueta) {
+        if (SerieEPL.tieneContadores(etiqueta)) {
+            return codificarSerie(etiqueta, null);
+        }
+        asegurarCapacidad(tamanoMaximo(etiqueta));
+        ByteBuffer b = buffer;
+        b.clear();
+        PlantillaEPL plantilla = PlantillaEPL.obtener(etiqueta);
+        b.put((byte) 'N').put((byte) '\n');
+        if (logo != null) {
+            b.put(logo.getComandoImprimir());
+        }
+        int impresas = 0;
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            CharSequence linea = etiqueta.getLinea(i);
+            int longitud = linea.length();
+            if (longitud > 0) {
+                b.put(plantilla.getPrefijo(impresas++));
+                escribirTexto(b, linea, true);
+                b.put(CIERRE_LINEA);
+            }
+        }
+        b.put((byte) 'P');
+        escribirEntero(b, etiqueta.getCopias());
+        b.put((byte) '\n');
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Este método codifica la etiqueta usando un formulario EPL almacenado
+     * en la impresora. Si el formulario todavía no está en la impresora se
+     * añade primero su definición. Si la etiqueta no se puede imprimir con un
+     * formulario se codifica completa como en codificar(Etiqueta). El buffer
+     * devuelto se reutiliza en la siguiente llamada.
+     *
+     * @param etiqueta la etiqueta a codificar.
+     * @param estado lo que ya está guardado en la impresora de destino.
+     * @return el buffer listo para leer, con los comandos EPL.
+     */
+    public ByteBuffer codificar(Etiqueta etiqueta, EstadoImpresora estado) {
+        if (SerieEPL.tieneContadores(etiqueta)) {
+            return codificarSerie(etiqueta, estado);
+        }
+        FormularioEPL formulario = FormularioEPL.obtener(etiqueta);
+        if (formulario == null) {
+            return codificar(etiqueta);
+        }
+        asegurarCapacidad(tamanoMaximo(etiqueta)
+                + formulario.getDefinicion().length + 16);
+        ByteBuffer b = buffer;
+        b.clear();
+        if (!estado.isFormularioGuardado(formulario.getNombre())) {
+            String borrar = estado.addFormulario(formulario.getNombre());
+            if (borrar != null) {
+                b.put(FormularioEPL.getBorrado(borrar));
+            }
+            b.put(formulario.getDefinicion());
+        }
+        b.put(formulario.getCabecera());
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            CharSequence linea = etiqueta.getLinea(i);
+            if (linea.length() > 0) {
+                // los datos de las variables no van entre comillas.
+                escribirTexto(b, linea, false);
+                b.put((byte) '\n');
+            }
+        }
+        // el logotipo se añade a lo que ha dibujado el formulario.
+        if (logo != null) {
+            b.put(logo.getComandoImprimir());
+        }
+        b.put((byte) 'P');
+        escribirEntero(b, etiqueta.getCopias());
+        b.put((byte) '\n');
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Este método codifica una etiqueta con contadores. Se envían el
+     * formulario de la serie (si no está ya en la impresora), el texto de
+     * las variables, el primer número de cada contador y un solo comando
+     * 'P' con el número de etiquetas de la serie.
+     *
+     * @param estado lo que ya está guardado en la impresora, ó null para
+     * enviar siempre el formulario.
+     */
+    private ByteBuffer codificarSerie(Etiqueta etiqueta,
+            EstadoImpresora estado) {
+        SerieEPL serie = SerieEPL.analizar(etiqueta);
+        FormularioEPL formulario = FormularioEPL.obtener(etiqueta, serie);
+        asegurarCapacidad(tamanoMaximo(etiqueta)
+                + formulario.getDefinicion().length + 16
+                + 2 * (serie.getTextos().size() + serie.getInicios().size())
+                + SerieEPL.MAX_CONTADORES * SerieEPL.MAX_CIFRAS);
+        ByteBuffer b = buffer;
+        b.clear();
+        if (estado == null) {
+            b.put(formulario.getDefinicion());
+        } else if (!estado.isFormularioGuardado(formulario.getNombre())) {
+            String borrar = estado.addFormulario(formulario.getNombre());
+            if (borrar != null) {
+                b.put(FormularioEPL.getBorrado(borrar));
+            }
+            b.put(formulario.getDefinicion());
+        }
+        b.put(formulario.getCabecera());
+        for (String texto : serie.getTextos()) {
+            escribirTexto(b, texto, false);
+            b.put((byte) '\n');
+        }
+        for (String inicio : serie.getInicios()) {
+            escribirTexto(b, inicio, false);
+            b.put((byte) '\n');
+        }
+        if (logo != null) {
+            b.put(logo.getComandoImprimir());
+        }
+        b.put((byte) 'P');
+        escribirEntero(b, etiqueta.getCopias());
+        b.put((byte) '\n');
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Este método codifica la etiqueta y la escribe en el OutputStream.
+     *
+     * @param etiqueta la etiqueta a codificar.
+     * @param salida el flujo donde se escriben los comandos EPL.
+     * @return el número de bytes escritos.
+     * @throws IOException si hay un error al escribir.
+     */
+    public int escribir(Etiqueta etiqueta, OutputStream salida)
+            throws IOException {
+        ByteBuffer b = codificar(etiqueta);
+        salida.write(b.array(), b.arrayOffset(), b.limit());
+        return b.limit();
+    }
+
+    /**
+     * Este método codifica la etiqueta y devuelve una copia de los bytes,
+     * para cuando hay que guardarlos (por ejemplo en la cola de impresión).
+     *
+     * @param etiqueta la etiqueta a codificar.
+     * @return una matriz de bytes nueva con los comandos EPL.
+     */
+    public byte[] codificarEnMatriz(Etiqueta etiqueta) {
+        ByteBuffer b = codificar(etiqueta);
+        return Arrays.copyOf(b.array(), b.limit());
+    }
+
+    /**
+     * Este método escribe el texto de una linea en la página de códigos de
+     * la impresora. Si el texto va entre comillas, las comillas y las barras
+     * invertidas se escapan con una barra invertida.
+     */
+    private void escribirTexto(ByteBuffer b, CharSequence texto,
+            boolean entreComillas) {
+        PaginaCodigos p = pagina;
+        int longitud = texto.length();
+        for (int j = 0; j < longitud; j++) {
+            char c = texto.charAt(j);
+            if (entreComillas && (c == '"' || c == '\\')) {
+                b.put((byte) '\\');
+            }
+            b.put(p.codificar(c));
+        }
+    }
+
+    /**
+     * Este método escribe un entero positivo en ASCII sin crear Strings.
+     */
+    private void escribirEntero(ByteBuffer b, int numero) {
+        int pos = cifras.length;
+        do {
+            cifras[--pos] = (byte) ('0' + numero % 10);
+            numero /= 10;
+        } while (numero > 0);
+        b.put(cifras, pos, cifras.length - pos);
+    }
+
+    /**
+     * Este método calcula el número máximo de bytes que puede ocupar la
+     * etiqueta codificada.
+     */
+    private int tamanoMaximo(Etiqueta etiqueta) {
+        // 'N', 'P', las copias y los saltos de linea.
+        int tamano = 16;
+        if (logo != null) {
+            tamano += logo.getComandoImprimir().length;
+        }
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            // prefijo del comando 'A', texto (quizás escapado) y cierre.
+            tamano += 32 + 2 * etiqueta.getLinea(i).length() + 2;
+        }
+        return tamano;
+    }
+
+    private void asegurarCapacidad(int tamano) {
+        if (buffer.capacity() < tamano) {
+            buffer = ByteBuffer.allocate(Math.max(tamano,
+                    buffer.capacity() * 2));
+        }
+    }
+}
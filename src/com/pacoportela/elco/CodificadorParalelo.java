@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Esta clase codifica etiquetas en varios hilos y entrega el resultado en
+ * el mismo orden en que se leyeron. Las etiquetas se van guardando en
+ * bloques de TAMANO_BLOQUE etiquetas; cada bloque lleno lo codifica un hilo
+ * en su propio buffer y los bloques se entregan al Emisor uno detrás de
+ * otro, en el hilo que añade las etiquetas, cuando están terminados. Como
+ * mucho hay dos bloques por hilo en marcha, así que la memoria no crece con
+ * el número de etiquetas. Los bloques y sus etiquetas se reutilizan.
+ * No se pueden usar formularios, porque lo que hay que enviar depende de lo
+ * que se ha enviado antes: las etiquetas se codifican completas, como en
+ * CodificadorEPL.codificar(Etiqueta).
+ * Los métodos públicos se deben llamar siempre desde el mismo hilo.
+ */
+public class CodificadorParalelo implements Closeable {
+
+    /** Número de etiquetas de cada bloque. */
+    public static final int TAMANO_BLOQUE = 512;
+
+    /**
+     * Recibe los bloques codificados, en orden.
+     */
+    public interface Emisor {
+
+        /**
+         * Este método recibe un bloque codificado. El bloque se reutiliza
+         * cuando el método termina.
+         *
+         * @param bloque el bloque codificado.
+         * @throws IOException si no se puede enviar.
+         */
+        void emitir(Bloque bloque) throws IOException;
+    }
+
+    /**
+     * Un bloque de etiquetas seguidas y sus comandos EPL.
+     */
+    public static final class Bloque {
+
+        private final Etiqueta[] etiquetas = new Etiqueta[TAMANO_BLOQUE];
+        private final int[] fines = new int[TAMANO_BLOQUE];
+        private final CodificadorEPL codificador;
+        private int numero;
+        private byte[] datos = new byte[TAMANO_BLOQUE * 128];
+        private int longitud;
+        private long nanosCodificacion;
+
+        private Bloque(PaginaCodigos pagina, GraficoEPL logo) {
+            for (int i = 0; i < etiquetas.length; i++) {
+                etiquetas[i] = new Etiqueta();
+            }
+            codificador = new CodificadorEPL(pagina);
+            codificador.setLogo(logo);
+        }
+
+        /**
+         * Este método codifica todas las etiquetas del bloque, una detrás
+         * de otra, en el buffer del bloque.
+         */
+        private Bloque codificar() {
+            MetricasImpresion metricas = MetricasImpresion.getInstancia();
+            long inicio = System.nanoTime();
+            int posicion = 0;
+            for (int i = 0; i < numero; i++) {
+                long t0 = System.nanoTime();
+                ByteBuffer b = codificador.codificar(etiquetas[i]);
+                int bytes = b.remaining();
+                if (posicion + bytes > datos.length) {
+                    datos = Arrays.copyOf(datos, Math.max(posicion + bytes,
+                            datos.length * 2));
+                }
+                b.get(datos, posicion, bytes);
+                posicion += bytes;
+                fines[i] = posicion;
+                metricas.registrarCodificacion(System.nanoTime() - t0);
+            }
+            longitud = posicion;
+            nanosCodificacion = System.nanoTime() - inicio;
+            return this;
+        }
+
+        /**
+         * @return el número de etiquetas del bloque.
+         */
+        public int getNumero() {
+            return numero;
+        }
+
+        /**
+         * @param indice el número de etiqueta dentro del bloque.
+         * @return la etiqueta.
+         */
+        public Etiqueta getEtiqueta(int indice) {
+            return etiquetas[indice];
+        }
+
+        /**
+         * @param indice el número de etiqueta dentro del bloque.
+         * @return la posición donde empiezan sus comandos EPL.
+         */
+        public int getInicio(int indice) {
+            return indice == 0 ? 0 : fines[indice - 1];
+        }
+
+        /**
+         * @param indice el número de etiqueta dentro del bloque.
+         * @return la posición donde terminan sus comandos EPL.
+         */
+        public int getFin(int indice) {
+            return fines[indice];
+        }
+
+        /**
+         * @param desde la posición del primer byte.
+         * @param hasta la posición siguiente al último byte.
+         * @return un buffer con esa parte de los comandos EPL del bloque.
+         */
+        public ByteBuffer getDatos(int desde, int hasta) {
+            return ByteBuffer.wrap(datos, desde, hasta - desde);
+        }
+
+        /**
+         * @return el número de bytes de los comandos EPL del bloque.
+         */
+        public int getLongitud() {
+            return longitud;
+        }
+    }
+
+    private final int hilos;
+    private final ExecutorService ejecutor;
+    private final Emisor emisor;
+    // bloques que se están codificando, en orden.
+    private final ArrayDeque<Future<Bloque>> enMarcha = new ArrayDeque<>();
+    private final ArrayDeque<Bloque> libres = new ArrayDeque<>();
+    private Bloque actual;
+    private long nanosCodificacion;
+
+    /**
+     * Constructor.
+     *
+     * @param hilos el número de hilos que codifican.
+     * @param pagina la página de códigos de la impresora.
+     * @param logo el gráfico que se imprime en todas las etiquetas, ó null.
+     * @param emisor el que recibe los bloques codificados.
+     */
+    public CodificadorParalelo(int hilos, PaginaCodigos pagina,
+            GraficoEPL logo, Emisor emisor) {
+        if (hilos < 1) {
+            throw new IllegalArgumentException(
+                    "El número de hilos debe ser mayor que cero: " + hilos);
+        }
+        this.hilos = hilos;
+        this.emisor = emisor;
+        for (int i = 0; i < 2 * hilos; i++) {
+            libres.add(new Bloque(pagina, logo));
+        }
+        AtomicInteger numeroHilo = new AtomicInteger();
+        ejecutor = Executors.newFixedThreadPool(hilos, r -> {
+            Thread hilo = new Thread(r,
+                    "CodificadorEPL-" + numeroHilo.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        actual = libres.poll();
+    }
+
+    /**
+     * @return el número de hilos que codifican.
+     */
+    public int getHilos() {
+        return hilos;
+    }
+
+    /**
+     * Este método devuelve la etiqueta donde se lee la siguiente. No se
+     * añade a la impresión hasta que se llama a anadir(), así que si la
+     * lectura falla se vuelve a usar la misma.
+     *
+     * @return una etiqueta del bloque actual para rellenar.
+     */
+    public Etiqueta getEtiquetaLibre() {
+        return actual.etiquetas[actual.numero];
+    }
+
+    /**
+     * Este método añade a la impresión la etiqueta devuelta por
+     * getEtiquetaLibre(). Si el bloque se llena se manda codificar y, si ya
+     * hay dos bloques por hilo en marcha, se espera al más antiguo y se
+     * entrega al emisor.
+     *
+     * @throws IOException si el emisor no puede enviar un bloque.
+     */
+    public void anadir() throws IOException {
+        if (++actual.numero == TAMANO_BLOQUE) {
+            mandarActual();
+            if (libres.isEmpty()) {
+                emitirSiguiente();
+            }
+            actual = libres.poll();
+        }
+    }
+
+    /**
+     * Este método manda codificar el bloque que se está llenando y espera a
+     * que se hayan codificado y entregado todos los bloques.
+     *
+     * @throws IOException si el emisor no puede enviar un bloque.
+     */
+    public void terminar() throws IOException {
+        if (actual.numero > 0) {
+            mandarActual();
+            if (libres.isEmpty()) {
+                emitirSiguiente();
+            }
+            actual = libres.poll();
+        }
+        while (!enMarcha.isEmpty()) {
+            emitirSiguiente();
+        }
+    }
+
+    /**
+     * @return el tiempo que han tardado los hilos en codificar, sumando el
+     * de todos los bloques entregados.
+     */
+    public long getNanosCodificacion() {
+        return nanosCodificacion;
+    }
+
+    private void mandarActual() {
+        Bloque bloque = actual;
+        enMarcha.add(ejecutor.submit(bloque::codificar));
+    }
+
+    /**
+     * Este método espera a que termine el bloque más antiguo, lo entrega al
+     * emisor y lo deja libre para volver a usarlo.
+     */
+    private void emitirSiguiente() throws IOException {
+        Bloque bloque;
+        try {
+            bloque = enMarcha.poll().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Codificación interrumpida");
+        } catch (ExecutionException ex) {
+            throw new IOException("Error al codificar: " + ex.getCause(),
+                    ex.getCause());
+        }
+        nanosCodificacion += bloque.nanosCodificacion;
+        try {
+            emisor.emitir(bloque);
+        } finally {
+            bloque.numero = 0;
+            libres.add(bloque);
+        }
+    }
+
+    /**
+     * Este método para los hilos. Los bloques que no se han entregado se
+     * pierden.
+     */
+    @Override
+    public void close() {
+        ejecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase es la cola de impresión. Los trabajos se añaden a una cola de
+ * tamaño limitado y un hilo propio los va enviando a la salida, de forma
+ * que quien imprime (por ejemplo el hilo de Swing) no se queda bloqueado
+ * esperando a la impresora. Los trabajos que llegan casi a la vez se
+ * agrupan en un único trabajo de impresión, y las etiquetas iguales seguidas
+ * se imprimen con un sólo comando 'P' con la suma de las copias.
+ */
+public class ColaImpresion implements ServicioImpresion {
+
+    /**
+     * Interfaz para recibir los cambios de estado de los trabajos. Los avisos
+     * llegan desde el hilo de la cola, no desde el hilo de Swing.
+     */
+    public interface OyenteCola {
+
+        void trabajoActualizado(TrabajoImpresion trabajo);
+    }
+
+    /**
+     * Interfaz para decidir qué hacer con los trabajos cuando falla la
+     * impresión, por ejemplo mandarlos a otra impresora. Se llama desde el
+     * hilo de la cola.
+     */
+    public interface ManejadorFallos {
+
+        /**
+         * @param cola la cola en la que ha fallado la impresión.
+         * @param trabajos los trabajos que no se han podido imprimir.
+         * @param error el error de la salida.
+         * @return true si el manejador se encarga de los trabajos, false para
+         * marcarlos como erróneos.
+         */
+        boolean trabajosFallidos(ColaImpresion cola,
+                List<TrabajoImpresion> trabajos, IOException error);
+    }
+
+    /** Máximo de copias que admite el comando 'P' de EPL. */
+    static final int MAX_COPIAS = 65535;
+    /** Máximo de trabajos que se agrupan por defecto. */
+    public static final int MAX_AGRUPADOS = 32;
+
+    private static final Logger LOG
+            = Logger.getLogger(ColaImpresion.class.getName());
+
+    private final BlockingQueue<TrabajoImpresion> cola;
+    // sitios libres de la cola. Se reserva el sitio antes de avisar de que
+    // el trabajo está en cola y de meterlo, así el aviso llega antes que
+    // los del hilo de la cola y un trabajo rechazado no avisa de nada.
+    private final Semaphore sitio;
+    private final SalidaImpresion salida;
+    // lo que ya está guardado en la impresora de la salida.
+    private final EstadoImpresora estado = new EstadoImpresora();
+    // sólo lo usa el hilo de la cola.
+    private final CodificadorEPL codificador = new CodificadorEPL();
+    // codifica los trabajos al añadirlos, desde el hilo que los añade.
+    private final CodificadorEPL codificadorEntrada = new CodificadorEPL();
+    private final List<TrabajoImpresion> lote = new ArrayList<>();
+    private final Etiqueta agrupada = new Etiqueta();
+    private ByteBuffer datosLote = ByteBuffer.allocate(4096);
+    // la página y el logotipo que ya tiene la impresora en este lote.
+    private boolean configurado;
+    private PaginaCodigos paginaLote;
+    private GraficoEPL logoLote;
+    private volatile boolean usarFormularios;
+    private volatile PerfilImpresora perfil
+            = PerfilImpresora.de(PaginaCodigos.porDefecto());
+    private volatile GraficoEPL logo;
+    private volatile long ventanaNanos;
+    private volatile int maxAgrupados = MAX_AGRUPADOS;
+    private final MetricasImpresion metricas = MetricasImpresion.getInstancia();
+    private volatile ManejadorFallos manejadorFallos;
+    // trabajos que se están imprimiendo en este momento.
+    private volatile int enCurso;
+    private final List<OyenteCola> oyentes = new CopyOnWriteArrayList<>();
+    private final Thread hilo;
+    private volatile boolean activa = true;
+
+    /**
+     * Constructor. Crea la cola y arranca el hilo que imprime los trabajos.
+     *
+     * @param salida la salida donde se imprimen los trabajos.
+     * @param capacidad el número máximo de trabajos en espera.
+     */
+    public ColaImpresion(SalidaImpresion salida, int capacidad) {
+        this.salida = salida;
+        this.cola = new ArrayBlockingQueue<>(capacidad);
+        this.sitio = new Semaphore(capacidad);
+        this.hilo = new Thread(this::procesar, "ColaImpresion");
+        this.hilo.setDaemon(true);
+        this.hilo.start();
+    }
+
+    /**
+     * Este método añade un trabajo a la cola sin esperar. Si la cola está
+     * llena el trabajo se rechaza.
+     *
+     * @param trabajo el trabajo a imprimir.
+     * @return true si el trabajo se ha añadido, false si la cola está llena.
+     */
+    @Override
+    public boolean enviar(TrabajoImpresion trabajo) {
+        preparar(trabajo);
+        if (!sitio.tryAcquire()) {
+            return false;
+        }
+        avisar(trabajo);
+        cola.add(trabajo);
+        return true;
+    }
+
+    /**
+     * Este método añade un trabajo a la cola esperando a que haya sitio si
+     * la cola está llena.
+     *
+     * @param trabajo el trabajo a imprimir.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    @Override
+    public void enviarEsperando(TrabajoImpresion trabajo)
+            throws InterruptedException {
+        preparar(trabajo);
+        sitio.acquire();
+        avisar(trabajo);
+        cola.add(trabajo);
+    }
+
+    /**
+     * Este método codifica la etiqueta del trabajo al añadirlo, de forma que
+     * sus comandos EPL completos están disponibles desde el principio (por
+     * ejemplo para guardarlos en el diario de trabajos). Las etiquetas que
+     * se repiten se sacan de la caché de etiquetas. El trabajo guarda la
+     * página de códigos y el logotipo, que se envían a la impresora antes
+     * que él aunque después se cambien.
+     */
+    private void preparar(TrabajoImpresion trabajo) {
+        Etiqueta etiqueta = trabajo.getEtiqueta();
+        if (trabajo.getDatos() == null && etiqueta != null) {
+            PaginaCodigos pagina = perfil.getPagina();
+            GraficoEPL grafico = logo;
+            CacheEtiquetas cache = CacheEtiquetas.getInstancia();
+            byte[] datos = cache.buscar(etiqueta, pagina, grafico);
+            if (datos == null) {
+                synchronized (codificadorEntrada) {
+                    codificadorEntrada.setPagina(pagina);
+                    codificadorEntrada.setLogo(grafico);
+                    datos = codificadorEntrada.codificarEnMatriz(etiqueta);
+                }
+                cache.guardar(etiqueta, pagina, grafico, datos);
+            }
+            trabajo.setDatos(datos, pagina, grafico);
+        }
+    }
+
+    /**
+     * Este método cancela un trabajo que todavía no se ha empezado a
+     * imprimir.
+     *
+     * @param trabajo el trabajo a cancelar.
+     * @return true si se ha cancelado, false si ya se estaba imprimiendo.
+     */
+    @Override
+    public boolean cancelar(TrabajoImpresion trabajo) {
+        if (cola.remove(trabajo)) {
+            sitio.release();
+            trabajo.setEstado(TrabajoImpresion.Estado.CANCELADO);
+            avisar(trabajo);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return el número de trabajos que esperan en la cola.
+     */
+    @Override
+    public int getPendientes() {
+        return cola.size();
+    }
+
+    /**
+     * Este método indica si las etiquetas se imprimen con formularios EPL
+     * guardados en la impresora, de forma que para cada etiqueta sólo se
+     * envía el texto.
+     *
+     * @param usarFormularios true para usar formularios.
+     */
+    @Override
+    public void setUsarFormularios(boolean usarFormularios) {
+        this.usarFormularios = usarFormularios;
+    }
+
+    /**
+     * Este método cambia la página de códigos de la impresora. Se usa desde
+     * el siguiente trabajo que se añada a la cola.
+     *
+     * @param pagina la página de códigos.
+     */
+    @Override
+    public void setPaginaCodigos(PaginaCodigos pagina) {
+        this.perfil = perfil.conPagina(pagina);
+    }
+
+    /**
+     * Este método cambia el perfil de la impresora. Los comandos que han
+     * cambiado se envían al principio del siguiente trabajo de impresión.
+     *
+     * @param perfil el perfil, con la página de códigos.
+     */
+    @Override
+    public void setPerfil(PerfilImpresora perfil) {
+        this.perfil = perfil;
+    }
+
+    /**
+     * Este método elige el gráfico que se imprime en todas las etiquetas. El
+     * gráfico se guarda en la impresora con el primer trabajo que lo usa y
+     * después sólo se imprime por su nombre. Se usa desde el siguiente
+     * trabajo que se añada a la cola.
+     *
+     * @param logo el gráfico, ó null para no imprimir ninguno.
+     */
+    @Override
+    public void setLogo(GraficoEPL logo) {
+        this.logo = logo;
+    }
+
+    /**
+     * Este método indica cuánto se espera a que lleguen más trabajos para
+     * imprimirlos juntos. Con 0 sólo se agrupan los trabajos que ya estaban
+     * esperando en la cola.
+     *
+     * @param ventanaMilis el tiempo máximo de espera en milisegundos,
+     * contado desde que se toma el primer trabajo.
+     * @param maxAgrupados el número máximo de trabajos en un trabajo de
+     * impresión.
+     */
+    @Override
+    public void setAgrupacion(long ventanaMilis, int maxAgrupados) {
+        if (ventanaMilis < 0 || maxAgrupados < 1) {
+            throw new IllegalArgumentException("Agrupación no válida: "
+                    + ventanaMilis + " ms, " + maxAgrupados + " trabajos");
+        }
+        this.ventanaNanos = TimeUnit.MILLISECONDS.toNanos(ventanaMilis);
+        this.maxAgrupados = maxAgrupados;
+    }
+
+    /**
+     * @param manejador el que decide qué hacer con los trabajos que fallan,
+     * ó null para marcarlos como erróneos.
+     */
+    public void setManejadorFallos(ManejadorFallos manejador) {
+        this.manejadorFallos = manejador;
+    }
+
+    /**
+     * Este método saca de la cola todos los trabajos que esperan, por
+     * ejemplo para mandarlos a otra impresora.
+     *
+     * @return los trabajos que estaban esperando, en orden.
+     */
+    public List<TrabajoImpresion> retirarPendientes() {
+        List<TrabajoImpresion> pendientes = new ArrayList<>();
+        sitio.release(cola.drainTo(pendientes));
+        return pendientes;
+    }
+
+    /**
+     * @return el número de trabajos que esperan más los que se están
+     * imprimiendo.
+     */
+    public int getTrabajosSinTerminar() {
+        return cola.size() + enCurso;
+    }
+
+    public SalidaImpresion getSalida() {
+        return salida;
+    }
+
+    /**
+     * @return lo que la cola ha guardado en la impresora.
+     */
+    public EstadoImpresora getEstado() {
+        return estado;
+    }
+
+    @Override
+    public void addOyente(OyenteCola oyente) {
+        oyentes.add(oyente);
+    }
+
+    @Override
+    public void removeOyente(OyenteCola oyente) {
+        oyentes.remove(oyente);
+    }
+
+    /**
+     * Este método para el hilo de la cola. Los trabajos pendientes se
+     * descartan.
+     */
+    @Override
+    public void cerrar() {
+        activa = false;
+        hilo.interrupt();
+    }
+
+    /**
+     * Bucle del hilo de la cola: toma los trabajos que hay en la cola (ó que
+     * llegan dentro de la ventana de agrupación) y los imprime juntos.
+     */
+    private void procesar() {
+        while (activa) {
+            try {
+                lote.add(cola.take());
+                sitio.release();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            recoger();
+            enCurso = lote.size();
+            for (TrabajoImpresion trabajo : lote) {
+                trabajo.setEstado(TrabajoImpresion.Estado.IMPRIMIENDO);
+                avisar(trabajo);
+            }
+            boolean redistribuidos;
+            try {
+                redistribuidos = !imprimir();
+            } catch (RuntimeException ex) {
+                // el hilo de la cola no puede terminar: quien espera estos
+                // trabajos (el modo por lotes, el servidor) no acabaría.
+                LOG.log(Level.SEVERE, "Error inesperado al imprimir", ex);
+                estado.reiniciar();
+                metricas.registrarFallo();
+                for (TrabajoImpresion trabajo : lote) {
+                    if (trabajo.getEstado()
+                            == TrabajoImpresion.Estado.IMPRIMIENDO) {
+                        trabajo.setError(ex.toString());
+                    }
+                }
+                redistribuidos = false;
+            }
+            enCurso = 0;
+            // si los trabajos han pasado a otra cola, avisa esa cola.
+            if (!redistribuidos) {
+                for (TrabajoImpresion trabajo : lote) {
+                    avisar(trabajo);
+                }
+            }
+            lote.clear();
+        }
+    }
+
+    /**
+     * Este método añade al lote los trabajos que llegan antes de que se
+     * acabe la ventana de agrupación, hasta el máximo de trabajos.
+     */
+    private void recoger() {
+        long limite = System.nanoTime() + ventanaNanos;
+        try {
+            while (lote.size() < maxAgrupados) {
+                long espera = limite - System.nanoTime();
+                TrabajoImpresion trabajo = espera > 0
+                        ? cola.poll(espera, TimeUnit.NANOSECONDS)
+                        : cola.poll();
+                if (trabajo == null) {
+                    return;
+                }
+                sitio.release();
+                lote.add(trabajo);
+            }
+        } catch (InterruptedException ex) {
+            // imprimimos lo que ya se ha sacado de la cola; el bucle
+            // termina en la siguiente vuelta.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Este método envía el lote a la salida como un único trabajo de
+     * impresión y deja en cada trabajo el resultado de la impresión.
+     *
+     * @return false si el lote ha fallado y el manejador de fallos se ha
+     * quedado con los trabajos.
+     */
+    private boolean imprimir() {
+        long inicio = System.nanoTime();
+        datosLote.clear();
+        // el perfil se toma una vez por lote; la página de códigos y el
+        // logotipo son los de cada trabajo.
+        PerfilImpresora p = perfil;
+        configurado = false;
+        long copias = 0;
+        int i = 0;
+        while (i < lote.size()) {
+            TrabajoImpresion trabajo = lote.get(i);
+            Etiqueta etiqueta = trabajo.getEtiqueta();
+            if (etiqueta == null) {
+                // comandos ya generados: con la página y el logotipo con
+                // los que se generaron si se saben (por ejemplo los del
+                // diario) y si no con lo que está configurado en la cola.
+                if (trabajo.getPagina() != null) {
+                    configurar(p, trabajo.getPagina(), trabajo.getLogo());
+                } else {
+                    configurar(p, p.getPagina(), logo);
+                }
+                anadir(ByteBuffer.wrap(trabajo.getDatos()));
+                copias++;
+                i++;
+                continue;
+            }
+            PaginaCodigos pagina = trabajo.getPagina();
+            GraficoEPL grafico = trabajo.getLogo();
+            configurar(p, pagina, grafico);
+            // juntamos las etiquetas iguales seguidas en un sólo bloque.
+            int total = etiqueta.getCopias();
+            int fin = i + 1;
+            // en una serie cada copia lleva el número siguiente, así que
+            // dos series iguales no se pueden juntar.
+            boolean serie = SerieEPL.tieneContadores(etiqueta);
+            while (!serie && fin < lote.size()) {
+                TrabajoImpresion otro = lote.get(fin);
+                Etiqueta siguiente = otro.getEtiqueta();
+                if (siguiente == null || otro.getPagina() != pagina
+                        || otro.getLogo() != grafico
+                        || !siguiente.mismoContenido(etiqueta)
+                        || total + siguiente.getCopias() > MAX_COPIAS) {
+                    break;
+                }
+                total += siguiente.getCopias();
+                fin++;
+            }
+            if (fin == i + 1 && !usarFormularios) {
+                anadir(ByteBuffer.wrap(trabajo.getDatos()));
+            } else {
+                agrupada.copiar(etiqueta);
+                agrupada.setCopias(total);
+                anadir(usarFormularios
+                        ? codificador.codificar(agrupada, estado)
+                        : codificador.codificar(agrupada));
+            }
+            copias += total;
+            i = fin;
+        }
+        byte[] datos = Arrays.copyOf(datosLote.array(), datosLote.position());
+        metricas.registrarCodificacion(System.nanoTime() - inicio);
+        try {
+            inicio = System.nanoTime();
+            salida.imprimir(datos);
+            metricas.registrarEnvio(System.nanoTime() - inicio);
+            metricas.registrarTrabajo(lote.size(), copias, datos.length);
+            for (TrabajoImpresion trabajo : lote) {
+                trabajo.setEstado(TrabajoImpresion.Estado.IMPRESO);
+            }
+            return true;
+        } catch (IOException ex) {
+            // no sabemos qué formularios han llegado a la impresora.
+            estado.reiniciar();
+            metricas.registrarFallo();
+            ManejadorFallos manejador = manejadorFallos;
+            if (manejador != null && manejador.trabajosFallidos(this,
+                    new ArrayList<>(lote), ex)) {
+                return false;
+            }
+            for (TrabajoImpresion trabajo : lote) {
+                trabajo.setError(ex.getMessage());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Este método añade al lote lo que necesita la impresora para imprimir
+     * un trabajo con una página de códigos y un logotipo: el perfil (y la
+     * página) si no lo tiene ya y la definición del logotipo la primera vez.
+     * Sólo se mira cuando cambian respecto al trabajo anterior del lote.
+     */
+    private void configurar(PerfilImpresora p, PaginaCodigos pagina,
+            GraficoEPL grafico) {
+        if (configurado && pagina == paginaLote && grafico == logoLote) {
+            return;
+        }
+        configurado = true;
+        paginaLote = pagina;
+        logoLote = grafico;
+        codificador.setPagina(pagina);
+        codificador.setLogo(grafico);
+        anadir(ByteBuffer.wrap(estado.cambiarPerfil(
+                pagina == p.getPagina() ? p : p.conPagina(pagina))));
+        if (grafico != null && !estado.isGraficoGuardado(grafico.getNombre())) {
+            anadir(ByteBuffer.wrap(grafico.getDefinicion()));
+        }
+    }
+
+    /**
+     * Este método añade unos comandos EPL a los datos del lote.
+     */
+    private void anadir(ByteBuffer datos) {
+        if (datosLote.remaining() < datos.remaining()) {
+            ByteBuffer mayor = ByteBuffer.allocate(Math.max(
+                    datosLote.capacity() * 2,
+                    datosLote.position() + datos.remaining()));
+            datosLote.flip();
+            mayor.put(datosLote);
+            datosLote = mayor;
+        }
+        datosLote.put(datos);
+    }
+
+    /**
+     * Este método avisa a los oyentes de que ha cambiado un trabajo.
+     *
+     * @param trabajo el trabajo que ha cambiado.
+     */
+    void avisar(TrabajoImpresion trabajo) {
+        for (OyenteCola oyente : oyentes) {
+            try {
+                oyente.trabajoActualizado(trabajo);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Error al avisar del trabajo "
+                        + trabajo.getId(), ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Frame;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+
+/**
+ * Ventana con el historial de trabajos del diario. Permite buscar trabajos
+ * por las palabras de su texto y entre dos fechas, y reimprimir el
+ * seleccionado exactamente igual que la primera vez.
+ */
+public class DialogoHistorial extends JDialog {
+
+    // número máximo de trabajos que se muestran.
+    private static final int MAX_RESULTADOS = 500;
+
+    private final DiarioTrabajos diario;
+    private final ServicioImpresion cola;
+    private final PanelCola panelCola;
+    private final JTextField campoBuscar = new JTextField(20);
+    private final JTextField campoDesde = new JTextField(12);
+    private final JTextField campoHasta = new JTextField(12);
+    private final DefaultListModel<EntradaDiario> modelo
+            = new DefaultListModel<>();
+    private final JList<EntradaDiario> lista = new JList<>(modelo);
+    private final JLabel etiquetaMensaje = new JLabel(" ");
+
+    /**
+     * Constructor.
+     *
+     * @param padre la ventana principal.
+     * @param diario el diario de trabajos.
+     * @param cola donde se envían las reimpresiones.
+     * @param panelCola el panel donde se muestran los trabajos enviados.
+     */
+    public DialogoHistorial(Frame padre, DiarioTrabajos diario,
+            ServicioImpresion cola, PanelCola panelCola) {
+        super(padre, "Historial de trabajos", false);
+        this.diario = diario;
+        this.cola = cola;
+        this.panelCola = panelCola;
+        JButton botonBuscar = new JButton("Buscar");
+        JButton botonReimprimir = new JButton("Reimprimir");
+        JButton botonCerrar = new JButton("Cerrar");
+        botonBuscar.addActionListener(evt -> buscar());
+        campoBuscar.addActionListener(evt -> buscar());
+        campoDesde.addActionListener(evt -> buscar());
+        campoHasta.addActionListener(evt -> buscar());
+        String formatoFecha = "dd/mm/aaaa ó dd/mm/aaaa hh:mm";
+        campoDesde.setToolTipText(formatoFecha);
+        campoHasta.setToolTipText(formatoFecha + " (incluida)");
+        botonReimprimir.addActionListener(evt -> reimprimir());
+        botonCerrar.addActionListener(evt -> dispose());
+        lista.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        lista.setVisibleRowCount(15);
+
+        JPanel superior = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        superior.add(new JLabel("Texto:"));
+        superior.add(campoBuscar);
+        superior.add(new JLabel("Desde:"));
+        superior.add(campoDesde);
+        superior.add(new JLabel("Hasta:"));
+        superior.add(campoHasta);
+        superior.add(botonBuscar);
+        JPanel inferior = new JPanel(new BorderLayout());
+        JPanel botones = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        botones.add(botonReimprimir);
+        botones.add(botonCerrar);
+        inferior.add(etiquetaMensaje, BorderLayout.WEST);
+        inferior.add(botones, BorderLayout.EAST);
+        JPanel contenido = new JPanel(new BorderLayout(5, 5));
+        contenido.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        contenido.add(superior, BorderLayout.NORTH);
+        contenido.add(new JScrollPane(lista), BorderLayout.CENTER);
+        contenido.add(inferior, BorderLayout.SOUTH);
+        setContentPane(contenido);
+        getRootPane().setDefaultButton(botonBuscar);
+        buscar();
+        pack();
+        setLocationRelativeTo(padre);
+    }
+
+    /**
+     * Este método muestra los trabajos más recientes que tienen las
+     * palabras del campo de búsqueda y están entre las fechas.
+     */
+    private void buscar() {
+        long desde;
+        long hasta;
+        try {
+            desde = leerFecha(campoDesde.getText(), false, Long.MIN_VALUE);
+            hasta = leerFecha(campoHasta.getText(), true, Long.MAX_VALUE);
+        } catch (ParseException ex) {
+            etiquetaMensaje.setText("Fecha no válida: " + ex.getMessage());
+            return;
+        }
+        List<EntradaDiario> entradas = diario.buscar(desde, hasta,
+                campoBuscar.getText(), MAX_RESULTADOS);
+        modelo.clear();
+        for (EntradaDiario entrada : entradas) {
+            modelo.addElement(entrada);
+        }
+        etiquetaMensaje.setText(entradas.size() + " de "
+                + diario.getNumeroEntradas() + " trabajos");
+    }
+
+    /**
+     * Este método lee la fecha de un campo: dd/MM/yyyy ó dd/MM/yyyy HH:mm.
+     *
+     * @param texto el texto del campo.
+     * @param fin true si es el final del intervalo: se incluye todo el día
+     * ó todo el minuto indicado.
+     * @param vacio el instante si el campo está vacío.
+     * @return el instante en milisegundos.
+     * @throws ParseException si el texto no es una fecha válida.
+     */
+    static long leerFecha(String texto, boolean fin, long vacio)
+            throws ParseException {
+        String fecha = texto.trim();
+        if (fecha.isEmpty()) {
+            return vacio;
+        }
+        boolean conHora = fecha.indexOf(':') >= 0;
+        SimpleDateFormat formato = new SimpleDateFormat(conHora
+                ? "dd/MM/yyyy HH:mm" : "dd/MM/yyyy");
+        formato.setLenient(false);
+        ParsePosition posicion = new ParsePosition(0);
+        Date leida = formato.parse(fecha, posicion);
+        if (leida == null || posicion.getIndex() != fecha.length()) {
+            throw new ParseException(fecha, posicion.getErrorIndex());
+        }
+        if (!fin) {
+            return leida.getTime();
+        }
+        Calendar siguiente = Calendar.getInstance();
+        siguiente.setTime(leida);
+        siguiente.add(conHora ? Calendar.MINUTE : Calendar.DAY_OF_MONTH, 1);
+        return siguiente.getTimeInMillis();
+    }
+
+    private void reimprimir() {
+        EntradaDiario entrada = lista.getSelectedValue();
+        if (entrada == null) {
+            return;
+        }
+        TrabajoImpresion trabajo = diario.crearReimpresion(entrada);
+        if (cola.enviar(trabajo)) {
+            panelCola.addTrabajo(trabajo);
+            etiquetaMensaje.setText("Enviado el trabajo #" + trabajo.getId());
+        } else {
+            etiquetaMensaje.setText("La cola de impresión está llena");
+        }
+    }
+}
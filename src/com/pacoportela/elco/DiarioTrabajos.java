@@ -0,0 +1,1112 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Esta clase es el diario de trabajos: guarda en disco los comandos EPL de
+ * cada trabajo de impresión junto con su estado (en cola, enviado, fallido ó
+ * cancelado). Sirve para volver a enviar los trabajos que no se llegaron a
+ * imprimir si el programa se cierra de golpe, y para consultar el historial
+ * y reimprimir cualquier trabajo anterior exactamente igual.
+ *
+ * El diario se escribe siempre al final, en ficheros (segmentos) de tamaño
+ * fijo proyectados en memoria; cuando uno se llena se empieza otro. Sólo el
+ * estado de una entrada se modifica después de escribirla. La longitud de
+ * cada entrada se escribe la última, así que una entrada a medio escribir
+ * se ignora al abrir el diario.
+ *
+ * Del segmento que se está escribiendo se mantiene en memoria un índice por
+ * fecha y por palabras del texto. Cuando se llena, el índice se guarda a su
+ * lado (.indice) junto con las entradas que seguían en cola, y las
+ * búsquedas lo leen proyectado en memoria sin crear nada. Al abrir el
+ * diario sólo se leen las cabeceras de los índices y el último segmento,
+ * así que abrirlo no depende del tamaño del historial. Sólo se mantienen
+ * proyectados los MAX_SEGMENTOS_ABIERTOS segmentos usados más
+ * recientemente.
+ *
+ * Cada entrada guarda también la página de códigos y el logotipo con los
+ * que se generaron sus comandos, para que al reenviarla ó reimprimirla la
+ * impresora los tenga aunque la cola use ya otros. Los logotipos se guardan
+ * una sola vez, en la carpeta 'graficos' del diario, y las entradas sólo
+ * llevan su número.
+ *
+ * El diario recibe los cambios de los trabajos como oyente de la cola de
+ * impresión.
+ */
+public class DiarioTrabajos implements ColaImpresion.OyenteCola, Closeable {
+
+    /** Tamaño de cada fichero del diario. */
+    public static final int TAMANO_SEGMENTO = 8 * 1024 * 1024;
+
+    private static final Logger LOG
+            = Logger.getLogger(DiarioTrabajos.class.getName());
+    private static final String EXTENSION = ".diario";
+    private static final String EXTENSION_INDICE = ".indice";
+    private static final String GRAFICOS = "graficos";
+    // "EDIA" y la versión del formato al principio de cada segmento.
+    private static final int MAGICO = 0x45444941;
+    // "EDII" al principio de cada índice.
+    private static final int MAGICO_INDICE = 0x45444949;
+    private static final int VERSION = 1;
+    private static final int CABECERA_SEGMENTO = 8;
+    // mágico, versión, entradas, primer y último instante, entradas en
+    // cola, palabras y tamaño de sus listas.
+    private static final int CABECERA_INDICE = 40;
+    // resumen de la palabra, posición y tamaño de su lista.
+    private static final int PALABRA_INDICE = 16;
+    // longitud, estado, parámetro de la página de códigos (0 si no se
+    // sabe), número del logotipo (0 si no tiene), instante y longitud del
+    // texto.
+    private static final int CABECERA_ENTRADA = 20;
+    private static final int MAX_SEGMENTOS_ABIERTOS = 8;
+
+    /**
+     * Un segmento del diario. De cada segmento se conoce siempre el número
+     * de entradas y sus instantes primero y último. Su índice está en
+     * memoria (el segmento que se escribe) ó en el fichero .indice, y se
+     * proyecta, como los datos, sólo mientras se usa.
+     */
+    private static final class Segmento {
+
+        final int numero;
+        // el instante de la última entrada del segmento anterior: el índice
+        // por fecha debe estar ordenado aunque cambie la hora.
+        final long minimo;
+        int entradas;
+        long primero;
+        long ultimo;
+        MappedByteBuffer datos;
+        // índice en memoria: desplazamiento e instante de cada entrada, y
+        // número de las entradas en que aparece cada palabra.
+        int[] desplazamientos;
+        long[] instantes;
+        Map<String, ListaEnteros> palabras;
+        // índice guardado, y dónde empieza cada parte.
+        MappedByteBuffer indice;
+        int inicioDesplazamientos;
+        int inicioInstantes;
+        int inicioPalabras;
+        int numeroPalabras;
+        int inicioListas;
+
+        Segmento(int numero, long minimo) {
+            this.numero = numero;
+            this.minimo = minimo;
+            this.primero = minimo;
+            this.ultimo = minimo;
+        }
+
+        void empezarIndice() {
+            entradas = 0;
+            primero = minimo;
+            ultimo = minimo;
+            desplazamientos = new int[1024];
+            instantes = new long[1024];
+            palabras = new HashMap<>();
+        }
+
+        void indexar(int desplazamiento, long instante, String descripcion) {
+            if (entradas == desplazamientos.length) {
+                desplazamientos = Arrays.copyOf(desplazamientos, entradas * 2);
+                instantes = Arrays.copyOf(instantes, entradas * 2);
+            }
+            instante = Math.max(instante, ultimo);
+            if (entradas == 0) {
+                primero = instante;
+            }
+            ultimo = instante;
+            desplazamientos[entradas] = desplazamiento;
+            instantes[entradas] = instante;
+            for (String palabra : separarPalabras(descripcion)) {
+                ListaEnteros lista = palabras.get(palabra);
+                if (lista == null) {
+                    lista = new ListaEnteros();
+                    palabras.put(palabra, lista);
+                }
+                lista.anadir(entradas);
+            }
+            entradas++;
+        }
+
+        boolean isIndexado() {
+            return palabras != null || indice != null;
+        }
+
+        int getDesplazamiento(int entrada) {
+            return indice != null ? indice.getInt(inicioDesplazamientos
+                    + 4 * entrada) : desplazamientos[entrada];
+        }
+
+        long getInstante(int entrada) {
+            return indice != null ? indice.getLong(inicioInstantes
+                    + 8 * entrada) : instantes[entrada];
+        }
+
+        /**
+         * @return los números de las entradas en que aparece la palabra, de
+         * menor a mayor, ó null si no aparece en ninguna.
+         */
+        IntBuffer getEntradas(String palabra) {
+            if (indice == null) {
+                ListaEnteros lista = palabras.get(palabra);
+                return lista == null ? null
+                        : IntBuffer.wrap(lista.valores, 0, lista.tamano);
+            }
+            // búsqueda binaria por el resumen; dos palabras con el mismo
+            // resumen de 64 bits en un segmento son prácticamente imposibles.
+            long buscado = resumir(palabra);
+            int bajo = 0;
+            int alto = numeroPalabras - 1;
+            while (bajo <= alto) {
+                int medio = (bajo + alto) >>> 1;
+                int posicion = inicioPalabras + PALABRA_INDICE * medio;
+                long resumen = indice.getLong(posicion);
+                if (resumen < buscado) {
+                    bajo = medio + 1;
+                } else if (resumen > buscado) {
+                    alto = medio - 1;
+                } else {
+                    ByteBuffer lista = indice.duplicate();
+                    lista.position(inicioListas
+                            + 4 * indice.getInt(posicion + 8));
+                    lista.limit(lista.position()
+                            + 4 * indice.getInt(posicion + 12));
+                    return lista.slice().asIntBuffer();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Este método libera la proyección y el índice del segmento. Antes
+         * se escriben en el disco los cambios de estado.
+         */
+        void cerrar() {
+            if (datos != null) {
+                datos.force();
+            }
+            datos = null;
+            desplazamientos = null;
+            instantes = null;
+            palabras = null;
+            indice = null;
+        }
+    }
+
+    private final Path directorio;
+    // todos los segmentos, por número; el último es el que se escribe.
+    private final TreeMap<Integer, Segmento> segmentos = new TreeMap<>();
+    private Segmento actual;
+    private int posicionEscritura;
+    // segmentos anteriores proyectados, del menos al más usado.
+    private final Map<Integer, Segmento> abiertos
+            = new LinkedHashMap<Integer, Segmento>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, Segmento> mayor) {
+            if (size() > MAX_SEGMENTOS_ABIERTOS) {
+                mayor.getValue().cerrar();
+                return true;
+            }
+            return false;
+        }
+    };
+    // entradas que estaban en cola al abrir el diario.
+    private final List<Long> pendientes = new ArrayList<>();
+    // nombres de los logotipos guardados; el número de cada uno es su
+    // posición más uno.
+    private final List<String> nombresGraficos = new ArrayList<>();
+    // logotipos ya leídos de la carpeta, por número.
+    private final Map<Integer, GraficoEPL> graficos = new HashMap<>();
+
+    /**
+     * Constructor. Abre el diario del directorio (ó lo crea si no existe):
+     * lee los resúmenes de los segmentos llenos y las entradas del último.
+     *
+     * @param directorio el directorio del diario.
+     * @throws IOException si no se puede leer ó crear el diario.
+     */
+    public DiarioTrabajos(Path directorio) throws IOException {
+        this.directorio = directorio;
+        Files.createDirectories(directorio);
+        leerNombresGraficos();
+        List<Integer> numeros = new ArrayList<>();
+        try (DirectoryStream<Path> ficheros
+                = Files.newDirectoryStream(directorio, "*" + EXTENSION)) {
+            for (Path fichero : ficheros) {
+                String nombre = fichero.getFileName().toString();
+                try {
+                    numeros.add(Integer.parseInt(nombre.substring(0,
+                            nombre.length() - EXTENSION.length())));
+                } catch (NumberFormatException ex) {
+                    // no es un segmento del diario.
+                }
+            }
+        }
+        numeros.sort(null);
+        long minimo = Long.MIN_VALUE;
+        for (int i = 0; i < numeros.size(); i++) {
+            Segmento segmento = new Segmento(numeros.get(i), minimo);
+            if (i < numeros.size() - 1) {
+                abrirLleno(segmento);
+            } else {
+                segmento.datos = mapear(segmento.numero);
+                posicionEscritura = leerSegmento(segmento, pendientes);
+                actual = segmento;
+            }
+            segmentos.put(segmento.numero, segmento);
+            minimo = segmento.ultimo;
+        }
+        if (actual == null) {
+            empezarSegmento(1);
+        }
+    }
+
+    /**
+     * Este método recibe los cambios de los trabajos de la cola. La primera
+     * vez que ve un trabajo lo añade al diario; después sólo actualiza su
+     * estado.
+     */
+    @Override
+    public synchronized void trabajoActualizado(TrabajoImpresion trabajo) {
+        EntradaDiario.Estado estado
+                = EntradaDiario.Estado.de(trabajo.getEstado());
+        try {
+            long posicion = trabajo.getPosicionDiario();
+            if (posicion >= 0) {
+                marcar(posicion, estado);
+            } else if (trabajo.getDatos() != null) {
+                trabajo.setPosicionDiario(anadir(describir(trabajo),
+                        trabajo.getDatos(), estado, trabajo.getPagina(),
+                        trabajo.getLogo()));
+            }
+        } catch (IOException | RuntimeException ex) {
+            // el diario no debe impedir imprimir.
+            LOG.log(Level.WARNING, "No se puede escribir en el diario", ex);
+        }
+    }
+
+    /**
+     * Este método vuelve a enviar los trabajos que estaban en cola cuando se
+     * cerró el programa. Se debe llamar una vez, al arrancar. Si no caben
+     * todos en la cola los demás se envían la próxima vez.
+     *
+     * @param servicio la cola donde se envían los trabajos.
+     * @return los trabajos enviados.
+     */
+    public synchronized List<TrabajoImpresion> reenviarPendientes(
+            ServicioImpresion servicio) {
+        List<TrabajoImpresion> enviados = new ArrayList<>();
+        for (long posicion : pendientes) {
+            TrabajoImpresion trabajo = new TrabajoImpresion(
+                    leerDescripcion(posicion), getDatos(posicion));
+            restaurar(trabajo, posicion);
+            trabajo.setPosicionDiario(posicion);
+            if (!servicio.enviar(trabajo)) {
+                break;
+            }
+            enviados.add(trabajo);
+        }
+        pendientes.clear();
+        return enviados;
+    }
+
+    /**
+     * Este método busca entradas del diario, de la más reciente a la más
+     * antigua. Los segmentos se recorren del último al primero y se deja de
+     * buscar al llegar al máximo ó a un segmento anterior a 'desde'.
+     *
+     * @param desde el instante inicial en milisegundos (incluido).
+     * @param hasta el instante final en milisegundos (excluido).
+     * @param texto las palabras que deben aparecer en el texto del trabajo,
+     * ó una cadena vacía para no filtrar por texto.
+     * @param maximo el número máximo de entradas a devolver.
+     * @return las entradas encontradas.
+     */
+    public synchronized List<EntradaDiario> buscar(long desde, long hasta,
+            String texto, int maximo) {
+        List<EntradaDiario> encontradas = new ArrayList<>();
+        List<String> buscadas = separarPalabras(texto);
+        for (Segmento segmento : segmentos.descendingMap().values()) {
+            if (encontradas.size() >= maximo || segmento.ultimo < desde) {
+                break;
+            }
+            if (segmento.entradas > 0 && segmento.primero < hasta) {
+                buscar(indexado(segmento), desde, hasta, buscadas,
+                        maximo, encontradas);
+            }
+        }
+        return encontradas;
+    }
+
+    /**
+     * @param posicion la posición de una entrada.
+     * @return los comandos EPL guardados en la entrada.
+     */
+    public synchronized byte[] getDatos(long posicion) {
+        ByteBuffer b = getSegmento(posicion);
+        int inicio = desplazamiento(posicion);
+        int longitudTexto = b.getInt(inicio + 16);
+        byte[] datos = new byte[b.getInt(inicio) - CABECERA_ENTRADA
+                - longitudTexto];
+        leer(b, inicio + CABECERA_ENTRADA + longitudTexto, datos);
+        return datos;
+    }
+
+    /**
+     * Este método crea un trabajo para reimprimir una entrada del diario con
+     * los mismos comandos EPL, sin volver a generarlos, y con su página de
+     * códigos y su logotipo.
+     *
+     * @param entrada la entrada a reimprimir.
+     * @return el trabajo de impresión.
+     */
+    public synchronized TrabajoImpresion crearReimpresion(
+            EntradaDiario entrada) {
+        TrabajoImpresion trabajo = new TrabajoImpresion("Reimpresión: "
+                + entrada.getDescripcion(), getDatos(entrada.getPosicion()));
+        restaurar(trabajo, entrada.getPosicion());
+        return trabajo;
+    }
+
+    /**
+     * Este método pone a un trabajo creado con los datos de una entrada la
+     * página de códigos y el logotipo de la entrada. Las entradas escritas
+     * antes de guardarlos no tienen página y se imprimen con lo que tenga
+     * la cola.
+     */
+    private void restaurar(TrabajoImpresion trabajo, long posicion) {
+        ByteBuffer b = getSegmento(posicion);
+        int inicio = desplazamiento(posicion);
+        byte parametro = b.get(inicio + 5);
+        if (parametro == 0) {
+            return;
+        }
+        PaginaCodigos pagina = PaginaCodigos.deParametro(
+                String.valueOf((char) parametro));
+        if (pagina == null) {
+            return;
+        }
+        int numero = b.getShort(inicio + 6) & 0xFFFF;
+        GraficoEPL logo = null;
+        if (numero > 0) {
+            logo = leerGrafico(numero);
+            if (logo == null) {
+                // sin el logotipo no se sabe qué necesita la impresora.
+                return;
+            }
+        }
+        trabajo.setDatos(trabajo.getDatos(), pagina, logo);
+    }
+
+    /**
+     * @return el logotipo guardado con un número, ó null si no se puede
+     * leer.
+     */
+    private GraficoEPL leerGrafico(int numero) {
+        GraficoEPL logo = graficos.get(numero);
+        if (logo != null || numero > nombresGraficos.size()) {
+            return logo;
+        }
+        String nombre = nombresGraficos.get(numero - 1);
+        try {
+            logo = GraficoEPL.deGuardado(nombre, Files.readAllBytes(
+                    ficheroGrafico(numero, nombre)));
+            graficos.put(numero, logo);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "No se puede leer el logotipo " + nombre
+                    + " del diario", ex);
+        }
+        return logo;
+    }
+
+    /**
+     * Este método devuelve el número de un logotipo en el diario. La
+     * primera vez lo guarda en la carpeta de logotipos, antes de escribir
+     * la entrada que lo usa.
+     *
+     * @return el número del logotipo, ó 0 si no hay logotipo.
+     */
+    private int numeroGrafico(GraficoEPL logo) throws IOException {
+        if (logo == null) {
+            return 0;
+        }
+        int numero = nombresGraficos.indexOf(logo.getNombre()) + 1;
+        if (numero > 0) {
+            return numero;
+        }
+        if (nombresGraficos.size() >= 0xFFFF) {
+            throw new IOException("Demasiados logotipos en el diario");
+        }
+        numero = nombresGraficos.size() + 1;
+        Path fichero = ficheroGrafico(numero, logo.getNombre());
+        Files.createDirectories(fichero.getParent());
+        Path temporal = fichero.resolveSibling(fichero.getFileName()
+                + ".tmp");
+        Files.write(temporal, logo.getPcx());
+        Files.move(temporal, fichero, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        nombresGraficos.add(logo.getNombre());
+        graficos.put(numero, logo);
+        return numero;
+    }
+
+    private Path ficheroGrafico(int numero, String nombre) {
+        return directorio.resolve(GRAFICOS).resolve(numero + "-" + nombre
+                + ".pcx");
+    }
+
+    /**
+     * Este método lee los nombres de los logotipos guardados en el diario.
+     */
+    private void leerNombresGraficos() throws IOException {
+        Path carpeta = directorio.resolve(GRAFICOS);
+        if (!Files.isDirectory(carpeta)) {
+            return;
+        }
+        TreeMap<Integer, String> nombres = new TreeMap<>();
+        try (DirectoryStream<Path> ficheros
+                = Files.newDirectoryStream(carpeta, "*.pcx")) {
+            for (Path fichero : ficheros) {
+                String nombre = fichero.getFileName().toString();
+                int guion = nombre.indexOf('-');
+                try {
+                    nombres.put(Integer.parseInt(nombre.substring(0, guion)),
+                            nombre.substring(guion + 1, nombre.length() - 4));
+                } catch (NumberFormatException
+                        | StringIndexOutOfBoundsException ex) {
+                    // no es un logotipo del diario.
+                }
+            }
+        }
+        // los números van seguidos: sólo se guarda el siguiente al último.
+        for (Map.Entry<Integer, String> e : nombres.entrySet()) {
+            if (e.getKey() != nombresGraficos.size() + 1) {
+                break;
+            }
+            nombresGraficos.add(e.getValue());
+        }
+    }
+
+    /**
+     * @return el número de entradas del diario.
+     */
+    public synchronized int getNumeroEntradas() {
+        int total = 0;
+        for (Segmento segmento : segmentos.values()) {
+            total += segmento.entradas;
+        }
+        return total;
+    }
+
+    /**
+     * Este método escribe en el disco los cambios y libera los segmentos
+     * anteriores, que se vuelven a abrir si hacen falta.
+     */
+    @Override
+    public synchronized void close() {
+        if (actual != null) {
+            actual.datos.force();
+        }
+        for (Segmento segmento : abiertos.values()) {
+            segmento.cerrar();
+        }
+        abiertos.clear();
+    }
+
+    /**
+     * Este método devuelve el texto de un trabajo que se guarda en el
+     * diario: todas las lineas de la etiqueta ó la descripción del trabajo.
+     */
+    private static String describir(TrabajoImpresion trabajo) {
+        Etiqueta etiqueta = trabajo.getEtiqueta();
+        if (etiqueta == null) {
+            return trabajo.getDescripcion();
+        }
+        StringBuilder texto = new StringBuilder();
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            CharSequence linea = etiqueta.getLinea(i);
+            if (linea.length() > 0) {
+                if (texto.length() > 0) {
+                    texto.append(" | ");
+                }
+                texto.append(linea);
+            }
+        }
+        return texto.toString();
+    }
+
+    /**
+     * Este método escribe una entrada al final del diario.
+     *
+     * @return la posición de la entrada.
+     */
+    private long anadir(String descripcion, byte[] datos,
+            EntradaDiario.Estado estado, PaginaCodigos pagina,
+            GraficoEPL logo) throws IOException {
+        byte[] texto = descripcion.getBytes(StandardCharsets.UTF_8);
+        int longitud = CABECERA_ENTRADA + texto.length + datos.length;
+        if (longitud > TAMANO_SEGMENTO - CABECERA_SEGMENTO) {
+            throw new IOException("Trabajo demasiado grande para el diario: "
+                    + longitud + " bytes");
+        }
+        int numeroGrafico = pagina == null ? 0 : numeroGrafico(logo);
+        if (posicionEscritura + longitud > TAMANO_SEGMENTO) {
+            empezarSegmento(actual.numero + 1);
+        }
+        int inicio = posicionEscritura;
+        long instante = System.currentTimeMillis();
+        MappedByteBuffer b = actual.datos;
+        b.put(inicio + 4, estado.getCodigo());
+        b.put(inicio + 5, pagina == null ? 0 : (byte) pagina.getParametro());
+        b.putShort(inicio + 6, (short) numeroGrafico);
+        b.putLong(inicio + 8, instante);
+        b.putInt(inicio + 16, texto.length);
+        ByteBuffer escritura = b.duplicate();
+        escritura.position(inicio + CABECERA_ENTRADA);
+        escritura.put(texto).put(datos);
+        // la longitud al final: hasta ahora la entrada no existe.
+        b.putInt(inicio, longitud);
+        posicionEscritura += longitud;
+        actual.indexar(inicio, instante, descripcion);
+        return posicion(actual.numero, inicio);
+    }
+
+    private void marcar(long posicion, EntradaDiario.Estado estado) {
+        ByteBuffer b = getSegmento(posicion);
+        int inicio = desplazamiento(posicion) + 4;
+        if (b.get(inicio) != estado.getCodigo()) {
+            b.put(inicio, estado.getCodigo());
+        }
+    }
+
+    /**
+     * Este método lee las entradas de un segmento proyectado y crea su
+     * índice.
+     *
+     * @param enCola donde se añaden las entradas que están en cola, ó null.
+     * @return la posición donde termina la última entrada.
+     */
+    private static int leerSegmento(Segmento segmento, List<Long> enCola) {
+        ByteBuffer b = segmento.datos;
+        segmento.empezarIndice();
+        int inicio = CABECERA_SEGMENTO;
+        while (inicio + CABECERA_ENTRADA <= b.limit()) {
+            int longitud = b.getInt(inicio);
+            if (longitud < CABECERA_ENTRADA
+                    || inicio + longitud > b.limit()) {
+                break;
+            }
+            int longitudTexto = b.getInt(inicio + 16);
+            byte[] texto = new byte[longitudTexto];
+            leer(b, inicio + CABECERA_ENTRADA, texto);
+            segmento.indexar(inicio, b.getLong(inicio + 8),
+                    new String(texto, StandardCharsets.UTF_8));
+            if (enCola != null && b.get(inicio + 4)
+                    == EntradaDiario.Estado.EN_COLA.getCodigo()) {
+                enCola.add(posicion(segmento.numero, inicio));
+            }
+            inicio += longitud;
+        }
+        return inicio;
+    }
+
+    /**
+     * Este método abre un segmento lleno con la cabecera de su índice y
+     * anota sus entradas que siguen en cola. Si no tiene índice (por
+     * ejemplo porque el programa se cerró de golpe al cambiar de segmento)
+     * se lee el segmento entero y se guarda el índice.
+     */
+    private void abrirLleno(Segmento segmento) throws IOException {
+        int[] enCola = leerCabecera(segmento);
+        if (enCola == null) {
+            segmento.datos = mapear(segmento.numero);
+            leerSegmento(segmento, null);
+            enCola = guardarIndice(segmento);
+            segmento.cerrar();
+        }
+        if (enCola.length == 0) {
+            return;
+        }
+        // sólo se mira el estado de las que estaban en cola al llenarse.
+        ByteBuffer estado = ByteBuffer.allocate(1);
+        try (FileChannel canal = FileChannel.open(
+                getFichero(segmento.numero), StandardOpenOption.READ)) {
+            for (int desplazamiento : enCola) {
+                estado.clear();
+                if (canal.read(estado, desplazamiento + 4) == 1 && estado.get(0)
+                        == EntradaDiario.Estado.EN_COLA.getCodigo()) {
+                    pendientes.add(posicion(segmento.numero, desplazamiento));
+                }
+            }
+        }
+    }
+
+    /**
+     * Este método lee la cabecera del índice de un segmento lleno.
+     *
+     * @return los desplazamientos de las entradas que estaban en cola al
+     * guardar el índice, ó null si el segmento no tiene un índice válido.
+     */
+    private int[] leerCabecera(Segmento segmento) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(CABECERA_INDICE);
+        try (FileChannel canal = FileChannel.open(
+                getIndice(segmento.numero), StandardOpenOption.READ)) {
+            while (b.hasRemaining() && canal.read(b) >= 0) {
+                // hasta leer la cabecera entera ó el final.
+            }
+            if (b.hasRemaining() || b.getInt(0) != MAGICO_INDICE
+                    || b.getInt(4) != VERSION
+                    || canal.size() != tamanoIndice(b)) {
+                return null;
+            }
+            segmento.entradas = b.getInt(8);
+            if (segmento.entradas > 0) {
+                segmento.primero = Math.max(b.getLong(12), segmento.minimo);
+                segmento.ultimo = Math.max(b.getLong(20), segmento.primero);
+            }
+            ByteBuffer enCola = ByteBuffer.allocate(4 * b.getInt(28));
+            while (enCola.hasRemaining() && canal.read(enCola) >= 0) {
+                // el fichero tiene el tamaño justo: no se acaba antes.
+            }
+            int[] desplazamientos = new int[enCola.capacity() / 4];
+            enCola.flip();
+            enCola.asIntBuffer().get(desplazamientos);
+            return desplazamientos;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return el tamaño que debe tener un índice con esta cabecera.
+     */
+    private static long tamanoIndice(ByteBuffer cabecera) {
+        long entradas = cabecera.getInt(8);
+        long enCola = cabecera.getInt(28);
+        long palabras = cabecera.getInt(32);
+        long listas = cabecera.getInt(36);
+        if (entradas < 0 || enCola < 0 || palabras < 0 || listas < 0) {
+            return -1;
+        }
+        return CABECERA_INDICE + 4 * enCola + 12 * entradas
+                + PALABRA_INDICE * palabras + 4 * listas;
+    }
+
+    /**
+     * Este método guarda el índice de un segmento lleno, que debe estar
+     * proyectado e indexado en memoria.
+     *
+     * @return los desplazamientos de las entradas que están en cola.
+     */
+    private int[] guardarIndice(Segmento segmento) throws IOException {
+        ListaEnteros enCola = new ListaEnteros();
+        for (int i = 0; i < segmento.entradas; i++) {
+            int desplazamiento = segmento.desplazamientos[i];
+            if (segmento.datos.get(desplazamiento + 4)
+                    == EntradaDiario.Estado.EN_COLA.getCodigo()) {
+                enCola.anadir(desplazamiento);
+            }
+        }
+        // las palabras se guardan ordenadas por su resumen.
+        int numeroPalabras = segmento.palabras.size();
+        long[] resumenes = new long[numeroPalabras];
+        ListaEnteros[] listas = new ListaEnteros[numeroPalabras];
+        int total = 0;
+        int n = 0;
+        for (Map.Entry<String, ListaEnteros> palabra
+                : segmento.palabras.entrySet()) {
+            resumenes[n] = resumir(palabra.getKey());
+            listas[n++] = palabra.getValue();
+            total += palabra.getValue().tamano;
+        }
+        Integer[] orden = new Integer[numeroPalabras];
+        for (int i = 0; i < numeroPalabras; i++) {
+            orden[i] = i;
+        }
+        Arrays.sort(orden, (a, b) -> Long.compare(resumenes[a], resumenes[b]));
+        ByteBuffer b = ByteBuffer.allocate(CABECERA_INDICE
+                + 4 * enCola.tamano + 12 * segmento.entradas
+                + PALABRA_INDICE * numeroPalabras + 4 * total);
+        b.putInt(MAGICO_INDICE).putInt(VERSION).putInt(segmento.entradas)
+                .putLong(segmento.primero).putLong(segmento.ultimo)
+                .putInt(enCola.tamano).putInt(numeroPalabras).putInt(total);
+        for (int i = 0; i < enCola.tamano; i++) {
+            b.putInt(enCola.valores[i]);
+        }
+        for (int i = 0; i < segmento.entradas; i++) {
+            b.putInt(segmento.desplazamientos[i]);
+        }
+        for (int i = 0; i < segmento.entradas; i++) {
+            b.putLong(segmento.instantes[i]);
+        }
+        int posicion = 0;
+        for (int i : orden) {
+            b.putLong(resumenes[i]).putInt(posicion)
+                    .putInt(listas[i].tamano);
+            posicion += listas[i].tamano;
+        }
+        for (int i : orden) {
+            for (int j = 0; j < listas[i].tamano; j++) {
+                b.putInt(listas[i].valores[j]);
+            }
+        }
+        // se escribe aparte y se renombra para no dejar un índice a medias.
+        Path indice = getIndice(segmento.numero);
+        Path temporal = indice.resolveSibling(indice.getFileName() + ".tmp");
+        Files.write(temporal, b.array());
+        Files.move(temporal, indice, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return Arrays.copyOf(enCola.valores, enCola.tamano);
+    }
+
+    /**
+     * Este método proyecta en memoria el índice guardado de un segmento.
+     *
+     * @return false si el índice no existe ó no es válido.
+     */
+    private boolean mapearIndice(Segmento segmento) {
+        MappedByteBuffer b;
+        try (FileChannel canal = FileChannel.open(
+                getIndice(segmento.numero), StandardOpenOption.READ)) {
+            b = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+        } catch (IOException ex) {
+            return false;
+        }
+        if (b.limit() < CABECERA_INDICE || b.getInt(0) != MAGICO_INDICE
+                || b.getInt(4) != VERSION || b.limit() != tamanoIndice(b)
+                || b.getInt(8) != segmento.entradas) {
+            return false;
+        }
+        int inicioPalabras = CABECERA_INDICE + 4 * b.getInt(28)
+                + 12 * segmento.entradas;
+        int numeroPalabras = b.getInt(32);
+        int inicioListas = inicioPalabras + PALABRA_INDICE * numeroPalabras;
+        segmento.inicioDesplazamientos = CABECERA_INDICE + 4 * b.getInt(28);
+        segmento.inicioInstantes = segmento.inicioDesplazamientos
+                + 4 * segmento.entradas;
+        segmento.inicioPalabras = inicioPalabras;
+        segmento.numeroPalabras = numeroPalabras;
+        segmento.inicioListas = inicioListas;
+        segmento.indice = b;
+        return true;
+    }
+
+    /**
+     * Este método busca en un segmento indexado y añade lo que encuentra,
+     * de la entrada más reciente a la más antigua.
+     */
+    private void buscar(Segmento segmento, long desde, long hasta,
+            List<String> buscadas, int maximo,
+            List<EntradaDiario> encontradas) {
+        int primera = buscarInstante(segmento, desde);
+        int ultima = buscarInstante(segmento, hasta) - 1;
+        if (buscadas.isEmpty()) {
+            for (int i = ultima; i >= primera
+                    && encontradas.size() < maximo; i--) {
+                encontradas.add(leerEntrada(segmento, i));
+            }
+            return;
+        }
+        // recorremos la lista más corta y comprobamos las demás.
+        IntBuffer[] listas = new IntBuffer[buscadas.size()];
+        for (int i = 0; i < listas.length; i++) {
+            listas[i] = segmento.getEntradas(buscadas.get(i));
+            if (listas[i] == null) {
+                return;
+            }
+        }
+        Arrays.sort(listas, (a, b) -> Integer.compare(a.limit(), b.limit()));
+        IntBuffer corta = listas[0];
+        for (int j = corta.limit() - 1; j >= 0
+                && encontradas.size() < maximo; j--) {
+            int i = corta.get(j);
+            if (i < primera) {
+                break;
+            }
+            if (i > ultima || !contienenTodas(listas, i)) {
+                continue;
+            }
+            encontradas.add(leerEntrada(segmento, i));
+        }
+    }
+
+    /**
+     * Este método separa un texto en palabras (letras y números seguidos)
+     * en minúsculas.
+     */
+    private static List<String> separarPalabras(String texto) {
+        List<String> lista = new ArrayList<>();
+        String minusculas = texto.toLowerCase(Locale.ROOT);
+        int inicio = -1;
+        for (int i = 0; i <= minusculas.length(); i++) {
+            boolean letra = i < minusculas.length()
+                    && Character.isLetterOrDigit(minusculas.charAt(i));
+            if (letra && inicio < 0) {
+                inicio = i;
+            } else if (!letra && inicio >= 0) {
+                lista.add(minusculas.substring(inicio, i));
+                inicio = -1;
+            }
+        }
+        return lista;
+    }
+
+    private static boolean contienenTodas(IntBuffer[] listas, int valor) {
+        for (int i = 1; i < listas.length; i++) {
+            if (!contiene(listas[i], valor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true si la lista, ordenada de menor a mayor, tiene el valor.
+     */
+    private static boolean contiene(IntBuffer lista, int valor) {
+        int bajo = 0;
+        int alto = lista.limit() - 1;
+        while (bajo <= alto) {
+            int medio = (bajo + alto) >>> 1;
+            int actual = lista.get(medio);
+            if (actual < valor) {
+                bajo = medio + 1;
+            } else if (actual > valor) {
+                alto = medio - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Este método calcula el resumen de 64 bits (FNV-1a) de una palabra con
+     * el que se busca en los índices guardados.
+     */
+    private static long resumir(String palabra) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < palabra.length(); i++) {
+            h = (h ^ palabra.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * @return el número de la primera entrada del segmento con instante
+     * mayor ó igual.
+     */
+    private static int buscarInstante(Segmento segmento, long instante) {
+        int bajo = 0;
+        int alto = segmento.entradas;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (segmento.getInstante(medio) < instante) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        return bajo;
+    }
+
+    private EntradaDiario leerEntrada(Segmento segmento, int numero) {
+        int inicio = segmento.getDesplazamiento(numero);
+        long posicion = posicion(segmento.numero, inicio);
+        ByteBuffer b = getSegmento(posicion);
+        return new EntradaDiario(posicion, b.getLong(inicio + 8),
+                EntradaDiario.Estado.deCodigo(b.get(inicio + 4)),
+                leerDescripcion(posicion));
+    }
+
+    private String leerDescripcion(long posicion) {
+        ByteBuffer b = getSegmento(posicion);
+        int inicio = desplazamiento(posicion);
+        byte[] texto = new byte[b.getInt(inicio + 16)];
+        leer(b, inicio + CABECERA_ENTRADA, texto);
+        return new String(texto, StandardCharsets.UTF_8);
+    }
+
+    private static void leer(ByteBuffer b, int inicio, byte[] destino) {
+        ByteBuffer lectura = b.duplicate();
+        lectura.position(inicio);
+        lectura.get(destino);
+    }
+
+    private ByteBuffer getSegmento(long posicion) {
+        return abrir((int) (posicion >>> 32)).datos;
+    }
+
+    /**
+     * Este método devuelve un segmento con los datos proyectados en memoria.
+     */
+    private Segmento abrir(int numero) {
+        Segmento segmento = usar(numero);
+        if (segmento.datos == null) {
+            try {
+                segmento.datos = mapear(numero);
+            } catch (IOException ex) {
+                throw new IllegalStateException(
+                        "No se puede leer el diario: " + ex.getMessage(), ex);
+            }
+        }
+        return segmento;
+    }
+
+    /**
+     * Este método devuelve un segmento con el índice en memoria ó
+     * proyectado. Si el índice guardado no sirve se lee el segmento.
+     */
+    private Segmento indexado(Segmento segmento) {
+        usar(segmento.numero);
+        if (!segmento.isIndexado() && !mapearIndice(segmento)) {
+            leerSegmento(abrir(segmento.numero), null);
+        }
+        return segmento;
+    }
+
+    /**
+     * Este método devuelve un segmento y lo marca como el usado más
+     * recientemente, cerrando el que lleve más tiempo sin usarse.
+     */
+    private Segmento usar(int numero) {
+        if (numero == actual.numero) {
+            return actual;
+        }
+        Segmento segmento = abiertos.get(numero);
+        if (segmento == null) {
+            segmento = segmentos.get(numero);
+            if (segmento == null) {
+                throw new IllegalStateException(
+                        "No existe el segmento del diario " + numero);
+            }
+            abiertos.put(numero, segmento);
+        }
+        return segmento;
+    }
+
+    private void empezarSegmento(int numero) throws IOException {
+        if (actual != null) {
+            actual.datos.force();
+            try {
+                guardarIndice(actual);
+            } catch (IOException ex) {
+                // se vuelve a crear al abrir el diario.
+                LOG.log(Level.WARNING, "No se puede guardar el índice del "
+                        + "segmento " + actual.numero, ex);
+            }
+            abiertos.put(actual.numero, actual);
+        }
+        Path fichero = getFichero(numero);
+        Segmento segmento = new Segmento(numero,
+                actual != null ? actual.ultimo : Long.MIN_VALUE);
+        try (FileChannel canal = FileChannel.open(fichero,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            segmento.datos = canal.map(FileChannel.MapMode.READ_WRITE, 0,
+                    TAMANO_SEGMENTO);
+        }
+        segmento.datos.putInt(0, MAGICO);
+        segmento.datos.putInt(4, VERSION);
+        segmento.empezarIndice();
+        segmentos.put(numero, segmento);
+        actual = segmento;
+        posicionEscritura = CABECERA_SEGMENTO;
+    }
+
+    /**
+     * Este método proyecta en memoria un segmento existente. Los segmentos
+     * se abren para escribir porque también se cambia el estado de las
+     * entradas antiguas.
+     */
+    private MappedByteBuffer mapear(int numero) throws IOException {
+        Path fichero = getFichero(numero);
+        MappedByteBuffer b;
+        try (FileChannel canal = FileChannel.open(fichero,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            b = canal.map(FileChannel.MapMode.READ_WRITE, 0, canal.size());
+        }
+        if (b.limit() < CABECERA_SEGMENTO || b.getInt(0) != MAGICO
+                || b.getInt(4) != VERSION) {
+            throw new IOException("No es un fichero del diario: " + fichero);
+        }
+        return b;
+    }
+
+    private Path getFichero(int numero) {
+        return directorio.resolve(String.format("%08d%s", numero, EXTENSION));
+    }
+
+    private Path getIndice(int numero) {
+        return directorio.resolve(String.format("%08d%s", numero,
+                EXTENSION_INDICE));
+    }
+
+    private static long posicion(int segmento, int desplazamiento) {
+        return ((long) segmento << 32) | desplazamiento;
+    }
+
+    private static int desplazamiento(long posicion) {
+        return (int) posicion;
+    }
+
+    /**
+     * Una lista de enteros ordenada de menor a mayor, sin crear un objeto
+     * por número.
+     */
+    private static class ListaEnteros {
+
+        int[] valores = new int[4];
+        int tamano;
+
+        void anadir(int valor) {
+            // una palabra repetida en la misma entrada sólo se añade una vez.
+            if (tamano > 0 && valores[tamano - 1] == valor) {
+                return;
+            }
+            if (tamano == valores.length) {
+                valores = Arrays.copyOf(valores, tamano * 2);
+            }
+            valores[tamano++] = valor;
+        }
+    }
+}
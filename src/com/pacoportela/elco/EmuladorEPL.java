@@ -0,0 +1,882 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Esta clase emula una impresora EPL: interpreta los comandos que le envía
+ * el programa, comprueba que son válidos y cuenta las etiquetas que se
+ * imprimirían. Entiende el texto ('A'), las copias ('P'), el borrado de la
+ * imagen ('N'), la configuración (q, Q, S, D, I), los formularios (FK, FS,
+ * FE, FR y '?') con sus variables ('V') y contadores ('C'), los gráficos
+ * (GK, GM, GG) y la petición de estado ^ee. Los errores (una comilla sin
+ * escapar, una fuente ó una expansión que no existen, un formulario ó un
+ * gráfico que no se ha guardado...) se cuentan y se guardan los primeros
+ * MAX_ERRORES. También mide a qué ritmo le llegan los datos.
+ *
+ * Como una impresora, guarda los formularios, los gráficos y la
+ * configuración entre trabajos y conexiones. Cada conexión lee sus datos
+ * con su propio Lector y los comandos se interpretan de uno en uno, así que
+ * varias conexiones a la vez no se mezclan.
+ *
+ * La usan SalidaEmulador (una salida en memoria) e ImpresoraFalsa (por
+ * TCP). También se puede usar sola para comprobar ficheros EPL:
+ *
+ * Uso: java -cp EtiquetasGUI.jar com.pacoportela.elco.EmuladorEPL
+ * [fichero...]
+ */
+public class EmuladorEPL {
+
+    /** Número de mensajes de error que se guardan. */
+    public static final int MAX_ERRORES = 100;
+
+    // valores válidos y nombre de los parámetros 3 a 7 del comando 'A'.
+    private static final String[] OPCIONES
+            = {"0123", "12345", "1234568", "123456789", "NR"};
+    private static final String[] NOMBRES_OPCIONES = {"rotación", "fuente",
+        "expansión horizontal", "expansión vertical", "formato"};
+    private static final Pattern NOMBRE
+            = Pattern.compile("(?:F[KSR]|GK)\"([^\"]+)\"");
+    private static final Pattern VARIABLE
+            = Pattern.compile("V(\\d\\d),(\\d{1,2}),[NLR],\"[^\"]*\"");
+    private static final Pattern CONTADOR = Pattern.compile(
+            "C(\\d),(\\d{1,2}),[NLR],([+-]\\d{1,2}),\"[^\"]*\"");
+    private static final Pattern GRAFICO
+            = Pattern.compile("GM\"([^\"]+)\"(\\d{1,7})");
+    private static final Pattern IMPRIMIR_GRAFICO
+            = Pattern.compile("GG(\\d{1,4}),(\\d{1,4}),\"([^\"]+)\"");
+    private static final Pattern LARGO
+            = Pattern.compile("Q(\\d{1,4}),(\\d{1,3})");
+    private static final Pattern PAGINA
+            = Pattern.compile("I8,([0-9A-Z]),\\d{3}");
+    // lo que devuelve interpretar() cuando llega un ^ee.
+    private static final int PEDIR_ESTADO = -1;
+
+    /**
+     * Lo que tiene que hacer quien usa el emulador cuando pasa algo: por
+     * ejemplo esperar lo que tarda en imprimirse una etiqueta ó contestar a
+     * una petición de estado. Se llama desde el hilo que pasa los datos al
+     * Lector.
+     */
+    public interface Oyente {
+
+        /**
+         * @param copias el número de etiquetas que se imprimen.
+         */
+        default void alImprimir(int copias) {
+        }
+
+        /**
+         * Se llama cuando llega un ^ee.
+         */
+        default void alPedirEstado() {
+        }
+
+        /**
+         * @param mensaje el error encontrado, con el número de linea.
+         */
+        default void alError(String mensaje) {
+        }
+    }
+
+    /**
+     * Una variable ('V') ó un contador ('C') de un formulario.
+     */
+    private static final class Campo {
+
+        final boolean contador;
+        final int numero;
+        // longitud máxima de la variable ó cifras del contador.
+        final int longitud;
+        final int paso;
+
+        Campo(boolean contador, int numero, int longitud, int paso) {
+            this.contador = contador;
+            this.numero = numero;
+            this.longitud = longitud;
+            this.paso = paso;
+        }
+    }
+
+    /**
+     * Un formulario guardado: sus campos en el orden en que se definen (que
+     * es el orden de los datos después de '?') y el contenido de sus
+     * comandos 'A', con trozos de texto (String) y campos (Campo).
+     */
+    private static final class Formulario {
+
+        final List<Campo> campos = new ArrayList<>();
+        final List<List<Object>> textos = new ArrayList<>();
+
+        Campo buscar(boolean contador, int numero) {
+            for (Campo campo : campos) {
+                if (campo.contador == contador && campo.numero == numero) {
+                    return campo;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Lee los datos de una conexión y los pasa al emulador comando a
+     * comando. Un Lector no se debe usar desde varios hilos a la vez.
+     */
+    public final class Lector {
+
+        private final Oyente oyente;
+        private byte[] linea = new byte[256];
+        private int longitud;
+        private long numeroLinea;
+        // bytes que faltan del gráfico que se está guardando con GM.
+        private long binarios;
+        private String grafico;
+        // el formulario que se está definiendo entre FS y FE.
+        private Formulario definiendo;
+        private String nombreDefiniendo;
+        // el formulario recuperado con FR, con sus datos.
+        private Formulario recuperado;
+        private String[] valores;
+        private int pendientes;
+        // el contenido de los comandos 'A' de la etiqueta actual.
+        private final List<List<Object>> imagen = new ArrayList<>();
+        private String error;
+
+        private Lector(Oyente oyente) {
+            this.oyente = oyente;
+        }
+
+        /**
+         * @param datos el buffer con los datos; se consume entero.
+         */
+        public void procesar(ByteBuffer datos) {
+            int total = datos.remaining();
+            while (datos.hasRemaining()) {
+                anadir(datos.get());
+            }
+            contar(total);
+        }
+
+        /**
+         * @param datos los datos.
+         * @param desde la posición del primer byte.
+         * @param cuantos el número de bytes.
+         */
+        public void procesar(byte[] datos, int desde, int cuantos) {
+            for (int i = desde; i < desde + cuantos; i++) {
+                anadir(datos[i]);
+            }
+            contar(cuantos);
+        }
+
+        /**
+         * @param b un byte de los datos.
+         */
+        public void procesar(int b) {
+            anadir((byte) b);
+            contar(1);
+        }
+
+        /**
+         * Este método termina la conexión: interpreta la última linea si no
+         * acaba en un salto de linea y da un error si faltan datos.
+         */
+        public void terminar() {
+            if (longitud > 0) {
+                ejecutar();
+            }
+            if (binarios > 0 || definiendo != null || pendientes > 0) {
+                synchronized (EmuladorEPL.this) {
+                    error(this, "faltan datos al final", binarios > 0
+                            ? "GM\"" + grafico + "\"" : definiendo != null
+                                    ? "FS\"" + nombreDefiniendo + "\"" : "?");
+                }
+                avisarError();
+            }
+        }
+
+        private void anadir(byte b) {
+            if (binarios > 0) {
+                if (--binarios == 0) {
+                    synchronized (EmuladorEPL.this) {
+                        graficos.add(grafico);
+                    }
+                }
+                return;
+            }
+            if (b == '\n') {
+                ejecutar();
+                return;
+            }
+            if (longitud == linea.length) {
+                linea = Arrays.copyOf(linea, longitud * 2);
+            }
+            linea[longitud++] = b;
+        }
+
+        private void ejecutar() {
+            numeroLinea++;
+            int fin = longitud;
+            if (fin > 0 && linea[fin - 1] == '\r') {
+                fin--;
+            }
+            String comando = new String(linea, 0, fin,
+                    StandardCharsets.ISO_8859_1);
+            longitud = 0;
+            int resultado;
+            synchronized (EmuladorEPL.this) {
+                resultado = interpretar(this, comando);
+            }
+            avisarError();
+            if (resultado > 0) {
+                oyente.alImprimir(resultado);
+            } else if (resultado == PEDIR_ESTADO) {
+                oyente.alPedirEstado();
+            }
+        }
+
+        private void avisarError() {
+            if (error != null) {
+                String mensaje = error;
+                error = null;
+                oyente.alError(mensaje);
+            }
+        }
+    }
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong primerDato = new AtomicLong();
+    private final AtomicLong ultimoDato = new AtomicLong();
+    private long comandos;
+    private long etiquetas;
+    private long errores;
+    private final List<String> mensajes = new ArrayList<>();
+    private List<String> ultimaEtiqueta = new ArrayList<>();
+    // lo que está guardado en la impresora.
+    private final Map<String, Formulario> formularios = new HashMap<>();
+    private final Set<String> graficos = new HashSet<>();
+    private PaginaCodigos pagina = PaginaCodigos.porDefecto();
+    private int ancho = -1;
+    private int largo = -1;
+    private int separacion = -1;
+    private int velocidad = -1;
+    private int densidad = -1;
+
+    /**
+     * Este método crea un lector para una conexión nueva con la impresora.
+     *
+     * @param oyente a quién se avisa de lo que pasa.
+     * @return el lector.
+     */
+    public Lector nuevoLector(Oyente oyente) {
+        return new Lector(oyente);
+    }
+
+    private void contar(int cuantos) {
+        long ahora = System.nanoTime();
+        primerDato.compareAndSet(0, ahora);
+        ultimoDato.set(ahora);
+        bytes.addAndGet(cuantos);
+    }
+
+    /**
+     * Este método interpreta un comando (ó un dato después de '?').
+     *
+     * @return el número de etiquetas impresas, 0 si no se imprime nada ó
+     * PEDIR_ESTADO.
+     */
+    private int interpretar(Lector l, String c) {
+        if (l.pendientes > 0) {
+            guardarDato(l, c);
+            return 0;
+        }
+        if (c.isEmpty()) {
+            // por ejemplo el salto de linea detrás de los datos de GM.
+            return 0;
+        }
+        comandos++;
+        if (l.definiendo != null) {
+            definir(l, c);
+            return 0;
+        }
+        char letra = c.charAt(0);
+        if (letra == 'A') {
+            texto(l, c, null);
+        } else if (letra == 'P') {
+            return imprimir(l, c);
+        } else if (c.equals("N")) {
+            l.imagen.clear();
+            l.recuperado = null;
+        } else if (c.equals("?")) {
+            if (l.recuperado == null) {
+                error(l, "'?' sin un formulario recuperado con FR", c);
+            } else {
+                l.pendientes = l.recuperado.campos.size();
+                l.valores = new String[l.pendientes];
+            }
+        } else if (c.startsWith("FR")) {
+            String nombre = nombre(l, c);
+            Formulario formulario = nombre == null
+                    ? null : formularios.get(nombre);
+            if (nombre != null && formulario == null) {
+                error(l, "formulario no guardado", c);
+            }
+            l.recuperado = formulario;
+            l.imagen.clear();
+            if (formulario != null) {
+                l.imagen.addAll(formulario.textos);
+            }
+        } else if (c.startsWith("FK")) {
+            String nombre = nombre(l, c);
+            if ("*".equals(nombre)) {
+                formularios.clear();
+            } else if (nombre != null) {
+                formularios.remove(nombre);
+            }
+        } else if (c.startsWith("FS")) {
+            String nombre = nombre(l, c);
+            if (nombre != null) {
+                l.definiendo = new Formulario();
+                l.nombreDefiniendo = nombre;
+            }
+        } else if (c.startsWith("GG")) {
+            imprimirGrafico(l, c);
+        } else if (c.startsWith("GM")) {
+            Matcher m = GRAFICO.matcher(c);
+            if (!m.matches()) {
+                error(l, "comando GM no válido", c);
+            } else {
+                l.grafico = m.group(1);
+                l.binarios = Long.parseLong(m.group(2));
+                if (l.binarios == 0) {
+                    graficos.add(l.grafico);
+                }
+            }
+        } else if (c.startsWith("GK")) {
+            String nombre = nombre(l, c);
+            if ("*".equals(nombre)) {
+                graficos.clear();
+            } else if (nombre != null) {
+                graficos.remove(nombre);
+            }
+        } else if (letra == 'q') {
+            ancho = numero(l, c, 1, 9999, ancho);
+        } else if (letra == 'S') {
+            velocidad = numero(l, c, 0, 6, velocidad);
+        } else if (letra == 'D') {
+            densidad = numero(l, c, 0, 15, densidad);
+        } else if (letra == 'Q') {
+            Matcher m = LARGO.matcher(c);
+            if (!m.matches() || Integer.parseInt(m.group(1)) == 0) {
+                error(l, "comando Q no válido", c);
+            } else {
+                largo = Integer.parseInt(m.group(1));
+                separacion = Integer.parseInt(m.group(2));
+            }
+        } else if (letra == 'I') {
+            Matcher m = PAGINA.matcher(c);
+            PaginaCodigos nueva = m.matches()
+                    ? PaginaCodigos.deParametro(m.group(1)) : null;
+            if (nueva == null) {
+                error(l, "página de códigos no válida", c);
+            } else {
+                pagina = nueva;
+            }
+        } else if (c.equals("^ee")) {
+            return PEDIR_ESTADO;
+        } else if (c.equals("FE") || letra == 'V' || letra == 'C') {
+            error(l, "comando fuera de un formulario", c);
+        } else {
+            error(l, "comando desconocido", c);
+        }
+        return 0;
+    }
+
+    /**
+     * Este método interpreta un comando entre FS y FE.
+     */
+    private void definir(Lector l, String c) {
+        Formulario formulario = l.definiendo;
+        char letra = c.charAt(0);
+        if (c.equals("FE")) {
+            formularios.put(l.nombreDefiniendo, formulario);
+            l.definiendo = null;
+        } else if (letra == 'A') {
+            texto(l, c, formulario);
+        } else if (letra == 'V') {
+            Matcher m = VARIABLE.matcher(c);
+            if (!m.matches()) {
+                error(l, "variable no válida", c);
+            } else if (formulario.buscar(false,
+                    Integer.parseInt(m.group(1))) != null) {
+                error(l, "variable repetida", c);
+            } else {
+                formulario.campos.add(new Campo(false,
+                        Integer.parseInt(m.group(1)),
+                        Integer.parseInt(m.group(2)), 0));
+            }
+        } else if (letra == 'C') {
+            Matcher m = CONTADOR.matcher(c);
+            if (!m.matches() || Integer.parseInt(m.group(2)) == 0) {
+                error(l, "contador no válido", c);
+            } else if (formulario.buscar(true,
+                    Integer.parseInt(m.group(1))) != null) {
+                error(l, "contador repetido", c);
+            } else {
+                formulario.campos.add(new Campo(true,
+                        Integer.parseInt(m.group(1)),
+                        Integer.parseInt(m.group(2)),
+                        Integer.parseInt(m.group(3))));
+            }
+        } else if (c.startsWith("GG")) {
+            imprimirGrafico(l, c);
+        } else {
+            error(l, "comando no permitido en un formulario", c);
+        }
+    }
+
+    /**
+     * Este método interpreta un comando 'A':
+     * x,y,rotación,fuente,h,v,formato y el texto entre comillas ó, en un
+     * formulario, también variables (Vnn) y contadores (Cn).
+     *
+     * @param formulario el formulario que se está definiendo, ó null.
+     */
+    private void texto(Lector l, String c, Formulario formulario) {
+        int n = c.length();
+        int i = 1;
+        int[] posicion = new int[2];
+        for (int parametro = 0; parametro < 7; parametro++) {
+            int coma = c.indexOf(',', i);
+            if (coma < 0) {
+                error(l, "faltan parámetros", c);
+                return;
+            }
+            if (parametro < 2) {
+                if (coma == i || coma - i > 4) {
+                    error(l, "posición no válida", c);
+                    return;
+                }
+                for (int j = i; j < coma; j++) {
+                    char d = c.charAt(j);
+                    if (d < '0' || d > '9') {
+                        error(l, "posición no válida", c);
+                        return;
+                    }
+                    posicion[parametro] = posicion[parametro] * 10 + d - '0';
+                }
+            } else if (coma != i + 1
+                    || OPCIONES[parametro - 2].indexOf(c.charAt(i)) < 0) {
+                error(l, NOMBRES_OPCIONES[parametro - 2] + " no válida", c);
+                return;
+            }
+            i = coma + 1;
+        }
+        if ((ancho > 0 && posicion[0] >= ancho)
+                || (largo > 0 && posicion[1] >= largo)) {
+            error(l, "posición fuera de la etiqueta", c);
+        }
+        if (i == n) {
+            error(l, "falta el texto", c);
+            return;
+        }
+        List<Object> piezas = new ArrayList<>(1);
+        boolean despuesDeComilla = false;
+        while (i < n) {
+            char d = c.charAt(i);
+            if (d == '"') {
+                StringBuilder texto = new StringBuilder();
+                boolean cerrado = false;
+                for (i++; i < n; i++) {
+                    char e = c.charAt(i);
+                    if (e == '"') {
+                        cerrado = true;
+                        i++;
+                        break;
+                    }
+                    if (e == '\\' && i + 1 < n) {
+                        e = c.charAt(++i);
+                    }
+                    texto.append(pagina.decodificar((byte) e));
+                }
+                if (!cerrado) {
+                    error(l, "falta la comilla de cierre", c);
+                    return;
+                }
+                piezas.add(texto.toString());
+                despuesDeComilla = true;
+                continue;
+            }
+            Campo campo = null;
+            int largoCampo = d == 'V' ? 3 : 2;
+            if ((d == 'V' || d == 'C') && i + largoCampo <= n) {
+                String cifras = c.substring(i + 1, i + largoCampo);
+                if (cifras.chars().allMatch(Character::isDigit)) {
+                    if (formulario == null) {
+                        error(l, "variable fuera de un formulario", c);
+                        return;
+                    }
+                    campo = formulario.buscar(d == 'C',
+                            Integer.parseInt(cifras));
+                    if (campo == null) {
+                        error(l, (d == 'C' ? "contador" : "variable")
+                                + " no definido", c);
+                        return;
+                    }
+                }
+            }
+            if (campo == null) {
+                error(l, despuesDeComilla ? "comilla sin escapar en el texto"
+                        : "texto no válido", c);
+                return;
+            }
+            piezas.add(campo);
+            i += largoCampo;
+            despuesDeComilla = false;
+        }
+        (formulario != null ? formulario.textos : l.imagen).add(piezas);
+    }
+
+    private void imprimirGrafico(Lector l, String c) {
+        Matcher m = IMPRIMIR_GRAFICO.matcher(c);
+        if (!m.matches()) {
+            error(l, "comando GG no válido", c);
+        } else if (!graficos.contains(m.group(3))) {
+            error(l, "gráfico no guardado", c);
+        }
+    }
+
+    /**
+     * Este método guarda un dato de un campo del formulario recuperado.
+     */
+    private void guardarDato(Lector l, String dato) {
+        List<Campo> campos = l.recuperado.campos;
+        int indice = campos.size() - l.pendientes--;
+        Campo campo = campos.get(indice);
+        if (campo.contador) {
+            if (dato.isEmpty() || dato.length() > campo.longitud
+                    || !dato.chars().allMatch(Character::isDigit)) {
+                error(l, "valor no válido para el contador C"
+                        + campo.numero, dato);
+            }
+            l.valores[indice] = dato;
+            return;
+        }
+        if (dato.length() > campo.longitud) {
+            error(l, String.format("dato demasiado largo para V%02d",
+                    campo.numero), dato);
+        }
+        StringBuilder texto = new StringBuilder(dato.length());
+        for (int i = 0; i < dato.length(); i++) {
+            texto.append(pagina.decodificar((byte) dato.charAt(i)));
+        }
+        l.valores[indice] = texto.toString();
+    }
+
+    /**
+     * Este método imprime la etiqueta actual. Se guarda el texto de la
+     * última copia, con el valor que tienen en ella los contadores.
+     */
+    private int imprimir(Lector l, String c) {
+        int copias = 0;
+        boolean valido = c.length() > 1 && c.length() <= 6;
+        for (int i = 1; valido && i < c.length(); i++) {
+            char d = c.charAt(i);
+            valido = d >= '0' && d <= '9';
+            copias = copias * 10 + d - '0';
+        }
+        if (!valido || copias < 1 || copias > ColaImpresion.MAX_COPIAS) {
+            error(l, "número de copias no válido", c);
+            return 0;
+        }
+        List<String> textos = new ArrayList<>(l.imagen.size());
+        for (List<Object> piezas : l.imagen) {
+            StringBuilder texto = new StringBuilder();
+            for (Object pieza : piezas) {
+                texto.append(pieza instanceof String ? (String) pieza
+                        : valor(l, (Campo) pieza, copias));
+            }
+            textos.add(texto.toString());
+        }
+        ultimaEtiqueta = textos;
+        etiquetas += copias;
+        return copias;
+    }
+
+    /**
+     * @return el valor de un campo en la última copia.
+     */
+    private static String valor(Lector l, Campo campo, int copias) {
+        int indice = l.recuperado == null
+                ? -1 : l.recuperado.campos.indexOf(campo);
+        String dato = indice < 0 || l.valores == null
+                ? null : l.valores[indice];
+        if (dato == null) {
+            return "";
+        }
+        if (!campo.contador || dato.isEmpty()
+                || !dato.chars().allMatch(Character::isDigit)) {
+            return dato;
+        }
+        long numero = Long.parseLong(dato) + (long) (copias - 1) * campo.paso;
+        StringBuilder texto = new StringBuilder(Long.toString(numero));
+        while (texto.length() < dato.length()) {
+            texto.insert(0, '0');
+        }
+        return texto.toString();
+    }
+
+    /**
+     * @return el nombre entre comillas de FK, FS, FR ó GK, ó null si el
+     * comando no es válido.
+     */
+    private String nombre(Lector l, String c) {
+        Matcher m = NOMBRE.matcher(c);
+        if (!m.matches()) {
+            error(l, "comando " + c.substring(0, 2) + " no válido", c);
+            return null;
+        }
+        return m.group(1);
+    }
+
+    /**
+     * @return el número del comando (q, S ó D), ó el valor anterior si no
+     * es válido.
+     */
+    private int numero(Lector l, String c, int minimo, int maximo,
+            int anterior) {
+        String cifras = c.substring(1);
+        if (cifras.isEmpty() || cifras.length() > 4
+                || !cifras.chars().allMatch(Character::isDigit)) {
+            error(l, "comando " + c.charAt(0) + " no válido", c);
+            return anterior;
+        }
+        int valor = Integer.parseInt(cifras);
+        if (valor < minimo || valor > maximo) {
+            error(l, "valor fuera de rango", c);
+            return anterior;
+        }
+        return valor;
+    }
+
+    private void error(Lector l, String mensaje, String comando) {
+        errores++;
+        String texto = "linea " + l.numeroLinea + ": " + mensaje + ": "
+                + (comando.length() > 60
+                        ? comando.substring(0, 60) + "..." : comando);
+        if (mensajes.size() < MAX_ERRORES) {
+            mensajes.add(texto);
+        }
+        l.error = texto;
+    }
+
+    /**
+     * @return el número de etiquetas impresas, contando las copias.
+     */
+    public synchronized long getEtiquetas() {
+        return etiquetas;
+    }
+
+    /**
+     * @return el número de comandos recibidos, sin contar los datos de los
+     * formularios.
+     */
+    public synchronized long getComandos() {
+        return comandos;
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return el número de errores encontrados.
+     */
+    public synchronized long getErrores() {
+        return errores;
+    }
+
+    /**
+     * @return los primeros MAX_ERRORES mensajes de error.
+     */
+    public synchronized List<String> getMensajesError() {
+        return new ArrayList<>(mensajes);
+    }
+
+    /**
+     * @return el texto de los comandos 'A' de la última etiqueta impresa,
+     * con los contadores como están en su última copia.
+     */
+    public synchronized List<String> getUltimaEtiqueta() {
+        return new ArrayList<>(ultimaEtiqueta);
+    }
+
+    /**
+     * @return las etiquetas recibidas por segundo, desde el primer byte
+     * hasta el último.
+     */
+    public synchronized double getEtiquetasPorSegundo() {
+        long nanos = ultimoDato.get() - primerDato.get();
+        return nanos <= 0 ? 0 : etiquetas * 1e9 / nanos;
+    }
+
+    /**
+     * @return los bytes recibidos por segundo, desde el primer byte hasta
+     * el último.
+     */
+    public double getBytesPorSegundo() {
+        long nanos = ultimoDato.get() - primerDato.get();
+        return nanos <= 0 ? 0 : bytes.get() * 1e9 / nanos;
+    }
+
+    public synchronized boolean isFormularioGuardado(String nombre) {
+        return formularios.containsKey(nombre);
+    }
+
+    public synchronized boolean isGraficoGuardado(String nombre) {
+        return graficos.contains(nombre);
+    }
+
+    public synchronized PaginaCodigos getPagina() {
+        return pagina;
+    }
+
+    /**
+     * @return el ancho de la etiqueta (q), ó -1 si no se ha configurado.
+     */
+    public synchronized int getAncho() {
+        return ancho;
+    }
+
+    /**
+     * @return el largo de la etiqueta (Q), ó -1 si no se ha configurado.
+     */
+    public synchronized int getLargo() {
+        return largo;
+    }
+
+    /**
+     * @return la separación entre etiquetas (Q), ó -1 si no se ha
+     * configurado.
+     */
+    public synchronized int getSeparacion() {
+        return separacion;
+    }
+
+    /**
+     * @return la velocidad (S), ó -1 si no se ha configurado.
+     */
+    public synchronized int getVelocidad() {
+        return velocidad;
+    }
+
+    /**
+     * @return la densidad (D), ó -1 si no se ha configurado.
+     */
+    public synchronized int getDensidad() {
+        return densidad;
+    }
+
+    /**
+     * @return los puntos de papel que avanza cada etiqueta: el largo y la
+     * separación configurados, ó los de la ventana si no se han enviado.
+     */
+    public synchronized int getPuntosPorEtiqueta() {
+        return (largo > 0 ? largo : EtiquetasGUI.ALTO_ETIQUETA)
+                + (separacion >= 0 ? separacion : SalidaRitmo.SEPARACION);
+    }
+
+    /**
+     * @return un resumen de lo recibido, para escribirlo en el log.
+     */
+    public String getResumen() {
+        return String.format("%d etiquetas, %d comandos, %d bytes, "
+                + "%d errores, %.0f etiquetas/s, %.0f KB/s", getEtiquetas(),
+                getComandos(), getBytes(), getErrores(),
+                getEtiquetasPorSegundo(), getBytesPorSegundo() / 1024);
+    }
+
+    /**
+     * Este método pone a cero los contadores y borra los errores, pero no
+     * lo que está guardado en la impresora.
+     */
+    public synchronized void reiniciarEstadisticas() {
+        bytes.set(0);
+        primerDato.set(0);
+        ultimoDato.set(0);
+        comandos = 0;
+        etiquetas = 0;
+        errores = 0;
+        mensajes.clear();
+    }
+
+    /**
+     * Este método comprueba los ficheros EPL que se le pasan (ó la entrada
+     * estándar) y escribe lo que se imprimiría y los errores. Los ficheros
+     * se leen uno detrás de otro en la misma impresora, como trabajos
+     * distintos. Termina con 1 si hay algún error.
+     *
+     * @param args los ficheros.
+     * @throws IOException si no se puede leer un fichero.
+     */
+    public static void main(String[] args) throws IOException {
+        EmuladorEPL emulador = new EmuladorEPL();
+        if (args.length == 0) {
+            leer(emulador, System.in);
+        }
+        for (String fichero : args) {
+            try (InputStream entrada = Files.newInputStream(
+                    Paths.get(fichero))) {
+                leer(emulador, entrada);
+            }
+        }
+        for (String mensaje : emulador.getMensajesError()) {
+            System.out.println(mensaje);
+        }
+        System.out.println(emulador.getResumen());
+        System.out.println("Última etiqueta: " + emulador.getUltimaEtiqueta());
+        System.exit(emulador.getErrores() == 0 ? 0 : 1);
+    }
+
+    private static void leer(EmuladorEPL emulador, InputStream entrada)
+            throws IOException {
+        Lector lector = emulador.nuevoLector(new Oyente() {
+        });
+        byte[] buffer = new byte[64 * 1024];
+        int leidos;
+        while ((leidos = entrada.read(buffer)) >= 0) {
+            lector.procesar(buffer, 0, leidos);
+        }
+        lector.terminar();
+    }
+}
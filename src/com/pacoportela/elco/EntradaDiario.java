@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Esta clase es una entrada del diario de trabajos tal y como se muestra en
+ * el historial: cuándo se imprimió, qué se imprimió y cómo terminó. Los
+ * comandos EPL se leen del diario sólo cuando hacen falta.
+ */
+public class EntradaDiario {
+
+    /**
+     * El estado de un trabajo guardado en el diario.
+     */
+    public enum Estado {
+        EN_COLA('Q'), ENVIADO('S'), FALLIDO('F'), CANCELADO('C');
+
+        private final byte codigo;
+
+        Estado(char codigo) {
+            this.codigo = (byte) codigo;
+        }
+
+        byte getCodigo() {
+            return codigo;
+        }
+
+        static Estado deCodigo(byte codigo) {
+            for (Estado estado : values()) {
+                if (estado.codigo == codigo) {
+                    return estado;
+                }
+            }
+            throw new IllegalArgumentException("Estado no válido: " + codigo);
+        }
+
+        /**
+         * @param estado el estado de un trabajo de impresión.
+         * @return el estado que se guarda en el diario.
+         */
+        static Estado de(TrabajoImpresion.Estado estado) {
+            switch (estado) {
+                case IMPRESO:
+                    return ENVIADO;
+                case ERROR:
+                    return FALLIDO;
+                case CANCELADO:
+                    return CANCELADO;
+                default:
+                    return EN_COLA;
+            }
+        }
+    }
+
+    private final long posicion;
+    private final long instante;
+    private final Estado estado;
+    private final String descripcion;
+
+    EntradaDiario(long posicion, long instante, Estado estado,
+            String descripcion) {
+        this.posicion = posicion;
+        this.instante = instante;
+        this.estado = estado;
+        this.descripcion = descripcion;
+    }
+
+    /**
+     * @return la posición de la entrada en el diario, que la identifica.
+     */
+    public long getPosicion() {
+        return posicion;
+    }
+
+    /**
+     * @return el momento en que se añadió el trabajo, en milisegundos.
+     */
+    public long getInstante() {
+        return instante;
+    }
+
+    /**
+     * @return el estado del trabajo cuando se leyó la entrada.
+     */
+    public Estado getEstado() {
+        return estado;
+    }
+
+    public String getDescripcion() {
+        return descripcion;
+    }
+
+    @Override
+    public String toString() {
+        return new SimpleDateFormat("dd/MM/yyyy HH:mm:ss")
+                .format(new Date(instante)) + "  " + estado + "  "
+                + descripcion;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Esta clase recuerda lo que ya se ha enviado a una impresora y sigue
+ * guardado en ella, para no tener que volver a enviarlo: los formularios
+ * EPL almacenados, los gráficos de la memoria de gráficos y el último
+ * perfil (tamaño, velocidad, densidad y página de códigos). Si falla un
+ * envío no se sabe qué ha llegado a la impresora, así que hay que llamar a
+ * reiniciar() para volver a enviarlo todo. Cada salida de impresión debe
+ * tener su propio estado.
+ */
+public class EstadoImpresora {
+
+    /** Número máximo de formularios que se dejan guardados en la impresora. */
+    public static final int MAX_FORMULARIOS = 8;
+
+    // formularios guardados, del menos al más usado recientemente.
+    private final Set<String> formularios = new LinkedHashSet<>();
+    private long formulariosEnviados;
+    // gráficos guardados.
+    private final Set<String> graficos = new HashSet<>();
+    // último perfil enviado, ó null si no se sabe cuál tiene la impresora.
+    private PerfilImpresora perfil;
+
+    /**
+     * Este método comprueba si un formulario ya está guardado en la
+     * impresora y lo marca como el último usado.
+     *
+     * @param nombre el nombre del formulario.
+     * @return true si el formulario ya está en la impresora.
+     */
+    public synchronized boolean isFormularioGuardado(String nombre) {
+        if (formularios.remove(nombre)) {
+            formularios.add(nombre);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Este método anota que se ha enviado un formulario a la impresora. Si
+     * hay demasiados formularios devuelve el menos usado, que se debe borrar
+     * de la impresora.
+     *
+     * @param nombre el nombre del formulario enviado.
+     * @return el nombre del formulario a borrar ó null si no hay que borrar
+     * ninguno.
+     */
+    public synchronized String addFormulario(String nombre) {
+        formularios.add(nombre);
+        formulariosEnviados++;
+        if (formularios.size() > MAX_FORMULARIOS) {
+            Iterator<String> it = formularios.iterator();
+            String borrar = it.next();
+            it.remove();
+            return borrar;
+        }
+        return null;
+    }
+
+    /**
+     * @return el número de formularios enviados a la impresora.
+     */
+    public synchronized long getFormulariosEnviados() {
+        return formulariosEnviados;
+    }
+
+    /**
+     * Este método comprueba si un gráfico ya está guardado en la impresora
+     * y si no lo está lo anota, porque se va a enviar a continuación.
+     *
+     * @param nombre el nombre del gráfico.
+     * @return true si el gráfico ya estaba en la impresora.
+     */
+    public synchronized boolean isGraficoGuardado(String nombre) {
+        return !graficos.add(nombre);
+    }
+
+    /**
+     * Este método anota que la impresora va a tener el perfil y devuelve
+     * los comandos que hay que enviarle para ello: todos si no se sabe qué
+     * tiene, sólo los que han cambiado si se sabe, y ninguno si ya lo tiene.
+     *
+     * @param nuevo el perfil que debe tener la impresora.
+     * @return los comandos EPL, que se deben enviar a continuación.
+     */
+    public synchronized byte[] cambiarPerfil(PerfilImpresora nuevo) {
+        byte[] comandos = nuevo.getComandos(perfil);
+        perfil = nuevo;
+        return comandos;
+    }
+
+    /**
+     * Este método olvida todo lo que se había enviado a la impresora. Se
+     * usa cuando falla un envío ó se pierde la conexión.
+     */
+    public synchronized void reiniciar() {
+        formularios.clear();
+        graficos.clear();
+        perfil = null;
+    }
+}
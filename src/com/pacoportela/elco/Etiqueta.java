@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Esta clase guarda los datos de una etiqueta: de una a cinco lineas de
+ * texto, el tamaño de la fuente, la rotación, la expansión horizontal y
+ * vertical, el formato (normal ó invertido) y el número de copias.
+ * Los objetos se pueden reutilizar para leer muchas etiquetas seguidas sin
+ * crear objetos nuevos.
+ */
+public class Etiqueta {
+
+    /** Número máximo de lineas de texto de una etiqueta. */
+    public static final int NUM_LINEAS = 5;
+    /** Posición 'x' cartesiana de inicio del texto. */
+    public static final int POSICION_X = 50;
+    /** Posición 'y' cartesiana de inicio del texto. */
+    public static final int POSICION_Y = 5;
+    /** Separación vertical entre lineas. */
+    public static final int SALTO_LINEA = 50;
+
+    private final StringBuilder[] lineas = new StringBuilder[NUM_LINEAS];
+    private char fuente;
+    private char rotacion;
+    private char expansionHorizontal;
+    private char expansionVertical;
+    private char formato;
+    private int copias;
+
+    /**
+     * Constructor. Crea una etiqueta vacía con los valores por defecto de la
+     * interfaz.
+     */
+    public Etiqueta() {
+        for (int i = 0; i < NUM_LINEAS; i++) {
+            lineas[i] = new StringBuilder();
+        }
+        setValoresPorDefecto();
+    }
+
+    /**
+     * Este método borra el texto y pone los valores por defecto: fuente 3,
+     * sin rotación, expansión 2 y 2, formato normal y una copia.
+     */
+    public final void setValoresPorDefecto() {
+        for (StringBuilder linea : lineas) {
+            linea.setLength(0);
+        }
+        fuente = '3';
+        rotacion = '0';
+        expansionHorizontal = '2';
+        expansionVertical = '2';
+        formato = 'N';
+        copias = 1;
+    }
+
+    /**
+     * Este método copia todos los datos de otra etiqueta.
+     *
+     * @param otra la etiqueta de la que se copian los datos.
+     */
+    public void copiar(Etiqueta otra) {
+        for (int i = 0; i < NUM_LINEAS; i++) {
+            setLinea(i, otra.lineas[i]);
+        }
+        fuente = otra.fuente;
+        rotacion = otra.rotacion;
+        expansionHorizontal = otra.expansionHorizontal;
+        expansionVertical = otra.expansionVertical;
+        formato = otra.formato;
+        copias = otra.copias;
+    }
+
+    /**
+     * Este método compara el contenido de dos etiquetas sin tener en cuenta
+     * el número de copias.
+     *
+     * @param otra la etiqueta con la que se compara.
+     * @return true si las dos etiquetas imprimen lo mismo.
+     */
+    public boolean mismoContenido(Etiqueta otra) {
+        if (fuente != otra.fuente || rotacion != otra.rotacion
+                || expansionHorizontal != otra.expansionHorizontal
+                || expansionVertical != otra.expansionVertical
+                || formato != otra.formato) {
+            return false;
+        }
+        for (int i = 0; i < NUM_LINEAS; i++) {
+            StringBuilder a = lineas[i];
+            StringBuilder b = otra.lineas[i];
+            if (a.length() != b.length()) {
+                return false;
+            }
+            for (int j = a.length() - 1; j >= 0; j--) {
+                if (a.charAt(j) != b.charAt(j)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Este método calcula un resumen de 64 bits (FNV-1a) del contenido de la
+     * etiqueta sin tener en cuenta el número de copias, sin crear objetos.
+     * Dos etiquetas con el mismo contenido (mismoContenido) tienen el mismo
+     * resumen.
+     *
+     * @return el resumen del texto de las lineas, la fuente, la rotación, la
+     * expansión y el formato.
+     */
+    public long getResumenContenido() {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < NUM_LINEAS; i++) {
+            StringBuilder linea = lineas[i];
+            int longitud = linea.length();
+            // la longitud separa las lineas: "ab","" no es igual a "a","b".
+            h = (h ^ longitud) * 0x100000001b3L;
+            for (int j = 0; j < longitud; j++) {
+                h = (h ^ linea.charAt(j)) * 0x100000001b3L;
+            }
+        }
+        h = (h ^ fuente) * 0x100000001b3L;
+        h = (h ^ rotacion) * 0x100000001b3L;
+        h = (h ^ expansionHorizontal) * 0x100000001b3L;
+        h = (h ^ expansionVertical) * 0x100000001b3L;
+        return (h ^ formato) * 0x100000001b3L;
+    }
+
+    public CharSequence getLinea(int indice) {
+        return lineas[indice];
+    }
+
+    /**
+     * Este método cambia el texto de una linea. Los caracteres de control
+     * (saltos de linea, tabuladores...) se cambian por espacios: un salto de
+     * linea terminaría el comando EPL y el resto del texto se interpretaría
+     * como comandos.
+     *
+     * @param indice el número de linea (de 0 a 4).
+     * @param texto el texto.
+     */
+    public void setLinea(int indice, CharSequence texto) {
+        StringBuilder linea = lineas[indice];
+        linea.setLength(0);
+        linea.append(texto);
+        for (int i = linea.length() - 1; i >= 0; i--) {
+            if (linea.charAt(i) < ' ') {
+                linea.setCharAt(i, ' ');
+            }
+        }
+    }
+
+    /**
+     * Este método devuelve el StringBuilder de una linea para poder
+     * rellenarlo directamente sin crear Strings intermedios.
+     *
+     * @param indice el número de linea (de 0 a 4).
+     * @return el StringBuilder con el texto de la linea.
+     */
+    StringBuilder getBufferLinea(int indice) {
+        return lineas[indice];
+    }
+
+    /**
+     * @return true si todas las lineas de texto están vacías.
+     */
+    public boolean isVacia() {
+        for (StringBuilder linea : lineas) {
+            if (linea.length() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public char getFuente() {
+        return fuente;
+    }
+
+    /**
+     * @param fuente el tamaño de la fuente, de '1' a '5'.
+     */
+    public void setFuente(char fuente) {
+        comprobar(fuente, "12345", "fuente");
+        this.fuente = fuente;
+    }
+
+    public char getRotacion() {
+        return rotacion;
+    }
+
+    /**
+     * @param rotacion la rotación, de '0' a '3' (en pasos de 90 grados).
+     */
+    public void setRotacion(char rotacion) {
+        comprobar(rotacion, "0123", "rotación");
+        this.rotacion = rotacion;
+    }
+
+    public char getExpansionHorizontal() {
+        return expansionHorizontal;
+    }
+
+    /**
+     * @param expansion la expansión horizontal: '1' a '6' u '8'.
+     */
+    public void setExpansionHorizontal(char expansion) {
+        comprobar(expansion, "1234568", "expansión horizontal");
+        this.expansionHorizontal = expansion;
+    }
+
+    public char getExpansionVertical() {
+        return expansionVertical;
+    }
+
+    /**
+     * @param expansion la expansión vertical: de '1' a '9'.
+     */
+    public void setExpansionVertical(char expansion) {
+        comprobar(expansion, "123456789", "expansión vertical");
+        this.expansionVertical = expansion;
+    }
+
+    public char getFormato() {
+        return formato;
+    }
+
+    /**
+     * @param formato 'N' normal ó 'R' reverse (invertido).
+     */
+    public void setFormato(char formato) {
+        comprobar(formato, "NR", "formato");
+        this.formato = formato;
+    }
+
+    public int getCopias() {
+        return copias;
+    }
+
+    /**
+     * @param copias el número de copias, de 1 a ColaImpresion.MAX_COPIAS
+     * (el máximo del comando 'P').
+     */
+    public void setCopias(int copias) {
+        if (copias < 1) {
+            throw new IllegalArgumentException(
+                    "El número de copias debe ser mayor que cero: " + copias);
+        }
+        if (copias > ColaImpresion.MAX_COPIAS) {
+            throw new IllegalArgumentException("El número de copias no "
+                    + "puede ser mayor que " + ColaImpresion.MAX_COPIAS
+                    + ": " + copias);
+        }
+        this.copias = copias;
+    }
+
+    private static void comprobar(char valor, String validos, String campo) {
+        if (validos.indexOf(valor) < 0) {
+            throw new IllegalArgumentException("Valor no válido para "
+                    + campo + ": '" + valor + "'");
+        }
+    }
+
+    /**
+     * Este método crea los comandos EPL de la etiqueta. Es la forma sencilla
+     * de construirlos, creando un String nuevo cada vez; para imprimir se usa
+     * CodificadorEPL, que produce los mismos comandos sin crear objetos.
+     * Si la etiqueta tiene contadores (ver SerieEPL) los comandos usan un
+     * formulario con contadores 'C' y las copias son etiquetas numeradas.
+     *
+     * @return un String con la etiqueta en lenguaje EPL.
+     */
+    public String getComandosEPL() {
+        SerieEPL serie = SerieEPL.analizar(this);
+        if (serie != null) {
+            return getComandosSerie(serie);
+        }
+        // posicion 'x' cartesiana de inicio.
+        int posx = POSICION_X;
+        // posicion 'y' cartesiana de inicio.
+        int posy = POSICION_Y;
+        StringBuilder eti = new StringBuilder();
+        /* El formato de la etiqueta en lenguaje EPL es el siguiente:
+        - Primero se abre la etiqueta con 'N' que limpia el buffer de la imagen
+          donde se va a dibujar la etiqueta y salto de linea.
+        - Luego se pone la instrucción a ejecutar, en nuestro caso es
+          A (texto ASCII).
+        - Después viene la posición x e y.
+        - A continuación la rotación del texto.
+        - Después el tamaño de la fuente.
+        - Luego la expansión horizontal y vertical del texto.
+        - Después el formato de texto (normal ó invertido).
+        - A continuación el texto entrecomillado y un salto de linea.
+        - Por último se cierra la etiqueta con 'P' instrucción imprimir,
+          el numero de copias y un salto de linea.
+         */
+        eti.append("N\n");// comando para limpiar el buffer de impresión
+        for (StringBuilder linea : lineas) {
+            if (linea.length() > 0) {
+                eti.append("A")// comando para texto ASCII
+                        .append(Integer.toString(posx))// posición x
+                        .append(",")
+                        .append(Integer.toString(posy))// posición y
+                        .append(",")
+                        .append(rotacion)// rotación
+                        .append(",")
+                        .append(fuente)// tamaño fuente
+                        .append(",")
+                        .append(expansionHorizontal)// expansión horizontal
+                        .append(",")
+                        .append(expansionVertical)// expansión vertical
+                        .append(",")
+                        .append(formato)// formato (normal ó invertido)
+                        .append(",")
+                        .append("\"");
+                // texto a imprimir entre comillas, escapando las comillas
+                // y las barras invertidas.
+                for (int i = 0; i < linea.length(); i++) {
+                    char c = linea.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        eti.append('\\');
+                    }
+                    eti.append(c);
+                }
+                eti.append("\"\n");// cierra comillas y salto de linea.
+                // aumentamos la posición 'y' en cada nueva linea.
+                posy += SALTO_LINEA;
+            }
+        }
+        eti.append("P")// comando Imprimir 'P'
+                .append(copias)// número de copias
+                .append("\n");// salto de linea
+        return eti.toString();
+    }
+
+    /**
+     * Este método crea los comandos EPL de una etiqueta con contadores: la
+     * definición del formulario, su llamada con el texto de las variables y
+     * el primer número de cada contador, y el comando 'P'.
+     */
+    private String getComandosSerie(SerieEPL serie) {
+        FormularioEPL formulario = FormularioEPL.obtener(this, serie);
+        StringBuilder eti = new StringBuilder();
+        eti.append(new String(formulario.getDefinicion(),
+                StandardCharsets.US_ASCII));
+        eti.append(new String(formulario.getCabecera(),
+                StandardCharsets.US_ASCII));
+        for (String texto : serie.getTextos()) {
+            eti.append(texto).append('\n');
+        }
+        for (String inicio : serie.getInicios()) {
+            eti.append(inicio).append('\n');
+        }
+        eti.append("P").append(copias).append("\n");
+        return eti.toString();
+    }
+}
@@ -16,21 +16,29 @@
  */
 package com.pacoportela.elco;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Graphics;
 import java.awt.Toolkit;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import javax.print.Doc;
-import javax.print.DocFlavor;
-import javax.print.DocPrintJob;
-import javax.print.PrintException;
-import javax.print.PrintService;
-import javax.print.PrintServiceLookup;
-import javax.print.SimpleDoc;
+import java.util.Locale;
 import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
 import javax.swing.JTextField;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 /**
  * Esta clase crea una interfaz para imprimir etiquetas que tengan de una a 
@@ -44,17 +52,416 @@ import javax.swing.JTextField;
 public class EtiquetasGUI extends javax.swing.JFrame {
     ImageIcon icono;
     String NOMBRE_IMPRESORA = "ZDesigner LP 2844";
+    // tiempo que se guarda en caché la impresora encontrada (5 minutos).
+    static final long TTL_IMPRESORA = 5 * 60 * 1000;
+    // número máximo de trabajos esperando en la cola de impresión.
+    static final int CAPACIDAD_COLA = 50;
+    // número de etiquetas en el menú de etiquetas recientes.
+    static final int MAX_RECIENTES = 15;
+    // tamaño por defecto de la etiqueta en puntos: 4 x 2 pulgadas.
+    static final int ANCHO_ETIQUETA = 812;
+    static final int ALTO_ETIQUETA = 406;
+    // milisegundos que la cola espera para juntar etiquetas en un trabajo.
+    static final long VENTANA_AGRUPACION = 50;
+    RegistroImpresoras registro;
+    SalidaImpresion salida;
+    ServicioImpresion cola;
+    PanelCola panelCola;
+    PanelMetricas panelMetricas;
+    DiarioTrabajos diario;
+    PanelVistaPrevia panelVistaPrevia;
+    // sólo se usan desde el hilo de Swing para la vista previa.
+    private final Etiqueta etiquetaVistaPrevia = new Etiqueta();
+    private CodificadorEPL codificadorVistaPrevia;
+    // false hasta que se pinta la ventana por primera vez.
+    private boolean pintada;
 
     /**
      * Constructor. Crea una nueva interfaz EtiquetasGUI.
      */
     public EtiquetasGUI() {
-        URL url = this.getClass().getResource("recursos/zebra.jpeg");
-        icono = new ImageIcon(url);
+        // el icono se carga cuando ya se ve la ventana (ver
+        // iniciarEnSegundoPlano()); hasta entonces no tiene imagen.
+        icono = new ImageIcon();
+        registro = new RegistroImpresoras(NOMBRE_IMPRESORA, TTL_IMPRESORA);
+        cola = crearServicio();
+        // con -Detiquetas.formularios=true el diseño de la etiqueta se
+        // guarda en la impresora y sólo se envía el texto.
+        cola.setUsarFormularios(Boolean.getBoolean("etiquetas.formularios"));
+        PaginaCodigos pagina = PaginaCodigos.obtener(System.getProperty(
+                "etiquetas.pagina", PaginaCodigos.POR_DEFECTO));
+        // con -Detiquetas.perfil=... se configura también el tamaño de la
+        // etiqueta, la velocidad y la densidad (ver PerfilImpresora).
+        cola.setPerfil(PerfilImpresora.leer(System.getProperty(
+                "etiquetas.perfil", ""), pagina));
+        codificadorVistaPrevia = new CodificadorEPL(pagina);
+        // las etiquetas pedidas casi a la vez se imprimen en un trabajo.
+        cola.setAgrupacion(Long.getLong("etiquetas.agrupacion.milis",
+                VENTANA_AGRUPACION), Integer.getInteger(
+                "etiquetas.agrupacion.maximo", ColaImpresion.MAX_AGRUPADOS));
+        // las etiquetas que se repiten no se vuelven a codificar.
+        CacheEtiquetas.getInstancia().setCapacidad(Integer.getInteger(
+                "etiquetas.cache", CacheEtiquetas.CAPACIDAD));
         initComponents();
+        crearPanelEstado();
+        crearVistaPrevia();
         setBotonPorDefecto();
+        // el logotipo se carga en segundo plano; hasta entonces no se
+        // imprime para que todas las etiquetas lo lleven.
+        if (!System.getProperty("etiquetas.logo", "").isEmpty()) {
+            botonImprimir.setEnabled(false);
+        }
+    }
+
+    /**
+     * La primera vez que se pinta la ventana se termina el informe de
+     * arranque (ver InformeArranque) y se empieza lo que se hace en segundo
+     * plano.
+     */
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+        if (!pintada) {
+            pintada = true;
+            // después de pintar también los componentes pendientes.
+            EventQueue.invokeLater(() -> {
+                InformeArranque.terminar("primer fotograma");
+                iniciarEnSegundoPlano();
+            });
+        }
+    }
+
+    /**
+     * Este método hace en otro hilo lo que no hace falta para ver la ventana
+     * y empezar a escribir: cargar el logotipo, preparar y dibujar la vista
+     * previa, cargar el icono, buscar la impresora, registrar las métricas
+     * en JMX, abrir el diario de trabajos y vigilar la carpeta de entrada.
+     * Se llama desde el hilo de Swing después de pintar la ventana para que
+     * el arranque sea más rápido.
+     */
+    void iniciarEnSegundoPlano() {
+        char fuente = getFuente();
+        char horizontal = getExpansionHorizontal();
+        char vertical = getExpansionVertical();
+        Thread hilo = new Thread(() -> {
+            // antes que el diario, que puede volver a enviar trabajos.
+            cargarLogo();
+            prepararVistaPrevia(fuente, horizontal, vertical);
+            URL url = EtiquetasGUI.class.getResource("recursos/zebra.jpeg");
+            ImageIcon imagen = new ImageIcon(url);
+            EventQueue.invokeLater(() -> {
+                icono = imagen;
+                setIconImage(imagen.getImage());
+            });
+            registro.renovarEnSegundoPlano();
+            MetricasImpresion.getInstancia().iniciar();
+            // después del diario, que vuelve a enviar lo que quedó en cola.
+            vigilarCarpeta(abrirDiario());
+        }, "InicioEtiquetasGUI");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Este método carga el logotipo de la propiedad 'etiquetas.logo' (un
+     * fichero de imagen, ó recursos/zebra.jpeg para el del programa) y lo
+     * imprime en todas las etiquetas. El tamaño y la posición se eligen con
+     * 'etiquetas.logo.ancho', 'etiquetas.logo.x' y 'etiquetas.logo.y'. Se
+     * llama desde el hilo de iniciarEnSegundoPlano() y al terminar deja
+     * imprimir.
+     */
+    private void cargarLogo() {
+        String imagen = System.getProperty("etiquetas.logo", "");
+        if (imagen.isEmpty()) {
+            return;
+        }
+        String error = null;
+        try {
+            GraficoEPL logo = GraficoEPL.cargar(imagen, Integer.getInteger(
+                    "etiquetas.logo.ancho", GraficoEPL.ANCHO),
+                    GraficoEPL.CACHE).enPosicion(
+                    Integer.getInteger("etiquetas.logo.x",
+                            GraficoEPL.POSICION_X),
+                    Integer.getInteger("etiquetas.logo.y",
+                            GraficoEPL.POSICION_Y));
+            cola.setLogo(logo);
+        } catch (IOException | IllegalArgumentException ex) {
+            error = "No se puede cargar el logotipo: " + ex.getMessage();
+        }
+        String mensaje = error;
+        EventQueue.invokeLater(() -> {
+            if (mensaje != null) {
+                panelCola.setMensaje(mensaje);
+            }
+            botonImprimir.setEnabled(true);
+        });
+    }
+
+    /**
+     * Este método crea en segundo plano los glifos de los caracteres ASCII
+     * con la fuente y la expansión de la ventana, que es lo que más cuesta
+     * de la vista previa, y después la dibuja en el hilo de Swing.
+     */
+    private void prepararVistaPrevia(char fuente, char horizontal,
+            char vertical) {
+        AtlasGlifos atlas = AtlasGlifos.obtener(fuente, horizontal, vertical);
+        for (char c = ' '; c <= '~'; c++) {
+            atlas.getGlifo(c);
+        }
+        EventQueue.invokeLater(this::actualizarVistaPrevia);
+    }
+
+    /**
+     * Este método añade a la derecha del formulario la vista previa de la
+     * etiqueta, que se actualiza al escribir y al cambiar las opciones. El
+     * tamaño de la etiqueta en puntos se puede cambiar con las propiedades
+     * 'etiquetas.ancho' y 'etiquetas.alto'. La primera vez se dibuja desde
+     * iniciarEnSegundoPlano().
+     */
+    private void crearVistaPrevia() {
+        VistaPreviaEPL vista = new VistaPreviaEPL(
+                Integer.getInteger("etiquetas.ancho", ANCHO_ETIQUETA),
+                Integer.getInteger("etiquetas.alto", ALTO_ETIQUETA));
+        vista.setPaginaCodigos(codificadorVistaPrevia.getPagina());
+        panelVistaPrevia = new PanelVistaPrevia(vista);
+        DocumentListener oyente = new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                actualizarVistaPrevia();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                actualizarVistaPrevia();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                actualizarVistaPrevia();
+            }
+        };
+        for (JTextField campo : new JTextField[]{tfLinea1, tfLinea2, tfLinea3,
+            tfLinea4, tfLinea5}) {
+            campo.getDocument().addDocumentListener(oyente);
+        }
+        for (JComboBox<String> combo : Arrays.asList(comboFuente,
+                comboRotacion, comboHorizontal, comboVertical, comboImagen)) {
+            combo.addActionListener(evt -> actualizarVistaPrevia());
+        }
+        getContentPane().add(panelVistaPrevia, BorderLayout.EAST);
+        pack();
+    }
+
+    /**
+     * Este método dibuja la vista previa con los textos y las opciones que
+     * hay en la ventana.
+     */
+    private void actualizarVistaPrevia() {
+        List<String> textos = getTextos();
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            etiquetaVistaPrevia.setLinea(i, i < textos.size()
+                    ? textos.get(i) : "");
+        }
+        // de una serie se muestra la primera etiqueta.
+        SerieEPL.sustituir(etiquetaVistaPrevia);
+        etiquetaVistaPrevia.setFuente(getFuente());
+        etiquetaVistaPrevia.setRotacion(getRotacion());
+        etiquetaVistaPrevia.setExpansionHorizontal(getExpansionHorizontal());
+        etiquetaVistaPrevia.setExpansionVertical(getExpansionVertical());
+        etiquetaVistaPrevia.setFormato(getFormatoTexto());
+        panelVistaPrevia.mostrar(
+                codificadorVistaPrevia.codificar(etiquetaVistaPrevia));
+    }
+
+    /**
+     * Este método abre el diario de trabajos, vuelve a enviar los trabajos
+     * que no se imprimieron la última vez y añade el botón del historial. El
+     * diario se guarda en ~/.etiquetas/diario ó en el directorio de la
+     * propiedad 'etiquetas.diario'; si la propiedad está vacía no se usa.
+     * Se llama desde el hilo de iniciarEnSegundoPlano(), así que la ventana
+     * se actualiza en el hilo de Swing.
+     *
+     * @return los trabajos que se han vuelto a enviar, ó null si no se usa
+     * el diario.
+     */
+    private List<TrabajoImpresion> abrirDiario() {
+        String directorio = System.getProperty("etiquetas.diario",
+                Paths.get(System.getProperty("user.home"), ".etiquetas",
+                        "diario").toString());
+        if (directorio.isEmpty()) {
+            return null;
+        }
+        DiarioTrabajos abierto;
+        try {
+            abierto = new DiarioTrabajos(Paths.get(directorio));
+        } catch (IOException ex) {
+            EventQueue.invokeLater(() -> panelCola.setMensaje(
+                    "No se puede abrir el diario de trabajos: "
+                    + ex.getMessage()));
+            return null;
+        }
+        cola.addOyente(abierto);
+        List<TrabajoImpresion> reenviados = abierto.reenviarPendientes(cola);
+        EventQueue.invokeLater(() -> {
+            diario = abierto;
+            for (TrabajoImpresion trabajo : reenviados) {
+                panelCola.addTrabajo(trabajo);
+            }
+            if (!reenviados.isEmpty()) {
+                panelCola.setMensaje("Se han vuelto a enviar "
+                        + reenviados.size() + " trabajos que no se imprimieron");
+            }
+            JButton botonHistorial = new JButton("Historial...");
+            botonHistorial.addActionListener(evt -> new DialogoHistorial(
+                    this, diario, cola, panelCola).setVisible(true));
+            panelCola.addBoton(botonHistorial);
+            pack();
+        });
+        return reenviados;
+    }
+
+    /**
+     * Este método imprime los ficheros de etiquetas que se dejan en el
+     * directorio de la propiedad 'etiquetas.carpeta' (ver CarpetaEtiquetas).
+     * La codificación de los ficheros se elige con
+     * 'etiquetas.carpeta.codificacion' (UTF-8 por defecto). Las etiquetas
+     * se ven en la lista de trabajos como las de la ventana.
+     *
+     * @param reenviados los trabajos que ha vuelto a enviar el diario, ó
+     * null si no se usa.
+     */
+    private void vigilarCarpeta(List<TrabajoImpresion> reenviados) {
+        String directorio = System.getProperty("etiquetas.carpeta", "");
+        if (directorio.isEmpty()) {
+            return;
+        }
+        try {
+            CarpetaEtiquetas carpeta = new CarpetaEtiquetas(
+                    Paths.get(directorio), cola, Charset.forName(
+                            System.getProperty(
+                                    "etiquetas.carpeta.codificacion",
+                                    "UTF-8")));
+            carpeta.setAlEnviar(trabajo -> EventQueue.invokeLater(
+                    () -> panelCola.addTrabajo(trabajo)));
+            if (reenviados != null) {
+                carpeta.setReenviados(reenviados);
+            }
+            carpeta.arrancar();
+        } catch (IOException | IllegalArgumentException ex) {
+            EventQueue.invokeLater(() -> panelCola.setMensaje(
+                    "No se puede vigilar la carpeta " + directorio + ": "
+                    + ex.getMessage()));
+        }
+    }
+
+    /**
+     * Este método crea lo que recibe los trabajos de impresión. Con la
+     * propiedad 'etiquetas.impresoras' los trabajos se reparten entre varias
+     * impresoras (ver PoolImpresoras.crearSalidas), por ejemplo
+     * -Detiquetas.impresoras="ZDesigner LP 2844*". La propiedad
+     * 'etiquetas.reparto' elige cómo se reparten: menos_pendientes (por
+     * defecto) ó turnos. Sin la propiedad se usa una sola impresora.
+     *
+     * @return la cola ó el grupo de impresoras.
+     */
+    private ServicioImpresion crearServicio() {
+        String impresoras = System.getProperty("etiquetas.impresoras");
+        if (impresoras == null) {
+            salida = crearSalida();
+            return new ColaImpresion(salida, CAPACIDAD_COLA);
+        }
+        PoolImpresoras.Reparto reparto = PoolImpresoras.Reparto.valueOf(
+                System.getProperty("etiquetas.reparto", "menos_pendientes")
+                        .toUpperCase(Locale.ROOT));
+        List<SalidaImpresion> salidas = PoolImpresoras.crearSalidas(
+                impresoras, TTL_IMPRESORA);
+        salidas.replaceAll(EtiquetasGUI::acompasar);
+        return new PoolImpresoras(salidas, CAPACIDAD_COLA, reparto);
+    }
+
+    /**
+     * Este método crea la salida donde se imprimen las etiquetas. Por defecto
+     * es la cola de impresión de la Zebra, pero con la propiedad
+     * 'etiquetas.salida' se puede usar otra (ver SalidaImpresion.crear), por
+     * ejemplo -Detiquetas.salida=tcp:192.168.1.50:9100.
+     *
+     * @return la salida de impresión.
+     */
+    private SalidaImpresion crearSalida() {
+        String descripcion = System.getProperty("etiquetas.salida");
+        if (descripcion == null) {
+            return new SalidaPrintService(registro);
+        }
+        return acompasar(SalidaImpresion.crear(descripcion, TTL_IMPRESORA));
+    }
+
+    /**
+     * Este método hace que una salida directa (tcp: ó dispositivo:) envíe
+     * las etiquetas al ritmo de la impresora si se ha dado su velocidad en
+     * pulgadas por segundo con la propiedad 'etiquetas.velocidad'. El buffer
+     * de la impresora se puede cambiar con 'etiquetas.buffer.impresora'.
+     *
+     * @param salida la salida.
+     * @return la salida con el ritmo de la impresora, ó la misma salida.
+     */
+    static SalidaImpresion acompasar(SalidaImpresion salida) {
+        String velocidad = System.getProperty("etiquetas.velocidad");
+        if (velocidad == null) {
+            return salida;
+        }
+        return SalidaRitmo.acompasar(salida, Double.parseDouble(velocidad),
+                Integer.getInteger("etiquetas.alto", ALTO_ETIQUETA)
+                + SalidaRitmo.SEPARACION, Integer.getInteger(
+                "etiquetas.buffer.impresora", SalidaRitmo.BUFFER_IMPRESORA));
+    }
+
+    /**
+     * Este método añade debajo del formulario los paneles con el estado de
+     * la cola de impresión y las métricas de impresión.
+     */
+    private void crearPanelEstado() {
+        panelCola = new PanelCola(cola);
+        panelMetricas = new PanelMetricas(MetricasImpresion.getInstancia());
+        JPanel estado = new JPanel(new BorderLayout());
+        estado.add(panelCola, BorderLayout.CENTER);
+        estado.add(panelMetricas, BorderLayout.SOUTH);
+        JButton botonRecientes = new JButton("Recientes...");
+        botonRecientes.addActionListener(evt -> mostrarRecientes(
+                botonRecientes));
+        panelCola.addBoton(botonRecientes);
+        JPanel raiz = new JPanel(new BorderLayout());
+        raiz.add(getContentPane(), BorderLayout.CENTER);
+        raiz.add(estado, BorderLayout.SOUTH);
+        setContentPane(raiz);
+        pack();
     }
     
+    /**
+     * Este método muestra un menú con las últimas etiquetas impresas (las
+     * de la caché de etiquetas) para volver a imprimir una sin escribirla.
+     *
+     * @param boton el botón debajo del que se muestra el menú.
+     */
+    private void mostrarRecientes(JButton boton) {
+        List<Etiqueta> recientes
+                = CacheEtiquetas.getInstancia().getRecientes(MAX_RECIENTES);
+        JPopupMenu menu = new JPopupMenu();
+        if (recientes.isEmpty()) {
+            JMenuItem vacio = new JMenuItem("No hay etiquetas recientes");
+            vacio.setEnabled(false);
+            menu.add(vacio);
+        }
+        for (Etiqueta reciente : recientes) {
+            String descripcion = getDescripcion(reciente);
+            JMenuItem opcion = new JMenuItem(descripcion + " ("
+                    + reciente.getCopias() + ")");
+            opcion.addActionListener(evt -> enviar(
+                    new TrabajoImpresion(descripcion, reciente)));
+            menu.add(opcion);
+        }
+        menu.show(boton, 0, boton.getHeight());
+    }
+
     private void setBotonPorDefecto(){
         this.getRootPane().setDefaultButton(this.botonImprimir);
     }
@@ -63,73 +470,39 @@ public class EtiquetasGUI extends javax.swing.JFrame {
      * Método que crea la etiqueta que vamos a imprimir en la impresora Zebra.
      */
     private void hacerEtiqueta() {
-        // posicion 'x' cartesiana de inicio.
-        int posx = 50;
-        // posicion 'y' cartesiana de inicio.
-        int posy = 5;
-        // lista que contiene los datos de los campos de texto.
-        List<String> listaDatos;
-        listaDatos = getTextos();
-        // obtenemos el tamaño de la fuente.
-        String fuente = getFuente();
-        // obtenemos la rotacion.
-        String rotacion = getRotacion();
-        // obtenemos la expansión horizontal del texto.
-        String xhor = getExpansionHorizontal();
-        // obtenemos la expansión vertical del texto.
-        String xver = getExpansionVertical();
-        // obtenemos el formato del texto.
-        String formato = getFormatoTexto();
-        // creamos la etiqueta con todos los datos.
-        StringBuilder eti = new StringBuilder();
-        /* El formato de la etiqueta en lenguaje EPL es el siguiente:
-        - Primero se abre la etiqueta con 'N' que limpia el buffer de la imagen
-          donde se va a dibujar la etiqueta y salto de linea.
-        - Luego se pone la instrucción a ejecutar, en nuestro caso es
-          A (texto ASCII).
-        - Después viene la posición x e y.
-        - A continuación la rotación del texto.
-        - Después el tamaño de la fuente.
-        - Luego la expansión horizontal y vertical del texto.
-        - Después el formato de texto (normal ó invertido).
-        - A continuación el texto entrecomillado y un salto de linea.
-        - Por último se cierra la etiqueta con 'P' instrucción imprimir,
-          el numero de copias y un salto de linea.
-         */
-        eti.append("N\n");// comando para limpiar el buffer de impresión
-        for (String linea : listaDatos) {
-            if (linea.length() > 0) {
-                eti.append("A")// comando para texto ASCII
-                        .append(Integer.toString(posx))// posición x
-                        .append(",")
-                        .append(Integer.toString(posy))// posición y
-                        .append(",")
-                        .append(rotacion)// rotación
-                        .append(",")
-                        .append(fuente)// tamaño fuente
-                        .append(",")
-                        .append(xhor)// expansión texto horizontal
-                        .append(",")
-                        .append(xver)// expansión texto vertical
-                        .append(",")
-                        .append(formato)// formato (normal ó invertido)
-                        .append(",")
-                        .append("\"")
-                        .append(linea)// texto a imprimir entre comillas
-                        .append("\"\n");// cierra comillas y salto de linea.
-                // aumentamos la posición 'y' en cada nueva linea. 
-                posy += 50;
-            }
+        Etiqueta etiqueta;
+        try {
+            etiqueta = getEtiqueta();
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, "Número de copias no válido",
+                    "Mensaje", JOptionPane.INFORMATION_MESSAGE);
+            return;
         }
-        // recogemos el número de copias que queremos imprimir.
-        int copias = Integer.valueOf(this.tfCopias.getText());
-        eti.append("P")// comando Imprimir 'P'
-                .append(copias)// número de copias
-                .append("\n");// salto de linea
-        // pasamos el string a una matriz de bytes.
-        byte[] matrizBytes = eti.toString().getBytes();
         // imprimimos la etiqueta.
-        imprimirEtiqueta(matrizBytes);
+        imprimirEtiqueta(etiqueta);
+    }
+
+    /**
+     * Este método crea una etiqueta con los textos y las opciones que hay en
+     * la interfaz.
+     *
+     * @return la etiqueta con los datos de la interfaz.
+     * @throws IllegalArgumentException si el número de copias no es válido.
+     */
+    private Etiqueta getEtiqueta() {
+        Etiqueta etiqueta = new Etiqueta();
+        List<String> listaDatos = getTextos();
+        for (int i = 0; i < listaDatos.size(); i++) {
+            etiqueta.setLinea(i, listaDatos.get(i));
+        }
+        etiqueta.setFuente(getFuente());
+        etiqueta.setRotacion(getRotacion());
+        etiqueta.setExpansionHorizontal(getExpansionHorizontal());
+        etiqueta.setExpansionVertical(getExpansionVertical());
+        etiqueta.setFormato(getFormatoTexto());
+        // recogemos el número de copias que queremos imprimir.
+        etiqueta.setCopias(Integer.parseInt(this.tfCopias.getText().trim()));
+        return etiqueta;
     }
 
     /**
@@ -151,58 +524,53 @@ public class EtiquetasGUI extends javax.swing.JFrame {
     /**
      * Este método devuelve el tamaño de la fuente a utilizar.
      *
-     * @return un String con el tamaño de la fuente.
+     * @return un char con el tamaño de la fuente.
      */
-    private String getFuente() {
+    private char getFuente() {
         String fuente = (String) this.comboFuente.getSelectedItem();
-        fuente = String.valueOf(fuente.charAt(0));
-        return fuente;
+        return fuente.charAt(0);
     }
 
     /**
      * Este método devuelve la rotación del texto. Puede ser '0' sin rotación ó
      * '1' rotación de 90 grados.
      *
-     * @return un String con la rotación del texto.
+     * @return un char con la rotación del texto.
      */
-    private String getRotacion() {
+    private char getRotacion() {
         String rotacion = (String) this.comboRotacion.getSelectedItem();
-        rotacion = String.valueOf(rotacion.charAt(0));
-        return rotacion;
+        return rotacion.charAt(0);
     }
 
     /**
      * Este método devuelve la expansión horizontal del texto.
      *
-     * @return un String con la expansión horizontal del texto.
+     * @return un char con la expansión horizontal del texto.
      */
-    private String getExpansionHorizontal() {
+    private char getExpansionHorizontal() {
         String xhor = (String) this.comboHorizontal.getSelectedItem();
-        xhor = String.valueOf(xhor.charAt(0));
-        return xhor;
+        return xhor.charAt(0);
     }
 
     /**
      * Este método devuelve la rotación vertical del texto.
      *
-     * @return un String con la expansión vertical del texto.
+     * @return un char con la expansión vertical del texto.
      */
-    private String getExpansionVertical() {
+    private char getExpansionVertical() {
         String xver = (String) this.comboVertical.getSelectedItem();
-        xver = String.valueOf(xver.charAt(0));
-        return xver;
+        return xver.charAt(0);
     }
 
     /**
      * Este método devuelve el formato del texto. Puede ser 'N' normal ó 'R'
      * reverse (invertido, colores de fondo y frente cambiados).
      *
-     * @return un String con el formato del texto.
+     * @return un char con el formato del texto.
      */
-    private String getFormatoTexto() {
+    private char getFormatoTexto() {
         String formato = (String) this.comboImagen.getSelectedItem();
-        formato = String.valueOf(formato.charAt(0));
-        return formato;
+        return formato.charAt(0);
     }
 
     /**
@@ -219,43 +587,64 @@ public class EtiquetasGUI extends javax.swing.JFrame {
     }
 
     /**
-     * Este método imprime la etiqueta. Obtiene los PrintService (impresoras) de
-     * los que dispone el equipo, crea un documento imprimible con los datos que
-     * le pasamos (los creados en el método 'hacerEtiqueta') y lo imprime en la
-     * impresora Zebra LP2844.
+     * Este método imprime la etiqueta. Crea un trabajo de impresión con la
+     * etiqueta que le pasamos (la creada en el método 'hacerEtiqueta') y lo
+     * añade a la cola de impresión, que lo imprimirá en la impresora Zebra
+     * LP2844 sin bloquear la ventana.
      *
-     * @param datos una matriz de bytes con los datos de la etiqueta a imprimir.
+     * @param etiqueta la etiqueta a imprimir.
      */
-    private void imprimirEtiqueta(byte[] datos) {
+    private void imprimirEtiqueta(Etiqueta etiqueta) {
         if (this.comprobarCamposTextoVacios()) {
             JOptionPane.showMessageDialog(this, "No hay datos para imprimir",
                     "Mensaje", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
-        PrintService[] services
-                = PrintServiceLookup.lookupPrintServices(null, null);
-        Doc doc;
-        doc = new SimpleDoc(datos, DocFlavor.BYTE_ARRAY.AUTOSENSE, null);
-        for (PrintService impresora : services) {
-            if (impresora.getName().equalsIgnoreCase(this.NOMBRE_IMPRESORA)) {
-                DocPrintJob pj = impresora.createPrintJob();
-                try {
-                    pj.print(doc, null);
-                } catch (PrintException ex) {
-                    JOptionPane.showMessageDialog(null, ex.toString(),
-                            "ERROR", JOptionPane.ERROR_MESSAGE);
-                }
-                return;
+        enviar(new TrabajoImpresion(getDescripcion(), etiqueta));
+    }
+
+    /**
+     * Este método añade un trabajo a la cola de impresión y a la lista de
+     * trabajos.
+     *
+     * @param trabajo el trabajo a imprimir.
+     */
+    private void enviar(TrabajoImpresion trabajo) {
+        if (cola.enviar(trabajo)) {
+            panelCola.addTrabajo(trabajo);
+        } else {
+            panelCola.setMensaje("La cola de impresión está llena. "
+                    + "Espere a que se impriman las etiquetas pendientes.");
+        }
+    }
+
+    /**
+     * Este método devuelve la primera linea de texto que no está vacía para
+     * identificar la etiqueta en la cola de impresión.
+     *
+     * @return un char con la descripción de la etiqueta.
+     */
+    private String getDescripcion() {
+        for (String linea : getTextos()) {
+            if (!linea.isEmpty()) {
+                return linea;
             }
-            
         }
-        String mensaje = "No se ha encontrado la impresora "
-                        + "Zebra LP2844. ¿Desea salir del programa?";
-        if(JOptionPane.showConfirmDialog(this, mensaje,
-               "Impresora no encontrada",
-               JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION){
-               System.exit(0);
+        return "";
+    }
+
+    /**
+     * @param etiqueta la etiqueta.
+     * @return la primera linea de la etiqueta que no está vacía.
+     */
+    private static String getDescripcion(Etiqueta etiqueta) {
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            CharSequence linea = etiqueta.getLinea(i);
+            if (linea.length() > 0) {
+                return linea.toString();
+            }
         }
+        return "";
     }
 
     /**
@@ -529,20 +918,34 @@ public class EtiquetasGUI extends javax.swing.JFrame {
     }//GEN-LAST:event_botonCancelarActionPerformed
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments. Si el primero es '--lote' se
+     * imprime sin interfaz gráfica con el resto de argumentos (ver
+     * EtiquetasLote). Si es '--servidor' se arranca el servicio HTTP de
+     * impresión (ver ServidorEtiquetas).
      */
     public static void main(String args[]) {
+        // con '--lote' se imprime sin interfaz gráfica.
+        if (args.length > 0 && args[0].equals("--lote")) {
+            EtiquetasLote.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // con '--servidor' se imprimen las etiquetas que llegan por HTTP.
+        if (args.length > 0 && args[0].equals("--servidor")) {
+            ServidorEtiquetas.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        InformeArranque.empezar();
         /* Set the Windows look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
          * For details see http://download.oracle.com/javase/tutorial/uiswing/lookandfeel/plaf.html 
          */
+        // sólo existe en Windows; en los demás sistemas no hace falta
+        // recorrer los aspectos instalados para no encontrarlo.
         try {
-            for (javax.swing.UIManager.LookAndFeelInfo info : javax.swing.UIManager.getInstalledLookAndFeels()) {
-                if ("Windows".equals(info.getName())) {
-                    javax.swing.UIManager.setLookAndFeel(info.getClassName());
-                    break;
-                }
+            if (System.getProperty("os.name", "").startsWith("Windows")) {
+                javax.swing.UIManager.setLookAndFeel(
+                        "com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
             }
         } catch (ClassNotFoundException | InstantiationException
                 | IllegalAccessException
@@ -553,10 +956,11 @@ public class EtiquetasGUI extends javax.swing.JFrame {
         //</editor-fold>
 
         //</editor-fold>
+        InformeArranque.marcar("aspecto");
 
         /* Create and display the form */
         EtiquetasGUI eg = new EtiquetasGUI();
-        
+        InformeArranque.marcar("ventana");
         
         Dimension d = Toolkit.getDefaultToolkit().getScreenSize();
         int anchoPantalla = (int)d.getWidth();
@@ -566,7 +970,10 @@ public class EtiquetasGUI extends javax.swing.JFrame {
         // centramos la ventana el la pantalla
         eg.setLocation(((anchoPantalla/2)-(anchoAplicacion/2)),
                 ((altoPantalla/2)-(altoAplicacion/2)));
+        // el informe termina y el resto del arranque empieza cuando se
+        // pinta la ventana (ver paint).
         eg.setVisible(true);
+        InformeArranque.marcar("visible");
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esta clase imprime etiquetas en lote sin interfaz gráfica. Lee las
+ * etiquetas de un fichero CSV/TSV (ó de la entrada estándar) con el formato
+ * de LectorEtiquetas y las envía a la salida según se van leyendo, en un
+ * único trabajo ó en trabajos de un número fijo de etiquetas. Ni el fichero
+ * ni los comandos EPL se guardan enteros en memoria.
+ *
+ * Uso: java -cp EtiquetasGUI.jar com.pacoportela.elco.EtiquetasLote
+ * [opciones] [fichero | -]
+ * <ul>
+ * <li>-impresora NOMBRE: la cola de impresión (por defecto la Zebra).</li>
+ * <li>-separador C: el separador de columnas ('tab' para tabulador); si no
+ * se indica se detecta en la primera fila.</li>
+ * <li>-trozo N: número de etiquetas por trabajo (0, todas en uno).</li>
+ * <li>-fichero RUTA: escribe los comandos EPL en un fichero en vez de
+ * imprimirlos ('-' para la salida estándar).</li>
+ * <li>-salida DESCRIPCION: cualquier salida de SalidaImpresion.crear, por
+ * ejemplo tcp:HOST:9100 ó dispositivo:/dev/usb/lp0.</li>
+ * <li>-codificacion NOMBRE: la codificación del fichero (UTF-8).</li>
+ * <li>-formularios: guarda el diseño de la etiqueta en la impresora como
+ * formulario EPL y para cada etiqueta sólo envía el texto.</li>
+ * <li>-pagina N: la página de códigos de la impresora (850, 437, 1252...).
+ * </li>
+ * <li>-perfil DESCRIPCION: el tamaño de la etiqueta, la velocidad y la
+ * densidad de la impresora, por ejemplo "ancho=812,largo=406,velocidad=4"
+ * (ver PerfilImpresora). Se envían al principio y sólo se vuelven a enviar
+ * si cambian.</li>
+ * <li>-impresoras LISTA: reparte las etiquetas entre varias impresoras (ver
+ * PoolImpresoras.crearSalidas), cada una con su propia cola.</li>
+ * <li>-reparto menos_pendientes|turnos: cómo se reparten las etiquetas entre
+ * las impresoras.</li>
+ * <li>-logo FICHERO: imprime la imagen en todas las etiquetas (ver
+ * GraficoEPL).</li>
+ * <li>-logo-ancho N: el ancho del logotipo en puntos.</li>
+ * <li>-logo-posicion X,Y: la posición del logotipo en puntos.</li>
+ * <li>-velocidad N: la velocidad de impresión en pulgadas por segundo; las
+ * etiquetas se envían a una salida tcp: ó dispositivo: al ritmo de la
+ * impresora (ver SalidaRitmo).</li>
+ * <li>-largo N: el largo de la etiqueta en puntos, para calcular el ritmo.
+ * </li>
+ * <li>-buffer-impresora N: el tamaño del buffer de recepción de la
+ * impresora en bytes.</li>
+ * <li>-hilos N: el número de hilos que codifican las etiquetas (1 por
+ * defecto, 0 para uno por procesador); ver CodificadorParalelo. Con
+ * -formularios ó -impresoras se codifica en un solo hilo.</li>
+ * </ul>
+ */
+public class EtiquetasLote {
+
+    // trabajos en espera en la cola de cada impresora del grupo.
+    private static final int CAPACIDAD_GRUPO = 256;
+
+    private String salida = "cola:ZDesigner LP 2844";
+    private char separador = 0;
+    private long etiquetasPorTrabajo = 0;
+    private Charset codificacion = StandardCharsets.UTF_8;
+    private String entrada = "-";
+    private boolean usarFormularios;
+    private PaginaCodigos pagina = PaginaCodigos.porDefecto();
+    private String descripcionPerfil = "";
+    private PerfilImpresora perfil = PerfilImpresora.de(pagina);
+    private String impresoras;
+    private PoolImpresoras.Reparto reparto
+            = PoolImpresoras.Reparto.MENOS_PENDIENTES;
+    private String ficheroLogo;
+    private int anchoLogo = GraficoEPL.ANCHO;
+    private int logoX = GraficoEPL.POSICION_X;
+    private int logoY = GraficoEPL.POSICION_Y;
+    private double velocidad;
+    private int largo = EtiquetasGUI.ALTO_ETIQUETA;
+    private int bufferImpresora = SalidaRitmo.BUFFER_IMPRESORA;
+    private int hilos = 1;
+    // tiempo de codificación en los hilos, para el resumen.
+    private long nanosCodificacion;
+    // salidas que van al ritmo de la impresora, para el resumen.
+    private final List<SalidaRitmo> acompasadas = new ArrayList<>();
+
+    private long etiquetas;
+    private long errores;
+    // etiquetas que no se han podido imprimir en ninguna impresora.
+    private long fallidas;
+    private long trabajos;
+
+    /**
+     * @param args los argumentos de la linea de comandos.
+     */
+    public static void main(String[] args) {
+        EtiquetasLote lote = new EtiquetasLote();
+        try {
+            lote.leerArgumentos(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Uso: EtiquetasLote [-impresora NOMBRE] "
+                    + "[-separador C] [-trozo N] [-fichero RUTA] [-salida DESC] "
+                    + "[-codificacion NOMBRE] [-formularios] [-pagina N] "
+                    + "[-perfil DESC] "
+                    + "[-impresoras LISTA] [-reparto MODO] [-logo FICHERO] "
+                    + "[-logo-ancho N] [-logo-posicion X,Y] [-velocidad N] "
+                    + "[-largo N] [-buffer-impresora N] [-hilos N] "
+                    + "[fichero | -]");
+            System.exit(2);
+        }
+        try {
+            lote.ejecutar();
+        } catch (IOException ex) {
+            System.err.println("ERROR: " + ex.getMessage());
+            System.exit(1);
+        }
+        System.exit(lote.errores == 0 && lote.fallidas == 0 ? 0 : 1);
+    }
+
+    private void leerArgumentos(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-") || arg.equals("-")) {
+                entrada = arg;
+                continue;
+            }
+            if (arg.equals("-formularios")) {
+                usarFormularios = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Falta el valor de " + arg);
+            }
+            String valor = args[++i];
+            switch (arg) {
+                case "-impresora":
+                    salida = "cola:" + valor;
+                    break;
+                case "-salida":
+                    salida = valor;
+                    break;
+                case "-separador":
+                    separador = valor.equalsIgnoreCase("tab")
+                            ? '\t' : valor.charAt(0);
+                    break;
+                case "-trozo":
+                    etiquetasPorTrabajo = Long.parseLong(valor);
+                    break;
+                case "-fichero":
+                    salida = valor.equals("-") ? valor : "fichero:" + valor;
+                    break;
+                case "-codificacion":
+                    codificacion = Charset.forName(valor);
+                    break;
+                case "-pagina":
+                    pagina = PaginaCodigos.obtener(valor);
+                    break;
+                case "-perfil":
+                    descripcionPerfil = valor;
+                    break;
+                case "-impresoras":
+                    impresoras = valor;
+                    break;
+                case "-reparto":
+                    reparto = PoolImpresoras.Reparto.valueOf(
+                            valor.toUpperCase(Locale.ROOT));
+                    break;
+                case "-logo":
+                    ficheroLogo = valor;
+                    break;
+                case "-velocidad":
+                    velocidad = Double.parseDouble(valor);
+                    break;
+                case "-largo":
+                    largo = Integer.parseInt(valor);
+                    break;
+                case "-buffer-impresora":
+                    bufferImpresora = Integer.parseInt(valor);
+                    break;
+                case "-hilos":
+                    hilos = Integer.parseInt(valor);
+                    if (hilos < 0) {
+                        throw new IllegalArgumentException(
+                                "Número de hilos no válido: " + valor);
+                    }
+                    if (hilos == 0) {
+                        hilos = Runtime.getRuntime().availableProcessors();
+                    }
+                    break;
+                case "-logo-ancho":
+                    anchoLogo = Integer.parseInt(valor);
+                    break;
+                case "-logo-posicion":
+                    String[] posicion = valor.split(",");
+                    if (posicion.length != 2) {
+                        throw new IllegalArgumentException(
+                                "Posición no válida: " + valor);
+                    }
+                    logoX = Integer.parseInt(posicion[0].trim());
+                    logoY = Integer.parseInt(posicion[1].trim());
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Opción desconocida: " + arg);
+            }
+        }
+        perfil = PerfilImpresora.leer(descripcionPerfil, pagina);
+    }
+
+    /**
+     * @return el logotipo de la opción -logo, convertido ó leído de la
+     * caché, ó null si no se ha pedido.
+     */
+    private GraficoEPL cargarLogo() throws IOException {
+        if (ficheroLogo == null) {
+            return null;
+        }
+        return GraficoEPL.cargar(ficheroLogo, anchoLogo, GraficoEPL.CACHE)
+                .enPosicion(logoX, logoY);
+    }
+
+    /**
+     * Este método lee todas las etiquetas y las imprime.
+     *
+     * @throws IOException si hay un error de lectura ó de impresión.
+     */
+    public void ejecutar() throws IOException {
+        if (impresoras != null) {
+            ejecutarEnGrupo();
+            return;
+        }
+        if (hilos > 1 && !usarFormularios) {
+            ejecutarEnParalelo();
+            return;
+        }
+        long inicio = System.nanoTime();
+        MetricasImpresion metricas = MetricasImpresion.getInstancia();
+        metricas.iniciar();
+        InputStream in = entrada.equals("-")
+                ? System.in : new FileInputStream(entrada);
+        Etiqueta etiqueta = new Etiqueta();
+        CodificadorEPL codificador = new CodificadorEPL(pagina);
+        EstadoImpresora estado = new EstadoImpresora();
+        GraficoEPL logo = cargarLogo();
+        codificador.setLogo(logo);
+        try (LectorEtiquetas lector = new LectorEtiquetas(
+                new InputStreamReader(in, codificacion), separador);
+                SalidaImpresion destino = acompasar(
+                        SalidaImpresion.crear(salida,
+                                RegistroImpresoras.SIN_CADUCIDAD))) {
+            long enTrabajo = 0;
+            // datos del trabajo actual para las métricas.
+            long copias = 0;
+            long bytes = 0;
+            long nanosEnvio = 0;
+            try {
+                while (true) {
+                    try {
+                        if (!lector.leer(etiqueta)) {
+                            break;
+                        }
+                    } catch (IllegalArgumentException ex) {
+                        errores++;
+                        System.err.println(ex.getMessage());
+                        continue;
+                    }
+                    if (etiqueta.isVacia()) {
+                        continue;
+                    }
+                    if (enTrabajo == 0) {
+                        // el perfil y la página de códigos sólo van en el
+                        // primer trabajo, la impresora los guarda.
+                        trabajos++;
+                        byte[] comandos = estado.cambiarPerfil(perfil);
+                        destino.enviar(ByteBuffer.wrap(comandos));
+                        bytes += comandos.length;
+                        if (logo != null && !estado.isGraficoGuardado(
+                                logo.getNombre())) {
+                            destino.enviar(ByteBuffer.wrap(
+                                    logo.getDefinicion()));
+                            bytes += logo.getDefinicion().length;
+                        }
+                    }
+                    long t0 = System.nanoTime();
+                    ByteBuffer datos = usarFormularios
+                            ? codificador.codificar(etiqueta, estado)
+                            : codificador.codificar(etiqueta);
+                    long t1 = System.nanoTime();
+                    bytes += datos.remaining();
+                    destino.enviar(datos);
+                    nanosEnvio += System.nanoTime() - t1;
+                    metricas.registrarCodificacion(t1 - t0);
+                    copias += etiqueta.getCopias();
+                    etiquetas++;
+                    enTrabajo++;
+                    if (etiquetasPorTrabajo > 0
+                            && enTrabajo >= etiquetasPorTrabajo) {
+                        long t2 = System.nanoTime();
+                        destino.terminarTrabajo();
+                        metricas.registrarEnvio(nanosEnvio
+                                + System.nanoTime() - t2);
+                        metricas.registrarTrabajo(enTrabajo, copias, bytes);
+                        enTrabajo = 0;
+                        copias = 0;
+                        bytes = 0;
+                        nanosEnvio = 0;
+                    }
+                }
+            } catch (IOException ex) {
+                metricas.registrarFallo();
+                throw ex;
+            } finally {
+                if (enTrabajo > 0) {
+                    long t2 = System.nanoTime();
+                    destino.terminarTrabajo();
+                    metricas.registrarEnvio(nanosEnvio
+                            + System.nanoTime() - t2);
+                    metricas.registrarTrabajo(enTrabajo, copias, bytes);
+                }
+            }
+        }
+        mostrarResumen(inicio, metricas);
+    }
+
+    /**
+     * Este método lee todas las etiquetas y las codifica en varios hilos
+     * con CodificadorParalelo. Los bloques codificados se envían en orden
+     * y se cortan en trabajos igual que en ejecutar().
+     *
+     * @throws IOException si hay un error de lectura ó de impresión.
+     */
+    private void ejecutarEnParalelo() throws IOException {
+        long inicio = System.nanoTime();
+        MetricasImpresion metricas = MetricasImpresion.getInstancia();
+        metricas.iniciar();
+        InputStream in = entrada.equals("-")
+                ? System.in : new FileInputStream(entrada);
+        GraficoEPL logo = cargarLogo();
+        try (LectorEtiquetas lector = new LectorEtiquetas(
+                new InputStreamReader(in, codificacion), separador);
+                SalidaImpresion destino = acompasar(
+                        SalidaImpresion.crear(salida,
+                                RegistroImpresoras.SIN_CADUCIDAD))) {
+            Emision emision = new Emision(destino, logo, metricas);
+            try (CodificadorParalelo codificador = new CodificadorParalelo(
+                    hilos, pagina, logo, emision)) {
+                try {
+                    while (true) {
+                        Etiqueta etiqueta = codificador.getEtiquetaLibre();
+                        try {
+                            if (!lector.leer(etiqueta)) {
+                                break;
+                            }
+                        } catch (IllegalArgumentException ex) {
+                            errores++;
+                            System.err.println(ex.getMessage());
+                            continue;
+                        }
+                        if (!etiqueta.isVacia()) {
+                            codificador.anadir();
+                            etiquetas++;
+                        }
+                    }
+                    codificador.terminar();
+                } catch (IOException ex) {
+                    metricas.registrarFallo();
+                    throw ex;
+                } finally {
+                    emision.terminarTrabajo();
+                    nanosCodificacion = codificador.getNanosCodificacion();
+                }
+            }
+        }
+        mostrarResumen(inicio, metricas);
+    }
+
+    /**
+     * Envía a la salida los bloques que entrega el CodificadorParalelo:
+     * empieza cada trabajo con el perfil si ha cambiado (y el logotipo si
+     * no está en la impresora) y lo termina cada etiquetasPorTrabajo
+     * etiquetas.
+     */
+    private class Emision implements CodificadorParalelo.Emisor {
+
+        private final SalidaImpresion destino;
+        private final GraficoEPL logo;
+        private final MetricasImpresion metricas;
+        private final EstadoImpresora estado = new EstadoImpresora();
+        // datos del trabajo actual para las métricas.
+        private long enTrabajo;
+        private long copias;
+        private long bytes;
+        private long nanosEnvio;
+
+        Emision(SalidaImpresion destino, GraficoEPL logo,
+                MetricasImpresion metricas) {
+            this.destino = destino;
+            this.logo = logo;
+            this.metricas = metricas;
+        }
+
+        @Override
+        public void emitir(CodificadorParalelo.Bloque bloque)
+                throws IOException {
+            // parte del bloque que todavía no se ha enviado.
+            int desde = 0;
+            for (int i = 0; i < bloque.getNumero(); i++) {
+                if (enTrabajo == 0) {
+                    trabajos++;
+                    enviar(ByteBuffer.wrap(estado.cambiarPerfil(perfil)));
+                    if (logo != null && !estado.isGraficoGuardado(
+                            logo.getNombre())) {
+                        enviar(ByteBuffer.wrap(logo.getDefinicion()));
+                    }
+                }
+                copias += bloque.getEtiqueta(i).getCopias();
+                enTrabajo++;
+                if (etiquetasPorTrabajo > 0
+                        && enTrabajo >= etiquetasPorTrabajo) {
+                    enviar(bloque.getDatos(desde, bloque.getFin(i)));
+                    desde = bloque.getFin(i);
+                    terminarTrabajo();
+                }
+            }
+            if (desde < bloque.getLongitud()) {
+                enviar(bloque.getDatos(desde, bloque.getLongitud()));
+            }
+        }
+
+        private void enviar(ByteBuffer datos) throws IOException {
+            long t0 = System.nanoTime();
+            bytes += datos.remaining();
+            destino.enviar(datos);
+            nanosEnvio += System.nanoTime() - t0;
+        }
+
+        /**
+         * Este método termina el trabajo actual, si hay alguno.
+         */
+        void terminarTrabajo() throws IOException {
+            if (enTrabajo == 0) {
+                return;
+            }
+            long t0 = System.nanoTime();
+            destino.terminarTrabajo();
+            metricas.registrarEnvio(nanosEnvio + System.nanoTime() - t0);
+            metricas.registrarTrabajo(enTrabajo, copias, bytes);
+            enTrabajo = 0;
+            copias = 0;
+            bytes = 0;
+            nanosEnvio = 0;
+        }
+    }
+
+    /**
+     * Este método lee todas las etiquetas y las reparte entre las
+     * impresoras del grupo. Cada etiqueta es un trabajo de la cola de una
+     * impresora; las colas juntan en un trabajo de impresión las etiquetas
+     * que tienen esperando. Termina cuando se han impreso todas.
+     *
+     * @throws IOException si hay un error de lectura.
+     */
+    private void ejecutarEnGrupo() throws IOException {
+        long inicio = System.nanoTime();
+        MetricasImpresion metricas = MetricasImpresion.getInstancia();
+        metricas.iniciar();
+        // las filas de un fichero casi nunca se repiten: la caché de
+        // etiquetas sólo gastaría memoria.
+        CacheEtiquetas.getInstancia().setCapacidad(0);
+        List<SalidaImpresion> salidas = PoolImpresoras.crearSalidas(
+                impresoras, RegistroImpresoras.SIN_CADUCIDAD);
+        salidas.replaceAll(this::acompasar);
+        PoolImpresoras pool = new PoolImpresoras(salidas, CAPACIDAD_GRUPO,
+                reparto);
+        pool.setUsarFormularios(usarFormularios);
+        pool.setPerfil(perfil);
+        pool.setLogo(cargarLogo());
+        pool.setAgrupacion(0, ColaImpresion.MAX_AGRUPADOS);
+        // se libera un permiso por cada etiqueta terminada. Un trabajo sólo
+        // cuenta la primera vez que se ve terminado, aunque llegue más de un
+        // aviso con el mismo estado.
+        Semaphore terminadas = new Semaphore(0);
+        AtomicLong conError = new AtomicLong();
+        Set<Long> sinTerminar = ConcurrentHashMap.newKeySet();
+        pool.addOyente(trabajo -> {
+            TrabajoImpresion.Estado estado = trabajo.getEstado();
+            if (estado != TrabajoImpresion.Estado.ERROR
+                    && estado != TrabajoImpresion.Estado.IMPRESO
+                    && estado != TrabajoImpresion.Estado.CANCELADO) {
+                return;
+            }
+            if (!sinTerminar.remove(trabajo.getId())) {
+                return;
+            }
+            if (estado == TrabajoImpresion.Estado.ERROR) {
+                System.err.println(trabajo);
+                conError.incrementAndGet();
+            }
+            terminadas.release();
+        });
+        InputStream in = entrada.equals("-")
+                ? System.in : new FileInputStream(entrada);
+        try (LectorEtiquetas lector = new LectorEtiquetas(
+                new InputStreamReader(in, codificacion), separador)) {
+            Etiqueta etiqueta = new Etiqueta();
+            while (true) {
+                try {
+                    if (!lector.leer(etiqueta)) {
+                        break;
+                    }
+                } catch (IllegalArgumentException ex) {
+                    errores++;
+                    System.err.println(ex.getMessage());
+                    continue;
+                }
+                if (etiqueta.isVacia()) {
+                    continue;
+                }
+                // el lector reutiliza la etiqueta, la cola necesita una
+                // propia.
+                Etiqueta copia = new Etiqueta();
+                copia.copiar(etiqueta);
+                TrabajoImpresion trabajo = new TrabajoImpresion(
+                        "fila " + lector.getNumeroFila(), copia);
+                sinTerminar.add(trabajo.getId());
+                pool.enviarEsperando(trabajo);
+                etiquetas++;
+            }
+            terminadas.acquire((int) Math.min(etiquetas, Integer.MAX_VALUE));
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Impresión interrumpida");
+        } finally {
+            pool.cerrar();
+        }
+        fallidas = conError.get();
+        trabajos = metricas.getTrabajos();
+        mostrarResumen(inicio, metricas);
+    }
+
+    /**
+     * Este método pone a la salida el ritmo de la impresora si se ha dado
+     * la opción -velocidad.
+     */
+    private SalidaImpresion acompasar(SalidaImpresion destino) {
+        SalidaImpresion resultado = SalidaRitmo.acompasar(destino, velocidad,
+                largo + SalidaRitmo.SEPARACION, bufferImpresora);
+        if (resultado instanceof SalidaRitmo) {
+            acompasadas.add((SalidaRitmo) resultado);
+        }
+        return resultado;
+    }
+
+    private void mostrarResumen(long inicio, MetricasImpresion metricas) {
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        System.err.printf("%d etiquetas en %d trabajos, %d filas erróneas, "
+                + "%.2f s (%.0f etiquetas/s)%n", etiquetas, trabajos, errores,
+                segundos, segundos > 0 ? etiquetas / segundos : 0);
+        if (fallidas > 0) {
+            System.err.println(fallidas + " etiquetas sin imprimir");
+        }
+        if (nanosCodificacion > 0) {
+            // el tiempo de codificación sumado de todos los hilos dividido
+            // por el tiempo total es cuántos hilos han trabajado a la vez.
+            System.err.printf("codificación en %d hilos: %.2f s de hilo, "
+                    + "%.1f hilos ocupados de media%n", hilos,
+                    nanosCodificacion / 1e9,
+                    nanosCodificacion / 1e9 / segundos);
+        }
+        for (SalidaRitmo ritmo : acompasadas) {
+            System.err.printf("%s: %.1f s esperando a la impresora, ritmo "
+                    + "real %.2f veces el calculado%n", ritmo.getDescripcion(),
+                    ritmo.getNanosEspera() / 1e9, ritmo.getFactor());
+        }
+        System.err.println(metricas.getResumen());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import javax.print.Doc;
+import javax.print.DocFlavor;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
+import javax.print.PrintService;
+import javax.print.SimpleDoc;
+
+/**
+ * Esta clase es un OutputStream que envía lo que se escribe en él a un único
+ * trabajo de impresión mientras se va escribiendo. El trabajo lee los datos
+ * de una tubería en otro hilo, así que nunca hace falta tener todo el
+ * trabajo en memoria. El trabajo termina al cerrar el flujo.
+ */
+public class FlujoImpresion extends OutputStream {
+
+    // tamaño de la tubería entre quien escribe y el trabajo de impresión.
+    private static final int TAMANO_TUBERIA = 64 * 1024;
+
+    private final PipedOutputStream salida;
+    private final Thread hilo;
+    private volatile Exception error;
+    private boolean cerrado;
+
+    /**
+     * Constructor. Crea el trabajo de impresión y empieza a imprimir en
+     * segundo plano.
+     *
+     * @param impresora la impresora donde se imprime.
+     * @throws IOException si no se puede crear la tubería.
+     */
+    public FlujoImpresion(PrintService impresora) throws IOException {
+        PipedInputStream entrada = new PipedInputStream(TAMANO_TUBERIA);
+        salida = new PipedOutputStream(entrada);
+        DocPrintJob pj = impresora.createPrintJob();
+        Doc doc = new SimpleDoc(entrada, DocFlavor.INPUT_STREAM.AUTOSENSE,
+                null);
+        hilo = new Thread(() -> {
+            try {
+                pj.print(doc, null);
+            } catch (PrintException | RuntimeException ex) {
+                error = ex;
+            } finally {
+                try {
+                    // si el trabajo falla a medias no dejamos bloqueado
+                    // a quien escribe.
+                    entrada.close();
+                } catch (IOException ex) {
+                    // no hay nada más que hacer.
+                }
+            }
+        }, "FlujoImpresion");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        comprobarError();
+        salida.write(b);
+    }
+
+    @Override
+    public void write(byte[] datos, int desde, int longitud)
+            throws IOException {
+        comprobarError();
+        salida.write(datos, desde, longitud);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        salida.flush();
+    }
+
+    /**
+     * Este método cierra el flujo y espera a que el trabajo de impresión
+     * termine.
+     *
+     * @throws IOException si el trabajo de impresión ha fallado.
+     */
+    @Override
+    public void close() throws IOException {
+        if (cerrado) {
+            return;
+        }
+        cerrado = true;
+        salida.close();
+        try {
+            hilo.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrumpido esperando a la impresora", ex);
+        }
+        comprobarError();
+    }
+
+    private void comprobarError() throws IOException {
+        Exception ex = error;
+        if (ex != null) {
+            throw new IOException("Error al imprimir: " + ex.getMessage(), ex);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Esta clase es un formulario EPL almacenado. El formulario guarda en la
+ * impresora el diseño de la etiqueta (los comandos 'A' con su posición,
+ * rotación, fuente, expansión y formato) y en lugar del texto usa variables
+ * 'V'. Una vez guardado, para cada etiqueta sólo hay que enviar el nombre
+ * del formulario, el texto de cada linea y el comando 'P':
+ * <pre>
+ * FR"nombre"
+ * ?
+ * texto linea 1
+ * texto linea 2
+ * P1
+ * </pre>
+ * Hay un formulario por cada combinación de opciones y de lineas con texto,
+ * y su nombre depende de esa combinación, así que al cambiar las opciones
+ * se usa otro formulario.
+ * Las etiquetas con contadores (ver SerieEPL) usan otro tipo de formulario,
+ * que junta en cada comando 'A' variables con el texto fijo y contadores
+ * 'C'. Después de las variables se envía el primer número de cada contador:
+ * <pre>
+ * FR"nombre"
+ * ?
+ * Lote
+ * 0001
+ * P500
+ * </pre>
+ */
+public final class FormularioEPL {
+
+    /** Longitud máxima del texto de una variable EPL. */
+    public static final int LONGITUD_MAXIMA = 99;
+
+    // una entrada por cada plantilla y cada combinación de lineas con texto.
+    private static final int COMBINACIONES_LINEAS = 1 << Etiqueta.NUM_LINEAS;
+    private static final FormularioEPL[] FORMULARIOS
+            = new FormularioEPL[PlantillaEPL.NUM_PLANTILLAS
+            * COMBINACIONES_LINEAS];
+
+    // formularios de etiquetas con contadores, por su estructura.
+    private static final int MAX_SERIES = 64;
+    private static final Map<String, FormularioEPL> SERIES
+            = new LinkedHashMap<String, FormularioEPL>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, FormularioEPL> eldest) {
+            return size() > MAX_SERIES;
+        }
+    };
+    // los nombres no se repiten, aunque el formulario salga de la lista.
+    private static int numeroSeries;
+
+    private final String nombre;
+    private final byte[] definicion;
+    private final byte[] cabecera;
+
+    private FormularioEPL(String nombre, PlantillaEPL plantilla, int lineas) {
+        this.nombre = nombre;
+        ByteArrayOutputStream def = new ByteArrayOutputStream();
+        escribir(def, "FK\"" + nombre + "\"\n");// borra la versión anterior
+        escribir(def, "FS\"" + nombre + "\"\n");// empieza el formulario
+        int variables = 0;
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            if ((lineas & (1 << i)) != 0) {
+                escribir(def, String.format("V%02d,%d,N,\"Linea %d\"\n",
+                        variables++, LONGITUD_MAXIMA, i + 1));
+            }
+        }
+        for (int i = 0; i < variables; i++) {
+            // el prefijo de la plantilla sin la comilla de apertura.
+            byte[] prefijo = plantilla.getPrefijo(i);
+            def.write(prefijo, 0, prefijo.length - 1);
+            escribir(def, String.format("V%02d\n", i));
+        }
+        escribir(def, "FE\n");// termina el formulario
+        this.definicion = def.toByteArray();
+        this.cabecera = ("FR\"" + nombre + "\"\n?\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private FormularioEPL(String nombre, PlantillaEPL plantilla,
+            SerieEPL serie) {
+        this.nombre = nombre;
+        ByteArrayOutputStream def = new ByteArrayOutputStream();
+        escribir(def, "FK\"" + nombre + "\"\n");
+        escribir(def, "FS\"" + nombre + "\"\n");
+        for (int i = 0; i < serie.getTextos().size(); i++) {
+            escribir(def, String.format("V%02d,%d,N,\"Texto %d\"\n",
+                    i, LONGITUD_MAXIMA, i + 1));
+        }
+        List<String> inicios = serie.getInicios();
+        for (int i = 0; i < inicios.size(); i++) {
+            // 'N' sin justificar: el número conserva los ceros iniciales.
+            escribir(def, String.format("C%d,%d,N,%s,\"Contador %d\"\n",
+                    i, inicios.get(i).length(), serie.getPasos().get(i),
+                    i + 1));
+        }
+        List<int[]> campos = serie.getCampos();
+        for (int i = 0; i < campos.size(); i++) {
+            byte[] prefijo = plantilla.getPrefijo(i);
+            def.write(prefijo, 0, prefijo.length - 1);
+            for (int campo : campos.get(i)) {
+                escribir(def, campo >= 0 ? String.format("V%02d", campo)
+                        : "C" + (-1 - campo));
+            }
+            escribir(def, "\n");
+        }
+        escribir(def, "FE\n");
+        this.definicion = def.toByteArray();
+        this.cabecera = ("FR\"" + nombre + "\"\n?\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void escribir(ByteArrayOutputStream salida, String texto) {
+        byte[] bytes = texto.getBytes(StandardCharsets.US_ASCII);
+        salida.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Este método devuelve el formulario para las opciones y las lineas con
+     * texto de la etiqueta, ó null si la etiqueta no se puede imprimir con
+     * un formulario (por ejemplo, porque alguna linea es demasiado larga).
+     *
+     * @param etiqueta la etiqueta.
+     * @return el formulario ó null.
+     */
+    public static FormularioEPL obtener(Etiqueta etiqueta) {
+        int lineas = 0;
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            CharSequence linea = etiqueta.getLinea(i);
+            if (linea.length() > LONGITUD_MAXIMA) {
+                return null;
+            }
+            for (int j = 0; j < linea.length(); j++) {
+                char c = linea.charAt(j);
+                if (c == '\n' || c == '\r') {
+                    // el salto de linea separa las variables.
+                    return null;
+                }
+            }
+            if (linea.length() > 0) {
+                lineas |= 1 << i;
+            }
+        }
+        int indicePlantilla = PlantillaEPL.indice(etiqueta);
+        int indice = indicePlantilla * COMBINACIONES_LINEAS + lineas;
+        FormularioEPL formulario = FORMULARIOS[indice];
+        if (formulario == null) {
+            // el nombre de un formulario puede tener hasta 8 caracteres.
+            String nombre = "E" + Integer.toHexString(indice).toUpperCase();
+            formulario = new FormularioEPL(nombre,
+                    PlantillaEPL.obtener(etiqueta), lineas);
+            FORMULARIOS[indice] = formulario;
+        }
+        return formulario;
+    }
+
+    /**
+     * Este método devuelve el formulario para una etiqueta con contadores.
+     *
+     * @param etiqueta la etiqueta.
+     * @param serie los contadores de la etiqueta.
+     * @return el formulario.
+     */
+    static FormularioEPL obtener(Etiqueta etiqueta, SerieEPL serie) {
+        synchronized (SERIES) {
+            FormularioEPL formulario = SERIES.get(serie.getEstructura());
+            if (formulario == null) {
+                String nombre = "S" + Integer.toHexString(++numeroSeries)
+                        .toUpperCase();
+                formulario = new FormularioEPL(nombre,
+                        PlantillaEPL.obtener(etiqueta), serie);
+                SERIES.put(serie.getEstructura(), formulario);
+            }
+            return formulario;
+        }
+    }
+
+    public String getNombre() {
+        return nombre;
+    }
+
+    /**
+     * @return los comandos que guardan el formulario en la impresora.
+     */
+    public byte[] getDefinicion() {
+        return definicion;
+    }
+
+    /**
+     * @return los comandos que recuperan el formulario y piden las variables.
+     */
+    public byte[] getCabecera() {
+        return cabecera;
+    }
+
+    /**
+     * Este método devuelve los comandos para borrar un formulario de la
+     * impresora.
+     *
+     * @param nombre el nombre del formulario.
+     * @return los comandos EPL.
+     */
+    public static byte[] getBorrado(String nombre) {
+        return ("FK\"" + nombre + "\"\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Esta clase es un gráfico (por ejemplo el logotipo de la empresa) guardado
+ * en la memoria de gráficos de la impresora. La imagen se convierte una sola
+ * vez a un mapa de bits de 1 bit con difusión de error (Floyd-Steinberg) y
+ * se guarda en disco en formato PCX, que es el que admite el comando GM. El
+ * nombre del fichero y el del gráfico en la impresora salen del resumen
+ * SHA-256 de la imagen y del ancho, así que si no cambia la imagen no se
+ * vuelve a convertir. El gráfico se envía una vez a cada impresora
+ * (getDefinicion(), ver EstadoImpresora) y en cada etiqueta sólo se imprime
+ * por su nombre con GG (getComandoImprimir()), en lugar de mandar el mapa
+ * de bits entero con GW en cada trabajo.
+ */
+public final class GraficoEPL {
+
+    /** Directorio por defecto de los gráficos convertidos. */
+    public static final Path CACHE = Paths.get(System.getProperty("user.home"),
+            ".etiquetas", "graficos");
+
+    /** Ancho por defecto del logotipo, en puntos (2 cm a 203 ppp). */
+    public static final int ANCHO = 160;
+    /** Posición por defecto del logotipo: arriba a la derecha. */
+    public static final int POSICION_X = 630;
+    public static final int POSICION_Y = 10;
+
+    private static final int TAMANO_CABECERA = 128;
+
+    private final String nombre;
+    private final byte[] pcx;
+    private final int ancho;
+    private final int alto;
+    private final byte[] definicion;
+    private final int x;
+    private final int y;
+    private final byte[] comandoImprimir;
+
+    private GraficoEPL(String nombre, byte[] pcx, int x, int y) {
+        this.nombre = nombre;
+        this.pcx = pcx;
+        this.ancho = leerCorto(pcx, 8) - leerCorto(pcx, 4) + 1;
+        this.alto = leerCorto(pcx, 10) - leerCorto(pcx, 6) + 1;
+        ByteArrayOutputStream def = new ByteArrayOutputStream();
+        escribir(def, "GK\"" + nombre + "\"\n");// borra la versión anterior
+        escribir(def, "GM\"" + nombre + "\"" + pcx.length + "\n");
+        def.write(pcx, 0, pcx.length);
+        escribir(def, "\n");
+        this.definicion = def.toByteArray();
+        this.x = x;
+        this.y = y;
+        this.comandoImprimir = ("GG" + x + "," + y + ",\"" + nombre + "\"\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Este método carga un gráfico a partir de un fichero de imagen ó, si no
+     * existe el fichero, de un recurso del programa (por ejemplo
+     * "recursos/zebra.jpeg"). Si la imagen ya se había convertido se lee de
+     * la caché.
+     *
+     * @param imagen el fichero ó el recurso con la imagen (JPEG, PNG, GIF ó
+     * BMP).
+     * @param anchoPuntos el ancho del gráfico en puntos de la impresora; el
+     * alto se calcula para no deformar la imagen.
+     * @param cache el directorio donde se guardan los gráficos convertidos.
+     * @return el gráfico, en la posición 0,0.
+     * @throws IOException si no se puede leer la imagen.
+     */
+    public static GraficoEPL cargar(String imagen, int anchoPuntos, Path cache)
+            throws IOException {
+        Path fichero = Paths.get(imagen);
+        if (Files.isRegularFile(fichero)) {
+            return cargar(Files.readAllBytes(fichero), anchoPuntos, cache);
+        }
+        try (InputStream recurso
+                = GraficoEPL.class.getResourceAsStream(imagen)) {
+            if (recurso == null) {
+                throw new IOException("No existe la imagen " + imagen);
+            }
+            ByteArrayOutputStream datos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int leidos;
+            while ((leidos = recurso.read(buffer)) > 0) {
+                datos.write(buffer, 0, leidos);
+            }
+            return cargar(datos.toByteArray(), anchoPuntos, cache);
+        }
+    }
+
+    /**
+     * Este método carga un gráfico a partir del contenido de una imagen. Si
+     * la imagen ya se había convertido con el mismo ancho se lee de la
+     * caché; si no, se convierte y se guarda en ella.
+     *
+     * @param imagen el contenido del fichero de imagen.
+     * @param anchoPuntos el ancho del gráfico en puntos de la impresora.
+     * @param cache el directorio donde se guardan los gráficos convertidos.
+     * @return el gráfico, en la posición 0,0.
+     * @throws IOException si la imagen no es válida ó no se puede escribir
+     * en la caché.
+     */
+    public static GraficoEPL cargar(byte[] imagen, int anchoPuntos, Path cache)
+            throws IOException {
+        if (anchoPuntos < 1 || anchoPuntos > 4000) {
+            throw new IllegalArgumentException(
+                    "Ancho de gráfico no válido: " + anchoPuntos);
+        }
+        String resumen = resumen(imagen, anchoPuntos);
+        // los nombres de gráfico EPL tienen como mucho 8 caracteres.
+        String nombre = "G" + resumen.substring(0, 7).toUpperCase();
+        Path fichero = cache.resolve(resumen + ".pcx");
+        if (Files.isRegularFile(fichero)) {
+            byte[] pcx = Files.readAllBytes(fichero);
+            if (pcx.length > TAMANO_CABECERA && pcx[0] == 0x0A) {
+                return new GraficoEPL(nombre, pcx, 0, 0);
+            }
+        }
+        BufferedImage original = ImageIO.read(new ByteArrayInputStream(imagen));
+        if (original == null) {
+            throw new IOException("Formato de imagen desconocido");
+        }
+        byte[] pcx = convertir(original, anchoPuntos);
+        Files.createDirectories(cache);
+        // se escribe en otro fichero y se renombra para que nunca se lea
+        // un fichero a medias.
+        Path temporal = Files.createTempFile(cache, resumen, ".tmp");
+        try {
+            Files.write(temporal, pcx);
+            Files.move(temporal, fichero, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+        return new GraficoEPL(nombre, pcx, 0, 0);
+    }
+
+    /**
+     * Este método crea un gráfico a partir de su nombre y su fichero PCX, por
+     * ejemplo los que se guardan en el diario de trabajos.
+     *
+     * @return el gráfico, en la posición 0,0.
+     */
+    static GraficoEPL deGuardado(String nombre, byte[] pcx) {
+        return new GraficoEPL(nombre, pcx, 0, 0);
+    }
+
+    /**
+     * @param x la posición horizontal del gráfico en la etiqueta, en puntos.
+     * @param y la posición vertical del gráfico en la etiqueta, en puntos.
+     * @return el mismo gráfico en otra posición.
+     */
+    public GraficoEPL enPosicion(int x, int y) {
+        return new GraficoEPL(nombre, pcx, x, y);
+    }
+
+    /**
+     * @return el nombre del gráfico en la memoria de la impresora.
+     */
+    public String getNombre() {
+        return nombre;
+    }
+
+    public int getAncho() {
+        return ancho;
+    }
+
+    public int getAlto() {
+        return alto;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return el fichero PCX del gráfico. La matriz no se debe modificar.
+     */
+    byte[] getPcx() {
+        return pcx;
+    }
+
+    /**
+     * @return los comandos GK y GM que guardan el gráfico en la impresora.
+     */
+    public byte[] getDefinicion() {
+        return definicion;
+    }
+
+    /**
+     * @return el comando GG que imprime el gráfico en su posición.
+     */
+    public byte[] getComandoImprimir() {
+        return comandoImprimir;
+    }
+
+    /**
+     * Este método escala la imagen al ancho pedido, la pasa a grises sobre
+     * fondo blanco y la reduce a 1 bit con difusión de error. Devuelve el
+     * fichero PCX monocromo, con el bit a 0 para los puntos negros.
+     */
+    static byte[] convertir(BufferedImage original, int anchoPuntos) {
+        int alto = Math.max(1, (int) Math.round((double) original.getHeight()
+                * anchoPuntos / original.getWidth()));
+        BufferedImage gris = new BufferedImage(anchoPuntos, alto,
+                BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = gris.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                RenderingHints.VALUE_RENDER_QUALITY);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, anchoPuntos, alto);
+        g.drawImage(original, 0, 0, anchoPuntos, alto, null);
+        g.dispose();
+        // Floyd-Steinberg: el error de cada punto se reparte entre el de la
+        // derecha y los tres de la fila siguiente.
+        int[] actual = new int[anchoPuntos + 2];
+        int[] siguiente = new int[anchoPuntos + 2];
+        int porLinea = bytesPorLinea(anchoPuntos);
+        // todos los bits a 1 (blanco), incluido el relleno de cada linea.
+        byte[] linea = new byte[porLinea];
+        ByteArrayOutputStream pcx = new ByteArrayOutputStream();
+        escribirCabecera(pcx, anchoPuntos, alto, porLinea);
+        byte[] grises = new byte[anchoPuntos];
+        for (int fila = 0; fila < alto; fila++) {
+            gris.getRaster().getDataElements(0, fila, anchoPuntos, 1, grises);
+            Arrays.fill(linea, (byte) 0xFF);
+            for (int col = 0; col < anchoPuntos; col++) {
+                int valor = (grises[col] & 0xFF) + actual[col + 1];
+                int error;
+                if (valor < 128) {
+                    linea[col >> 3] &= ~(0x80 >> (col & 7));
+                    error = valor;
+                } else {
+                    error = valor - 255;
+                }
+                actual[col + 2] += error * 7 / 16;
+                siguiente[col] += error * 3 / 16;
+                siguiente[col + 1] += error * 5 / 16;
+                siguiente[col + 2] += error / 16;
+            }
+            comprimir(pcx, linea);
+            int[] t = actual;
+            actual = siguiente;
+            siguiente = t;
+            Arrays.fill(siguiente, 0);
+        }
+        return pcx.toByteArray();
+    }
+
+    /**
+     * Este método escribe la cabecera de 128 bytes de un PCX monocromo.
+     */
+    private static void escribirCabecera(ByteArrayOutputStream pcx, int ancho,
+            int alto, int porLinea) {
+        byte[] c = new byte[TAMANO_CABECERA];
+        c[0] = 0x0A;// fabricante: ZSoft
+        c[1] = 5;// versión
+        c[2] = 1;// compresión RLE
+        c[3] = 1;// bits por punto
+        escribirCorto(c, 8, ancho - 1);// xmax (xmin e ymin son 0)
+        escribirCorto(c, 10, alto - 1);// ymax
+        escribirCorto(c, 12, VistaPreviaEPL.PPP);// puntos por pulgada
+        escribirCorto(c, 14, VistaPreviaEPL.PPP);
+        // paleta: el color 0 negro y el 1 blanco.
+        c[19] = (byte) 0xFF;
+        c[20] = (byte) 0xFF;
+        c[21] = (byte) 0xFF;
+        c[65] = 1;// planos
+        escribirCorto(c, 66, porLinea);
+        escribirCorto(c, 68, 1);// paleta en blanco y negro
+        pcx.write(c, 0, c.length);
+    }
+
+    /**
+     * Este método comprime una linea con el RLE de PCX: las repeticiones se
+     * escriben como 0xC0 + número de veces y el byte, y los bytes que tienen
+     * los dos bits altos a 1 siempre van con su contador.
+     */
+    private static void comprimir(ByteArrayOutputStream pcx, byte[] linea) {
+        int i = 0;
+        while (i < linea.length) {
+            byte b = linea[i];
+            int veces = 1;
+            while (i + veces < linea.length && linea[i + veces] == b
+                    && veces < 63) {
+                veces++;
+            }
+            if (veces > 1 || (b & 0xC0) == 0xC0) {
+                pcx.write(0xC0 | veces);
+            }
+            pcx.write(b);
+            i += veces;
+        }
+    }
+
+    private static int bytesPorLinea(int ancho) {
+        // PCX pide un número par de bytes por linea.
+        int bytes = (ancho + 7) / 8;
+        return bytes + (bytes & 1);
+    }
+
+    private static String resumen(byte[] imagen, int ancho) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(imagen);
+            sha.update((byte) (ancho >> 8));
+            sha.update((byte) ancho);
+            StringBuilder texto = new StringBuilder();
+            for (byte b : sha.digest()) {
+                texto.append(String.format("%02x", b));
+            }
+            return texto.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // todas las máquinas virtuales tienen SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static int leerCorto(byte[] datos, int pos) {
+        return (datos[pos] & 0xFF) | (datos[pos + 1] & 0xFF) << 8;
+    }
+
+    private static void escribirCorto(byte[] datos, int pos, int valor) {
+        datos[pos] = (byte) valor;
+        datos[pos + 1] = (byte) (valor >> 8);
+    }
+
+    private static void escribir(ByteArrayOutputStream salida, String texto) {
+        byte[] bytes = texto.getBytes(StandardCharsets.US_ASCII);
+        salida.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esta clase es una impresora falsa que escucha en un puerto TCP local como
+ * lo haría una Zebra de red en el puerto 9100. Recibe los comandos EPL, los
+ * comprueba con un EmuladorEPL y cuenta los bytes y las etiquetas (comandos
+ * 'P') recibidas. Sirve para probar y medir las salidas de impresión sin
+ * tener una impresora.
+ *
+ * Si se le da una velocidad se comporta como una impresora lenta: guarda lo
+ * que recibe en un buffer de recepción del tamaño indicado, imprime cada
+ * etiqueta en el tiempo que tardaría la impresora real y contesta "00" a
+ * los comandos ^ee cuando llega a ellos. Lo que no cabe en el buffer se
+ * pierde y se cuenta como desbordamiento, como le pasa a la LP 2844.
+ *
+ * Uso: java -cp EtiquetasGUI.jar com.pacoportela.elco.ImpresoraFalsa [puerto
+ * [velocidad buffer]]
+ */
+public class ImpresoraFalsa implements Closeable {
+
+    private final ServerSocketChannel servidor;
+    private final Thread hilo;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong etiquetas = new AtomicLong();
+    private final AtomicLong conexiones = new AtomicLong();
+    private final AtomicLong desbordados = new AtomicLong();
+    // guarda los formularios y los gráficos de todas las conexiones.
+    private final EmuladorEPL emulador = new EmuladorEPL();
+    private volatile boolean activa = true;
+    // pulgadas por segundo, ó 0 para no simular la impresión.
+    private final double velocidad;
+    private final int capacidad;
+
+    /**
+     * Constructor. Abre el puerto y empieza a aceptar conexiones.
+     *
+     * @param puerto el puerto TCP, ó 0 para usar uno libre cualquiera.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public ImpresoraFalsa(int puerto) throws IOException {
+        this(puerto, 0, 0);
+    }
+
+    /**
+     * Constructor de una impresora falsa que imprime a una velocidad.
+     *
+     * @param puerto el puerto TCP, ó 0 para usar uno libre cualquiera.
+     * @param velocidad la velocidad en pulgadas por segundo, ó 0 para no
+     * simular la impresión.
+     * @param capacidad el tamaño del buffer de recepción en bytes.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public ImpresoraFalsa(int puerto, double velocidad, int capacidad)
+            throws IOException {
+        this.velocidad = velocidad;
+        this.capacidad = capacidad;
+        servidor = ServerSocketChannel.open();
+        servidor.bind(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), puerto));
+        hilo = new Thread(this::aceptar, "ImpresoraFalsa");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    private void aceptar() {
+        while (activa) {
+            try {
+                SocketChannel cliente = servidor.accept();
+                conexiones.incrementAndGet();
+                Runnable tarea = velocidad > 0
+                        ? () -> simular(cliente) : () -> recibir(cliente);
+                Thread lector = new Thread(tarea,
+                        "ImpresoraFalsa-" + conexiones.get());
+                lector.setDaemon(true);
+                lector.start();
+            } catch (IOException ex) {
+                // el servidor se ha cerrado.
+                return;
+            }
+        }
+    }
+
+    /**
+     * Este método lee todo lo que llega por una conexión. El emulador cuenta
+     * como una etiqueta cada comando 'P' (no las lineas de datos de un
+     * formulario que empiezan por 'P').
+     */
+    private void recibir(SocketChannel cliente) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        EmuladorEPL.Lector lector = emulador.nuevoLector(
+                new EmuladorEPL.Oyente() {
+            @Override
+            public void alImprimir(int copias) {
+                etiquetas.incrementAndGet();
+            }
+        });
+        try (SocketChannel c = cliente) {
+            int leidos;
+            while ((leidos = c.read(buffer)) >= 0) {
+                buffer.flip();
+                lector.procesar(buffer);
+                buffer.clear();
+                bytes.addAndGet(leidos);
+            }
+        } catch (IOException ex) {
+            // el cliente ha cerrado la conexión.
+        }
+        lector.terminar();
+    }
+
+    /**
+     * Este método simula una impresora lenta con un buffer de recepción
+     * pequeño. Un hilo lee la conexión y guarda los datos en el buffer (ó
+     * los pierde si no caben) y este hilo los interpreta e imprime.
+     */
+    private void simular(SocketChannel cliente) {
+        BufferRecepcion recepcion = new BufferRecepcion(capacidad);
+        Thread lector = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            try {
+                int leidos;
+                while ((leidos = cliente.read(buffer)) >= 0) {
+                    bytes.addAndGet(leidos);
+                    desbordados.addAndGet(recepcion.guardar(buffer.array(),
+                            leidos));
+                    buffer.clear();
+                }
+            } catch (IOException ex) {
+                // el cliente ha cerrado la conexión.
+            }
+            recepcion.cerrar();
+        }, Thread.currentThread().getName() + "-recepcion");
+        lector.setDaemon(true);
+        lector.start();
+        // nanosegundos por punto; la etiqueta mide lo que diga el último
+        // comando Q, ó lo mismo que en la GUI.
+        double nanosPorPunto = 1e9 / (velocidad * VistaPreviaEPL.PPP);
+        try (SocketChannel c = cliente) {
+            EmuladorEPL.Lector interprete = emulador.nuevoLector(
+                    new EmuladorEPL.Oyente() {
+                @Override
+                public void alImprimir(int copias) {
+                    try {
+                        Thread.sleep((long) (copias
+                                * emulador.getPuntosPorEtiqueta()
+                                * nanosPorPunto / 1_000_000));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    etiquetas.incrementAndGet();
+                }
+
+                @Override
+                public void alPedirEstado() {
+                    contestar(c);
+                }
+            });
+            int b;
+            while ((b = recepcion.leer()) >= 0) {
+                interprete.procesar(b);
+            }
+            interprete.terminar();
+        } catch (IOException | InterruptedException ex) {
+            // el cliente ha cerrado la conexión.
+        }
+    }
+
+    private static void contestar(SocketChannel cliente) {
+        try {
+            cliente.write(ByteBuffer.wrap(new byte[]{'0', '0', '\r', '\n'}));
+        } catch (IOException ex) {
+            // el cliente ya no escucha, pero la impresora sigue imprimiendo
+            // lo que tiene en el buffer.
+        }
+    }
+
+    /**
+     * El buffer de recepción de la impresora simulada.
+     */
+    private static final class BufferRecepcion {
+
+        private final byte[] datos;
+        private int inicio;
+        private int usados;
+        private boolean cerrado;
+
+        BufferRecepcion(int capacidad) {
+            datos = new byte[capacidad];
+        }
+
+        /**
+         * @return los bytes que no caben y se pierden.
+         */
+        synchronized int guardar(byte[] origen, int longitud) {
+            int caben = Math.min(longitud, datos.length - usados);
+            for (int i = 0; i < caben; i++) {
+                datos[(inicio + usados + i) % datos.length] = origen[i];
+            }
+            usados += caben;
+            notifyAll();
+            return longitud - caben;
+        }
+
+        synchronized int leer() throws InterruptedException {
+            while (usados == 0 && !cerrado) {
+                wait();
+            }
+            if (usados == 0) {
+                return -1;
+            }
+            int b = datos[inicio] & 0xFF;
+            inicio = (inicio + 1) % datos.length;
+            usados--;
+            return b;
+        }
+
+        synchronized void cerrar() {
+            cerrado = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return el puerto donde escucha la impresora falsa.
+     */
+    public int getPuerto() {
+        try {
+            return ((InetSocketAddress) servidor.getLocalAddress()).getPort();
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getEtiquetas() {
+        return etiquetas.get();
+    }
+
+    public long getConexiones() {
+        return conexiones.get();
+    }
+
+    /**
+     * @return los bytes perdidos porque no cabían en el buffer de recepción.
+     */
+    public long getDesbordados() {
+        return desbordados.get();
+    }
+
+    /**
+     * @return el emulador que comprueba los comandos recibidos.
+     */
+    public EmuladorEPL getEmulador() {
+        return emulador;
+    }
+
+    /**
+     * Este método espera hasta que se hayan recibido un número de etiquetas.
+     *
+     * @param numero el número de etiquetas a esperar.
+     * @param milis el tiempo máximo de espera en milisegundos.
+     * @return true si se han recibido, false si se ha acabado el tiempo.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    public boolean esperarEtiquetas(long numero, long milis)
+            throws InterruptedException {
+        long limite = System.currentTimeMillis() + milis;
+        while (etiquetas.get() < numero) {
+            if (System.currentTimeMillis() > limite) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        activa = false;
+        servidor.close();
+    }
+
+    /**
+     * @param args el puerto donde escuchar (9100 por defecto).
+     * @throws Exception si no se puede abrir el puerto.
+     */
+    public static void main(String[] args) throws Exception {
+        int puerto = args.length > 0
+                ? Integer.parseInt(args[0]) : SalidaImpresion.PUERTO_ZEBRA;
+        ImpresoraFalsa impresora = args.length > 2
+                ? new ImpresoraFalsa(puerto, Double.parseDouble(args[1]),
+                        Integer.parseInt(args[2]))
+                : new ImpresoraFalsa(puerto);
+        System.out.println("Impresora falsa escuchando en el puerto "
+                + impresora.getPuerto());
+        long etiquetasAntes = 0;
+        long bytesAntes = 0;
+        int erroresEscritos = 0;
+        while (true) {
+            Thread.sleep(1000);
+            long e = impresora.getEtiquetas();
+            long b = impresora.getBytes();
+            List<String> errores = impresora.getEmulador().getMensajesError();
+            for (String error : errores.subList(erroresEscritos,
+                    errores.size())) {
+                System.out.println("ERROR " + error);
+            }
+            erroresEscritos = errores.size();
+            if (e != etiquetasAntes || b != bytesAntes) {
+                System.out.printf("%d etiquetas/s, %d KB/s (total %d "
+                        + "etiquetas, %d bytes, %d bytes perdidos, %d "
+                        + "errores)%n", e - etiquetasAntes,
+                        (b - bytesAntes) / 1024, e, b,
+                        impresora.getDesbordados(),
+                        impresora.getEmulador().getErrores());
+            }
+            etiquetasAntes = e;
+            bytesAntes = b;
+        }
+    }
+}
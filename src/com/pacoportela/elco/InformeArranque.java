@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Esta clase mide el arranque de la interfaz. Con la propiedad
+ * 'etiquetas.arranque=true' anota el instante de cada fase (aspecto,
+ * ventana creada, ventana visible, primer fotograma pintado) y al terminar
+ * escribe en la salida de error cuánto ha durado cada una y el tiempo hasta
+ * el primer fotograma, contando desde que arrancó la máquina virtual. Con
+ * 'etiquetas.arranque.salir=true' el programa termina al pintar el primer
+ * fotograma, para medir el arranque en frío ó para generar el archivo CDS
+ * (ant cds). Sin la propiedad no hace
+ * nada, ni siquiera carga las clases de gestión de la máquina virtual.
+ */
+final class InformeArranque {
+
+    private static final boolean ACTIVO = Boolean.getBoolean(
+            "etiquetas.arranque") || Boolean.getBoolean(
+            "etiquetas.arranque.salir");
+    // instante en que se usa la clase por primera vez, al entrar en main.
+    private static final long INICIO = System.nanoTime();
+    private static final long INICIO_MILIS = System.currentTimeMillis();
+    private static final List<String> FASES = new ArrayList<>();
+    private static final List<Long> INSTANTES = new ArrayList<>();
+
+    private InformeArranque() {
+    }
+
+    /**
+     * Este método fija el principio de la medida. Se llama al entrar en
+     * main; lo que pasa antes se cuenta como arranque de la máquina virtual.
+     */
+    static void empezar() {
+        // basta con cargar la clase, que guarda el instante en INICIO.
+    }
+
+    /**
+     * Este método anota que ha terminado una fase del arranque.
+     *
+     * @param fase el nombre de la fase.
+     */
+    static synchronized void marcar(String fase) {
+        if (ACTIVO) {
+            FASES.add(fase);
+            INSTANTES.add(System.nanoTime());
+        }
+    }
+
+    /**
+     * Este método anota la última fase del arranque, escribe el informe y,
+     * si se ha pedido, termina el programa.
+     *
+     * @param fase el nombre de la última fase.
+     */
+    static synchronized void terminar(String fase) {
+        if (!ACTIVO) {
+            return;
+        }
+        marcar(fase);
+        // la máquina virtual arrancó antes de entrar en main.
+        long antesDeMain = Math.max(0, INICIO_MILIS
+                - ManagementFactory.getRuntimeMXBean().getStartTime());
+        StringBuilder informe = new StringBuilder("Arranque: máquina virtual ")
+                .append(antesDeMain).append(" ms");
+        long anterior = INICIO;
+        for (int i = 0; i < FASES.size(); i++) {
+            informe.append(", ").append(FASES.get(i)).append(' ')
+                    .append((INSTANTES.get(i) - anterior) / 1000000)
+                    .append(" ms");
+            anterior = INSTANTES.get(i);
+        }
+        informe.append("; primer fotograma a los ").append(antesDeMain
+                + (anterior - INICIO) / 1000000).append(" ms");
+        System.err.println(informe);
+        if (Boolean.getBoolean("etiquetas.arranque.salir")) {
+            System.exit(0);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Esta clase lee etiquetas de un fichero CSV ó TSV de forma secuencial, una
+ * fila cada vez, sin cargar el fichero entero en memoria. Cada fila tiene
+ * hasta cinco columnas de texto y, de forma opcional, las columnas fuente,
+ * rotación, expansión horizontal, expansión vertical, formato y copias.
+ * Las filas vacías y las que empiezan por '#' se ignoran. Los campos pueden
+ * ir entre comillas dobles y dentro de ellos una comilla se escribe "".
+ */
+public class LectorEtiquetas implements Closeable {
+
+    // columnas opcionales después de las cinco lineas de texto.
+    private static final int COL_FUENTE = Etiqueta.NUM_LINEAS;
+    private static final int COL_ROTACION = COL_FUENTE + 1;
+    private static final int COL_HORIZONTAL = COL_FUENTE + 2;
+    private static final int COL_VERTICAL = COL_FUENTE + 3;
+    private static final int COL_FORMATO = COL_FUENTE + 4;
+    private static final int COL_COPIAS = COL_FUENTE + 5;
+    private static final int NUM_COLUMNAS = COL_COPIAS + 1;
+
+    private final Reader entrada;
+    private final char[] buffer = new char[8192];
+    private int posicion;
+    private int limite;
+    // carácter devuelto para volver a leerlo, ó SIN_DEVOLVER.
+    private static final int SIN_DEVOLVER = -2;
+    private int devuelto = SIN_DEVOLVER;
+    // separador de columnas; 0 hasta que se detecta en la primera fila.
+    private char separador;
+    private long numeroFila;
+    // buffer reutilizable para las columnas opcionales.
+    private final StringBuilder campo = new StringBuilder();
+    // true si la fila tiene algún carácter de control en el texto.
+    private boolean conControl;
+
+    /**
+     * Constructor.
+     *
+     * @param entrada el Reader del que se leen las filas.
+     * @param separador el separador de columnas, ó 0 para detectarlo en la
+     * primera fila (tabulador si la fila tiene alguno, si no coma).
+     */
+    public LectorEtiquetas(Reader entrada, char separador) {
+        this.entrada = entrada;
+        this.separador = separador;
+    }
+
+    /**
+     * Este método lee la siguiente fila y rellena con ella la etiqueta. Las
+     * columnas opcionales que faltan toman los valores por defecto.
+     *
+     * @param etiqueta la etiqueta que se rellena; se reutiliza en cada fila.
+     * @return true si se ha leido una fila, false al final del fichero.
+     * @throws IOException si hay un error de lectura.
+     * @throws IllegalArgumentException si algún valor de la fila no es válido.
+     */
+    public boolean leer(Etiqueta etiqueta) throws IOException {
+        while (true) {
+            int c = siguiente();
+            if (c < 0) {
+                return false;
+            }
+            if (c == '\r') {
+                continue;
+            }
+            numeroFila++;
+            if (c == '\n') {
+                continue;// fila vacía
+            }
+            if (c == '#') {
+                saltarFila();
+                continue;
+            }
+            devolver(c);
+            if (separador == 0) {
+                separador = detectarSeparador(c);
+            }
+            etiqueta.setValoresPorDefecto();
+            conControl = false;
+            try {
+                leerFila(etiqueta);
+                // un salto de linea dentro del texto terminaría el comando
+                // 'A' y el resto llegaría a la impresora como comandos EPL.
+                if (conControl) {
+                    throw new IllegalArgumentException(
+                            "Carácter de control en el texto");
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Fila " + numeroFila
+                        + ": " + ex.getMessage(), ex);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return el número de la última fila leída del fichero.
+     */
+    public long getNumeroFila() {
+        return numeroFila;
+    }
+
+    /**
+     * Este método lee las columnas de una fila hasta el salto de linea.
+     */
+    private void leerFila(Etiqueta etiqueta) throws IOException {
+        int columna = 0;
+        boolean finFila = false;
+        while (!finFila) {
+            StringBuilder destino;
+            if (columna < Etiqueta.NUM_LINEAS) {
+                destino = etiqueta.getBufferLinea(columna);
+            } else {
+                destino = campo;
+            }
+            destino.setLength(0);
+            finFila = leerCampo(destino);
+            if (columna >= Etiqueta.NUM_LINEAS && columna < NUM_COLUMNAS) {
+                try {
+                    asignarOpcional(etiqueta, columna, campo);
+                } catch (IllegalArgumentException ex) {
+                    // descartamos el resto de la fila errónea.
+                    if (!finFila) {
+                        saltarFila();
+                    }
+                    throw ex;
+                }
+            }
+            columna++;
+        }
+    }
+
+    /**
+     * Este método lee un campo y lo deja en el StringBuilder.
+     *
+     * @return true si el campo es el último de la fila.
+     */
+    private boolean leerCampo(StringBuilder destino) throws IOException {
+        int c = siguiente();
+        boolean entrecomillado = c == '"';
+        if (!entrecomillado) {
+            devolver(c);
+        }
+        while (true) {
+            c = siguiente();
+            if (c < 0) {
+                return true;
+            }
+            if (entrecomillado) {
+                if (c == '"') {
+                    int sig = siguiente();
+                    if (sig == '"') {
+                        destino.append('"');
+                        continue;
+                    }
+                    entrecomillado = false;
+                    if (sig < 0) {
+                        return true;
+                    }
+                    c = sig;
+                } else {
+                    anadir(destino, c);
+                    continue;
+                }
+            }
+            if (c == separador) {
+                return false;
+            }
+            if (c == '\n') {
+                return true;
+            }
+            if (c == '\r') {
+                int sig = siguiente();
+                if (sig != '\n') {
+                    devolver(sig);
+                }
+                return true;
+            }
+            anadir(destino, c);
+        }
+    }
+
+    /**
+     * Este método añade un carácter al campo. Los caracteres de control no
+     * se añaden y la fila se marca como errónea; se sigue leyendo para
+     * saltar la fila entera.
+     */
+    private void anadir(StringBuilder destino, int c) {
+        if (c < ' ') {
+            conControl = true;
+        } else {
+            destino.append((char) c);
+        }
+    }
+
+    private void asignarOpcional(Etiqueta etiqueta, int columna,
+            CharSequence valor) {
+        if (valor.length() == 0) {
+            return;
+        }
+        char c = valor.charAt(0);
+        switch (columna) {
+            case COL_FUENTE:
+                etiqueta.setFuente(c);
+                break;
+            case COL_ROTACION:
+                etiqueta.setRotacion(c);
+                break;
+            case COL_HORIZONTAL:
+                etiqueta.setExpansionHorizontal(c);
+                break;
+            case COL_VERTICAL:
+                etiqueta.setExpansionVertical(c);
+                break;
+            case COL_FORMATO:
+                etiqueta.setFormato(Character.toUpperCase(c));
+                break;
+            case COL_COPIAS:
+                etiqueta.setCopias(parsearEntero(valor));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int parsearEntero(CharSequence valor) {
+        int numero = 0;
+        for (int i = 0; i < valor.length(); i++) {
+            char c = valor.charAt(i);
+            if (c < '0' || c > '9' || numero > 100000) {
+                throw new IllegalArgumentException(
+                        "Número de copias no válido: " + valor);
+            }
+            numero = numero * 10 + (c - '0');
+        }
+        return numero;
+    }
+
+    private void saltarFila() throws IOException {
+        int c;
+        do {
+            c = siguiente();
+        } while (c >= 0 && c != '\n');
+    }
+
+    /**
+     * Este método mira la primera fila sin consumirla para saber si el
+     * fichero está separado por tabuladores ó por comas.
+     */
+    private char detectarSeparador(int primero) {
+        if (primero == '\t') {
+            return '\t';
+        }
+        for (int i = posicion; i < limite; i++) {
+            char c = buffer[i];
+            if (c == '\t') {
+                return '\t';
+            }
+            if (c == '\n') {
+                break;
+            }
+        }
+        return ',';
+    }
+
+    private int siguiente() throws IOException {
+        if (devuelto != SIN_DEVOLVER) {
+            int c = devuelto;
+            devuelto = SIN_DEVOLVER;
+            return c;
+        }
+        if (posicion >= limite) {
+            limite = entrada.read(buffer, 0, buffer.length);
+            posicion = 0;
+            if (limite <= 0) {
+                limite = 0;
+                return -1;
+            }
+        }
+        return buffer[posicion++];
+    }
+
+    private void devolver(int c) {
+        devuelto = c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        entrada.close();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Esta clase recoge las métricas de impresión de toda la aplicación: el
+ * número de trabajos, etiquetas, copias, bytes enviados y fallos, y el
+ * tiempo de cada fase de la impresión (codificar la etiqueta, buscar la
+ * impresora y enviar los datos), y los aciertos de la caché de etiquetas.
+ * Se puede consultar por JMX, escribir en el log cada cierto tiempo y ver en
+ * el panel de métricas de la ventana.
+ */
+public final class MetricasImpresion implements MetricasImpresionMBean {
+
+    /** Nombre con el que se registran las métricas en JMX. */
+    public static final String NOMBRE_JMX
+            = "com.pacoportela.elco:type=MetricasImpresion";
+
+    private static final Logger LOG
+            = Logger.getLogger(MetricasImpresion.class.getName());
+    private static final MetricasImpresion INSTANCIA = new MetricasImpresion();
+
+    private final LongAdder trabajos = new LongAdder();
+    private final LongAdder etiquetas = new LongAdder();
+    private final LongAdder copias = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder fallos = new LongAdder();
+    private final HistogramaLatencias codificacion = new HistogramaLatencias();
+    private final HistogramaLatencias busqueda = new HistogramaLatencias();
+    private final HistogramaLatencias envio = new HistogramaLatencias();
+    private ScheduledExecutorService registroPeriodico;
+
+    private MetricasImpresion() {
+    }
+
+    /**
+     * @return las métricas de la aplicación.
+     */
+    public static MetricasImpresion getInstancia() {
+        return INSTANCIA;
+    }
+
+    /**
+     * Este método registra las métricas en JMX y, si la propiedad
+     * 'etiquetas.metricas.segundos' tiene un valor, las escribe en el log
+     * con ese intervalo.
+     */
+    public void iniciar() {
+        registrarJMX();
+        iniciarRegistroPeriodico(Long.getLong("etiquetas.metricas.segundos",
+                0));
+    }
+
+    /**
+     * Este método registra las métricas en el servidor JMX de la máquina
+     * virtual. Si ya estaban registradas no hace nada.
+     */
+    public synchronized void registrarJMX() {
+        try {
+            MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+            ObjectName nombre = new ObjectName(NOMBRE_JMX);
+            if (!servidor.isRegistered(nombre)) {
+                servidor.registerMBean(this, nombre);
+            }
+        } catch (JMException ex) {
+            LOG.warning("No se han podido registrar las métricas en JMX: "
+                    + ex);
+        }
+    }
+
+    /**
+     * Este método escribe el resumen de las métricas en el log cada cierto
+     * tiempo.
+     *
+     * @param segundos el intervalo entre dos registros.
+     */
+    public synchronized void iniciarRegistroPeriodico(long segundos) {
+        if (registroPeriodico != null || segundos <= 0) {
+            return;
+        }
+        registroPeriodico = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread hilo = new Thread(r, "MetricasImpresion");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        registroPeriodico.scheduleAtFixedRate(
+                () -> LOG.info(getResumen()), segundos, segundos,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Este método anota un trabajo enviado correctamente.
+     *
+     * @param numeroEtiquetas las etiquetas distintas del trabajo.
+     * @param numeroCopias las etiquetas que saldrán de la impresora.
+     * @param numeroBytes los bytes enviados.
+     */
+    public void registrarTrabajo(long numeroEtiquetas, long numeroCopias,
+            long numeroBytes) {
+        trabajos.increment();
+        etiquetas.add(numeroEtiquetas);
+        copias.add(numeroCopias);
+        bytes.add(numeroBytes);
+    }
+
+    public void registrarFallo() {
+        fallos.increment();
+    }
+
+    public void registrarCodificacion(long nanos) {
+        codificacion.registrar(nanos);
+    }
+
+    public void registrarBusquedaImpresora(long nanos) {
+        busqueda.registrar(nanos);
+    }
+
+    public void registrarEnvio(long nanos) {
+        envio.registrar(nanos);
+    }
+
+    @Override
+    public long getTrabajos() {
+        return trabajos.sum();
+    }
+
+    @Override
+    public long getEtiquetas() {
+        return etiquetas.sum();
+    }
+
+    @Override
+    public long getCopias() {
+        return copias.sum();
+    }
+
+    @Override
+    public long getBytesEnviados() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getFallos() {
+        return fallos.sum();
+    }
+
+    @Override
+    public long getCodificacionP50Micros() {
+        return codificacion.getPercentil(50) / 1000;
+    }
+
+    @Override
+    public long getCodificacionP99Micros() {
+        return codificacion.getPercentil(99) / 1000;
+    }
+
+    @Override
+    public long getBusquedaImpresoraP50Micros() {
+        return busqueda.getPercentil(50) / 1000;
+    }
+
+    @Override
+    public long getBusquedaImpresoraP99Micros() {
+        return busqueda.getPercentil(99) / 1000;
+    }
+
+    @Override
+    public long getEnvioP50Micros() {
+        return envio.getPercentil(50) / 1000;
+    }
+
+    @Override
+    public long getEnvioP99Micros() {
+        return envio.getPercentil(99) / 1000;
+    }
+
+    @Override
+    public long getAciertosCache() {
+        return CacheEtiquetas.getInstancia().getAciertos();
+    }
+
+    @Override
+    public long getFallosCache() {
+        return CacheEtiquetas.getInstancia().getFallos();
+    }
+
+    @Override
+    public int getPorcentajeAciertosCache() {
+        long aciertos = getAciertosCache();
+        long total = aciertos + getFallosCache();
+        return total == 0 ? 0 : (int) (aciertos * 100 / total);
+    }
+
+    @Override
+    public String getResumen() {
+        return String.format("trabajos=%d etiquetas=%d copias=%d bytes=%d "
+                + "fallos=%d codificar p50/p99=%d/%dµs "
+                + "impresora p50/p99=%d/%dµs enviar p50/p99=%d/%dµs "
+                + "caché %d%% (%d/%d)",
+                getTrabajos(), getEtiquetas(), getCopias(),
+                getBytesEnviados(), getFallos(), getCodificacionP50Micros(),
+                getCodificacionP99Micros(), getBusquedaImpresoraP50Micros(),
+                getBusquedaImpresoraP99Micros(), getEnvioP50Micros(),
+                getEnvioP99Micros(), getPorcentajeAciertosCache(),
+                getAciertosCache(), getAciertosCache() + getFallosCache());
+    }
+
+    @Override
+    public void reiniciar() {
+        trabajos.reset();
+        etiquetas.reset();
+        copias.reset();
+        bytes.reset();
+        fallos.reset();
+        codificacion.reiniciar();
+        busqueda.reiniciar();
+        envio.reiniciar();
+        CacheEtiquetas.getInstancia().reiniciarEstadisticas();
+    }
+}
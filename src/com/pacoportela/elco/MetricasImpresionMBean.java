@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+/**
+ * Interfaz JMX de las métricas de impresión. Los tiempos están en
+ * microsegundos.
+ */
+public interface MetricasImpresionMBean {
+
+    long getTrabajos();
+
+    long getEtiquetas();
+
+    long getCopias();
+
+    long getBytesEnviados();
+
+    long getFallos();
+
+    long getCodificacionP50Micros();
+
+    long getCodificacionP99Micros();
+
+    long getBusquedaImpresoraP50Micros();
+
+    long getBusquedaImpresoraP99Micros();
+
+    long getEnvioP50Micros();
+
+    long getEnvioP99Micros();
+
+    long getAciertosCache();
+
+    long getFallosCache();
+
+    int getPorcentajeAciertosCache();
+
+    String getResumen();
+
+    void reiniciar();
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Esta clase representa una página de códigos de la impresora. Convierte el
+ * texto de las etiquetas a los bytes de la página de códigos con una tabla
+ * de 64K entradas calculada una sola vez, de forma que cada carácter se
+ * codifica con un acceso a la tabla. Los caracteres que no existen en la
+ * página se imprimen como '?'. Antes de las etiquetas hay que enviar a la
+ * impresora el comando 'I' de la página (getComando()).
+ */
+public final class PaginaCodigos {
+
+    /** Página que se usa si no se indica otra: DOS 850, Latin 1. */
+    public static final String POR_DEFECTO = "850";
+
+    // nombre, juego de caracteres de Java y parámetro p2 del comando 'I'.
+    private static final String[][] PAGINAS = {
+        {"437", "IBM437", "0"},
+        {"850", "IBM850", "1"},
+        {"852", "IBM852", "2"},
+        {"860", "IBM860", "3"},
+        {"1252", "windows-1252", "A"},
+        {"1250", "windows-1250", "B"}
+    };
+
+    private static final PaginaCodigos[] CACHE
+            = new PaginaCodigos[PAGINAS.length];
+
+    private final String nombre;
+    private final char parametro;
+    private final byte[] comando;
+    // byte de la página para cada carácter de Java.
+    private final byte[] tabla = new byte[65536];
+    // carácter de Java de cada byte de la página.
+    private final char[] inversa = new char[256];
+
+    private PaginaCodigos(String nombre, Charset juego, String parametro) {
+        this.nombre = nombre;
+        this.parametro = parametro.charAt(0);
+        this.comando = ("I8," + parametro + ",001\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        Arrays.fill(tabla, (byte) '?');
+        CharsetEncoder codificador = juego.newEncoder();
+        char[] caracter = new char[1];
+        CharBuffer entrada = CharBuffer.wrap(caracter);
+        ByteBuffer salida = ByteBuffer.allocate(8);
+        for (int c = 0; c < tabla.length; c++) {
+            if (Character.isSurrogate((char) c)) {
+                continue;
+            }
+            caracter[0] = (char) c;
+            entrada.clear();
+            salida.clear();
+            codificador.reset();
+            if (codificador.encode(entrada, salida, true).isUnderflow()
+                    && salida.position() == 1) {
+                tabla[c] = salida.get(0);
+                if (inversa[tabla[c] & 0xFF] == 0) {
+                    inversa[tabla[c] & 0xFF] = (char) c;
+                }
+            }
+        }
+    }
+
+    /**
+     * Este método devuelve una página de códigos. La tabla de cada página se
+     * calcula la primera vez que se pide.
+     *
+     * @param nombre el número de la página: 437, 850, 852, 860, 1250 ó 1252.
+     * @return la página de códigos.
+     * @throws IllegalArgumentException si la página no existe ó Java no la
+     * tiene instalada.
+     */
+    public static synchronized PaginaCodigos obtener(String nombre) {
+        for (int i = 0; i < PAGINAS.length; i++) {
+            if (PAGINAS[i][0].equals(nombre)) {
+                if (CACHE[i] == null) {
+                    if (!Charset.isSupported(PAGINAS[i][1])) {
+                        throw new IllegalArgumentException(
+                                "Página de códigos no disponible: " + nombre);
+                    }
+                    CACHE[i] = new PaginaCodigos(nombre,
+                            Charset.forName(PAGINAS[i][1]), PAGINAS[i][2]);
+                }
+                return CACHE[i];
+            }
+        }
+        throw new IllegalArgumentException(
+                "Página de códigos no válida: " + nombre);
+    }
+
+    /**
+     * @return la página de códigos por defecto.
+     */
+    public static PaginaCodigos porDefecto() {
+        return obtener(POR_DEFECTO);
+    }
+
+    /**
+     * Este método devuelve la página que selecciona un comando 'I'.
+     *
+     * @param parametro el parámetro p2 del comando 'I' (0, 1, 2, 3, A ó B).
+     * @return la página de códigos, ó null si ninguna tiene ese parámetro.
+     */
+    static PaginaCodigos deParametro(String parametro) {
+        for (String[] pagina : PAGINAS) {
+            if (pagina[2].equals(parametro)) {
+                return obtener(pagina[0]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param c un carácter.
+     * @return el byte del carácter en la página de códigos.
+     */
+    public byte codificar(char c) {
+        return tabla[c];
+    }
+
+    /**
+     * @param b un byte de la página de códigos.
+     * @return el carácter que representa, ó '?' si no representa ninguno.
+     */
+    public char decodificar(byte b) {
+        char c = inversa[b & 0xFF];
+        return c != 0 || b == 0 ? c : '?';
+    }
+
+    /**
+     * @return los bytes del comando 'I' que selecciona esta página en la
+     * impresora. La matriz no se debe modificar.
+     */
+    public byte[] getComando() {
+        return comando;
+    }
+
+    public String getNombre() {
+        return nombre;
+    }
+
+    /**
+     * @return el parámetro p2 del comando 'I' de la página (ver
+     * deParametro).
+     */
+    char getParametro() {
+        return parametro;
+    }
+
+    @Override
+    public String toString() {
+        return nombre;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.FlowLayout;
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Panel que muestra el estado de la cola de impresión: el número de trabajos
+ * pendientes y la lista de los últimos trabajos con su estado. Permite
+ * cancelar los trabajos que todavía están en la cola.
+ */
+public class PanelCola extends JPanel implements ColaImpresion.OyenteCola {
+
+    // número de trabajos que se muestran en la lista.
+    private static final int MAX_TRABAJOS = 20;
+
+    private final ServicioImpresion cola;
+    private final DefaultListModel<TrabajoImpresion> modelo
+            = new DefaultListModel<>();
+    private final JList<TrabajoImpresion> lista = new JList<>(modelo);
+    private final JLabel etiquetaPendientes = new JLabel();
+    private final JLabel etiquetaMensaje = new JLabel(" ");
+    private final JButton botonCancelarTrabajo
+            = new JButton("Cancelar trabajo");
+    private final JPanel botones
+            = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
+
+    /**
+     * Constructor.
+     *
+     * @param cola la cola de impresión que se muestra.
+     */
+    public PanelCola(ServicioImpresion cola) {
+        super(new BorderLayout(5, 5));
+        this.cola = cola;
+        setBorder(BorderFactory.createTitledBorder("Cola de impresión"));
+        lista.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        lista.setVisibleRowCount(4);
+        lista.setFocusable(false);
+        botonCancelarTrabajo.setToolTipText(
+                "Cancela el trabajo seleccionado si todavía está en la cola");
+        botonCancelarTrabajo.setFocusable(false);
+        botonCancelarTrabajo.addActionListener(evt -> cancelarSeleccionado());
+        etiquetaMensaje.setForeground(Color.RED);
+        JPanel superior = new JPanel(new BorderLayout());
+        superior.add(etiquetaPendientes, BorderLayout.WEST);
+        botones.add(botonCancelarTrabajo);
+        superior.add(botones, BorderLayout.EAST);
+        add(superior, BorderLayout.NORTH);
+        add(new JScrollPane(lista), BorderLayout.CENTER);
+        add(etiquetaMensaje, BorderLayout.SOUTH);
+        actualizarPendientes();
+        cola.addOyente(this);
+    }
+
+    /**
+     * Este método añade un trabajo a la lista. Se llama desde el hilo de
+     * Swing al encolar un trabajo.
+     *
+     * @param trabajo el trabajo encolado.
+     */
+    public void addTrabajo(TrabajoImpresion trabajo) {
+        modelo.add(0, trabajo);
+        if (modelo.size() > MAX_TRABAJOS) {
+            modelo.removeElementAt(modelo.size() - 1);
+        }
+        actualizarPendientes();
+    }
+
+    /**
+     * Este método añade un botón junto al de cancelar trabajo.
+     *
+     * @param boton el botón a añadir.
+     */
+    public void addBoton(JButton boton) {
+        boton.setFocusable(false);
+        botones.add(boton);
+    }
+
+    /**
+     * Este método muestra un aviso en la parte baja del panel.
+     *
+     * @param mensaje el texto a mostrar.
+     */
+    public void setMensaje(String mensaje) {
+        etiquetaMensaje.setText(mensaje == null || mensaje.isEmpty()
+                ? " " : mensaje);
+    }
+
+    @Override
+    public void trabajoActualizado(TrabajoImpresion trabajo) {
+        SwingUtilities.invokeLater(() -> {
+            int indice = modelo.indexOf(trabajo);
+            if (indice >= 0) {
+                // el modelo no sabe que ha cambiado el estado del trabajo.
+                modelo.set(indice, trabajo);
+            }
+            if (trabajo.getEstado() == TrabajoImpresion.Estado.ERROR) {
+                setMensaje(trabajo.getMensajeError());
+            } else if (trabajo.getEstado() == TrabajoImpresion.Estado.IMPRESO) {
+                setMensaje(null);
+            }
+            actualizarPendientes();
+        });
+    }
+
+    private void cancelarSeleccionado() {
+        TrabajoImpresion trabajo = lista.getSelectedValue();
+        if (trabajo != null && !cola.cancelar(trabajo)) {
+            setMensaje("El trabajo #" + trabajo.getId()
+                    + " ya no se puede cancelar");
+        }
+    }
+
+    private void actualizarPendientes() {
+        etiquetaPendientes.setText("Trabajos en cola: "
+                + cola.getPendientes());
+    }
+}
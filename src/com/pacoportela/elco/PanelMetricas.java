@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.awt.GridLayout;
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+
+/**
+ * Panel que muestra las métricas de impresión y se actualiza cada segundo.
+ */
+public class PanelMetricas extends JPanel {
+
+    private static final int INTERVALO_MILIS = 1000;
+
+    private final MetricasImpresion metricas;
+    private final JLabel etiquetaContadores = new JLabel();
+    private final JLabel etiquetaTiempos = new JLabel();
+    private final Timer temporizador;
+
+    /**
+     * Constructor.
+     *
+     * @param metricas las métricas a mostrar.
+     */
+    public PanelMetricas(MetricasImpresion metricas) {
+        super(new GridLayout(2, 1));
+        this.metricas = metricas;
+        setBorder(BorderFactory.createTitledBorder("Métricas"));
+        add(etiquetaContadores);
+        add(etiquetaTiempos);
+        actualizar();
+        temporizador = new Timer(INTERVALO_MILIS, evt -> actualizar());
+        temporizador.start();
+    }
+
+    private void actualizar() {
+        etiquetaContadores.setText(String.format("Trabajos %d  Etiquetas %d"
+                + "  Copias %d  Bytes %d  Fallos %d  Caché %d%%",
+                metricas.getTrabajos(), metricas.getEtiquetas(),
+                metricas.getCopias(), metricas.getBytesEnviados(),
+                metricas.getFallos(), metricas.getPorcentajeAciertosCache()));
+        etiquetaTiempos.setText(String.format("p50/p99 µs: codificar %d/%d"
+                + "  impresora %d/%d  enviar %d/%d",
+                metricas.getCodificacionP50Micros(),
+                metricas.getCodificacionP99Micros(),
+                metricas.getBusquedaImpresoraP50Micros(),
+                metricas.getBusquedaImpresoraP99Micros(),
+                metricas.getEnvioP50Micros(), metricas.getEnvioP99Micros()));
+    }
+}
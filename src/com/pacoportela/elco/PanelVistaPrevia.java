@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.List;
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+/**
+ * Panel que muestra la vista previa de la etiqueta a la mitad de su tamaño
+ * real en puntos, con los textos que se salen de la etiqueta marcados en
+ * rojo.
+ */
+public class PanelVistaPrevia extends JPanel {
+
+    private static final double ESCALA = 0.5;
+
+    private final VistaPreviaEPL vista;
+    private final Lienzo lienzo = new Lienzo();
+    private final JLabel etiquetaAviso = new JLabel(" ");
+
+    /**
+     * El componente donde se dibuja la etiqueta.
+     */
+    private class Lienzo extends JComponent {
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            try {
+                g2.scale(ESCALA, ESCALA);
+                g2.drawImage(vista.getImagen(), 0, 0, null);
+                g2.setColor(Color.RED);
+                for (Rectangle caja : vista.getCajasFuera()) {
+                    g2.drawRect(caja.x, caja.y, caja.width, caja.height);
+                }
+                g2.setColor(Color.GRAY);
+                g2.drawRect(0, 0, vista.getAncho() - 1, vista.getAlto() - 1);
+            } finally {
+                g2.dispose();
+            }
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param vista la vista previa que se muestra.
+     */
+    public PanelVistaPrevia(VistaPreviaEPL vista) {
+        super(new BorderLayout());
+        this.vista = vista;
+        setBorder(BorderFactory.createTitledBorder("Vista previa"));
+        Dimension tamano = new Dimension(
+                (int) Math.ceil(vista.getAncho() * ESCALA),
+                (int) Math.ceil(vista.getAlto() * ESCALA));
+        lienzo.setPreferredSize(tamano);
+        add(lienzo, BorderLayout.CENTER);
+        add(etiquetaAviso, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Este método dibuja los comandos EPL de la etiqueta y repinta sólo la
+     * zona que ha cambiado. Se debe llamar desde el hilo de Swing.
+     *
+     * @param comandos los comandos EPL de la etiqueta.
+     */
+    public void mostrar(ByteBuffer comandos) {
+        boolean habiaFuera = !vista.getCajasFuera().isEmpty();
+        vista.dibujar(comandos);
+        List<String> fuera = vista.getTextosFuera();
+        if (fuera.isEmpty()) {
+            etiquetaAviso.setForeground(Color.DARK_GRAY);
+            etiquetaAviso.setText(String.format("Dibujada en %.2f ms",
+                    vista.getNanosUltimoDibujo() / 1e6));
+        } else {
+            etiquetaAviso.setForeground(Color.RED);
+            etiquetaAviso.setText("Se sale de la etiqueta: \""
+                    + String.join("\", \"", fuera) + "\"");
+        }
+        Rectangle zona = vista.getZonaCambiada();
+        if (habiaFuera || !fuera.isEmpty()) {
+            // las marcas rojas pueden estar fuera de la zona cambiada.
+            lienzo.repaint();
+        } else if (zona != null) {
+            lienzo.repaint((int) (zona.x * ESCALA) - 1,
+                    (int) (zona.y * ESCALA) - 1,
+                    (int) Math.ceil(zona.width * ESCALA) + 2,
+                    (int) Math.ceil(zona.height * ESCALA) + 2);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Esta clase es la configuración que se envía a una impresora antes de las
+ * etiquetas: el ancho de la etiqueta (comando 'q'), el largo y la
+ * separación entre etiquetas ('Q'), la velocidad de impresión ('S'), la
+ * densidad ó temperatura del cabezal ('D') y la página de códigos ('I').
+ * Sólo se envían los valores que se han indicado; los demás se quedan como
+ * estén en la impresora. La impresora guarda estos valores, así que no hace
+ * falta enviarlos en cada trabajo: EstadoImpresora recuerda el último perfil
+ * enviado y getComandos(anterior) devuelve sólo lo que ha cambiado.
+ * Los objetos son inmutables.
+ */
+public final class PerfilImpresora {
+
+    // valor de los campos que no se envían.
+    private static final int SIN_VALOR = -1;
+
+    private final int ancho;
+    private final int largo;
+    private final int separacion;
+    private final int velocidad;
+    private final int densidad;
+    private final PaginaCodigos pagina;
+
+    private PerfilImpresora(int ancho, int largo, int separacion,
+            int velocidad, int densidad, PaginaCodigos pagina) {
+        this.ancho = ancho;
+        this.largo = largo;
+        this.separacion = separacion;
+        this.velocidad = velocidad;
+        this.densidad = densidad;
+        this.pagina = pagina;
+    }
+
+    /**
+     * Este método crea un perfil que sólo elige la página de códigos.
+     *
+     * @param pagina la página de códigos.
+     * @return el perfil.
+     */
+    public static PerfilImpresora de(PaginaCodigos pagina) {
+        return new PerfilImpresora(SIN_VALOR, SIN_VALOR, SIN_VALOR,
+                SIN_VALOR, SIN_VALOR, pagina);
+    }
+
+    /**
+     * Este método lee un perfil de una descripción con pares nombre=valor
+     * separados por comas, por ejemplo
+     * "ancho=812,largo=406,separacion=24,velocidad=4,densidad=8". Las
+     * medidas van en puntos; la velocidad es el parámetro del comando 'S'
+     * (en la LP 2844, 1 = 1,5, 2 = 2, 3 = 2,5 y 4 = 3,5 pulgadas por
+     * segundo) y la densidad el del comando 'D', de 0 a 15. Si se da el
+     * largo sin separación, la separación es de 24 puntos.
+     *
+     * @param descripcion la descripción; vacía para no enviar nada más que
+     * la página de códigos.
+     * @param pagina la página de códigos.
+     * @return el perfil.
+     * @throws IllegalArgumentException si la descripción no es válida.
+     */
+    public static PerfilImpresora leer(String descripcion,
+            PaginaCodigos pagina) {
+        int ancho = SIN_VALOR;
+        int largo = SIN_VALOR;
+        int separacion = SIN_VALOR;
+        int velocidad = SIN_VALOR;
+        int densidad = SIN_VALOR;
+        for (String par : descripcion.split(",")) {
+            if (par.trim().isEmpty()) {
+                continue;
+            }
+            int igual = par.indexOf('=');
+            if (igual < 0) {
+                throw new IllegalArgumentException(
+                        "Falta el valor en el perfil: " + par);
+            }
+            String nombre = par.substring(0, igual).trim()
+                    .toLowerCase(Locale.ROOT);
+            int valor;
+            try {
+                valor = Integer.parseInt(par.substring(igual + 1).trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(
+                        "Valor no válido en el perfil: " + par);
+            }
+            switch (nombre) {
+                case "ancho":
+                    ancho = comprobar(valor, 1, 9999, par);
+                    break;
+                case "largo":
+                    largo = comprobar(valor, 1, 9999, par);
+                    break;
+                case "separacion":
+                    separacion = comprobar(valor, 0, 999, par);
+                    break;
+                case "velocidad":
+                    velocidad = comprobar(valor, 0, 6, par);
+                    break;
+                case "densidad":
+                    densidad = comprobar(valor, 0, 15, par);
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Valor desconocido en el perfil: " + par);
+            }
+        }
+        if (separacion != SIN_VALOR && largo == SIN_VALOR) {
+            throw new IllegalArgumentException(
+                    "La separación necesita el largo de la etiqueta");
+        }
+        if (largo != SIN_VALOR && separacion == SIN_VALOR) {
+            separacion = SalidaRitmo.SEPARACION;
+        }
+        return new PerfilImpresora(ancho, largo, separacion, velocidad,
+                densidad, pagina);
+    }
+
+    private static int comprobar(int valor, int minimo, int maximo,
+            String par) {
+        if (valor < minimo || valor > maximo) {
+            throw new IllegalArgumentException("Valor fuera de rango en el "
+                    + "perfil (" + minimo + " a " + maximo + "): " + par);
+        }
+        return valor;
+    }
+
+    /**
+     * @param pagina la página de códigos.
+     * @return un perfil igual a este con otra página de códigos.
+     */
+    public PerfilImpresora conPagina(PaginaCodigos pagina) {
+        return new PerfilImpresora(ancho, largo, separacion, velocidad,
+                densidad, pagina);
+    }
+
+    public PaginaCodigos getPagina() {
+        return pagina;
+    }
+
+    /**
+     * Este método devuelve los comandos que hay que enviar a una impresora
+     * que tiene el perfil anterior para que tenga este.
+     *
+     * @param anterior el último perfil enviado a la impresora, ó null si no
+     * se sabe cuál tiene.
+     * @return los comandos EPL; una matriz vacía si no ha cambiado nada.
+     */
+    public byte[] getComandos(PerfilImpresora anterior) {
+        ByteArrayOutputStream comandos = new ByteArrayOutputStream();
+        if (ancho != SIN_VALOR && (anterior == null
+                || anterior.ancho != ancho)) {
+            escribir(comandos, "q" + ancho + "\n");
+        }
+        if (largo != SIN_VALOR && (anterior == null
+                || anterior.largo != largo
+                || anterior.separacion != separacion)) {
+            escribir(comandos, "Q" + largo + "," + separacion + "\n");
+        }
+        if (velocidad != SIN_VALOR && (anterior == null
+                || anterior.velocidad != velocidad)) {
+            escribir(comandos, "S" + velocidad + "\n");
+        }
+        if (densidad != SIN_VALOR && (anterior == null
+                || anterior.densidad != densidad)) {
+            escribir(comandos, "D" + densidad + "\n");
+        }
+        if (anterior == null || anterior.pagina != pagina) {
+            byte[] comando = pagina.getComando();
+            comandos.write(comando, 0, comando.length);
+        }
+        return comandos.toByteArray();
+    }
+
+    private static void escribir(ByteArrayOutputStream salida, String texto) {
+        byte[] bytes = texto.getBytes(StandardCharsets.US_ASCII);
+        salida.write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(getComandos(null), StandardCharsets.US_ASCII)
+                .trim().replace('\n', ' ');
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Esta clase es una plantilla de etiqueta compilada. Para una combinación
+ * de fuente, rotación, expansión horizontal, expansión vertical y formato
+ * guarda ya convertida a bytes la parte fija de cada comando 'A': todo lo
+ * que va antes del texto, es decir, la posición, la rotación, la fuente, la
+ * expansión, el formato y la comilla de apertura. Las plantillas se compilan
+ * una sola vez y se guardan para reutilizarlas.
+ */
+public final class PlantillaEPL {
+
+    // número de valores posibles de cada opción.
+    private static final String FUENTES = "12345";
+    private static final String ROTACIONES = "0123";
+    private static final String HORIZONTALES = "1234568";
+    private static final String VERTICALES = "123456789";
+    private static final String FORMATOS = "NR";
+
+    /** Número de combinaciones de opciones distintas. */
+    static final int NUM_PLANTILLAS = FUENTES.length() * ROTACIONES.length()
+            * HORIZONTALES.length() * VERTICALES.length() * FORMATOS.length();
+
+    private static final PlantillaEPL[] PLANTILLAS
+            = new PlantillaEPL[NUM_PLANTILLAS];
+
+    // parte fija del comando 'A' de cada linea impresa.
+    private final byte[][] prefijos;
+
+    private PlantillaEPL(char fuente, char rotacion, char horizontal,
+            char vertical, char formato) {
+        prefijos = new byte[Etiqueta.NUM_LINEAS][];
+        int posy = Etiqueta.POSICION_Y;
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            String prefijo = "A" + Etiqueta.POSICION_X + "," + posy + ","
+                    + rotacion + "," + fuente + "," + horizontal + ","
+                    + vertical + "," + formato + ",\"";
+            prefijos[i] = prefijo.getBytes(StandardCharsets.US_ASCII);
+            posy += Etiqueta.SALTO_LINEA;
+        }
+    }
+
+    /**
+     * Este método devuelve la plantilla compilada para las opciones de la
+     * etiqueta. La primera vez que se pide una combinación se compila.
+     *
+     * @param etiqueta la etiqueta de la que se toman las opciones.
+     * @return la plantilla compilada.
+     */
+    public static PlantillaEPL obtener(Etiqueta etiqueta) {
+        int indice = indice(etiqueta);
+        PlantillaEPL plantilla = PLANTILLAS[indice];
+        if (plantilla == null) {
+            // si dos hilos la compilan a la vez no pasa nada, las dos
+            // plantillas son iguales y los campos son final.
+            plantilla = new PlantillaEPL(etiqueta.getFuente(),
+                    etiqueta.getRotacion(), etiqueta.getExpansionHorizontal(),
+                    etiqueta.getExpansionVertical(), etiqueta.getFormato());
+            PLANTILLAS[indice] = plantilla;
+        }
+        return plantilla;
+    }
+
+    /**
+     * Este método devuelve un número que identifica la combinación de
+     * opciones de la etiqueta, de 0 al número de combinaciones posibles.
+     *
+     * @param etiqueta la etiqueta.
+     * @return el índice de la combinación de opciones.
+     */
+    static int indice(Etiqueta etiqueta) {
+        int indice = FUENTES.indexOf(etiqueta.getFuente());
+        indice = indice * ROTACIONES.length()
+                + ROTACIONES.indexOf(etiqueta.getRotacion());
+        indice = indice * HORIZONTALES.length()
+                + HORIZONTALES.indexOf(etiqueta.getExpansionHorizontal());
+        indice = indice * VERTICALES.length()
+                + VERTICALES.indexOf(etiqueta.getExpansionVertical());
+        indice = indice * FORMATOS.length()
+                + FORMATOS.indexOf(etiqueta.getFormato());
+        return indice;
+    }
+
+    /**
+     * @param linea el número de linea impresa (de 0 a 4).
+     * @return los bytes del comando 'A' hasta la comilla de apertura.
+     */
+    public byte[] getPrefijo(int linea) {
+        return prefijos[linea];
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import javax.print.PrintService;
+import javax.print.PrintServiceLookup;
+
+/**
+ * Esta clase reparte los trabajos de impresión entre varias impresoras. Cada
+ * impresora tiene su propia cola de impresión, así que imprimen a la vez. Los
+ * trabajos se mandan a la impresora con menos trabajo pendiente ó a cada
+ * impresora por turno. Cuando una impresora falla se marca como no
+ * disponible durante un tiempo y sus trabajos (el que ha fallado y los que
+ * esperaban) se mandan a las demás. Pasado ese tiempo vuelve a recibir
+ * trabajos; si falla otra vez se repite lo mismo, y cuando imprime un
+ * trabajo vuelve a estar disponible del todo. Los trabajos que no caben en
+ * ninguna otra cola esperan en un hilo aparte, de forma que la cola que ha
+ * fallado nunca se queda bloqueada.
+ */
+public class PoolImpresoras implements ServicioImpresion,
+        ColaImpresion.ManejadorFallos {
+
+    /**
+     * Formas de elegir la impresora de cada trabajo.
+     */
+    public enum Reparto {
+        /** La impresora con menos trabajos pendientes. */
+        MENOS_PENDIENTES,
+        /** Cada impresora por turno. */
+        TURNOS
+    }
+
+    /** Tiempo por defecto que una impresora que falla no recibe trabajos. */
+    public static final long ESPERA_REINTENTO = 30000;
+
+    /**
+     * Una impresora del grupo con su cola y su estado.
+     */
+    private static class Miembro {
+
+        final ColaImpresion cola;
+        // instante (System.nanoTime) hasta el que no recibe trabajos.
+        volatile long noDisponibleHasta;
+        volatile boolean fallando;
+
+        Miembro(ColaImpresion cola) {
+            this.cola = cola;
+        }
+
+        boolean isDisponible(long ahora) {
+            return !fallando || ahora - noDisponibleHasta >= 0;
+        }
+    }
+
+    private final List<Miembro> miembros = new ArrayList<>();
+    private final Reparto reparto;
+    private final AtomicInteger turno = new AtomicInteger();
+    private volatile long esperaReintentoNanos = ESPERA_REINTENTO * 1000000L;
+    // manda los trabajos redistribuidos que no caben en ninguna cola.
+    private final ExecutorService reenvios
+            = Executors.newSingleThreadExecutor(r -> {
+                Thread hilo = new Thread(r, "PoolImpresoras");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+    // trabajos redistribuidos que esperan sitio en el hilo de reenvíos.
+    private final Set<TrabajoImpresion> esperandoSitio
+            = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor. Crea una cola de impresión para cada salida.
+     *
+     * @param salidas las salidas de las impresoras del grupo.
+     * @param capacidad el número máximo de trabajos en espera de cada
+     * impresora.
+     * @param reparto la forma de elegir la impresora de cada trabajo.
+     */
+    public PoolImpresoras(List<SalidaImpresion> salidas, int capacidad,
+            Reparto reparto) {
+        if (salidas.isEmpty()) {
+            throw new IllegalArgumentException("No hay impresoras");
+        }
+        this.reparto = reparto;
+        for (SalidaImpresion salida : salidas) {
+            ColaImpresion cola = new ColaImpresion(salida, capacidad);
+            cola.setManejadorFallos(this);
+            Miembro miembro = new Miembro(cola);
+            // la impresora se ha recuperado en cuanto imprime un trabajo.
+            cola.addOyente(trabajo -> {
+                if (trabajo.getEstado() == TrabajoImpresion.Estado.IMPRESO) {
+                    miembro.fallando = false;
+                }
+            });
+            miembros.add(miembro);
+        }
+    }
+
+    /**
+     * Este método crea las salidas de un grupo de impresoras a partir de una
+     * lista separada por comas. Cada elemento es una salida de
+     * SalidaImpresion.crear (por ejemplo tcp:192.168.1.50) ó el nombre de
+     * una cola de impresión del sistema, que puede llevar '*' y '?' para
+     * incluir todas las colas que coincidan (por ejemplo "ZDesigner LP 2844*").
+     *
+     * @param configuracion la lista de impresoras.
+     * @param ttlImpresoraMilis el tiempo de caché de las colas de impresión.
+     * @return las salidas de las impresoras encontradas.
+     * @throws IllegalArgumentException si la lista no es válida ó no hay
+     * ninguna impresora.
+     */
+    public static List<SalidaImpresion> crearSalidas(String configuracion,
+            long ttlImpresoraMilis) {
+        List<SalidaImpresion> salidas = new ArrayList<>();
+        PrintService[] servicios = null;
+        for (String elemento : configuracion.split(",")) {
+            String nombre = elemento.trim();
+            if (nombre.isEmpty()) {
+                continue;
+            }
+            if (nombre.equals("-") || nombre.indexOf(':') > 0) {
+                salidas.add(SalidaImpresion.crear(nombre, ttlImpresoraMilis));
+                continue;
+            }
+            if (nombre.indexOf('*') < 0 && nombre.indexOf('?') < 0) {
+                // la impresora puede no estar conectada todavía.
+                salidas.add(new SalidaPrintService(new RegistroImpresoras(
+                        nombre, ttlImpresoraMilis)));
+                continue;
+            }
+            if (servicios == null) {
+                servicios = PrintServiceLookup.lookupPrintServices(null, null);
+            }
+            Pattern patron = patron(nombre);
+            for (PrintService servicio : servicios) {
+                if (patron.matcher(servicio.getName()).matches()) {
+                    salidas.add(new SalidaPrintService(new RegistroImpresoras(
+                            servicio.getName(), ttlImpresoraMilis)));
+                }
+            }
+        }
+        if (salidas.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "No hay ninguna impresora para: " + configuracion);
+        }
+        return salidas;
+    }
+
+    /**
+     * Este método convierte un nombre con '*' y '?' en una expresión
+     * regular.
+     */
+    private static Pattern patron(String nombre) {
+        StringBuilder regex = new StringBuilder();
+        int inicio = 0;
+        for (int i = 0; i < nombre.length(); i++) {
+            char c = nombre.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > inicio) {
+                    regex.append(Pattern.quote(nombre.substring(inicio, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                inicio = i + 1;
+            }
+        }
+        if (inicio < nombre.length()) {
+            regex.append(Pattern.quote(nombre.substring(inicio)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * @param milis el tiempo que una impresora que falla no recibe trabajos.
+     */
+    public void setEsperaReintento(long milis) {
+        this.esperaReintentoNanos = milis * 1000000L;
+    }
+
+    @Override
+    public boolean enviar(TrabajoImpresion trabajo) {
+        for (Miembro miembro : ordenar(null)) {
+            if (miembro.cola.enviar(trabajo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void enviarEsperando(TrabajoImpresion trabajo)
+            throws InterruptedException {
+        if (!enviar(trabajo)) {
+            ordenar(null).get(0).cola.enviarEsperando(trabajo);
+        }
+    }
+
+    @Override
+    public boolean cancelar(TrabajoImpresion trabajo) {
+        if (esperandoSitio.remove(trabajo)) {
+            trabajo.setEstado(TrabajoImpresion.Estado.CANCELADO);
+            miembros.get(0).cola.avisar(trabajo);
+            return true;
+        }
+        for (Miembro miembro : miembros) {
+            if (miembro.cola.cancelar(trabajo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getPendientes() {
+        int pendientes = esperandoSitio.size();
+        for (Miembro miembro : miembros) {
+            pendientes += miembro.cola.getPendientes();
+        }
+        return pendientes;
+    }
+
+    /**
+     * @return el número de impresoras del grupo que reciben trabajos.
+     */
+    public int getDisponibles() {
+        long ahora = System.nanoTime();
+        int disponibles = 0;
+        for (Miembro miembro : miembros) {
+            if (miembro.isDisponible(ahora)) {
+                disponibles++;
+            }
+        }
+        return disponibles;
+    }
+
+    /**
+     * @return las colas de las impresoras del grupo.
+     */
+    public List<ColaImpresion> getColas() {
+        List<ColaImpresion> colas = new ArrayList<>();
+        for (Miembro miembro : miembros) {
+            colas.add(miembro.cola);
+        }
+        return colas;
+    }
+
+    @Override
+    public void setUsarFormularios(boolean usarFormularios) {
+        for (Miembro miembro : miembros) {
+            miembro.cola.setUsarFormularios(usarFormularios);
+        }
+    }
+
+    @Override
+    public void setPaginaCodigos(PaginaCodigos pagina) {
+        for (Miembro miembro : miembros) {
+            miembro.cola.setPaginaCodigos(pagina);
+        }
+    }
+
+    @Override
+    public void setPerfil(PerfilImpresora perfil) {
+        for (Miembro miembro : miembros) {
+            miembro.cola.setPerfil(perfil);
+        }
+    }
+
+    @Override
+    public void setLogo(GraficoEPL logo) {
+        for (Miembro miembro : miembros) {
+            miembro.cola.setLogo(logo);
+        }
+    }
+
+    @Override
+    public void setAgrupacion(long ventanaMilis, int maxAgrupados) {
+        for (Miembro miembro : miembros) {
+            miembro.cola.setAgrupacion(ventanaMilis, maxAgrupados);
+        }
+    }
+
+    @Override
+    public void addOyente(ColaImpresion.OyenteCola oyente) {
+        for (Miembro miembro : miembros) {
+            miembro.cola.addOyente(oyente);
+        }
+    }
+
+    @Override
+    public void removeOyente(ColaImpresion.OyenteCola oyente) {
+        for (Miembro miembro : miembros) {
+            miembro.cola.removeOyente(oyente);
+        }
+    }
+
+    @Override
+    public void cerrar() {
+        reenvios.shutdown();
+        for (Miembro miembro : miembros) {
+            miembro.cola.cerrar();
+        }
+    }
+
+    /**
+     * Este método se llama desde el hilo de una cola cuando falla su
+     * impresora. Marca la impresora como no disponible y manda a las demás
+     * los trabajos que han fallado y los que estaban esperando.
+     */
+    @Override
+    public boolean trabajosFallidos(ColaImpresion cola,
+            List<TrabajoImpresion> trabajos, IOException error) {
+        Miembro fallido = null;
+        for (Miembro miembro : miembros) {
+            if (miembro.cola == cola) {
+                fallido = miembro;
+                break;
+            }
+        }
+        if (fallido == null) {
+            return false;
+        }
+        fallido.noDisponibleHasta = System.nanoTime() + esperaReintentoNanos;
+        fallido.fallando = true;
+        List<Miembro> otros = ordenar(fallido);
+        if (otros.isEmpty()) {
+            // no hay otra impresora: los trabajos fallan y los pendientes
+            // esperan a que vuelva ésta.
+            return false;
+        }
+        List<TrabajoImpresion> mover = new ArrayList<>(trabajos);
+        mover.addAll(cola.retirarPendientes());
+        List<TrabajoImpresion> sinSitio = new ArrayList<>();
+        for (TrabajoImpresion trabajo : mover) {
+            if (trabajo.getEstado() == TrabajoImpresion.Estado.CANCELADO) {
+                continue;
+            }
+            if (trabajo.getEstado() != TrabajoImpresion.Estado.EN_COLA) {
+                trabajo.setEstado(TrabajoImpresion.Estado.EN_COLA);
+                cola.avisar(trabajo);
+            }
+            // en cuanto uno no cabe, los siguientes esperan detrás de él
+            // para no cambiar el orden.
+            if (!sinSitio.isEmpty() || !reenviar(trabajo, otros)) {
+                sinSitio.add(trabajo);
+            }
+        }
+        if (!sinSitio.isEmpty()) {
+            esperarSitio(sinSitio, otros, cola, error);
+        }
+        return true;
+    }
+
+    /**
+     * Este método manda un trabajo a la primera impresora con sitio sin
+     * esperar.
+     *
+     * @return false si todas las impresoras están llenas.
+     */
+    private static boolean reenviar(TrabajoImpresion trabajo,
+            List<Miembro> candidatos) {
+        for (Miembro miembro : candidatos) {
+            if (miembro.cola.enviar(trabajo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Este método manda desde el hilo de reenvíos los trabajos que no caben
+     * en ninguna impresora, esperando en la primera a que haya sitio. Así el
+     * hilo de la cola que ha fallado no se bloquea esperando a otra cola,
+     * que a su vez podría estar esperando para mandarle sus trabajos.
+     */
+    private void esperarSitio(List<TrabajoImpresion> trabajos,
+            List<Miembro> candidatos, ColaImpresion origen,
+            IOException error) {
+        esperandoSitio.addAll(trabajos);
+        Runnable tarea = () -> {
+            for (TrabajoImpresion trabajo : trabajos) {
+                // si no está es que se ha cancelado mientras esperaba.
+                if (!esperandoSitio.remove(trabajo)) {
+                    continue;
+                }
+                try {
+                    if (!reenviar(trabajo, candidatos)) {
+                        candidatos.get(0).cola.enviarEsperando(trabajo);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    trabajo.setError(error.getMessage());
+                    origen.avisar(trabajo);
+                }
+            }
+        };
+        try {
+            reenvios.execute(tarea);
+        } catch (RejectedExecutionException ex) {
+            // el grupo se está cerrando.
+            for (TrabajoImpresion trabajo : trabajos) {
+                esperandoSitio.remove(trabajo);
+                trabajo.setError(error.getMessage());
+                origen.avisar(trabajo);
+            }
+        }
+    }
+
+    /**
+     * Este método devuelve las impresoras disponibles en el orden en que se
+     * deben probar según la forma de reparto. Si no hay ninguna disponible
+     * devuelve las que han fallado, salvo que se indique una impresora a
+     * excluir: entonces el resultado sólo tiene las disponibles distintas de
+     * ella.
+     */
+    private List<Miembro> ordenar(Miembro excluir) {
+        long ahora = System.nanoTime();
+        List<Miembro> disponibles = new ArrayList<>(miembros.size());
+        List<Miembro> fallando = new ArrayList<>();
+        int n = miembros.size();
+        int primero = reparto == Reparto.TURNOS
+                ? Math.floorMod(turno.getAndIncrement(), n) : 0;
+        for (int i = 0; i < n; i++) {
+            Miembro miembro = miembros.get((primero + i) % n);
+            if (miembro == excluir) {
+                continue;
+            }
+            if (miembro.isDisponible(ahora)) {
+                disponibles.add(miembro);
+            } else {
+                fallando.add(miembro);
+            }
+        }
+        if (reparto == Reparto.MENOS_PENDIENTES) {
+            Collections.sort(disponibles, (a, b) -> Integer.compare(
+                    a.cola.getTrabajosSinTerminar(),
+                    b.cola.getTrabajosSinTerminar()));
+        }
+        if (excluir == null && disponibles.isEmpty()) {
+            // si no hay ninguna disponible se prueba con todas.
+            return fallando;
+        }
+        return disponibles;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder texto = new StringBuilder();
+        long ahora = System.nanoTime();
+        for (Miembro miembro : miembros) {
+            if (texto.length() > 0) {
+                texto.append(", ");
+            }
+            texto.append(miembro.cola.getSalida().getDescripcion());
+            if (!miembro.isDisponible(ahora)) {
+                texto.append(" (no disponible)");
+            }
+        }
+        return texto.toString();
+    }
+}
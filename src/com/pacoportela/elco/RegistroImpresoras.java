@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.print.PrintService;
+import javax.print.PrintServiceLookup;
+
+/**
+ * Esta clase guarda en caché el PrintService de la impresora Zebra para no
+ * tener que consultar todas las impresoras del sistema en cada etiqueta.
+ * La búsqueda en PrintServiceLookup es lenta cuando hay muchas colas de
+ * impresión, así que sólo se repite cuando caduca el tiempo de vida (TTL) o
+ * cuando falla una impresión, y en ese caso se hace en segundo plano.
+ */
+public class RegistroImpresoras {
+
+    /** Tiempo de vida para que la impresora guardada no caduque nunca. */
+    public static final long SIN_CADUCIDAD = Long.MAX_VALUE;
+
+    private final String nombreImpresora;
+    private final long ttlNanos;
+    // las colas de impresión del equipo.
+    private final Supplier<PrintService[]> servicios;
+    // hilo único para las búsquedas en segundo plano.
+    private final ExecutorService buscador;
+    // evita lanzar varias búsquedas en segundo plano a la vez.
+    private final AtomicBoolean buscando = new AtomicBoolean(false);
+
+    private volatile PrintService impresora;
+    private volatile long instanteBusqueda;
+
+    private final AtomicLong aciertos = new AtomicLong();
+    private final AtomicLong fallos = new AtomicLong();
+    private final AtomicLong busquedas = new AtomicLong();
+    private final AtomicLong nanosBusqueda = new AtomicLong();
+    private volatile long nanosUltimaBusqueda;
+
+    /**
+     * Constructor.
+     *
+     * @param nombreImpresora el nombre de la cola de impresión a buscar.
+     * @param ttlMilis el tiempo en milisegundos que se considera válida la
+     * impresora guardada. Pasado este tiempo se vuelve a buscar. Con
+     * SIN_CADUCIDAD sólo se vuelve a buscar cuando falla una impresión.
+     * @throws IllegalArgumentException si el tiempo es negativo.
+     */
+    public RegistroImpresoras(String nombreImpresora, long ttlMilis) {
+        this(nombreImpresora, ttlMilis,
+                () -> PrintServiceLookup.lookupPrintServices(null, null));
+    }
+
+    /**
+     * Constructor con las colas de impresión en las que se busca, para
+     * poder comprobar la caché sin depender de las impresoras instaladas.
+     */
+    RegistroImpresoras(String nombreImpresora, long ttlMilis,
+            Supplier<PrintService[]> servicios) {
+        if (ttlMilis < 0) {
+            throw new IllegalArgumentException(
+                    "Tiempo de vida negativo: " + ttlMilis);
+        }
+        this.nombreImpresora = nombreImpresora;
+        // toNanos no se desborda: los tiempos enormes se quedan en
+        // Long.MAX_VALUE, que no caduca nunca.
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMilis);
+        this.servicios = servicios;
+        this.buscador = Executors.newSingleThreadExecutor(r -> {
+            Thread hilo = new Thread(r, "RegistroImpresoras");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+    }
+
+    /**
+     * Este método devuelve el PrintService de la impresora. Si está en caché
+     * se devuelve directamente; si la caché ha caducado se devuelve el valor
+     * guardado y se renueva en segundo plano. Sólo se busca en el momento
+     * cuando todavía no se ha encontrado nunca la impresora.
+     *
+     * @return el PrintService de la impresora ó null si no existe.
+     */
+    public PrintService getImpresora() {
+        PrintService actual = this.impresora;
+        if (actual != null) {
+            aciertos.incrementAndGet();
+            if (System.nanoTime() - instanteBusqueda > ttlNanos) {
+                renovarEnSegundoPlano();
+            }
+            return actual;
+        }
+        fallos.incrementAndGet();
+        return buscar();
+    }
+
+    /**
+     * Este método se llama cuando falla una impresión. Se vuelve a buscar la
+     * impresora en segundo plano por si ha cambiado el PrintService.
+     */
+    public void invalidar() {
+        instanteBusqueda = 0;
+        renovarEnSegundoPlano();
+    }
+
+    /**
+     * Este método lanza la búsqueda de la impresora en segundo plano si no
+     * hay otra búsqueda en marcha. Sirve también para precargar la caché.
+     */
+    public void renovarEnSegundoPlano() {
+        if (buscando.compareAndSet(false, true)) {
+            buscador.execute(() -> {
+                try {
+                    buscar();
+                } finally {
+                    buscando.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Este método recorre los PrintService del equipo buscando la impresora
+     * por su nombre y guarda el resultado en caché.
+     *
+     * @return el PrintService encontrado ó null si no existe.
+     */
+    private PrintService buscar() {
+        long inicio = System.nanoTime();
+        PrintService encontrada = null;
+        for (PrintService servicio : servicios.get()) {
+            if (servicio.getName().equalsIgnoreCase(this.nombreImpresora)) {
+                encontrada = servicio;
+                break;
+            }
+        }
+        long fin = System.nanoTime();
+        busquedas.incrementAndGet();
+        nanosBusqueda.addAndGet(fin - inicio);
+        nanosUltimaBusqueda = fin - inicio;
+        // si no se encuentra no se guarda nada para volver a buscar la
+        // próxima vez.
+        this.impresora = encontrada;
+        this.instanteBusqueda = fin;
+        return encontrada;
+    }
+
+    /**
+     * @return el nombre de la impresora que se busca.
+     */
+    public String getNombreImpresora() {
+        return nombreImpresora;
+    }
+
+    /**
+     * @return el número de veces que se ha usado la impresora guardada.
+     */
+    public long getAciertos() {
+        return aciertos.get();
+    }
+
+    /**
+     * @return el número de veces que no había impresora guardada.
+     */
+    public long getFallos() {
+        return fallos.get();
+    }
+
+    /**
+     * @return el número de búsquedas hechas en PrintServiceLookup.
+     */
+    public long getBusquedas() {
+        return busquedas.get();
+    }
+
+    /**
+     * @return el tiempo medio de búsqueda en milisegundos.
+     */
+    public double getMilisMedioBusqueda() {
+        long n = busquedas.get();
+        return n == 0 ? 0 : nanosBusqueda.get() / (n * 1e6);
+    }
+
+    /**
+     * @return el tiempo de la última búsqueda en milisegundos.
+     */
+    public double getMilisUltimaBusqueda() {
+        return nanosUltimaBusqueda / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Impresora %s: aciertos=%d fallos=%d "
+                + "búsquedas=%d última=%.1fms media=%.1fms",
+                nombreImpresora, getAciertos(), getFallos(), getBusquedas(),
+                getMilisUltimaBusqueda(), getMilisMedioBusqueda());
+    }
+}
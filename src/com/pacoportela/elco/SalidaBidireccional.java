@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+
+/**
+ * Una salida de impresión por la que la impresora también puede contestar,
+ * por ejemplo una conexión TCP. La usa SalidaRitmo para leer las respuestas
+ * de estado de la impresora.
+ */
+public interface SalidaBidireccional extends SalidaImpresion {
+
+    /**
+     * Este método lee lo que haya enviado la impresora, esperando como mucho
+     * el tiempo indicado.
+     *
+     * @param destino donde se dejan los bytes leídos.
+     * @param esperaMilis el tiempo máximo de espera en milisegundos (mayor
+     * que 0).
+     * @return el número de bytes leídos, 0 si no ha llegado nada en ese
+     * tiempo ó -1 si no hay conexión.
+     * @throws IOException si hay un error al leer.
+     */
+    int leer(byte[] destino, int esperaMilis) throws IOException;
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Clase base de las salidas que escriben en un canal NIO. Junta los datos
+ * de cada trabajo en un buffer directo y los escribe en bloques grandes, de
+ * forma que muchas etiquetas pequeñas no suponen una escritura cada una.
+ */
+public abstract class SalidaConBuffer implements SalidaImpresion {
+
+    // tamaño del buffer donde se juntan los datos antes de escribirlos.
+    private static final int TAMANO_BUFFER = 64 * 1024;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(TAMANO_BUFFER);
+
+    @Override
+    public void enviar(ByteBuffer datos) throws IOException {
+        while (datos.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                vaciar();
+            }
+            if (buffer.position() == 0
+                    && datos.remaining() >= buffer.capacity()) {
+                // los bloques grandes se escriben sin copiarlos.
+                escribir(datos);
+                return;
+            }
+            int n = Math.min(buffer.remaining(), datos.remaining());
+            int limite = datos.limit();
+            datos.limit(datos.position() + n);
+            buffer.put(datos);
+            datos.limit(limite);
+        }
+    }
+
+    @Override
+    public void terminarTrabajo() throws IOException {
+        vaciar();
+    }
+
+    private void vaciar() throws IOException {
+        buffer.flip();
+        try {
+            if (buffer.hasRemaining()) {
+                escribir(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Este método escribe en el canal todos los datos del buffer.
+     *
+     * @param datos los datos a escribir; se consumen enteros.
+     * @throws IOException si no se pueden escribir.
+     */
+    protected abstract void escribir(ByteBuffer datos) throws IOException;
+
+    /**
+     * Este método cierra el canal. Se llama al cerrar la salida, después de
+     * escribir los datos pendientes.
+     *
+     * @throws IOException si hay un error al cerrar.
+     */
+    protected abstract void cerrarCanal() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        try {
+            vaciar();
+        } finally {
+            cerrarCanal();
+        }
+    }
+}
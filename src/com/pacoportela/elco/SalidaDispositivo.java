@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Salida que escribe los comandos EPL directamente en un dispositivo, como
+ * /dev/usb/lp0 cuando la impresora está conectada por USB, ó en un fichero.
+ * El dispositivo se abre en el primer envío y se mantiene abierto.
+ */
+public class SalidaDispositivo extends SalidaConBuffer {
+
+    private final Path ruta;
+    private final boolean vaciarFichero;
+    private FileChannel canal;
+
+    /**
+     * Constructor. No se abre el dispositivo hasta el primer envío.
+     *
+     * @param ruta la ruta del dispositivo ó del fichero.
+     * @param vaciarFichero true para crear el fichero ó vaciarlo al abrirlo,
+     * false para escribir en un dispositivo que ya existe.
+     */
+    public SalidaDispositivo(Path ruta, boolean vaciarFichero) {
+        this.ruta = ruta;
+        this.vaciarFichero = vaciarFichero;
+    }
+
+    /**
+     * @return true si la salida es un fichero y no un dispositivo.
+     */
+    public boolean isFichero() {
+        return vaciarFichero;
+    }
+
+    @Override
+    protected void escribir(ByteBuffer datos) throws IOException {
+        if (canal == null) {
+            if (vaciarFichero) {
+                canal = FileChannel.open(ruta, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            } else {
+                canal = FileChannel.open(ruta, StandardOpenOption.WRITE);
+            }
+        }
+        try {
+            while (datos.hasRemaining()) {
+                canal.write(datos);
+            }
+        } catch (IOException ex) {
+            // se vuelve a abrir en el siguiente envío.
+            cerrarCanal();
+            throw ex;
+        }
+    }
+
+    @Override
+    protected void cerrarCanal() throws IOException {
+        if (canal != null) {
+            try {
+                canal.close();
+            } finally {
+                canal = null;
+            }
+        }
+    }
+
+    @Override
+    public String getDescripcion() {
+        return (vaciarFichero ? "fichero:" : "dispositivo:") + ruta;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Salida que no imprime nada: pasa los comandos EPL a un EmuladorEPL en
+ * memoria, que los comprueba y cuenta las etiquetas. Sirve para probar toda
+ * la cadena de impresión (la ventana, la cola, el servidor, el modo por
+ * lotes) en una máquina sin impresora, durante horas si hace falta. Los
+ * errores se escriben en el log (los primeros EmuladorEPL.MAX_ERRORES) y al
+ * cerrarla se escribe un resumen.
+ *
+ * Si se le da una velocidad se comporta como una impresora lenta, igual que
+ * ImpresoraFalsa: cada etiqueta tarda en imprimirse lo que tardaría la
+ * impresora real, lo que no cabe en el buffer de recepción se pierde y se
+ * cuenta como desbordamiento, y las respuestas a ^ee llegan cuando se ha
+ * impreso lo anterior, así que también sirve para probar SalidaRitmo.
+ */
+public class SalidaEmulador implements SalidaBidireccional,
+        EmuladorEPL.Oyente {
+
+    private static final Logger LOG
+            = Logger.getLogger(SalidaEmulador.class.getName());
+    private static final byte[] SIN_ERROR = {'0', '0', '\r', '\n'};
+
+    private final EmuladorEPL emulador = new EmuladorEPL();
+    private final EmuladorEPL.Lector lector = emulador.nuevoLector(this);
+    // pulgadas por segundo, ó 0 para no simular la impresión.
+    private final double velocidad;
+    private final int capacidad;
+    // bytes recibidos y bytes ya impresos (que han salido del buffer).
+    private long recibidos;
+    private long impresos;
+    private long desbordados;
+    // instante en que termina de imprimirse lo recibido.
+    private long finImpresion;
+    // por cada etiqueta sin imprimir: cuándo termina y los bytes recibidos
+    // hasta su comando 'P'.
+    private final ArrayDeque<long[]> enImpresora = new ArrayDeque<>();
+    // instantes en que están listas las respuestas a ^ee.
+    private final ArrayDeque<Long> respuestas = new ArrayDeque<>();
+
+    /**
+     * Constructor de una salida que acepta todo al momento.
+     */
+    public SalidaEmulador() {
+        this(0, 0);
+    }
+
+    /**
+     * Constructor de una salida que imprime a una velocidad.
+     *
+     * @param velocidad la velocidad en pulgadas por segundo, ó 0 para no
+     * simular la impresión.
+     * @param capacidad el tamaño del buffer de recepción en bytes.
+     */
+    public SalidaEmulador(double velocidad, int capacidad) {
+        this.velocidad = velocidad;
+        this.capacidad = capacidad;
+    }
+
+    @Override
+    public void enviar(ByteBuffer datos) {
+        if (velocidad <= 0) {
+            lector.procesar(datos);
+            return;
+        }
+        vaciar(System.nanoTime());
+        while (datos.hasRemaining()) {
+            byte b = datos.get();
+            if (recibidos - impresos >= capacidad) {
+                desbordados++;
+                continue;
+            }
+            recibidos++;
+            lector.procesar(b);
+        }
+    }
+
+    /**
+     * Este método saca del buffer las etiquetas que ya se han impreso.
+     */
+    private void vaciar(long ahora) {
+        while (!enImpresora.isEmpty() && enImpresora.peek()[0] <= ahora) {
+            impresos = enImpresora.poll()[1];
+        }
+    }
+
+    @Override
+    public void alImprimir(int copias) {
+        if (velocidad > 0) {
+            long duracion = (long) (copias * 1e9
+                    * emulador.getPuntosPorEtiqueta()
+                    / (velocidad * VistaPreviaEPL.PPP));
+            finImpresion = Math.max(System.nanoTime(), finImpresion)
+                    + duracion;
+            enImpresora.add(new long[]{finImpresion, recibidos});
+        }
+    }
+
+    @Override
+    public void alPedirEstado() {
+        respuestas.add(velocidad > 0
+                ? Math.max(finImpresion, System.nanoTime())
+                : System.nanoTime());
+    }
+
+    @Override
+    public void alError(String mensaje) {
+        if (emulador.getErrores() <= EmuladorEPL.MAX_ERRORES) {
+            LOG.warning("Emulador EPL: " + mensaje);
+        }
+    }
+
+    @Override
+    public int leer(byte[] destino, int esperaMilis) {
+        // como en un socket, se espera hasta que llega una respuesta ó se
+        // acaba el tiempo.
+        long limite = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(esperaMilis);
+        Long preparada = respuestas.peek();
+        if (preparada == null || preparada > limite) {
+            dormir(limite - System.nanoTime());
+            return 0;
+        }
+        dormir(preparada - System.nanoTime());
+        respuestas.poll();
+        int cuantos = Math.min(destino.length, SIN_ERROR.length);
+        System.arraycopy(SIN_ERROR, 0, destino, 0, cuantos);
+        return cuantos;
+    }
+
+    private static void dormir(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void terminarTrabajo() {
+        // el emulador no tiene nada esperando.
+    }
+
+    /**
+     * @return el emulador, para consultar lo que ha recibido.
+     */
+    public EmuladorEPL getEmulador() {
+        return emulador;
+    }
+
+    /**
+     * @return los bytes perdidos porque no cabían en el buffer de recepción.
+     */
+    public long getDesbordados() {
+        return desbordados;
+    }
+
+    @Override
+    public String getDescripcion() {
+        return velocidad > 0
+                ? "emulador:" + velocidad + "," + capacidad : "emulador";
+    }
+
+    @Override
+    public void close() {
+        lector.terminar();
+        LOG.info("Emulador EPL: " + emulador.getResumen()
+                + (desbordados > 0
+                        ? ", " + desbordados + " bytes perdidos" : ""));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Salida que escribe los comandos EPL en un OutputStream, por ejemplo la
+ * salida estándar. El flujo no se cierra al cerrar la salida.
+ */
+public class SalidaFlujo implements SalidaImpresion {
+
+    private final OutputStream flujo;
+    private final String descripcion;
+
+    /**
+     * Constructor.
+     *
+     * @param flujo el flujo donde se escribe.
+     * @param descripcion el texto que identifica la salida.
+     */
+    public SalidaFlujo(OutputStream flujo, String descripcion) {
+        this.flujo = flujo;
+        this.descripcion = descripcion;
+    }
+
+    @Override
+    public void enviar(ByteBuffer datos) throws IOException {
+        if (datos.hasArray()) {
+            flujo.write(datos.array(), datos.arrayOffset() + datos.position(),
+                    datos.remaining());
+            datos.position(datos.limit());
+        } else {
+            while (datos.hasRemaining()) {
+                flujo.write(datos.get());
+            }
+        }
+    }
+
+    @Override
+    public void terminarTrabajo() throws IOException {
+        flujo.flush();
+    }
+
+    @Override
+    public String getDescripcion() {
+        return descripcion;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flujo.flush();
+    }
+}
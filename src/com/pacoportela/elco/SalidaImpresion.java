@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+
+/**
+ * Interfaz de las salidas a las que se envían los comandos EPL: una cola de
+ * impresión del sistema, una impresora de red por TCP ó un dispositivo. Un
+ * trabajo se envía con una ó varias llamadas a enviar() y se termina con
+ * terminarTrabajo(). Las salidas no se deben usar desde varios hilos a la vez.
+ */
+public interface SalidaImpresion extends Closeable {
+
+    /** Puerto TCP de impresión directa de las impresoras Zebra. */
+    int PUERTO_ZEBRA = 9100;
+
+    /**
+     * Este método envía datos del trabajo actual. Si no hay ningún trabajo
+     * abierto se empieza uno nuevo.
+     *
+     * @param datos el buffer con los datos; se consume entero.
+     * @throws IOException si no se pueden enviar los datos.
+     */
+    void enviar(ByteBuffer datos) throws IOException;
+
+    /**
+     * Este método termina el trabajo actual y espera a que se hayan enviado
+     * todos sus datos.
+     *
+     * @throws IOException si no se ha podido terminar el trabajo.
+     */
+    void terminarTrabajo() throws IOException;
+
+    /**
+     * @return un texto que identifica la salida.
+     */
+    String getDescripcion();
+
+    /**
+     * Este método envía un trabajo completo.
+     *
+     * @param datos una matriz de bytes con los comandos EPL.
+     * @throws IOException si no se ha podido imprimir.
+     */
+    default void imprimir(byte[] datos) throws IOException {
+        enviar(ByteBuffer.wrap(datos));
+        terminarTrabajo();
+    }
+
+    /**
+     * Este método crea una salida a partir de su descripción:
+     * <ul>
+     * <li>tcp:HOST[:PUERTO] impresora de red (puerto 9100 por defecto).</li>
+     * <li>dispositivo:RUTA un dispositivo como /dev/usb/lp0.</li>
+     * <li>fichero:RUTA un fichero, que se vacía al abrirlo.</li>
+     * <li>cola:NOMBRE una cola de impresión del sistema.</li>
+     * <li>- la salida estándar.</li>
+     * <li>emulador[:VELOCIDAD,BUFFER] un EmuladorEPL en memoria, que
+     * comprueba los comandos sin imprimir nada (ver SalidaEmulador).</li>
+     * </ul>
+     *
+     * @param descripcion la descripción de la salida.
+     * @param ttlImpresoraMilis el tiempo de caché de las colas de impresión.
+     * @return la salida creada.
+     * @throws IllegalArgumentException si la descripción no es válida.
+     */
+    static SalidaImpresion crear(String descripcion, long ttlImpresoraMilis) {
+        if (descripcion.equals("-")) {
+            return new SalidaFlujo(System.out, "salida estándar");
+        }
+        if (descripcion.equals("emulador")) {
+            return new SalidaEmulador();
+        }
+        int dosPuntos = descripcion.indexOf(':');
+        if (dosPuntos < 0) {
+            throw new IllegalArgumentException(
+                    "Salida no válida: " + descripcion);
+        }
+        String tipo = descripcion.substring(0, dosPuntos);
+        String valor = descripcion.substring(dosPuntos + 1);
+        switch (tipo) {
+            case "tcp":
+                int puerto = PUERTO_ZEBRA;
+                int separador = valor.lastIndexOf(':');
+                if (separador > 0) {
+                    puerto = Integer.parseInt(valor.substring(separador + 1));
+                    valor = valor.substring(0, separador);
+                }
+                return new SalidaSocket(valor, puerto);
+            case "dispositivo":
+                return new SalidaDispositivo(Paths.get(valor), false);
+            case "fichero":
+                return new SalidaDispositivo(Paths.get(valor), true);
+            case "emulador":
+                String[] ritmo = valor.split(",");
+                if (ritmo.length != 2) {
+                    throw new IllegalArgumentException(
+                            "Salida no válida: " + descripcion);
+                }
+                return new SalidaEmulador(Double.parseDouble(ritmo[0]),
+                        Integer.parseInt(ritmo[1]));
+            case "cola":
+                return new SalidaPrintService(
+                        new RegistroImpresoras(valor, ttlImpresoraMilis));
+            default:
+                throw new IllegalArgumentException(
+                        "Tipo de salida desconocido: " + tipo);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import javax.print.Doc;
+import javax.print.DocFlavor;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
+import javax.print.PrintService;
+import javax.print.SimpleDoc;
+
+/**
+ * Salida que imprime en una cola de impresión del sistema a través de
+ * javax.print, como se ha hecho siempre. La impresora se obtiene del
+ * registro de impresoras y cada trabajo se envía mientras se escribe con
+ * un FlujoImpresion.
+ */
+public class SalidaPrintService implements SalidaImpresion {
+
+    private final RegistroImpresoras registro;
+    private OutputStream trabajo;
+
+    /**
+     * Constructor.
+     *
+     * @param registro el registro de donde se obtiene la impresora.
+     */
+    public SalidaPrintService(RegistroImpresoras registro) {
+        this.registro = registro;
+    }
+
+    /**
+     * Este método imprime un trabajo completo de una vez, con un SimpleDoc
+     * de bytes, sin necesidad de la tubería de FlujoImpresion.
+     *
+     * @param datos una matriz de bytes con los comandos EPL.
+     * @throws IOException si no se ha podido imprimir.
+     */
+    @Override
+    public void imprimir(byte[] datos) throws IOException {
+        if (trabajo != null) {
+            SalidaImpresion.super.imprimir(datos);
+            return;
+        }
+        Doc doc = new SimpleDoc(datos, DocFlavor.BYTE_ARRAY.AUTOSENSE, null);
+        DocPrintJob pj = getImpresora().createPrintJob();
+        try {
+            pj.print(doc, null);
+        } catch (PrintException ex) {
+            // puede que el PrintService ya no sea válido.
+            registro.invalidar();
+            throw new IOException("Error al imprimir: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void enviar(ByteBuffer datos) throws IOException {
+        if (trabajo == null) {
+            trabajo = new BufferedOutputStream(
+                    new FlujoImpresion(getImpresora()), 16 * 1024);
+        }
+        try {
+            if (datos.hasArray()) {
+                trabajo.write(datos.array(),
+                        datos.arrayOffset() + datos.position(),
+                        datos.remaining());
+                datos.position(datos.limit());
+            } else {
+                while (datos.hasRemaining()) {
+                    trabajo.write(datos.get());
+                }
+            }
+        } catch (IOException ex) {
+            descartarTrabajo();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void terminarTrabajo() throws IOException {
+        if (trabajo == null) {
+            return;
+        }
+        OutputStream actual = trabajo;
+        trabajo = null;
+        try {
+            actual.close();
+        } catch (IOException ex) {
+            // puede que el PrintService ya no sea válido.
+            registro.invalidar();
+            throw ex;
+        }
+    }
+
+    private PrintService getImpresora() throws IOException {
+        long inicio = System.nanoTime();
+        PrintService impresora = registro.getImpresora();
+        MetricasImpresion.getInstancia().registrarBusquedaImpresora(
+                System.nanoTime() - inicio);
+        if (impresora == null) {
+            throw new IOException("No se ha encontrado la impresora "
+                    + registro.getNombreImpresora());
+        }
+        return impresora;
+    }
+
+    private void descartarTrabajo() {
+        OutputStream actual = trabajo;
+        trabajo = null;
+        registro.invalidar();
+        try {
+            actual.close();
+        } catch (IOException ex) {
+            // el error ya se ha comunicado.
+        }
+    }
+
+    /**
+     * @return el registro de impresoras de esta salida.
+     */
+    public RegistroImpresoras getRegistro() {
+        return registro;
+    }
+
+    @Override
+    public String getDescripcion() {
+        return "cola:" + registro.getNombreImpresora();
+    }
+
+    @Override
+    public void close() throws IOException {
+        terminarTrabajo();
+    }
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Salida que envía las etiquetas al ritmo al que la impresora las imprime,
+ * para no desbordar su buffer de recepción, que en la LP 2844 es pequeño.
+ * Separa los comandos EPL que recibe en etiquetas (cada una termina en un
+ * comando 'P') y no envía una etiqueta mientras no quepa en el buffer de la
+ * impresora ó haya demasiadas etiquetas sin imprimir.
+ *
+ * Cuándo se termina de imprimir cada etiqueta se calcula con su número de
+ * copias, el largo de la etiqueta y la velocidad de impresión. Si la salida
+ * es bidireccional (SalidaBidireccional, por ejemplo tcp:) detrás de cada
+ * etiqueta se pide el estado a la impresora con ^ee. Mientras la impresora
+ * está ocupada, el tiempo entre dos respuestas es lo que tarda de verdad en
+ * imprimir una etiqueta, y con eso se corrige el cálculo. Si la respuesta
+ * es un error (sin papel, cabezal abierto...) no se envía nada más hasta
+ * que se resuelve. Si la impresora no contesta se sigue sólo con el
+ * cálculo.
+ *
+ * Las lineas de datos que siguen a '?' (las variables y contadores de un
+ * formulario recuperado con FR) no son comandos, aunque empiecen por 'P':
+ * se cuentan los campos de cada formulario que se define con FS. Si el
+ * formulario se guardó en la impresora antes de crear la salida no se sabe
+ * cuántos datos lleva, y una linea de datos como "P5" se tomaría por el
+ * final de una etiqueta.
+ *
+ * Cada etiqueta se envía en cuanto hay sitio, así que sólo tiene sentido
+ * para salidas directas (tcp: y dispositivo:), no para las colas de
+ * impresión del sistema, que hacen esto por su cuenta.
+ */
+public class SalidaRitmo implements SalidaImpresion {
+
+    /** Velocidad por defecto, en pulgadas por segundo. */
+    public static final double VELOCIDAD = 4;
+    /** Tamaño por defecto del buffer de recepción de la impresora. */
+    public static final int BUFFER_IMPRESORA = 8 * 1024;
+    /** Separación por defecto entre dos etiquetas, en puntos. */
+    public static final int SEPARACION = 24;
+    /** Etiquetas sin imprimir que se dejan en la impresora por defecto. */
+    public static final int MAX_EN_IMPRESORA = 4;
+    // caracteres que se guardan de una linea; basta para reconocer 'P'.
+    private static final int MAX_LINEA = 16;
+    // caracteres que se guardan de los comandos con nombre (GM, FS...).
+    private static final int MAX_LINEA_NOMBRE = 256;
+
+    private static final Logger LOG
+            = Logger.getLogger(SalidaRitmo.class.getName());
+    private static final byte[] ACUSE = "^ee\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final String SIN_ERROR = "00";
+    // tiempo sin respuesta para dar por hecho que la impresora no contesta.
+    private static final long SIN_RESPUESTA = 10_000_000_000L;
+    // cada cuánto se vuelve a pedir el estado si la impresora tiene un error.
+    private static final int ESPERA_ERROR = 1000;
+
+    /**
+     * Una etiqueta enviada que todavía no se ha impreso.
+     */
+    private static final class Enviada {
+
+        final int bytes;
+        // lo que tarda en imprimirse según la velocidad, sin corregir.
+        final long duracion;
+        // instante en que debería terminar de imprimirse.
+        final long fin;
+        // instante en que se envió.
+        final long envio;
+
+        Enviada(int bytes, long duracion, long fin, long envio) {
+            this.bytes = bytes;
+            this.duracion = duracion;
+            this.fin = fin;
+            this.envio = envio;
+        }
+    }
+
+    private final SalidaImpresion salida;
+    // la misma salida si se pueden leer respuestas, si no null.
+    private SalidaBidireccional respuestas;
+    private final double nanosPorPunto;
+    private final int largo;
+    private final int capacidad;
+    private final int maxEnImpresora;
+
+    // etiqueta que se está recibiendo, todavía sin enviar.
+    private ByteBuffer etiqueta = ByteBuffer.allocate(4096);
+    // linea actual, sólo el principio salvo en los comandos con nombre.
+    private final StringBuilder linea = new StringBuilder();
+    // bytes de datos binarios (GM) que quedan por recibir.
+    private long binarios;
+    // campos (variables y contadores) de cada formulario definido.
+    private final Map<String, Integer> formularios = new HashMap<>();
+    // el formulario que se está definiendo entre FS y FE, y sus campos.
+    private String definiendo;
+    private int camposDefiniendo;
+    // campos del formulario recuperado con FR, ó -1 si no se conoce.
+    private int camposRecuperado = -1;
+    // lineas de datos que faltan después de '?'.
+    private int pendientes;
+
+    private final ArrayDeque<Enviada> enImpresora = new ArrayDeque<>();
+    private int bytesEnImpresora;
+    private long finUltima;
+    // etiquetas cuyo estado se ha pedido y todavía no ha contestado.
+    private final ArrayDeque<Enviada> acuses = new ArrayDeque<>();
+    private long instanteAcuse;
+    private final byte[] lectura = new byte[256];
+    private final StringBuilder respuesta = new StringBuilder();
+    private String error;
+    // lo que tarda de verdad la impresora respecto al cálculo.
+    private double factor = 1;
+    private long etiquetas;
+    private long nanosEspera;
+
+    /**
+     * Constructor.
+     *
+     * @param salida la salida directa a la impresora.
+     * @param velocidad la velocidad de impresión en pulgadas por segundo
+     * (el comando 'S' de la impresora).
+     * @param largo el largo de la etiqueta más la separación, en puntos.
+     * @param capacidad el tamaño del buffer de recepción de la impresora.
+     * @param maxEnImpresora el máximo de etiquetas sin imprimir en la
+     * impresora.
+     */
+    public SalidaRitmo(SalidaImpresion salida, double velocidad, int largo,
+            int capacidad, int maxEnImpresora) {
+        if (velocidad <= 0 || largo <= 0 || capacidad <= 0
+                || maxEnImpresora < 1) {
+            throw new IllegalArgumentException("Ritmo no válido");
+        }
+        this.salida = salida;
+        if (salida instanceof SalidaBidireccional) {
+            respuestas = (SalidaBidireccional) salida;
+        }
+        this.nanosPorPunto = 1e9 / (velocidad * VistaPreviaEPL.PPP);
+        this.largo = largo;
+        this.capacidad = capacidad;
+        this.maxEnImpresora = maxEnImpresora;
+    }
+
+    /**
+     * Este método pone el ritmo de la impresora a una salida si es una
+     * salida directa a la impresora (tcp: ó dispositivo:) ó el emulador.
+     *
+     * @param salida la salida.
+     * @param velocidad la velocidad de impresión en pulgadas por segundo, ó
+     * 0 para no limitar el ritmo.
+     * @param largo el largo de la etiqueta más la separación, en puntos.
+     * @param capacidad el tamaño del buffer de recepción de la impresora.
+     * @return la salida con el ritmo de la impresora, ó la misma salida.
+     */
+    public static SalidaImpresion acompasar(SalidaImpresion salida,
+            double velocidad, int largo, int capacidad) {
+        boolean directa = salida instanceof SalidaSocket
+                || salida instanceof SalidaEmulador
+                || (salida instanceof SalidaDispositivo
+                && !((SalidaDispositivo) salida).isFichero());
+        if (velocidad <= 0 || !directa) {
+            return salida;
+        }
+        return new SalidaRitmo(salida, velocidad, largo, capacidad,
+                MAX_EN_IMPRESORA);
+    }
+
+    @Override
+    public void enviar(ByteBuffer datos) throws IOException {
+        try {
+            separar(datos);
+        } catch (IOException ex) {
+            reiniciar();
+            throw ex;
+        }
+    }
+
+    /**
+     * Este método separa los datos en etiquetas y envía cada una cuando
+     * está completa.
+     */
+    private void separar(ByteBuffer datos) throws IOException {
+        while (datos.hasRemaining()) {
+            byte b = datos.get();
+            guardar(b);
+            if (binarios > 0) {
+                binarios--;
+                continue;
+            }
+            if (b != '\n') {
+                int longitud = linea.length();
+                if (longitud < MAX_LINEA || (longitud < MAX_LINEA_NOMBRE
+                        && (linea.charAt(0) == 'G'
+                        || linea.charAt(0) == 'F'))) {
+                    linea.append((char) (b & 0xFF));
+                }
+                continue;
+            }
+            int copias = leerLinea();
+            linea.setLength(0);
+            if (copias > 0) {
+                enviarEtiqueta(copias);
+            }
+        }
+    }
+
+    /**
+     * Este método mira la linea que acaba de terminar. Si es un comando GM
+     * anota cuántos bytes binarios le siguen; con FS, FE, FR, FK y '?' sigue
+     * los formularios para saber qué lineas son datos y no comandos.
+     *
+     * @return las copias si la linea es un comando 'P', si no 0.
+     */
+    private int leerLinea() {
+        int longitud = linea.length();
+        if (longitud > 0 && linea.charAt(longitud - 1) == '\r') {
+            linea.setLength(--longitud);
+        }
+        if (pendientes > 0) {
+            pendientes--;
+            return 0;
+        }
+        if (definiendo != null) {
+            if (longitud == 2 && linea.charAt(0) == 'F'
+                    && linea.charAt(1) == 'E') {
+                formularios.put(definiendo, camposDefiniendo);
+                definiendo = null;
+            } else if (longitud > 0 && (linea.charAt(0) == 'V'
+                    || linea.charAt(0) == 'C')) {
+                camposDefiniendo++;
+            }
+            return 0;
+        }
+        if (longitud == 0) {
+            return 0;
+        }
+        char letra = linea.charAt(0);
+        if (letra == 'P' && longitud > 1) {
+            int copias = 0;
+            for (int i = 1; i < longitud; i++) {
+                char c = linea.charAt(i);
+                if (c < '0' || c > '9' || copias > 65535) {
+                    return 0;
+                }
+                copias = copias * 10 + c - '0';
+            }
+            return copias;
+        }
+        if (longitud == 1 && letra == 'N') {
+            camposRecuperado = -1;
+        } else if (longitud == 1 && letra == '?') {
+            pendientes = Math.max(0, camposRecuperado);
+        } else if (longitud > 2 && letra == 'G' && linea.charAt(1) == 'M') {
+            // GM"nombre"bytes: la longitud va detrás de la segunda comilla.
+            int comilla = linea.indexOf("\"", 3);
+            long bytes = 0;
+            for (int i = comilla + 1; comilla > 0 && i < longitud; i++) {
+                char c = linea.charAt(i);
+                if (c < '0' || c > '9' || bytes > Integer.MAX_VALUE) {
+                    break;
+                }
+                bytes = bytes * 10 + c - '0';
+            }
+            binarios = bytes;
+        } else if (longitud > 2 && letra == 'F') {
+            String nombre = nombre();
+            char comando = linea.charAt(1);
+            if (comando == 'S' && nombre != null) {
+                definiendo = nombre;
+                camposDefiniendo = 0;
+            } else if (comando == 'R') {
+                Integer campos = nombre == null
+                        ? null : formularios.get(nombre);
+                camposRecuperado = campos == null ? -1 : campos;
+            } else if (comando == 'K' && "*".equals(nombre)) {
+                formularios.clear();
+            } else if (comando == 'K' && nombre != null) {
+                formularios.remove(nombre);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return el nombre entre comillas de la linea (FS"nombre"), ó null si
+     * no tiene.
+     */
+    private String nombre() {
+        int comilla = linea.indexOf("\"", 3);
+        if (linea.charAt(2) != '"' || comilla < 0) {
+            return null;
+        }
+        return linea.substring(3, comilla);
+    }
+
+    private void guardar(byte b) {
+        if (!etiqueta.hasRemaining()) {
+            ByteBuffer mayor = ByteBuffer.allocate(etiqueta.capacity() * 2);
+            etiqueta.flip();
+            mayor.put(etiqueta);
+            etiqueta = mayor;
+        }
+        etiqueta.put(b);
+    }
+
+    /**
+     * Este método espera a que la etiqueta recibida quepa en la impresora y
+     * la envía.
+     */
+    private void enviarEtiqueta(int copias) throws IOException {
+        int bytes = etiqueta.position();
+        esperarSitio(bytes);
+        etiqueta.flip();
+        salida.enviar(etiqueta);
+        etiqueta.clear();
+        if (respuestas != null) {
+            salida.enviar(ByteBuffer.wrap(ACUSE));
+        }
+        // lo enviado tiene que llegar ya a la impresora.
+        salida.terminarTrabajo();
+        long ahora = System.nanoTime();
+        long duracion = (long) (copias * largo * nanosPorPunto);
+        finUltima = Math.max(ahora, finUltima) + (long) (duracion * factor);
+        Enviada enviada = new Enviada(bytes, duracion, finUltima, ahora);
+        enImpresora.add(enviada);
+        bytesEnImpresora += bytes;
+        if (respuestas != null) {
+            if (acuses.isEmpty()) {
+                instanteAcuse = ahora;
+            }
+            acuses.add(enviada);
+        }
+        etiquetas++;
+    }
+
+    /**
+     * Este método espera hasta que hay sitio en la impresora para una
+     * etiqueta. Una etiqueta más grande que todo el buffer (por ejemplo un
+     * gráfico) se envía cuando la impresora está vacía.
+     */
+    private void esperarSitio(int bytes) throws IOException {
+        long inicio = System.nanoTime();
+        while (true) {
+            leerRespuestas(0);
+            if (error != null) {
+                esperarError();
+                continue;
+            }
+            long ahora = System.nanoTime();
+            while (!enImpresora.isEmpty() && enImpresora.peek().fin <= ahora) {
+                bytesEnImpresora -= enImpresora.poll().bytes;
+            }
+            if (enImpresora.isEmpty()
+                    || (enImpresora.size() < maxEnImpresora
+                    && bytesEnImpresora + bytes <= capacidad)) {
+                break;
+            }
+            long espera = enImpresora.peek().fin - ahora;
+            if (respuestas != null) {
+                leerRespuestas((int) Math.max(1, espera / 1_000_000));
+            } else {
+                dormir(espera);
+            }
+        }
+        nanosEspera += System.nanoTime() - inicio;
+    }
+
+    /**
+     * Este método espera a que la impresora deje de tener un error,
+     * preguntando su estado cada segundo.
+     */
+    private void esperarError() throws IOException {
+        LOG.warning("La impresora " + salida.getDescripcion()
+                + " tiene el error " + error);
+        error = null;
+        salida.enviar(ByteBuffer.wrap(ACUSE));
+        salida.terminarTrabajo();
+        long ahora = System.nanoTime();
+        if (acuses.isEmpty()) {
+            instanteAcuse = ahora;
+        }
+        acuses.add(new Enviada(0, 0, 0, ahora));
+        leerRespuestas(ESPERA_ERROR);
+        // mientras tanto no se ha impreso nada: se retrasa el cálculo.
+        long retraso = System.nanoTime();
+        finUltima = Math.max(finUltima, retraso);
+        ArrayDeque<Enviada> retrasadas = new ArrayDeque<>();
+        long fin = retraso;
+        for (Enviada enviada : enImpresora) {
+            fin += (long) (enviada.duracion * factor);
+            retrasadas.add(new Enviada(enviada.bytes, enviada.duracion, fin,
+                    enviada.envio));
+        }
+        enImpresora.clear();
+        enImpresora.addAll(retrasadas);
+        finUltima = Math.max(finUltima, fin);
+    }
+
+    /**
+     * Este método lee las respuestas de la impresora que hayan llegado. Si
+     * hace mucho que no contesta se deja de pedir el estado.
+     */
+    private void leerRespuestas(int esperaMilis) throws IOException {
+        if (respuestas == null) {
+            return;
+        }
+        int espera = Math.max(1, esperaMilis);
+        int leidos;
+        while ((leidos = respuestas.leer(lectura, espera)) > 0) {
+            for (int i = 0; i < leidos; i++) {
+                char c = (char) (lectura[i] & 0xFF);
+                if (c == '\n') {
+                    respuestaRecibida(respuesta.toString().trim());
+                    respuesta.setLength(0);
+                } else if (respuesta.length() < 64) {
+                    respuesta.append(c);
+                }
+            }
+            // lo que siga ya está esperando; no hace falta bloquearse.
+            espera = 1;
+        }
+        if (!acuses.isEmpty()
+                && System.nanoTime() - instanteAcuse > SIN_RESPUESTA) {
+            LOG.warning("La impresora " + salida.getDescripcion()
+                    + " no contesta a ^ee; se usa sólo el cálculo");
+            respuestas = null;
+            acuses.clear();
+        }
+    }
+
+    /**
+     * Este método atiende una respuesta de estado, que corresponde a la
+     * petición más antigua sin contestar.
+     */
+    private void respuestaRecibida(String codigo) {
+        if (codigo.isEmpty() || acuses.isEmpty()) {
+            return;
+        }
+        Enviada enviada = acuses.poll();
+        long ahora = System.nanoTime();
+        if (!codigo.equals(SIN_ERROR)) {
+            error = codigo;
+        } else if (enviada.duracion > 0 && enviada.envio < instanteAcuse) {
+            // la etiqueta ya estaba en la impresora cuando llegó la
+            // respuesta anterior, así que la impresora no ha parado entre
+            // las dos: el tiempo entre ellas es su ritmo real.
+            double medido = (double) (ahora - instanteAcuse)
+                    / enviada.duracion;
+            factor = Math.max(0.5, Math.min(4,
+                    0.8 * factor + 0.2 * medido));
+        }
+        instanteAcuse = ahora;
+    }
+
+    private static void dormir(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Impresión interrumpida", ex);
+        }
+    }
+
+    /**
+     * Este método envía lo que quede después de la última etiqueta (comandos
+     * que no imprimen) y termina el trabajo. No espera a que se impriman las
+     * etiquetas: el siguiente trabajo sigue el mismo ritmo.
+     */
+    @Override
+    public void terminarTrabajo() throws IOException {
+        try {
+            if (etiqueta.position() > 0) {
+                esperarSitio(etiqueta.position());
+                etiqueta.flip();
+                salida.enviar(etiqueta);
+                etiqueta.clear();
+            }
+            salida.terminarTrabajo();
+        } catch (IOException ex) {
+            reiniciar();
+            throw ex;
+        }
+    }
+
+    /**
+     * Este método descarta lo que quedaba del trabajo cuando falla un envío.
+     * El trabajo se volverá a enviar entero y no se sabe qué tiene la
+     * impresora, ni si contestará a lo que se le preguntó.
+     */
+    private void reiniciar() {
+        etiqueta.clear();
+        linea.setLength(0);
+        binarios = 0;
+        definiendo = null;
+        camposRecuperado = -1;
+        pendientes = 0;
+        enImpresora.clear();
+        bytesEnImpresora = 0;
+        acuses.clear();
+        respuesta.setLength(0);
+        error = null;
+    }
+
+    /**
+     * @return las etiquetas enviadas.
+     */
+    public long getEtiquetas() {
+        return etiquetas;
+    }
+
+    /**
+     * @return el tiempo total que se ha esperado a la impresora, en
+     * nanosegundos.
+     */
+    public long getNanosEspera() {
+        return nanosEspera;
+    }
+
+    /**
+     * @return cuánto tarda la impresora respecto al cálculo (1 si coincide).
+     */
+    public double getFactor() {
+        return factor;
+    }
+
+    @Override
+    public String getDescripcion() {
+        return salida.getDescripcion();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            terminarTrabajo();
+        } finally {
+            salida.close();
+        }
+    }
+}
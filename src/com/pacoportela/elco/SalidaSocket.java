@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Salida que envía los comandos EPL directamente a una impresora de red por
+ * TCP (puerto 9100 en las Zebra con tarjeta de red), sin pasar por el
+ * spooler del sistema. La conexión se abre la primera vez y se reutiliza
+ * para todos los trabajos. Si falla, se cierra y se vuelve a abrir en el
+ * siguiente envío. Por la misma conexión se pueden leer las respuestas de
+ * la impresora.
+ */
+public class SalidaSocket extends SalidaConBuffer
+        implements SalidaBidireccional {
+
+    private static final int TIEMPO_CONEXION = 5000;
+
+    private final InetSocketAddress direccion;
+    private SocketChannel canal;
+    private long conexiones;
+
+    /**
+     * Constructor. No se conecta hasta el primer envío.
+     *
+     * @param host el nombre ó la dirección IP de la impresora.
+     * @param puerto el puerto TCP, normalmente 9100.
+     */
+    public SalidaSocket(String host, int puerto) {
+        this.direccion = InetSocketAddress.createUnresolved(host, puerto);
+    }
+
+    @Override
+    protected void escribir(ByteBuffer datos) throws IOException {
+        SocketChannel c = conectar();
+        try {
+            while (datos.hasRemaining()) {
+                c.write(datos);
+            }
+        } catch (IOException ex) {
+            // la próxima vez se abre una conexión nueva.
+            cerrarCanal();
+            throw ex;
+        }
+    }
+
+    @Override
+    public int leer(byte[] destino, int esperaMilis) throws IOException {
+        SocketChannel c = canal;
+        if (c == null) {
+            return -1;
+        }
+        // el InputStream del socket respeta el tiempo de espera; el canal
+        // en modo bloqueante no.
+        c.socket().setSoTimeout(esperaMilis);
+        try {
+            return c.socket().getInputStream().read(destino);
+        } catch (SocketTimeoutException ex) {
+            return 0;
+        } catch (IOException ex) {
+            cerrarCanal();
+            throw ex;
+        }
+    }
+
+    private SocketChannel conectar() throws IOException {
+        if (canal == null || !canal.isConnected()) {
+            cerrarCanal();
+            SocketChannel nuevo = SocketChannel.open();
+            try {
+                nuevo.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                nuevo.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                nuevo.socket().connect(new InetSocketAddress(
+                        direccion.getHostString(), direccion.getPort()),
+                        TIEMPO_CONEXION);
+            } catch (IOException ex) {
+                nuevo.close();
+                throw ex;
+            }
+            canal = nuevo;
+            conexiones++;
+        }
+        return canal;
+    }
+
+    /**
+     * @return el canal abierto con la impresora ó null si no hay conexión.
+     */
+    SocketChannel getCanal() {
+        return canal;
+    }
+
+    /**
+     * @return el número de veces que se ha abierto la conexión.
+     */
+    public long getConexiones() {
+        return conexiones;
+    }
+
+    @Override
+    protected void cerrarCanal() {
+        if (canal != null) {
+            try {
+                canal.close();
+            } catch (IOException ex) {
+                // la conexión ya no sirve.
+            }
+            canal = null;
+        }
+    }
+
+    @Override
+    public String getDescripcion() {
+        return "tcp:" + direccion.getHostString() + ":" + direccion.getPort();
+    }
+}
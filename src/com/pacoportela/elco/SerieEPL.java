@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Esta clase busca los contadores de una etiqueta. Un contador se escribe
+ * en el texto de una linea como {seq:0001}: las cifras son el primer número
+ * y cuántas cifras tiene el número (con ceros a la izquierda). Se puede
+ * indicar el paso entre una etiqueta y la siguiente, de -9 a 9, como en
+ * {seq:0500:-1}; si no se indica es +1. Cada contador se convierte en un
+ * contador 'C' de EPL dentro de un formulario, así que con un solo comando
+ * 'P' la impresora imprime todas las copias y cambia el número ella misma:
+ * el número de copias de la etiqueta es el número de etiquetas de la serie.
+ * El texto que rodea a los contadores va en variables 'V' del formulario.
+ * EPL sólo tiene diez contadores (C0 a C9); a partir del décimo, lo que
+ * parece un contador se imprime tal cual.
+ */
+final class SerieEPL {
+
+    /** Número máximo de contadores de una etiqueta. */
+    static final int MAX_CONTADORES = 10;
+    /** Número máximo de cifras de un contador. */
+    static final int MAX_CIFRAS = 9;
+
+    private static final String MARCA = "{seq:";
+
+    // campos de cada linea con texto: el número de variable (de 0 en
+    // adelante) ó -1 - el número de contador.
+    private final List<int[]> campos = new ArrayList<>();
+    private final List<String> textos = new ArrayList<>();
+    private final List<String> inicios = new ArrayList<>();
+    private final List<String> pasos = new ArrayList<>();
+    private final String estructura;
+
+    private SerieEPL(Etiqueta etiqueta) {
+        StringBuilder clave = new StringBuilder();
+        clave.append(PlantillaEPL.indice(etiqueta));
+        List<Integer> lineaCampos = new ArrayList<>();
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            CharSequence linea = etiqueta.getLinea(i);
+            if (linea.length() == 0) {
+                continue;
+            }
+            clave.append('|');
+            lineaCampos.clear();
+            int desde = 0;
+            while (desde < linea.length()) {
+                int contador = inicios.size() < MAX_CONTADORES
+                        ? buscar(linea, desde) : -1;
+                int finTexto = contador < 0 ? linea.length() : contador;
+                // una variable EPL no puede pasar de LONGITUD_MAXIMA.
+                while (desde < finTexto) {
+                    int fin = Math.min(finTexto,
+                            desde + FormularioEPL.LONGITUD_MAXIMA);
+                    lineaCampos.add(textos.size());
+                    textos.add(linea.subSequence(desde, fin).toString());
+                    clave.append('V');
+                    desde = fin;
+                }
+                if (contador >= 0) {
+                    int fin = fin(linea, contador);
+                    String valor = linea.subSequence(
+                            contador + MARCA.length(), fin - 1).toString();
+                    int dosPuntos = valor.indexOf(':');
+                    String paso = "+1";
+                    if (dosPuntos >= 0) {
+                        paso = valor.substring(dosPuntos + 1);
+                        valor = valor.substring(0, dosPuntos);
+                        if (paso.charAt(0) != '-' && paso.charAt(0) != '+') {
+                            paso = "+" + paso;
+                        }
+                    }
+                    lineaCampos.add(-1 - inicios.size());
+                    inicios.add(valor);
+                    pasos.add(paso);
+                    clave.append('C').append(valor.length()).append(paso);
+                    desde = fin;
+                }
+            }
+            int[] lista = new int[lineaCampos.size()];
+            for (int j = 0; j < lista.length; j++) {
+                lista[j] = lineaCampos.get(j);
+            }
+            campos.add(lista);
+        }
+        estructura = clave.toString();
+    }
+
+    /**
+     * Este método busca los contadores de la etiqueta.
+     *
+     * @param etiqueta la etiqueta.
+     * @return los contadores y el texto que los rodea, ó null si la
+     * etiqueta no tiene contadores.
+     */
+    static SerieEPL analizar(Etiqueta etiqueta) {
+        return tieneContadores(etiqueta) ? new SerieEPL(etiqueta) : null;
+    }
+
+    /**
+     * Este método comprueba si la etiqueta tiene algún contador, sin crear
+     * objetos.
+     *
+     * @param etiqueta la etiqueta.
+     * @return true si alguna linea tiene un contador.
+     */
+    static boolean tieneContadores(Etiqueta etiqueta) {
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            if (buscar(etiqueta.getLinea(i), 0) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Este método cambia los contadores de la etiqueta por su primer
+     * número, que es lo que se imprime en la primera etiqueta de la serie.
+     * Se usa para la vista previa.
+     *
+     * @param etiqueta la etiqueta que se cambia.
+     */
+    static void sustituir(Etiqueta etiqueta) {
+        int contadores = 0;
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            StringBuilder linea = etiqueta.getBufferLinea(i);
+            int desde = 0;
+            int inicio;
+            while (contadores < MAX_CONTADORES
+                    && (inicio = buscar(linea, desde)) >= 0) {
+                int fin = fin(linea, inicio);
+                int cifras = inicio + MARCA.length();
+                while (cifras < fin && esCifra(linea.charAt(cifras))) {
+                    cifras++;
+                }
+                linea.delete(cifras, fin);
+                linea.delete(inicio, inicio + MARCA.length());
+                desde = cifras - MARCA.length();
+                contadores++;
+            }
+        }
+    }
+
+    /**
+     * Este método busca el siguiente contador bien escrito de una linea.
+     *
+     * @return la posición de la llave de apertura ó -1 si no hay más.
+     */
+    private static int buscar(CharSequence linea, int desde) {
+        int ultimo = linea.length() - MARCA.length();
+        for (int i = desde; i < ultimo; i++) {
+            if (linea.charAt(i) == '{' && empiezaPorMarca(linea, i)
+                    && fin(linea, i) > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean empiezaPorMarca(CharSequence linea, int inicio) {
+        for (int j = 1; j < MARCA.length(); j++) {
+            if (linea.charAt(inicio + j) != MARCA.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Este método lee un contador: de 1 a 9 cifras, y opcionalmente dos
+     * puntos, un signo y una cifra de 1 a 9, y la llave de cierre.
+     *
+     * @return la posición siguiente a la llave de cierre ó -1 si no es un
+     * contador bien escrito.
+     */
+    private static int fin(CharSequence linea, int inicio) {
+        int i = inicio + MARCA.length();
+        int longitud = linea.length();
+        int cifras = 0;
+        while (i < longitud && esCifra(linea.charAt(i))) {
+            cifras++;
+            i++;
+        }
+        if (cifras == 0 || cifras > MAX_CIFRAS) {
+            return -1;
+        }
+        if (i < longitud && linea.charAt(i) == ':') {
+            i++;
+            if (i < longitud && (linea.charAt(i) == '+'
+                    || linea.charAt(i) == '-')) {
+                i++;
+            }
+            if (i >= longitud || linea.charAt(i) < '1'
+                    || linea.charAt(i) > '9') {
+                return -1;
+            }
+            i++;
+        }
+        return i < longitud && linea.charAt(i) == '}' ? i + 1 : -1;
+    }
+
+    private static boolean esCifra(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return una clave que es igual para todas las etiquetas que se pueden
+     * imprimir con el mismo formulario.
+     */
+    String getEstructura() {
+        return estructura;
+    }
+
+    /**
+     * @return los campos de cada linea con texto: el número de variable, ó
+     * -1 menos el número de contador.
+     */
+    List<int[]> getCampos() {
+        return campos;
+    }
+
+    /**
+     * @return el texto de cada variable, en orden.
+     */
+    List<String> getTextos() {
+        return textos;
+    }
+
+    /**
+     * @return el primer número de cada contador, con sus ceros.
+     */
+    List<String> getInicios() {
+        return inicios;
+    }
+
+    /**
+     * @return el paso de cada contador, con su signo.
+     */
+    List<String> getPasos() {
+        return pasos;
+    }
+}
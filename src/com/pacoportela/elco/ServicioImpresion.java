@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+/**
+ * Interfaz de lo que recibe los trabajos de impresión: una cola de
+ * impresión con una sola impresora (ColaImpresion) ó un grupo de impresoras
+ * que se reparten los trabajos (PoolImpresoras).
+ */
+public interface ServicioImpresion {
+
+    /**
+     * Este método añade un trabajo sin esperar.
+     *
+     * @param trabajo el trabajo a imprimir.
+     * @return true si el trabajo se ha añadido, false si no hay sitio.
+     */
+    boolean enviar(TrabajoImpresion trabajo);
+
+    /**
+     * Este método añade un trabajo esperando a que haya sitio.
+     *
+     * @param trabajo el trabajo a imprimir.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    void enviarEsperando(TrabajoImpresion trabajo)
+            throws InterruptedException;
+
+    /**
+     * Este método cancela un trabajo que todavía no se ha empezado a
+     * imprimir.
+     *
+     * @param trabajo el trabajo a cancelar.
+     * @return true si se ha cancelado, false si ya se estaba imprimiendo.
+     */
+    boolean cancelar(TrabajoImpresion trabajo);
+
+    /**
+     * @return el número de trabajos que esperan para imprimirse.
+     */
+    int getPendientes();
+
+    void setUsarFormularios(boolean usarFormularios);
+
+    void setPaginaCodigos(PaginaCodigos pagina);
+
+    /**
+     * Este método elige el perfil de las impresoras (ver PerfilImpresora),
+     * con su página de códigos. Cada impresora sólo recibe los comandos del
+     * perfil cuando cambia ó cuando no se sabe qué tiene.
+     *
+     * @param perfil el perfil.
+     */
+    void setPerfil(PerfilImpresora perfil);
+
+    void setLogo(GraficoEPL logo);
+
+    void setAgrupacion(long ventanaMilis, int maxAgrupados);
+
+    void addOyente(ColaImpresion.OyenteCola oyente);
+
+    void removeOyente(ColaImpresion.OyenteCola oyente);
+
+    /**
+     * Este método para la impresión. Los trabajos pendientes se descartan.
+     */
+    void cerrar();
+}
@@ -0,0 +1,662 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Esta clase es el modo servidor: una pequeña API HTTP para que otros
+ * programas (el ERP, el almacén) impriman etiquetas sin usar la ventana.
+ * Todas las peticiones comparten una cola de impresión de tamaño limitado;
+ * cuando está llena las etiquetas se rechazan con 429 en vez de esperar.
+ * Cada petición se atiende en un hilo virtual si la máquina virtual los
+ * tiene (Java 21 ó posterior), de forma que puede haber miles de clientes
+ * esperando a la vez; si no, en un grupo de MAX_HILOS hilos normales, y
+ * sólo MAX_ESPERANDO peticiones pueden esperar a la vez con ?esperar=true
+ * (las demás reciben 503) para que siempre queden hilos libres.
+ *
+ * <ul>
+ * <li>POST /etiquetas: imprime una etiqueta con los parámetros de
+ * formulario linea1..linea5, fuente, rotacion, horizontal, vertical, formato
+ * y copias, ó varias etiquetas en formato CSV/TSV (ver LectorEtiquetas) con
+ * un Content-Type text/csv, text/plain ó text/tab-separated-values.
+ * Con ?esperar=true la respuesta llega cuando se han impreso.</li>
+ * <li>GET /trabajos/ID: el estado de un trabajo reciente.</li>
+ * <li>GET /estado: trabajos pendientes y métricas.</li>
+ * </ul>
+ *
+ * Uso: java -jar EtiquetasGUI.jar --servidor [-puerto N] [-direccion IP]
+ * [-capacidad N] [-salida DESC | -impresoras LISTA] [-formularios]
+ * [-pagina N] [-diario DIRECTORIO] [-logo FICHERO] [-logo-ancho N]
+ * [-logo-posicion X,Y] [-velocidad N] [-carpeta DIRECTORIO]
+ * [-perfil DESC] [-cache N]
+ *
+ * Con -carpeta también se imprimen los ficheros que se dejan en el
+ * directorio (ver CarpetaEtiquetas), en la misma cola. Con -cache se elige
+ * cuántas etiquetas codificadas se guardan para no volver a codificarlas
+ * (ver CacheEtiquetas); 0 para no guardar ninguna.
+ */
+public class ServidorEtiquetas {
+
+    /** Puerto por defecto. */
+    public static final int PUERTO = 8631;
+    /** Trabajos que caben en la cola por defecto. */
+    public static final int CAPACIDAD = 1000;
+
+    // tamaño máximo del cuerpo de una petición.
+    private static final int MAX_CUERPO = 1024 * 1024;
+    // tiempo máximo de espera con ?esperar=true.
+    private static final long MAX_ESPERA_SEGUNDOS = 120;
+    // trabajos recientes que se pueden consultar.
+    private static final int MAX_TRABAJOS = 10000;
+    /** Hilos que atienden peticiones si no hay hilos virtuales. */
+    public static final int MAX_HILOS = 32;
+    /** Peticiones que pueden esperar a la vez sin hilos virtuales. */
+    public static final int MAX_ESPERANDO = MAX_HILOS / 2;
+    // con hilos virtuales esperar no ocupa un hilo del sistema.
+    private static final int MAX_ESPERANDO_VIRTUALES = 10000;
+
+    private final ServicioImpresion cola;
+    private final HttpServer servidor;
+    private final ExecutorService hilos;
+    // permisos de las peticiones con ?esperar=true.
+    private final Semaphore esperando;
+    // trabajos recientes por id, del más antiguo al más nuevo.
+    private final Map<Long, TrabajoImpresion> trabajos
+            = new LinkedHashMap<Long, TrabajoImpresion>() {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Long, TrabajoImpresion> mayor) {
+            return size() > MAX_TRABAJOS;
+        }
+    };
+    // esperas de las peticiones con ?esperar=true, por id de trabajo.
+    private final Map<Long, CountDownLatch> esperas = new HashMap<>();
+    private long rechazadas;
+
+    /**
+     * Constructor. Crea el servidor pero no lo arranca.
+     *
+     * @param cola la cola de impresión compartida.
+     * @param direccion la dirección y el puerto donde escucha.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public ServidorEtiquetas(ServicioImpresion cola,
+            InetSocketAddress direccion) throws IOException {
+        this.cola = cola;
+        ExecutorService virtuales = crearHilosVirtuales();
+        this.hilos = virtuales != null ? virtuales : crearHilos();
+        this.esperando = new Semaphore(virtuales != null
+                ? MAX_ESPERANDO_VIRTUALES : MAX_ESPERANDO);
+        this.servidor = HttpServer.create(direccion, 1024);
+        servidor.setExecutor(hilos);
+        servidor.createContext("/etiquetas", this::atenderEtiquetas);
+        servidor.createContext("/trabajos/", this::atenderTrabajo);
+        servidor.createContext("/estado", this::atenderEstado);
+        cola.addOyente(this::trabajoActualizado);
+    }
+
+    /**
+     * Este método crea un ejecutor con un hilo virtual por tarea si la
+     * máquina virtual los tiene. Se busca por reflexión para que el programa
+     * siga funcionando con Java 8.
+     *
+     * @return el ejecutor, ó null si no hay hilos virtuales.
+     */
+    static ExecutorService crearHilosVirtuales() {
+        try {
+            Method metodo = Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) metodo.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Este método crea un grupo de MAX_HILOS hilos. Si están todos ocupados
+     * las peticiones esperan su turno en vez de crear más hilos.
+     */
+    static ExecutorService crearHilos() {
+        AtomicInteger numero = new AtomicInteger();
+        ThreadPoolExecutor grupo = new ThreadPoolExecutor(MAX_HILOS,
+                MAX_HILOS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                tarea -> {
+                    Thread hilo = new Thread(tarea,
+                            "ServidorEtiquetas-" + numero.incrementAndGet());
+                    hilo.setDaemon(true);
+                    return hilo;
+                });
+        grupo.allowCoreThreadTimeOut(true);
+        return grupo;
+    }
+
+    public void arrancar() {
+        servidor.start();
+    }
+
+    /**
+     * Este método para el servidor y la cola de impresión.
+     */
+    public void parar() {
+        servidor.stop(1);
+        hilos.shutdownNow();
+        cola.cerrar();
+    }
+
+    /**
+     * @return el puerto donde escucha el servidor.
+     */
+    public int getPuerto() {
+        return servidor.getAddress().getPort();
+    }
+
+    /**
+     * @return el número de etiquetas rechazadas porque la cola estaba llena.
+     */
+    public synchronized long getRechazadas() {
+        return rechazadas;
+    }
+
+    private void atenderEtiquetas(HttpExchange peticion) throws IOException {
+        try {
+            if (!peticion.getRequestMethod().equals("POST")) {
+                responder(peticion, 405, error("Use POST"));
+                return;
+            }
+            byte[] cuerpo = leerCuerpo(peticion.getRequestBody());
+            if (cuerpo == null) {
+                responder(peticion, 413, error("Petición demasiado grande"));
+                return;
+            }
+            List<Etiqueta> etiquetas;
+            try {
+                etiquetas = leerEtiquetas(peticion, cuerpo);
+            } catch (IllegalArgumentException ex) {
+                responder(peticion, 400, error(ex.getMessage()));
+                return;
+            }
+            if (etiquetas.isEmpty()) {
+                responder(peticion, 400, error("No hay etiquetas"));
+                return;
+            }
+            boolean esperar = "true".equals(leerParametros(
+                    peticion.getRequestURI().getRawQuery()).get("esperar"));
+            if (!esperar) {
+                imprimir(peticion, etiquetas, false);
+                return;
+            }
+            // cada petición que espera ocupa un hilo hasta 120 s.
+            if (!esperando.tryAcquire()) {
+                peticion.getResponseHeaders().set("Retry-After", "1");
+                responder(peticion, 503, error(
+                        "Demasiadas peticiones esperando"));
+                return;
+            }
+            try {
+                imprimir(peticion, etiquetas, true);
+            } finally {
+                esperando.release();
+            }
+        } finally {
+            peticion.close();
+        }
+    }
+
+    /**
+     * Este método envía las etiquetas a la cola. Si la cola se llena, las
+     * etiquetas que faltan se rechazan y la respuesta es 429 con los
+     * trabajos que sí se aceptaron.
+     */
+    private void imprimir(HttpExchange peticion, List<Etiqueta> etiquetas,
+            boolean esperar) throws IOException {
+        String cliente = peticion.getRemoteAddress().getAddress()
+                .getHostAddress();
+        List<TrabajoImpresion> aceptados = new ArrayList<>();
+        CountDownLatch terminados = new CountDownLatch(etiquetas.size());
+        for (Etiqueta etiqueta : etiquetas) {
+            TrabajoImpresion trabajo = new TrabajoImpresion(cliente + ": "
+                    + etiqueta.getLinea(0), etiqueta);
+            if (esperar) {
+                synchronized (this) {
+                    esperas.put(trabajo.getId(), terminados);
+                }
+            }
+            if (!cola.enviar(trabajo)) {
+                synchronized (this) {
+                    esperas.remove(trabajo.getId());
+                    rechazadas += etiquetas.size() - aceptados.size();
+                }
+                peticion.getResponseHeaders().set("Retry-After", "1");
+                responder(peticion, 429, "{\"error\":\"La cola de impresión "
+                        + "está llena\",\"aceptados\":" + json(aceptados)
+                        + "}");
+                return;
+            }
+            synchronized (this) {
+                trabajos.put(trabajo.getId(), trabajo);
+            }
+            aceptados.add(trabajo);
+        }
+        if (esperar) {
+            try {
+                terminados.await(MAX_ESPERA_SEGUNDOS, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        responder(peticion, 202, "{\"trabajos\":" + json(aceptados) + "}");
+    }
+
+    private void atenderTrabajo(HttpExchange peticion) throws IOException {
+        try {
+            String ruta = peticion.getRequestURI().getPath();
+            TrabajoImpresion trabajo = null;
+            try {
+                long id = Long.parseLong(ruta.substring(
+                        ruta.lastIndexOf('/') + 1));
+                synchronized (this) {
+                    trabajo = trabajos.get(id);
+                }
+            } catch (NumberFormatException ex) {
+                // no existe.
+            }
+            if (trabajo == null) {
+                responder(peticion, 404, error("Trabajo desconocido"));
+            } else {
+                responder(peticion, 200, json(trabajo));
+            }
+        } finally {
+            peticion.close();
+        }
+    }
+
+    private void atenderEstado(HttpExchange peticion) throws IOException {
+        try {
+            responder(peticion, 200, "{\"pendientes\":" + cola.getPendientes()
+                    + ",\"rechazadas\":" + getRechazadas()
+                    + ",\"metricas\":\"" + escapar(MetricasImpresion
+                            .getInstancia().getResumen()) + "\"}");
+        } finally {
+            peticion.close();
+        }
+    }
+
+    /**
+     * Este método avisa a las peticiones que esperan cuando termina uno de
+     * sus trabajos.
+     */
+    private void trabajoActualizado(TrabajoImpresion trabajo) {
+        switch (trabajo.getEstado()) {
+            case IMPRESO:
+            case ERROR:
+            case CANCELADO:
+                CountDownLatch espera;
+                synchronized (this) {
+                    espera = esperas.remove(trabajo.getId());
+                }
+                if (espera != null) {
+                    espera.countDown();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Este método lee las etiquetas de la petición: de los parámetros de un
+     * formulario ó de las filas CSV/TSV del cuerpo.
+     */
+    private static List<Etiqueta> leerEtiquetas(HttpExchange peticion,
+            byte[] cuerpo) throws IOException {
+        List<Etiqueta> etiquetas = new ArrayList<>();
+        String tipo = peticion.getRequestHeaders().getFirst("Content-Type");
+        String texto = new String(cuerpo, StandardCharsets.UTF_8);
+        if (tipo == null || !tipo.toLowerCase(Locale.ROOT)
+                .startsWith("text/")) {
+            Etiqueta etiqueta = leerFormulario(leerParametros(texto));
+            if (!etiqueta.isVacia()) {
+                etiquetas.add(etiqueta);
+            }
+            return etiquetas;
+        }
+        try (LectorEtiquetas lector = new LectorEtiquetas(
+                new StringReader(texto), (char) 0)) {
+            Etiqueta etiqueta = new Etiqueta();
+            while (lector.leer(etiqueta)) {
+                if (!etiqueta.isVacia()) {
+                    etiquetas.add(etiqueta);
+                    etiqueta = new Etiqueta();
+                }
+            }
+        }
+        return etiquetas;
+    }
+
+    private static Etiqueta leerFormulario(Map<String, String> parametros) {
+        Etiqueta etiqueta = new Etiqueta();
+        for (int i = 0; i < Etiqueta.NUM_LINEAS; i++) {
+            String linea = parametros.get("linea" + (i + 1));
+            if (linea != null) {
+                // un %0A terminaría el comando 'A' y el resto del texto
+                // llegaría a la impresora como comandos EPL.
+                for (int j = 0; j < linea.length(); j++) {
+                    if (linea.charAt(j) < ' ') {
+                        throw new IllegalArgumentException(
+                                "Carácter de control en linea" + (i + 1));
+                    }
+                }
+                etiqueta.setLinea(i, linea);
+            }
+        }
+        String valor = parametros.get("fuente");
+        if (valor != null) {
+            etiqueta.setFuente(caracter(valor));
+        }
+        valor = parametros.get("rotacion");
+        if (valor != null) {
+            etiqueta.setRotacion(caracter(valor));
+        }
+        valor = parametros.get("horizontal");
+        if (valor != null) {
+            etiqueta.setExpansionHorizontal(caracter(valor));
+        }
+        valor = parametros.get("vertical");
+        if (valor != null) {
+            etiqueta.setExpansionVertical(caracter(valor));
+        }
+        valor = parametros.get("formato");
+        if (valor != null) {
+            etiqueta.setFormato(caracter(valor));
+        }
+        valor = parametros.get("copias");
+        if (valor != null) {
+            etiqueta.setCopias(Integer.parseInt(valor.trim()));
+        }
+        return etiqueta;
+    }
+
+    private static char caracter(String valor) {
+        if (valor.length() != 1) {
+            throw new IllegalArgumentException("Valor no válido: " + valor);
+        }
+        return valor.charAt(0);
+    }
+
+    private static Map<String, String> leerParametros(String texto) {
+        Map<String, String> parametros = new HashMap<>();
+        if (texto == null || texto.isEmpty()) {
+            return parametros;
+        }
+        try {
+            for (String par : texto.split("&")) {
+                int igual = par.indexOf('=');
+                String nombre = igual < 0 ? par : par.substring(0, igual);
+                String valor = igual < 0 ? "" : par.substring(igual + 1);
+                parametros.put(URLDecoder.decode(nombre, "UTF-8"),
+                        URLDecoder.decode(valor, "UTF-8"));
+            }
+        } catch (IOException ex) {
+            // UTF-8 siempre existe.
+            throw new IllegalStateException(ex);
+        }
+        return parametros;
+    }
+
+    /**
+     * @return el cuerpo de la petición ó null si es demasiado grande.
+     */
+    private static byte[] leerCuerpo(InputStream entrada) throws IOException {
+        ByteArrayOutputStream cuerpo = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int leidos;
+        while ((leidos = entrada.read(buffer)) > 0) {
+            if (cuerpo.size() + leidos > MAX_CUERPO) {
+                return null;
+            }
+            cuerpo.write(buffer, 0, leidos);
+        }
+        return cuerpo.toByteArray();
+    }
+
+    private static void responder(HttpExchange peticion, int codigo,
+            String json) throws IOException {
+        byte[] datos = json.getBytes(StandardCharsets.UTF_8);
+        peticion.getResponseHeaders().set("Content-Type",
+                "application/json; charset=utf-8");
+        peticion.sendResponseHeaders(codigo, datos.length);
+        try (OutputStream salida = peticion.getResponseBody()) {
+            salida.write(datos);
+        }
+    }
+
+    private static String json(List<TrabajoImpresion> lista) {
+        StringBuilder texto = new StringBuilder("[");
+        for (TrabajoImpresion trabajo : lista) {
+            if (texto.length() > 1) {
+                texto.append(',');
+            }
+            texto.append(json(trabajo));
+        }
+        return texto.append(']').toString();
+    }
+
+    private static String json(TrabajoImpresion trabajo) {
+        String texto = "{\"id\":" + trabajo.getId() + ",\"estado\":\""
+                + trabajo.getEstado() + "\"";
+        if (trabajo.getMensajeError() != null) {
+            texto += ",\"error\":\"" + escapar(trabajo.getMensajeError())
+                    + "\"";
+        }
+        return texto + "}";
+    }
+
+    private static String error(String mensaje) {
+        return "{\"error\":\"" + escapar(mensaje) + "\"}";
+    }
+
+    private static String escapar(String texto) {
+        StringBuilder escapado = new StringBuilder();
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c == '"' || c == '\\') {
+                escapado.append('\\').append(c);
+            } else if (c < ' ') {
+                escapado.append(String.format("\\u%04x", (int) c));
+            } else {
+                escapado.append(c);
+            }
+        }
+        return escapado.toString();
+    }
+
+    /**
+     * @param args los argumentos de la linea de comandos.
+     */
+    public static void main(String[] args) {
+        int puerto = PUERTO;
+        String direccion = "127.0.0.1";
+        int capacidad = CAPACIDAD;
+        String salida = "cola:ZDesigner LP 2844";
+        String impresoras = null;
+        boolean usarFormularios = false;
+        PaginaCodigos pagina = PaginaCodigos.porDefecto();
+        String directorioDiario = null;
+        String ficheroLogo = null;
+        int anchoLogo = GraficoEPL.ANCHO;
+        int logoX = GraficoEPL.POSICION_X;
+        int logoY = GraficoEPL.POSICION_Y;
+        double velocidad = 0;
+        String carpeta = null;
+        String descripcionPerfil = "";
+        int cache = CacheEtiquetas.CAPACIDAD;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-formularios")) {
+                    usarFormularios = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException(
+                            "Falta el valor de " + arg);
+                }
+                String valor = args[++i];
+                switch (arg) {
+                    case "-puerto":
+                        puerto = Integer.parseInt(valor);
+                        break;
+                    case "-direccion":
+                        direccion = valor;
+                        break;
+                    case "-capacidad":
+                        capacidad = Integer.parseInt(valor);
+                        break;
+                    case "-salida":
+                        salida = valor;
+                        break;
+                    case "-impresoras":
+                        impresoras = valor;
+                        break;
+                    case "-pagina":
+                        pagina = PaginaCodigos.obtener(valor);
+                        break;
+                    case "-diario":
+                        directorioDiario = valor;
+                        break;
+                    case "-velocidad":
+                        velocidad = Double.parseDouble(valor);
+                        break;
+                    case "-carpeta":
+                        carpeta = valor;
+                        break;
+                    case "-perfil":
+                        descripcionPerfil = valor;
+                        break;
+                    case "-cache":
+                        cache = Integer.parseInt(valor);
+                        break;
+                    case "-logo":
+                        ficheroLogo = valor;
+                        break;
+                    case "-logo-ancho":
+                        anchoLogo = Integer.parseInt(valor);
+                        break;
+                    case "-logo-posicion":
+                        String[] posicion = valor.split(",");
+                        if (posicion.length != 2) {
+                            throw new IllegalArgumentException(
+                                    "Posición no válida: " + valor);
+                        }
+                        logoX = Integer.parseInt(posicion[0].trim());
+                        logoY = Integer.parseInt(posicion[1].trim());
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Opción desconocida: " + arg);
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Uso: ServidorEtiquetas [-puerto N] "
+                    + "[-direccion IP] [-capacidad N] [-salida DESC | "
+                    + "-impresoras LISTA] [-formularios] [-pagina N] "
+                    + "[-diario DIRECTORIO] [-logo FICHERO] [-logo-ancho N] "
+                    + "[-logo-posicion X,Y] [-velocidad N] "
+                    + "[-carpeta DIRECTORIO] [-perfil DESC] [-cache N]");
+            System.exit(2);
+            return;
+        }
+        try {
+            CacheEtiquetas.getInstancia().setCapacidad(cache);
+            List<SalidaImpresion> salidas = impresoras == null
+                    ? new ArrayList<>(Collections.singletonList(
+                            SalidaImpresion.crear(salida,
+                                    RegistroImpresoras.SIN_CADUCIDAD)))
+                    : PoolImpresoras.crearSalidas(impresoras,
+                            RegistroImpresoras.SIN_CADUCIDAD);
+            double ips = velocidad;
+            salidas.replaceAll(s -> SalidaRitmo.acompasar(s, ips,
+                    EtiquetasGUI.ALTO_ETIQUETA + SalidaRitmo.SEPARACION,
+                    SalidaRitmo.BUFFER_IMPRESORA));
+            ServicioImpresion cola = impresoras == null
+                    ? new ColaImpresion(salidas.get(0), capacidad)
+                    : new PoolImpresoras(salidas, capacidad,
+                            PoolImpresoras.Reparto.MENOS_PENDIENTES);
+            cola.setUsarFormularios(usarFormularios);
+            cola.setPerfil(PerfilImpresora.leer(descripcionPerfil, pagina));
+            if (ficheroLogo != null) {
+                cola.setLogo(GraficoEPL.cargar(ficheroLogo, anchoLogo,
+                        GraficoEPL.CACHE).enPosicion(logoX, logoY));
+            }
+            MetricasImpresion.getInstancia().iniciar();
+            List<TrabajoImpresion> reenviados = null;
+            if (directorioDiario != null) {
+                DiarioTrabajos diario
+                        = new DiarioTrabajos(Paths.get(directorioDiario));
+                cola.addOyente(diario);
+                reenviados = diario.reenviarPendientes(cola);
+            }
+            ServidorEtiquetas servidor = new ServidorEtiquetas(cola,
+                    new InetSocketAddress(direccion, puerto));
+            servidor.arrancar();
+            if (carpeta != null) {
+                CarpetaEtiquetas vigilada = new CarpetaEtiquetas(
+                        Paths.get(carpeta), cola, StandardCharsets.UTF_8);
+                if (reenviados != null) {
+                    vigilada.setReenviados(reenviados);
+                }
+                vigilada.arrancar();
+                System.err.println("Imprimiendo los ficheros de "
+                        + carpeta);
+            }
+            System.err.println("Servidor de etiquetas en http://"
+                    + direccion + ":" + servidor.getPuerto() + "/etiquetas");
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("ERROR: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esta clase representa un trabajo de impresión que espera en la cola de
+ * impresión. Guarda la etiqueta a imprimir (ó directamente sus datos EPL) y
+ * el estado del trabajo.
+ */
+public class TrabajoImpresion {
+
+    /**
+     * Los estados por los que pasa un trabajo de impresión.
+     */
+    public enum Estado {
+        EN_COLA, IMPRIMIENDO, IMPRESO, CANCELADO, ERROR
+    }
+
+    private static final AtomicLong CONTADOR = new AtomicLong();
+
+    private final long id;
+    private final String descripcion;
+    private final Etiqueta etiqueta;
+    private volatile byte[] datos;
+    // la página de códigos y el logotipo con los que se han codificado.
+    private volatile PaginaCodigos pagina;
+    private volatile GraficoEPL logo;
+    private volatile Estado estado = Estado.EN_COLA;
+    private volatile String mensajeError;
+    // posición del trabajo en el diario de trabajos, -1 si no está.
+    private volatile long posicionDiario = -1;
+
+    /**
+     * Constructor. La etiqueta se codifica en la cola de impresión al
+     * añadir el trabajo.
+     *
+     * @param descripcion un texto corto para mostrar el trabajo.
+     * @param etiqueta la etiqueta a imprimir; no se debe modificar después.
+     */
+    public TrabajoImpresion(String descripcion, Etiqueta etiqueta) {
+        this.id = CONTADOR.incrementAndGet();
+        this.descripcion = descripcion;
+        this.etiqueta = etiqueta;
+    }
+
+    /**
+     * Constructor para imprimir unos comandos EPL ya generados.
+     *
+     * @param descripcion un texto corto para mostrar el trabajo.
+     * @param datos una matriz de bytes con los comandos EPL a imprimir.
+     */
+    public TrabajoImpresion(String descripcion, byte[] datos) {
+        this.id = CONTADOR.incrementAndGet();
+        this.descripcion = descripcion;
+        this.etiqueta = null;
+        this.datos = datos;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getDescripcion() {
+        return descripcion;
+    }
+
+    /**
+     * @return la etiqueta a imprimir ó null si el trabajo se creó con los
+     * comandos EPL.
+     */
+    public Etiqueta getEtiqueta() {
+        return etiqueta;
+    }
+
+    /**
+     * @return los comandos EPL completos de este trabajo, ó null si el
+     * trabajo todavía no se ha codificado. Si el trabajo se imprimió junto
+     * con otros, lo enviado a la impresora puede ser distinto (formularios ó
+     * copias sumadas), pero estos datos sirven para volver a imprimirlo.
+     */
+    public byte[] getDatos() {
+        return datos;
+    }
+
+    /**
+     * Este método guarda los comandos EPL de la etiqueta junto con la página
+     * de códigos y el logotipo con los que se han codificado, que son los
+     * que debe tener la impresora al imprimirlos.
+     */
+    void setDatos(byte[] datos, PaginaCodigos pagina, GraficoEPL logo) {
+        this.pagina = pagina;
+        this.logo = logo;
+        this.datos = datos;
+    }
+
+    /**
+     * @return la página de códigos de los datos, ó null si no se sabe (un
+     * trabajo creado con los comandos EPL que no viene del diario).
+     */
+    PaginaCodigos getPagina() {
+        return pagina;
+    }
+
+    /**
+     * @return el logotipo de los datos, ó null si no tienen.
+     */
+    GraficoEPL getLogo() {
+        return logo;
+    }
+
+    public Estado getEstado() {
+        return estado;
+    }
+
+    void setEstado(Estado estado) {
+        this.estado = estado;
+    }
+
+    public String getMensajeError() {
+        return mensajeError;
+    }
+
+    void setError(String mensajeError) {
+        this.mensajeError = mensajeError;
+        this.estado = Estado.ERROR;
+    }
+
+    long getPosicionDiario() {
+        return posicionDiario;
+    }
+
+    void setPosicionDiario(long posicionDiario) {
+        this.posicionDiario = posicionDiario;
+    }
+
+    @Override
+    public String toString() {
+        String texto = "#" + id + " " + descripcion + " - " + estado;
+        if (estado == Estado.ERROR && mensajeError != null) {
+            texto += ": " + mensajeError;
+        }
+        return texto;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2017 Francisco Portela Henche
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.pacoportela.elco;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Esta clase dibuja en memoria los comandos EPL de una etiqueta tal y como
+ * los imprimiría la impresora, a 203 puntos por pulgada: lee los comandos
+ * 'A' (texto) con su posición, rotación, fuente, expansión y formato. Los
+ * caracteres se copian de un AtlasGlifos. Al dibujar una etiqueta nueva sólo
+ * se borra y se vuelve a dibujar la zona de los textos que han cambiado. La
+ * vista previa también indica qué textos se salen de la etiqueta.
+ */
+public class VistaPreviaEPL {
+
+    /** Puntos por pulgada de la impresora. */
+    public static final int PPP = 203;
+
+    private static final byte BLANCO = (byte) 0xFF;
+    private static final byte NEGRO = 0;
+
+    /**
+     * Un comando 'A' de la etiqueta.
+     */
+    private static class Texto {
+
+        int x;
+        int y;
+        char rotacion;
+        char fuente;
+        char horizontal;
+        char vertical;
+        char formato;
+        String texto;
+        Rectangle caja;
+
+        boolean mismoTexto(Texto otro) {
+            return x == otro.x && y == otro.y && rotacion == otro.rotacion
+                    && fuente == otro.fuente && horizontal == otro.horizontal
+                    && vertical == otro.vertical && formato == otro.formato
+                    && texto.equals(otro.texto);
+        }
+    }
+
+    private final int ancho;
+    private final int alto;
+    private final BufferedImage imagen;
+    private final byte[] pixeles;
+    private final Rectangle etiqueta;
+    private PaginaCodigos pagina = PaginaCodigos.porDefecto();
+    private List<Texto> textos = new ArrayList<>();
+    private Rectangle zonaCambiada;
+    private long nanosUltimoDibujo;
+
+    /**
+     * Constructor.
+     *
+     * @param ancho el ancho de la etiqueta en puntos.
+     * @param alto el alto de la etiqueta en puntos.
+     */
+    public VistaPreviaEPL(int ancho, int alto) {
+        this.ancho = ancho;
+        this.alto = alto;
+        this.etiqueta = new Rectangle(0, 0, ancho, alto);
+        this.imagen = new BufferedImage(ancho, alto,
+                BufferedImage.TYPE_BYTE_GRAY);
+        this.pixeles = ((DataBufferByte) imagen.getRaster().getDataBuffer())
+                .getData();
+        Arrays.fill(pixeles, BLANCO);
+    }
+
+    /**
+     * @param pagina la página de códigos en la que están los textos.
+     */
+    public void setPaginaCodigos(PaginaCodigos pagina) {
+        this.pagina = pagina;
+    }
+
+    /**
+     * Este método dibuja los comandos EPL de una etiqueta. Sólo se vuelve a
+     * dibujar la zona de los textos que son distintos de los de la etiqueta
+     * anterior.
+     *
+     * @param comandos los comandos EPL, listos para leer. No se modifica su
+     * posición.
+     */
+    public void dibujar(ByteBuffer comandos) {
+        long inicio = System.nanoTime();
+        List<Texto> nuevos = leerTextos(comandos);
+        Rectangle zona = null;
+        int comunes = Math.min(nuevos.size(), textos.size());
+        for (int i = 0; i < Math.max(nuevos.size(), textos.size()); i++) {
+            Texto nuevo = i < nuevos.size() ? nuevos.get(i) : null;
+            Texto viejo = i < textos.size() ? textos.get(i) : null;
+            if (i < comunes && nuevo.mismoTexto(viejo)) {
+                continue;
+            }
+            zona = unir(zona, viejo);
+            zona = unir(zona, nuevo);
+        }
+        textos = nuevos;
+        if (zona != null) {
+            zona = zona.intersection(etiqueta);
+        }
+        if (zona != null && !zona.isEmpty()) {
+            borrar(zona);
+            for (Texto texto : textos) {
+                if (texto.caja.intersects(zona)) {
+                    dibujar(texto, zona);
+                }
+            }
+            zonaCambiada = zona;
+        } else {
+            zonaCambiada = null;
+        }
+        nanosUltimoDibujo = System.nanoTime() - inicio;
+    }
+
+    /**
+     * @return la imagen de la etiqueta, en escala de grises.
+     */
+    public BufferedImage getImagen() {
+        return imagen;
+    }
+
+    /**
+     * @return la zona de la imagen que cambió en el último dibujo, ó null si
+     * no cambió nada.
+     */
+    public Rectangle getZonaCambiada() {
+        return zonaCambiada;
+    }
+
+    /**
+     * @return el tiempo que tardó el último dibujo en nanosegundos.
+     */
+    public long getNanosUltimoDibujo() {
+        return nanosUltimoDibujo;
+    }
+
+    /**
+     * @return los textos que se salen de la etiqueta.
+     */
+    public List<String> getTextosFuera() {
+        List<String> fuera = new ArrayList<>();
+        for (Texto texto : textos) {
+            if (!etiqueta.contains(texto.caja)) {
+                fuera.add(texto.texto);
+            }
+        }
+        return fuera;
+    }
+
+    /**
+     * @return las cajas de los textos que se salen de la etiqueta.
+     */
+    public List<Rectangle> getCajasFuera() {
+        List<Rectangle> fuera = new ArrayList<>();
+        for (Texto texto : textos) {
+            if (!etiqueta.contains(texto.caja)) {
+                fuera.add(texto.caja);
+            }
+        }
+        return fuera;
+    }
+
+    public int getAncho() {
+        return ancho;
+    }
+
+    public int getAlto() {
+        return alto;
+    }
+
+    private static Rectangle unir(Rectangle zona, Texto texto) {
+        if (texto == null) {
+            return zona;
+        }
+        return zona == null ? new Rectangle(texto.caja)
+                : zona.union(texto.caja);
+    }
+
+    private void borrar(Rectangle zona) {
+        for (int y = zona.y; y < zona.y + zona.height; y++) {
+            int fila = y * ancho;
+            Arrays.fill(pixeles, fila + zona.x, fila + zona.x + zona.width,
+                    BLANCO);
+        }
+    }
+
+    /**
+     * Este método dibuja un texto, sólo dentro de la zona indicada.
+     */
+    private void dibujar(Texto texto, Rectangle zona) {
+        AtlasGlifos atlas = AtlasGlifos.obtener(texto.fuente,
+                texto.horizontal, texto.vertical);
+        boolean invertido = texto.formato == 'R';
+        if (invertido) {
+            rellenar(texto.caja.intersection(zona), NEGRO);
+        }
+        byte tinta = invertido ? BLANCO : NEGRO;
+        int anchoGlifo = atlas.getAnchoGlifo();
+        int altoGlifo = atlas.getAltoGlifo();
+        int anchoTexto = texto.texto.length() * atlas.getAnchoCelda();
+        int x1 = zona.x;
+        int y1 = zona.y;
+        int x2 = zona.x + zona.width;
+        int y2 = zona.y + zona.height;
+        for (int n = 0; n < texto.texto.length(); n++) {
+            byte[] glifo = atlas.getGlifo(texto.texto.charAt(n));
+            int desplazamiento = n * atlas.getAnchoCelda();
+            for (int gy = 0; gy < altoGlifo; gy++) {
+                for (int gx = 0; gx < anchoGlifo; gx++) {
+                    if (glifo[gy * anchoGlifo + gx] == 0) {
+                        continue;
+                    }
+                    // posición del punto dentro del texto sin rotar.
+                    int tx = desplazamiento + gx;
+                    int px;
+                    int py;
+                    switch (texto.rotacion) {
+                        case '1':
+                            px = texto.x + altoGlifo - 1 - gy;
+                            py = texto.y + tx;
+                            break;
+                        case '2':
+                            px = texto.x + anchoTexto - 1 - tx;
+                            py = texto.y + altoGlifo - 1 - gy;
+                            break;
+                        case '3':
+                            px = texto.x + gy;
+                            py = texto.y + anchoTexto - 1 - tx;
+                            break;
+                        default:
+                            px = texto.x + tx;
+                            py = texto.y + gy;
+                            break;
+                    }
+                    if (px >= x1 && px < x2 && py >= y1 && py < y2) {
+                        pixeles[py * ancho + px] = tinta;
+                    }
+                }
+            }
+        }
+    }
+
+    private void rellenar(Rectangle zona, byte color) {
+        for (int y = zona.y; y < zona.y + zona.height; y++) {
+            int fila = y * ancho;
+            Arrays.fill(pixeles, fila + zona.x, fila + zona.x + zona.width,
+                    color);
+        }
+    }
+
+    /**
+     * Este método lee los comandos 'A' de la etiqueta. Los demás comandos no
+     * cambian el dibujo y se ignoran.
+     */
+    private List<Texto> leerTextos(ByteBuffer comandos) {
+        List<Texto> lista = new ArrayList<>();
+        int fin = comandos.limit();
+        int i = comandos.position();
+        while (i < fin) {
+            int finLinea = i;
+            while (finLinea < fin && comandos.get(finLinea) != '\n') {
+                finLinea++;
+            }
+            if (comandos.get(i) == 'N') {
+                lista.clear();
+            } else if (comandos.get(i) == 'A') {
+                Texto texto = leerTexto(comandos, i + 1, finLinea);
+                if (texto != null) {
+                    lista.add(texto);
+                }
+            }
+            i = finLinea + 1;
+        }
+        return lista;
+    }
+
+    /**
+     * Este método lee un comando 'A': x,y,rotación,fuente,h,v,formato,"texto".
+     *
+     * @return el texto leído ó null si el comando no es válido.
+     */
+    private Texto leerTexto(ByteBuffer b, int inicio, int fin) {
+        Texto texto = new Texto();
+        int[] numeros = new int[2];
+        char[] opciones = new char[5];
+        int i = inicio;
+        for (int campo = 0; campo < 7; campo++) {
+            int valor = 0;
+            char letra = 0;
+            while (i < fin && b.get(i) != ',') {
+                char c = (char) b.get(i);
+                valor = valor * 10 + (c - '0');
+                letra = c;
+                i++;
+            }
+            if (i >= fin) {
+                return null;
+            }
+            if (campo < 2) {
+                numeros[campo] = valor;
+            } else {
+                opciones[campo - 2] = letra;
+            }
+            i++;
+        }
+        if (i >= fin || b.get(i) != '"') {
+            return null;
+        }
+        StringBuilder contenido = new StringBuilder();
+        for (i++; i < fin && b.get(i) != '"'; i++) {
+            if (b.get(i) == '\\' && i + 1 < fin) {
+                i++;
+            }
+            contenido.append(pagina.decodificar(b.get(i)));
+        }
+        texto.x = numeros[0];
+        texto.y = numeros[1];
+        texto.rotacion = opciones[0];
+        texto.fuente = opciones[1];
+        texto.horizontal = opciones[2];
+        texto.vertical = opciones[3];
+        texto.formato = opciones[4];
+        texto.texto = contenido.toString();
+        AtlasGlifos atlas;
+        try {
+            atlas = AtlasGlifos.obtener(texto.fuente, texto.horizontal,
+                    texto.vertical);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        int largo = texto.texto.length() * atlas.getAnchoCelda();
+        int grueso = atlas.getAltoGlifo();
+        boolean girado = texto.rotacion == '1' || texto.rotacion == '3';
+        texto.caja = new Rectangle(texto.x, texto.y,
+                girado ? grueso : largo, girado ? largo : grueso);
+        return texto;
+    }
+}